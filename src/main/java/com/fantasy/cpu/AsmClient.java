@@ -0,0 +1,143 @@
+package com.fantasy.cpu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Client for {@link AsmDaemon}. One instance holds one connection; requests on it are
+ * sequential, so use one client per thread. The command line mirrors the standalone tools:
+ *   java com.fantasy.cpu.AsmClient [--port N] assemble [-g] [--image-v2] [--compress] in.asm out.bin
+ *   java com.fantasy.cpu.AsmClient [--port N] disassemble in.bin
+ *   java com.fantasy.cpu.AsmClient [--port N] run in.bin [max-instructions]
+ */
+public class AsmClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /** Reply to one request; {@link #error} is null on success. */
+    public static final class Reply {
+        public final String error;
+        public final byte[] body;
+        public final byte[] extra;
+
+        Reply(String error, byte[] body, byte[] extra) {
+            this.error = error;
+            this.body = body;
+            this.extra = extra;
+        }
+
+        public String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    public AsmClient(int port) throws IOException {
+        this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /** Assemble {@code source}; body is the image, extra the debug sidecar if requested. */
+    public Reply assemble(String source, String sourceName, int flags) throws IOException {
+        return request(AsmDaemon.ASSEMBLE, flags, sourceName, 0, source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Disassemble an image; body is the listing. */
+    public Reply disassemble(byte[] image) throws IOException {
+        return request(AsmDaemon.DISASSEMBLE, 0, "", 0, image);
+    }
+
+    /** Run an image for at most {@code maxInstructions} (0 = daemon default); body is a register dump. */
+    public Reply run(byte[] image, long maxInstructions) throws IOException {
+        return request(AsmDaemon.RUN, 0, "", maxInstructions, image);
+    }
+
+    public synchronized Reply request(byte command, int flags, String name, long arg, byte[] payload) throws IOException {
+        out.writeByte(command);
+        out.writeByte(flags);
+        out.writeUTF(name);
+        out.writeLong(arg);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+        int status = in.readUnsignedByte();
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        byte[] extra = new byte[in.readInt()];
+        in.readFully(extra);
+        if (status != AsmDaemon.OK) return new Reply(new String(body, StandardCharsets.UTF_8), new byte[0], extra);
+        return new Reply(null, body, extra);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = AsmDaemon.DEFAULT_PORT;
+        int argi = 0;
+        if (args.length > 1 && args[0].equals("--port")) {
+            port = Integer.parseInt(args[1]);
+            argi = 2;
+        }
+        if (args.length - argi < 2) usage();
+        String cmd = args[argi++];
+        try (AsmClient c = new AsmClient(port)) {
+            Reply r;
+            switch (cmd) {
+                case "assemble": {
+                    int flags = 0;
+                    for (; argi < args.length && args[argi].startsWith("-"); argi++) {
+                        if (args[argi].equals("-g")) flags |= AsmDaemon.DEBUG_INFO;
+                        else if (args[argi].equals("--image-v2")) flags |= AsmDaemon.IMAGE_V2;
+                        else if (args[argi].equals("--compress")) flags |= AsmDaemon.COMPRESS;
+                        else usage();
+                    }
+                    if (args.length - argi != 2) usage();
+                    Path src = Path.of(args[argi]);
+                    Path bin = Path.of(args[argi + 1]);
+                    r = c.assemble(Files.readString(src), src.toString(), flags);
+                    if (r.error == null) {
+                        Files.write(bin, r.body);
+                        if ((flags & AsmDaemon.DEBUG_INFO) != 0) Files.write(Path.of(bin + DebugInfo.FILE_SUFFIX), r.extra);
+                    }
+                    break;
+                }
+                case "disassemble":
+                    r = c.disassemble(Files.readAllBytes(Path.of(args[argi])));
+                    if (r.error == null) System.out.print(r.text());
+                    break;
+                case "run":
+                    r = c.run(Files.readAllBytes(Path.of(args[argi])), argi + 1 < args.length ? Long.parseLong(args[argi + 1]) : 0);
+                    if (r.error == null) System.out.print(r.text());
+                    break;
+                default:
+                    usage();
+                    return;
+            }
+            if (r.error != null) {
+                System.err.println(r.error);
+                System.exit(1);
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: AsmClient [--port N] assemble [-g] [--image-v2] [--compress] <input.asm> <output.bin>");
+        System.err.println("       AsmClient [--port N] disassemble <input.bin>");
+        System.err.println("       AsmClient [--port N] run <input.bin> [max-instructions]");
+        System.exit(2);
+    }
+}
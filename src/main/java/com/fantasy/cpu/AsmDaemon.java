@@ -0,0 +1,246 @@
+package com.fantasy.cpu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long-running assembler, disassembler and runner on the loopback interface, so that tools
+ * do not pay JVM start-up and JIT warm-up for every file. Each connection is served on its own
+ * virtual thread and may carry any number of requests; assembly goes through a shared
+ * {@link AssemblyCache}. At start the daemon assembles, disassembles and runs a small program
+ * a few hundred times in the background so the first real request already hits compiled code.
+ * {@link AsmClient} is the client side.
+ *
+ * Protocol (big-endian). Request:
+ *   u8 command ('A' assemble, 'D' disassemble, 'R' run), u8 flags,
+ *   u16 + UTF-8 source name (DataOutput.writeUTF), u64 argument, u32 payload length, payload
+ * Response:
+ *   u8 status (0 ok, 1 error), u32 length, body, u32 length, extra
+ *
+ *   'A'  payload: source text. flags: {@link #DEBUG_INFO}, {@link #IMAGE_V2}, {@link #COMPRESS}.
+ *        body: image; extra: {@code .dbg} sidecar bytes when DEBUG_INFO was set
+ *   'D'  payload: image. body: disassembly text
+ *   'R'  payload: image, started at its lowest Bank0 address; argument: instruction limit
+ *        (0 = {@link #DEFAULT_RUN_LIMIT}). body: exit reason, instruction count and registers
+ * On error the body is the message and extra is empty. A payload length above
+ * {@link #MAX_PAYLOAD} gets an error reply and the connection is closed, since the rest of the
+ * request cannot be skipped reliably.
+ */
+public class AsmDaemon implements Closeable {
+    public static final int DEFAULT_PORT = 16016;
+    public static final long DEFAULT_RUN_LIMIT = 10_000_000L;
+    public static final int MAX_PAYLOAD = 16 << 20;
+
+    public static final byte ASSEMBLE = 'A';
+    public static final byte DISASSEMBLE = 'D';
+    public static final byte RUN = 'R';
+
+    public static final int DEBUG_INFO = 1;
+    public static final int IMAGE_V2 = 2;
+    public static final int COMPRESS = 4;
+
+    static final int OK = 0;
+    static final int ERROR = 1;
+
+    private static final long MAX_ACCEPT_BACKOFF_MS = 1000;
+
+    private static final String WARM_UP = String.join("\n",
+        "start:",
+        "    MOV 100, R0",
+        "loop:",
+        "    ADD R0, R1",
+        "    MOV.B 0x12, [R2]",
+        "    DEC R0",
+        "    CMP 0, R0",
+        "    JCOND NE, loop",
+        "    MOV 1, $FE0A",
+        ".end");
+
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final AssemblyCache cache;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    private AsmDaemon(int port, AssemblyCache cache) throws IOException {
+        this.cache = cache;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.acceptor = new Thread(this::acceptLoop, "fm16-asmd-" + server.getLocalPort());
+        this.acceptor.setDaemon(true);
+    }
+
+    /** Listen on {@code 127.0.0.1:port} (0 picks a free port, see {@link #port()}). */
+    public static AsmDaemon start(int port) throws IOException {
+        return start(port, new AssemblyCache(1024));
+    }
+
+    public static AsmDaemon start(int port, AssemblyCache cache) throws IOException {
+        AsmDaemon d = new AsmDaemon(port, cache);
+        d.acceptor.start();
+        Thread.ofVirtual().name("fm16-asmd-warmup").start(AsmDaemon::warmUp);
+        return d;
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (Socket s : connections) s.close();
+    }
+
+    // ---- connection handling ----
+
+    // a failing accept (e.g. out of file descriptors) is retried with a doubling delay
+    private void acceptLoop() {
+        long backoff = 0;
+        while (!closed && !server.isClosed()) {
+            Socket s;
+            try {
+                s = server.accept();
+            } catch (IOException e) {
+                if (closed || server.isClosed()) return;
+                backoff = Math.min(Math.max(2 * backoff, 10), MAX_ACCEPT_BACKOFF_MS);
+                System.err.println("asm daemon: " + e.getMessage() + ", retrying in " + backoff + " ms");
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            backoff = 0;
+            connections.add(s);
+            Thread.ofVirtual().name("fm16-asmd-conn").start(() -> serve(s));
+        }
+    }
+
+    private void serve(Socket s) {
+        try (s) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            while (true) {
+                int command;
+                try {
+                    command = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    return; // client done
+                }
+                int flags = in.readUnsignedByte();
+                String name = in.readUTF();
+                long arg = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_PAYLOAD) {
+                    reply(out, ERROR, new byte[][] {("Payload length " + Integer.toUnsignedString(length)
+                        + " exceeds " + MAX_PAYLOAD + " bytes").getBytes(StandardCharsets.UTF_8), new byte[0]});
+                    return;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                byte[][] reply;
+                int status = OK;
+                try {
+                    reply = handle(command, flags, name, arg, payload);
+                } catch (RuntimeException e) {
+                    status = ERROR;
+                    String msg = e.getMessage() != null ? e.getMessage() : e.toString();
+                    reply = new byte[][] {msg.getBytes(StandardCharsets.UTF_8), new byte[0]};
+                }
+                reply(out, status, reply);
+            }
+        } catch (SocketException | EOFException e) {
+            // client went away or daemon closed
+        } catch (IOException e) {
+            if (!closed) System.err.println("asm daemon: " + e.getMessage());
+        } finally {
+            connections.remove(s);
+        }
+    }
+
+    private static void reply(DataOutputStream out, int status, byte[][] parts) throws IOException {
+        out.writeByte(status);
+        for (byte[] part : parts) {
+            out.writeInt(part.length);
+            out.write(part);
+        }
+        out.flush();
+    }
+
+    /** Body and extra for one request; errors are thrown. */
+    byte[][] handle(int command, int flags, String name, long arg, byte[] payload) {
+        switch (command) {
+            case ASSEMBLE: {
+                String source = new String(payload, StandardCharsets.UTF_8);
+                AssemblyCache.Result r = cache.assemble(source, name, (flags & (IMAGE_V2 | COMPRESS)) != 0 ? 2 : 1, (flags & COMPRESS) != 0);
+                byte[] dbg = new byte[0];
+                if ((flags & DEBUG_INFO) != 0) {
+                    ByteArrayOutputStream b = new ByteArrayOutputStream();
+                    try {
+                        r.debugInfo().write(b);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    dbg = b.toByteArray();
+                }
+                return new byte[][] {r.image(), dbg};
+            }
+            case DISASSEMBLE:
+                return new byte[][] {Disassembler.disassemble(payload).getBytes(StandardCharsets.UTF_8), new byte[0]};
+            case RUN:
+                return new byte[][] {run(payload, arg > 0 ? arg : DEFAULT_RUN_LIMIT).getBytes(StandardCharsets.UTF_8), new byte[0]};
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    static String run(byte[] imageBytes, long limit) {
+        MachineImage image;
+        try {
+            image = MachineImage.of(imageBytes);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        Cpu cpu = new Cpu();
+        image.loadInto(cpu);
+        cpu.pc = image.lowestAddress();
+        ExitReason exit = cpu.run(limit);
+        StringBuilder sb = new StringBuilder();
+        sb.append("exit=").append(exit).append(" instructions=").append(cpu.instructionCount).append('\n');
+        for (int i = 0; i < 8; i++) sb.append(String.format("R%d=%04X%s", i, cpu.regs[i], i == 7 ? "\n" : " "));
+        sb.append(String.format("PC=%04X SP=%04X FLAGS=%02X BANK=%d%n", cpu.pc, cpu.sp, cpu.flags, cpu.bankReg));
+        return sb.toString();
+    }
+
+    // exercise the hot paths off the request threads; results are discarded
+    private static void warmUp() {
+        for (int i = 0; i < 300; i++) {
+            byte[] image = new Assembler().assemble(WARM_UP + "\n; " + i + "\n");
+            Disassembler.disassemble(image);
+            run(image, 10_000);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        AsmDaemon d = start(port);
+        System.err.println("asm daemon listening on 127.0.0.1:" + d.port());
+        d.acceptor.join();
+    }
+}
@@ -0,0 +1,391 @@
+package com.fantasy.cpu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Hand-written scanner used by {@link Assembler}. Lines are split and operands classified with
+ * plain character loops: no regular expressions and no allocation beyond the substrings the
+ * assembler keeps. Each instruction operand is lexed once, at parse time, into an
+ * {@link Operand} carrying its kind and precomputed register or numeric value, so the
+ * assembly pass does not re-scan operand text.
+ *
+ * Operand syntax:
+ *   R0..R7 (any case, optional blank after R)   register
+ *   [Rn]                                        register indirect
+ *   $HEX (1-4 digits)                           absolute address
+ *   0xHEX, %BIN, decimal digits                 immediate
+ *   letters, digits, '_' and '-', not starting with a digit or '-'   label
+ *   terms above (numbers, $addresses, names) combined with + - * / << >> & | ^,
+ *   unary - and ~, and parentheses              constant expression
+ *
+ * Inside an expression '-' is always minus; a name with a dash is read as an expression only
+ * when no label of that name exists.
+ */
+final class AsmLexer {
+    // operand kinds; the first four equal the Cpu addressing modes
+    static final int REG = Cpu.MODE_REG;
+    static final int IND = Cpu.MODE_IND;
+    static final int ADDR = Cpu.MODE_ABS;
+    static final int IMM = Cpu.MODE_IMM;
+    static final int IDENT = 4;
+    static final int OTHER = 5;
+    static final int EXPR = 6;
+
+    /** Value of a literal or register that has the right prefix but does not parse. */
+    static final int INVALID = -1;
+
+    private static final String[] NO_OPERANDS = new String[0];
+
+    static final class Operand {
+        final String text;  // trimmed source text
+        final int kind;
+        final int reg;      // REG, IND: register number or INVALID
+        final int value;    // IMM, ADDR: 16-bit value or INVALID
+        int symbol = SymbolTable.NOT_FOUND; // IDENT: id in the assembler's symbol table
+        Expr expr;          // EXPR, and IDENT with a dash: the text as an expression
+
+        Operand(String text, int kind, int reg, int value) {
+            this.text = text;
+            this.kind = kind;
+            this.reg = reg;
+            this.value = value;
+        }
+
+        /** Whether the operand is encoded as an extension word. */
+        boolean hasExtension() {
+            return kind == IMM || kind == ADDR || kind == IDENT || kind == EXPR;
+        }
+
+        /** For a bad IND operand: the text between the brackets, as the register error shows it. */
+        String innerText() {
+            return text.substring(1, text.length() - 1).trim();
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * Constant expression compiled to postfix. {@code code} holds pairs: {@link #NUM} or
+     * {@link #ADDR_TERM} and a value, {@link #SYM} and an index into {@code names}, or an
+     * operator character and 0 ('<' stands for {@code <<}, '>' for {@code >>}, 'n' for unary
+     * minus, '~' for complement). Precedence is C's: unary - ~, then * /, then + -, then shifts,
+     * &amp;, ^, |.
+     */
+    static final class Expr {
+        static final int NUM = 0;
+        static final int ADDR_TERM = 1;
+        static final int SYM = 2;
+
+        final String text;
+        final int[] code;
+        final String[] names;
+        final int[] symbols; // ids of names in the assembler's symbol table
+
+        Expr(String text, int[] code, String[] names) {
+            this.text = text;
+            this.code = code;
+            this.names = names;
+            this.symbols = new int[names.length];
+        }
+    }
+
+    private AsmLexer() {
+    }
+
+    static boolean isSpace(char c) {
+        return c <= ' ';
+    }
+
+    /** Index of the first blank in {@code s}, or -1. */
+    static int firstSpace(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            if (isSpace(s.charAt(i))) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Split an operand list at commas, trimming each item. Empty trailing items are dropped,
+     * so {@code "R0,"} gives one operand and {@code ","} none.
+     */
+    static String[] splitOperands(String s) {
+        int n = s.length();
+        int count = 1;
+        for (int i = 0; i < n; i++) if (s.charAt(i) == ',') count++;
+        String[] out = new String[count];
+        int k = 0, from = 0;
+        for (int i = 0; i <= n; i++) {
+            if (i == n || s.charAt(i) == ',') {
+                out[k++] = trim(s, from, i);
+                from = i + 1;
+            }
+        }
+        while (k > 0 && out[k - 1].isEmpty()) k--;
+        if (k == 0) return NO_OPERANDS;
+        return k == out.length ? out : Arrays.copyOf(out, k);
+    }
+
+    private static String trim(String s, int from, int to) {
+        while (from < to && isSpace(s.charAt(from))) from++;
+        while (to > from && isSpace(s.charAt(to - 1))) to--;
+        return s.substring(from, to);
+    }
+
+    static boolean isDigits(String s) {
+        int n = s.length();
+        if (n == 0) return false;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    /** Letters, digits, underscore and dash; must start with a letter or underscore. */
+    static boolean isLabelName(String s) {
+        int n = s.length();
+        if (n == 0 || !isLabelStart(s.charAt(0))) return false;
+        for (int i = 1; i < n; i++) {
+            char c = s.charAt(i);
+            if (!isLabelStart(c) && !(c >= '0' && c <= '9') && c != '-') return false;
+        }
+        return true;
+    }
+
+    static boolean isLabelStart(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+    }
+
+    /**
+     * Numeric literal value masked to 16 bits: {@code 0xHEX}, {@code %BIN}, decimal digits,
+     * or {@code $HEX} / {@code $0xHEX}. Returns {@link #INVALID} for anything else, including
+     * values that overflow an int.
+     */
+    static int literal(String s) {
+        int n = s.length();
+        if (n == 0) return INVALID;
+        char c = s.charAt(0);
+        if (c == '$') {
+            int from = 1;
+            if (n > 2 && s.charAt(1) == '0' && (s.charAt(2) == 'x' || s.charAt(2) == 'X')) from = 3;
+            return digits(s, from, n, 16);
+        }
+        if (c == '%') return digits(s, 1, n, 2);
+        if (n > 1 && c == '0' && (s.charAt(1) == 'x' || s.charAt(1) == 'X')) return digits(s, 2, n, 16);
+        return digits(s, 0, n, 10);
+    }
+
+    /** {@code $} followed by 1-4 hex digits (blanks allowed after {@code $}), or {@link #INVALID}. */
+    static int hexAddress(String s) {
+        if (s.isEmpty() || s.charAt(0) != '$') return INVALID;
+        int from = 1, to = s.length();
+        while (from < to && isSpace(s.charAt(from))) from++;
+        if (to - from < 1 || to - from > 4) return INVALID;
+        return digits(s, from, to, 16);
+    }
+
+    private static int digits(String s, int from, int to, int radix) {
+        if (from >= to) return INVALID;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = Character.digit(s.charAt(i), radix);
+            if (d < 0) return INVALID;
+            v = v * radix + d;
+            if (v > Integer.MAX_VALUE) return INVALID;
+        }
+        return (int) v & 0xFFFF;
+    }
+
+    /** Classify one trimmed instruction operand. */
+    static Operand operand(String text) {
+        int n = text.length();
+        if (n == 0) return new Operand(text, OTHER, INVALID, INVALID);
+        char c = text.charAt(0);
+        if ((n > 1 && c == '0' && (text.charAt(1) == 'x' || text.charAt(1) == 'X')) || c == '%' || isDigits(text)) {
+            int v = literal(text);
+            return v == INVALID ? orExpression(text, IMM, v) : new Operand(text, IMM, 0, v);
+        }
+        if (c == '$') {
+            int v = hexAddress(text);
+            return v == INVALID ? orExpression(text, ADDR, v) : new Operand(text, ADDR, 0, v);
+        }
+        if (c == '[' && n > 1 && text.charAt(n - 1) == ']') {
+            return new Operand(text, IND, register(text, 1, n - 1), 0);
+        }
+        int reg = register(text, 0, n);
+        if (reg != INVALID) return new Operand(text, REG, reg, 0);
+        if (isLabelName(text)) {
+            Operand o = new Operand(text, IDENT, 0, 0);
+            if (text.indexOf('-') >= 0) o.expr = expr(text);
+            return o;
+        }
+        return orExpression(text, OTHER, INVALID);
+    }
+
+    // an EXPR operand if text parses as an expression, else the (invalid) operand of kind
+    private static Operand orExpression(String text, int kind, int value) {
+        Expr e = expr(text);
+        if (e == null) return new Operand(text, kind, kind == OTHER ? INVALID : 0, value);
+        Operand o = new Operand(text, EXPR, 0, 0);
+        o.expr = e;
+        return o;
+    }
+
+    /** {@code text} as a constant expression, or null if it is not one. */
+    static Expr expr(String text) {
+        ExprParser p = new ExprParser(text);
+        if (!p.or()) return null;
+        p.skipSpace();
+        if (p.pos != text.length()) return null;
+        return new Expr(text, Arrays.copyOf(p.code, p.n), p.names.toArray(new String[0]));
+    }
+
+    // recursive descent, one method per precedence level; false on a syntax error
+    private static final class ExprParser {
+        final String s;
+        int pos;
+        int[] code = new int[16];
+        int n;
+        final List<String> names = new ArrayList<>();
+
+        ExprParser(String s) {
+            this.s = s;
+        }
+
+        boolean or() {
+            if (!xor()) return false;
+            while (at('|')) {
+                pos++;
+                if (!xor()) return false;
+                emit('|', 0);
+            }
+            return true;
+        }
+
+        boolean xor() {
+            if (!and()) return false;
+            while (at('^')) {
+                pos++;
+                if (!and()) return false;
+                emit('^', 0);
+            }
+            return true;
+        }
+
+        boolean and() {
+            if (!shift()) return false;
+            while (at('&')) {
+                pos++;
+                if (!shift()) return false;
+                emit('&', 0);
+            }
+            return true;
+        }
+
+        boolean shift() {
+            if (!sum()) return false;
+            while ((at('<') || at('>')) && pos + 1 < s.length() && s.charAt(pos + 1) == s.charAt(pos)) {
+                char op = s.charAt(pos);
+                pos += 2;
+                if (!sum()) return false;
+                emit(op, 0);
+            }
+            return true;
+        }
+
+        boolean sum() {
+            if (!product()) return false;
+            while (at('+') || at('-')) {
+                char op = s.charAt(pos++);
+                if (!product()) return false;
+                emit(op, 0);
+            }
+            return true;
+        }
+
+        boolean product() {
+            if (!primary()) return false;
+            while (at('*') || at('/')) {
+                char op = s.charAt(pos++);
+                if (!primary()) return false;
+                emit(op, 0);
+            }
+            return true;
+        }
+
+        boolean primary() {
+            if (at('-') || at('~')) {
+                char op = s.charAt(pos++);
+                if (!primary()) return false;
+                emit(op == '-' ? 'n' : '~', 0);
+                return true;
+            }
+            if (at('(')) {
+                pos++;
+                if (!or() || !at(')')) return false;
+                pos++;
+                return true;
+            }
+            int start = pos;
+            while (pos < s.length() && !isSpace(s.charAt(pos)) && "+-*/&|^<>()".indexOf(s.charAt(pos)) < 0) pos++;
+            if (pos == start) return false;
+            String t = s.substring(start, pos);
+            if (t.charAt(0) == '$') {
+                int v = hexAddress(t);
+                if (v == INVALID) return false;
+                emit(Expr.ADDR_TERM, v);
+            } else if (isLabelStart(t.charAt(0))) {
+                if (!isLabelName(t)) return false;
+                int i = names.indexOf(t);
+                if (i < 0) {
+                    i = names.size();
+                    names.add(t);
+                }
+                emit(Expr.SYM, i);
+            } else {
+                int v = literal(t);
+                if (v == INVALID) return false;
+                emit(Expr.NUM, v);
+            }
+            return true;
+        }
+
+        // skip blanks, then whether the next character is c
+        boolean at(char c) {
+            skipSpace();
+            return pos < s.length() && s.charAt(pos) == c;
+        }
+
+        void skipSpace() {
+            while (pos < s.length() && isSpace(s.charAt(pos))) pos++;
+        }
+
+        void emit(int op, int arg) {
+            if (n + 2 > code.length) code = Arrays.copyOf(code, code.length * 2);
+            code[n++] = op;
+            code[n++] = arg;
+        }
+    }
+
+    // 'R' or 'r', optional blanks, decimal digits; surrounding blanks ignored
+    private static int register(String s, int from, int to) {
+        while (from < to && isSpace(s.charAt(from))) from++;
+        while (to > from && isSpace(s.charAt(to - 1))) to--;
+        if (from >= to || (s.charAt(from) != 'R' && s.charAt(from) != 'r')) return INVALID;
+        from++;
+        while (from < to && isSpace(s.charAt(from))) from++;
+        if (from >= to || to - from > 9) return INVALID;
+        int v = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return INVALID;
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+}
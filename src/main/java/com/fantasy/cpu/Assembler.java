@@ -2,8 +2,12 @@ package com.fantasy.cpu;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Very small assembler for the Fantasy CPU instruction format used in tests.
@@ -15,41 +19,203 @@ import java.util.*;
  * - words and extensions written in BIG-ENDIAN
  */
 public class Assembler {
-    private Map<String,Integer> labels = new HashMap<>();
+    /** Source name reported for text assembled from memory or a Reader. */
+    public static final String IN_MEMORY_SOURCE = "<input>";
+
+    private final SymbolTable labels = new SymbolTable();
     private List<Line> lines = new ArrayList<>();
-    // record data ranges (start, length) to emit into a small embedded map
+    // record data ranges (start, length) to emit into the image map
     private List<int[]> dataRanges = new ArrayList<>();
     private List<String> dataRangeTypes = new ArrayList<>();
     private boolean inDataSection = false;  // track if we're in .data section
+    // debug line table rebuilt by assemble(): one entry per emitted instruction
+    private List<DebugInfo.LineEntry> debugLines = new ArrayList<>();
+    private Path debugOutput; // optional sidecar debug file written by assemble()
+    private int imageVersion = 1;
+    private boolean compressImage;
+    private boolean duplicateLabels; // some label is defined twice; incremental edits fall back to a full parse
+    private String sourceName;       // name given to the last parse
+    private int patchedReferences;   // label words rewritten in place by the last reparseLines
+    private final BitSet externs = new BitSet();  // symbol ids declared .extern
+    private List<int[]> relocations; // assembleObject in progress: {address, symbol id, value} of label words
+    private final BitSet constants = new BitSet();  // symbol ids defined by .equ
+    private final BitSet immediates = new BitSet(); // .equ symbols used as immediates rather than addresses
+    private final BitSet labelConstants = new BitSet(); // .equ symbols whose value depends on a label
+    // set by evalExpr, see there
+    private int exprWeight;
+    private int exprLabels;
+    private int exprLabel;
+    private boolean exprRelocatable;
+    private final Map<String, Macro> macros = new HashMap<>(); // by upper-case name
+    private int expansions;          // macro expansions so far, numbers \@
+    private boolean preprocessed;    // the source used .include, .macro or .rept
+    private boolean optimize;
+    private int optimizedInstructions; // removed by the last peephole pass
+    private int optimizedWords;        // extension words of those instructions
+    private int flagScanBudget;        // lines flagsDead may still look at
+
+    // More frames than this means a macro or .include that (indirectly) uses itself.
+    private static final int MAX_NESTING = 64;
+    private static final int MAX_CACHED_INCLUDES = 256;
+    // Included files by absolute path, comment-stripped and trimmed, shared by all Assemblers and
+    // reused while the file keeps its size and modification time.
+    private static final Map<Path, CachedInclude> includes = new ConcurrentHashMap<>();
 
     private static class Line {
         String label;
+        int labelSymbol;             // id of label in the symbol table
         String op;
         String[] ops;
+        AsmLexer.Operand[] operands; // instructions: ops lexed once at parse time
+        int opcode;                  // instructions: opcode of the mnemonic without size suffix
+        boolean byteSize;            // instructions: .B suffix
+        byte[] code;                 // instructions: encoded words, cached until a label it uses moves
         int addr;
+        int size;                    // bytes this line advances the location counter
         boolean isDirective;
         String sourceFile;
         int sourceLine;
         String sourceSnippet;
     }
+    // Lines being read: the source, an included file, or a macro or .rept expansion. {@code lines}
+    // holds the source line of each text for expansions and is null when they are consecutive.
+    private static final class Frame {
+        final Iterator<String> text;
+        final String file;
+        final Path path; // included file, for recursion checks
+        final int[] lines;
+        int index;
+        int line = -1;
+
+        Frame(Iterator<String> text, String file, Path path, int[] lines) {
+            this.text = text;
+            this.file = file;
+            this.path = path;
+            this.lines = lines;
+        }
+
+        String next() {
+            String t = text.next();
+            line = lines == null ? line + 1 : lines[index++];
+            return t;
+        }
+    }
+
+    // Body of a .macro or .rept: lines as written (comments stripped) and where they came from.
+    private static class Block {
+        final String file;
+        final List<String> text = new ArrayList<>();
+        int[] lines = new int[16];
+
+        Block(String file) {
+            this.file = file;
+        }
+
+        void add(String t, int line) {
+            if (text.size() == lines.length) lines = Arrays.copyOf(lines, lines.length * 2);
+            lines[text.size()] = line;
+            text.add(t);
+        }
+    }
+
+    private static final class Macro extends Block {
+        final String name;
+        final String[] params;
+        final boolean unique; // body uses \@, so every expansion differs
+        final Map<List<String>, List<String>> cache = new HashMap<>(); // expansion by arguments
+
+        Macro(String name, String[] params, Block body) {
+            super(body.file);
+            this.name = name;
+            this.params = params;
+            this.text.addAll(body.text);
+            this.lines = body.lines;
+            boolean u = false;
+            for (String t : text) u |= t.contains("\\@");
+            this.unique = u;
+        }
+    }
+
+    private static final class CachedInclude {
+        final FileTime modified;
+        final long size;
+        final List<String> lines;
+
+        CachedInclude(FileTime modified, long size, List<String> lines) {
+            this.modified = modified;
+            this.size = size;
+            this.lines = lines;
+        }
+    }
+
     // track currently parsing source context to produce richer errors
     private String currentSourceFile = null;
     private int currentSourceLine = -1;
     private String currentSourceSnippet = null;
 
     public void parse(Path asmFile) throws IOException {
-        List<String> src = Files.readAllLines(asmFile);
+        parseLines(Files.readAllLines(asmFile), asmFile.toString());
+    }
+
+    /** Parse source text held in memory; {@code sourceName} is used in errors and debug info. */
+    public void parse(CharSequence source, String sourceName) {
+        parseLines(source.toString().lines()::iterator, sourceName);
+    }
+
+    /** Parse source read line by line from {@code in} (not closed). */
+    public void parse(Reader in, String sourceName) throws IOException {
+        BufferedReader br = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        try {
+            parseLines(br.lines()::iterator, sourceName);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Parsing replaces the result of any earlier parse, so one Assembler can be reused.
+    private void parseLines(Iterable<String> src, String sourceName) {
+        readLines(src, sourceName);
+        optimizedInstructions = optimizedWords = 0;
+        if (optimize) optimize();
+    }
+
+    private void readLines(Iterable<String> src, String sourceName) {
+        labels.clear();
+        externs.clear();
+        constants.clear();
+        immediates.clear();
+        labelConstants.clear();
+        macros.clear();
+        expansions = 0;
+        preprocessed = false;
+        lines.clear();
+        inDataSection = false;
+        duplicateLabels = false;
+        this.sourceName = sourceName;
         int loc = 0;
-        this.currentSourceFile = asmFile.toString();
+        this.currentSourceFile = sourceName;
+        this.currentSourceLine = -1;
     boolean sawEnd = false;
     boolean sawStart = false;
     boolean sawOrg = false;
     // allowed directives (lower-case)
     final Set<String> allowedDirectives = new HashSet<>(Arrays.asList(
-        ".org", ".start", ".data", ".end", ".byte", ".bytes", ".ascii", ".word"
+        ".org", ".start", ".data", ".end", ".byte", ".bytes", ".ascii", ".word",
+        ".section", ".global", ".extern",
+        ".equ", ".include", ".macro", ".endm", ".rept", ".endr"
     ));
-        for (String raw : src) {
-            this.currentSourceLine++;
+        Deque<Frame> frames = new ArrayDeque<>();
+        frames.push(new Frame(src.iterator(), sourceName, pathOf(sourceName), null));
+        while (true) {
+            Frame frame = frames.peek();
+            if (!frame.text.hasNext()) {
+                frames.pop();
+                if (frames.isEmpty()) break;
+                continue;
+            }
+            String raw = frame.next();
+            this.currentSourceFile = frame.file;
+            this.currentSourceLine = frame.line;
             // remove inline comments starting with ';'
             int ci = raw.indexOf(';');
             String s = (ci >= 0) ? raw.substring(0, ci).trim() : raw.trim();
@@ -57,6 +223,7 @@ public class Assembler {
                 throw new AssembleException("Content after .end is not allowed", currentSourceFile, currentSourceLine, -1, s);
             }
             if (s.isEmpty()) continue;
+            if (s.charAt(0) == '.' && preprocess(s, frames)) continue;
             Line ln = new Line();
             // If the line starts with a dot it *may* be a directive (.org, .word, .data, .end, etc.)
             // It can also be a label that begins with a dot (e.g. .start: produced by the disassembler).
@@ -66,8 +233,8 @@ public class Assembler {
             //   of the directive form and throw an error telling the user to use '.data' (no ':').
             // - If the first token does NOT end with ':' it's a directive and must be one of the allowed set.
             if (s.startsWith(".")) {
-                String[] dotTokens = s.split("\\s+",2);
-                String firstDot = dotTokens[0];
+                int sp = AsmLexer.firstSpace(s);
+                String firstDot = sp < 0 ? s : s.substring(0, sp);
                 boolean endsWithColon = firstDot.endsWith(":");
                 String baseToken = endsWithColon ? firstDot.substring(0, firstDot.length()-1).toLowerCase() : firstDot.toLowerCase();
 
@@ -86,14 +253,16 @@ public class Assembler {
                     ln.addr = loc;
                     // store the snippet (trimmed content after removing comments and label)
                     ln.sourceSnippet = s;
+                    ln.sourceFile = this.currentSourceFile;
+                    ln.sourceLine = this.currentSourceLine;
                     ln.isDirective = true;
                     ln.op = baseToken; // already lower-case
-                    if (dotTokens.length > 1) {
-                        String rest = dotTokens[1].trim();
+                    if (sp >= 0) {
+                        String rest = s.substring(sp).trim();
                         if (ln.op.equals(".ascii")) {
                             ln.ops = new String[] { rest };
                         } else {
-                            ln.ops = rest.split("\\s*,\\s*");
+                            ln.ops = AsmLexer.splitOperands(rest);
                         }
                     } else {
                         ln.ops = new String[0];
@@ -146,11 +315,22 @@ public class Assembler {
                         sawStart = true;
                         break;
                     }
+                    case ".section": case ".global": case ".extern": {
+                        linkDirective(ln, s);
+                        break;
+                    }
+                    case ".equ": {
+                        defineConstant(ln, s);
+                        break;
+                    }
                     case ".end": {
                         // stop parsing; require program to explicitly end with .end
                         if (sawEnd) {
                             throw new AssembleException("Only one .end is allowed", currentSourceFile, currentSourceLine, -1, s);
                         }
+                        if (frames.size() > 1) {
+                            throw new AssembleException(".end is not allowed in an included file or macro", currentSourceFile, currentSourceLine, -1, s);
+                        }
                         sawEnd = true;
                         lines.add(ln);
                         lines.add(null); // sentinel
@@ -160,27 +340,32 @@ public class Assembler {
                         break;
                     }
                     }
+                    if (!ln.op.equals(".org")) ln.size = loc - ln.addr;
                     lines.add(ln);
                     continue;
                 }
             }
             // label (non-directive)
-            if (s.contains(":")) {
-                String[] parts = s.split(":",2);
-                ln.label = parts[0].trim();
+            int colon = s.indexOf(':');
+            if (colon >= 0) {
+                ln.label = s.substring(0, colon).trim();
                 // validate and store labels case-insensitively
-                if (!isValidLabelName(ln.label)) {
+                if (!AsmLexer.isLabelName(ln.label)) {
                     throw new AssembleException("Invalid label name: '" + ln.label + "' (allowed: letters, digits, underscore, dash)", this.currentSourceFile, this.currentSourceLine, -1, s);
                 }
-                labels.put(ln.label.toLowerCase(), loc);
+                ln.labelSymbol = labels.intern(ln.label);
+                if (constants.get(ln.labelSymbol)) {
+                    throw new AssembleException("Label " + ln.label + " is already defined by .equ", currentSourceFile, currentSourceLine, -1, s);
+                }
+                if (labels.define(ln.labelSymbol, loc)) duplicateLabels = true;
                 ln.sourceFile = this.currentSourceFile;
                 ln.sourceLine = this.currentSourceLine;
-                s = parts[1].trim();
-                if (s.isEmpty()) { lines.add(ln); continue; }
+                s = s.substring(colon + 1).trim();
+                if (s.isEmpty()) { ln.addr = loc; lines.add(ln); continue; }
                 // If the remainder after a label starts with a dot it may be a directive
                 if (s.startsWith(".")) {
-                    String[] dotTokens = s.split("\\s+",2);
-                    String firstDot = dotTokens[0];
+                    int sp = AsmLexer.firstSpace(s);
+                    String firstDot = sp < 0 ? s : s.substring(0, sp);
                     boolean endsWithColon = firstDot.endsWith(":");
                     String baseToken = endsWithColon ? firstDot.substring(0, firstDot.length()-1).toLowerCase() : firstDot.toLowerCase();
 
@@ -197,10 +382,10 @@ public class Assembler {
                         ln.sourceSnippet = s;
                         ln.isDirective = true;
                         ln.op = baseToken;
-                        if (dotTokens.length > 1) {
-                            String rest = dotTokens[1].trim();
+                        if (sp >= 0) {
+                            String rest = s.substring(sp).trim();
                             if (ln.op.equals(".ascii")) ln.ops = new String[] { rest };
-                            else ln.ops = rest.split("\\s*,\\s*");
+                            else ln.ops = AsmLexer.splitOperands(rest);
                         } else ln.ops = new String[0];
 
                         switch (ln.op) {
@@ -228,81 +413,932 @@ public class Assembler {
                         }
                         case ".data": { if (inDataSection) throw new AssembleException("Only one .data section is allowed", currentSourceFile, currentSourceLine, -1, s); inDataSection = true; break; }
                         case ".start": { if (sawOrg) throw new AssembleException("Directive .start is not allowed after .org (use .org to set start)", currentSourceFile, currentSourceLine, -1, s); if (sawStart) throw new AssembleException("Only one .start is allowed", currentSourceFile, currentSourceLine, -1, s); sawStart = true; break; }
-                        case ".end": { if (sawEnd) throw new AssembleException("Only one .end is allowed", currentSourceFile, currentSourceLine, -1, s); sawEnd = true; lines.add(ln); lines.add(null); return; }
+                        case ".section": case ".global": case ".extern": { linkDirective(ln, s); break; }
+                        case ".equ": case ".include": case ".macro": case ".endm": case ".rept": case ".endr":
+                            throw new AssembleException("Directive " + ln.op + " cannot follow a label", currentSourceFile, currentSourceLine, -1, s);
+                        case ".end": { if (sawEnd) throw new AssembleException("Only one .end is allowed", currentSourceFile, currentSourceLine, -1, s); if (frames.size() > 1) throw new AssembleException(".end is not allowed in an included file or macro", currentSourceFile, currentSourceLine, -1, s); sawEnd = true; lines.add(ln); lines.add(null); return; }
                         default: break;
                         }
+                        if (!ln.op.equals(".org")) ln.size = loc - ln.addr;
                         lines.add(ln);
                         continue;
                     }
                 }
             }
-            // instruction, directive, or operands
-            String[] tokens = s.split("\\s+",2);
-            String first = tokens[0];
-            ln.addr = loc;
-            // store the snippet (trimmed content after removing comments and label)
-            ln.sourceSnippet = s;
+            // macro invocation: the label (if any) stays here, the expansion is read next
+            if (!macros.isEmpty()) {
+                int sp = AsmLexer.firstSpace(s);
+                Macro m = macros.get((sp < 0 ? s : s.substring(0, sp)).toUpperCase());
+                if (m != null) {
+                    if (ln.label != null) {
+                        ln.addr = loc;
+                        lines.add(ln);
+                    }
+                    expandMacro(m, sp < 0 ? "" : s.substring(sp).trim(), frames, s);
+                    continue;
+                }
+            }
+            // instruction + operands
             ln.sourceFile = this.currentSourceFile;
             ln.sourceLine = this.currentSourceLine;
+            loc += parseInstruction(ln, s, loc);
+            lines.add(ln);
+        }
+        // After processing all lines, require explicit .end directive
+        if (!sawEnd) {
+            throw new AssembleException("Program must end with .end directive", currentSourceFile, currentSourceLine, -1, null);
+        }
+    }
 
-            // instruction + operands
-            ln.op = first.toUpperCase();
-            if (tokens.length > 1) ln.ops = tokens[1].split("\\s*,\\s*"); else ln.ops = new String[0];
-            // Immediate values (literals) can be written as:
-            //  - hexadecimal: '0xABCD'
-            //  - decimal: '1234'
-            //  - binary: '%101010' (use '%' prefix only)
-            // Addresses still use '$' (e.g. '$ABCD') and labels remain identifiers.
-
-            // Reject any use of invalid legacy characters in source: immediates must be written as 0x, %, or decimal.
-            if (ln.ops != null) {
-                for (String opToken : ln.ops) {
-                    String oc = opToken.split(";")[0].trim();
-                            if (oc.contains("#")) {
-                                throw new AssembleException("Invalid immediate syntax in operand '" + oc + "' (use 0x..., %, or decimal for immediates; use $ADDR or label for addresses)", this.currentSourceFile, this.currentSourceLine, ln.addr, ln.sourceSnippet);
+    // Instruction line, after any label: fills in ln at address loc and returns its size in bytes.
+    private int parseInstruction(Line ln, String s, int loc) {
+        int sp = AsmLexer.firstSpace(s);
+        String first = sp < 0 ? s : s.substring(0, sp);
+        ln.addr = loc;
+        // store the snippet (trimmed content after removing comments and label)
+        ln.sourceSnippet = s;
+
+        ln.op = first.toUpperCase();
+        ln.ops = sp < 0 ? new String[0] : AsmLexer.splitOperands(s.substring(sp).trim());
+        // Immediate values (literals) can be written as:
+        //  - hexadecimal: '0xABCD'
+        //  - decimal: '1234'
+        //  - binary: '%101010' (use '%' prefix only)
+        // Addresses still use '$' (e.g. '$ABCD') and labels remain identifiers.
+
+        // Reject any use of invalid legacy characters in source: immediates must be written as 0x, %, or decimal.
+        for (String oc : ln.ops) {
+            if (oc.indexOf('#') >= 0) {
+                throw new AssembleException("Invalid immediate syntax in operand '" + oc + "' (use 0x..., %, or decimal for immediates; use $ADDR or label for addresses)", this.currentSourceFile, this.currentSourceLine, ln.addr, ln.sourceSnippet);
+            }
+        }
+
+        // instruction size: base word + possibly extensions
+        int size = 2;
+        int dot = ln.op.indexOf('.');
+        ln.opcode = opcodeOf(dot < 0 ? ln.op : ln.op.substring(0, dot), ln);
+        ln.byteSize = ln.op.contains(".B");
+        ln.operands = new AsmLexer.Operand[ln.ops.length];
+        for (int i = 0; i < ln.ops.length; i++) {
+            AsmLexer.Operand o = AsmLexer.operand(ln.ops[i]);
+            if (o.kind == AsmLexer.IDENT) o.symbol = labels.intern(o.text); // resolved by id when encoding
+            if (o.expr != null) intern(o.expr);
+            ln.operands[i] = o;
+        }
+        // Special-case JCOND: ops[0] is a condition mnemonic (no extension), ops[1] is the target
+        if (ln.opcode == Cpu.JCOND) {
+            if (ln.ops.length >= 2) size += 2; // target absolute extension
+        } else {
+            // immediates, $addresses and labels (absolute addresses) need an extension word
+            for (AsmLexer.Operand o : ln.operands) {
+                if (o.hasExtension()) size += 2;
+            }
+        }
+        ln.size = size;
+        return size;
+    }
+
+    private static Path pathOf(String sourceName) {
+        try {
+            return sourceName == null ? null : Path.of(sourceName);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    // .include "file", .macro name [param, ...] ... .endm, .rept count ... .endr: replaced by the
+    // lines they stand for, which are pushed onto frames and read next. False for other lines.
+    private boolean preprocess(String s, Deque<Frame> frames) {
+        int sp = AsmLexer.firstSpace(s);
+        String op = (sp < 0 ? s : s.substring(0, sp)).toLowerCase();
+        String rest = sp < 0 ? "" : s.substring(sp).trim();
+        Frame frame = frames.peek();
+        switch (op) {
+            case ".include": {
+                String name = rest.length() >= 2 && rest.startsWith("\"") && rest.endsWith("\"") ? rest.substring(1, rest.length() - 1) : rest;
+                if (name.isEmpty()) throw new AssembleException("Directive .include expects a file name", currentSourceFile, currentSourceLine, -1, s);
+                Path dir = frame.path == null ? null : frame.path.getParent();
+                Path file = dir == null ? Path.of(name) : dir.resolve(name);
+                Path abs = file.toAbsolutePath().normalize();
+                for (Frame f : frames) {
+                    if (f.path != null && f.path.toAbsolutePath().normalize().equals(abs)) {
+                        throw new AssembleException("Recursive .include of " + file, currentSourceFile, currentSourceLine, -1, s);
+                    }
+                }
+                List<String> text;
+                try {
+                    text = readInclude(abs);
+                } catch (IOException e) {
+                    throw new AssembleException("Cannot read include file " + file + ": " + e.getMessage(), currentSourceFile, currentSourceLine, -1, s);
+                }
+                push(frames, new Frame(text.iterator(), file.toString(), file, null), s);
+                break;
+            }
+            case ".macro": {
+                String[] words = rest.isEmpty() ? new String[0] : rest.split("[\\s,]+");
+                if (words.length == 0 || !AsmLexer.isLabelName(words[0])) {
+                    throw new AssembleException("Directive .macro expects a name (letters, digits, underscore, dash)", currentSourceFile, currentSourceLine, -1, s);
+                }
+                String[] params = Arrays.copyOfRange(words, 1, words.length);
+                for (String p : params) {
+                    if (!AsmLexer.isLabelName(p)) throw new AssembleException("Invalid macro parameter: " + p, currentSourceFile, currentSourceLine, -1, s);
+                }
+                Block body = readBlock(frame, ".macro", ".endm", s);
+                if (macros.put(words[0].toUpperCase(), new Macro(words[0], params, body)) != null) {
+                    throw new AssembleException("Macro already defined: " + words[0], currentSourceFile, currentSourceLine, -1, s);
+                }
+                break;
+            }
+            case ".rept": {
+                if (rest.isEmpty()) throw new AssembleException("Directive .rept expects a count", currentSourceFile, currentSourceLine, -1, s);
+                this.currentSourceSnippet = s;
+                AsmLexer.Expr e = expression(rest);
+                int count = e == null ? parseNumber(rest) : evalExpr(e);
+                if (count < 0) throw new AssembleException("Negative .rept count: " + rest, currentSourceFile, currentSourceLine, -1, s);
+                Block body = readBlock(frame, ".rept", ".endr", s);
+                List<String> text = new ArrayList<>(body.text.size() * count);
+                int[] at = new int[body.text.size() * count];
+                for (int i = 0; i < count; i++) {
+                    System.arraycopy(body.lines, 0, at, text.size(), body.text.size());
+                    text.addAll(body.text);
+                }
+                push(frames, new Frame(text.iterator(), body.file, frame.path, at), s);
+                break;
+            }
+            case ".endm": case ".endr":
+                throw new AssembleException(op + " without " + (op.equals(".endm") ? ".macro" : ".rept"), currentSourceFile, currentSourceLine, -1, s);
+            default:
+                return false;
+        }
+        preprocessed = true;
+        return true;
+    }
+
+    private void push(Deque<Frame> frames, Frame f, String s) {
+        if (frames.size() >= MAX_NESTING) {
+            throw new AssembleException("Macros and .include nested more than " + MAX_NESTING + " deep (does one use itself?)", currentSourceFile, currentSourceLine, -1, s);
+        }
+        frames.push(f);
+    }
+
+    // Lines up to the close matching the directive just read from frame; nested open/close pairs are kept.
+    private Block readBlock(Frame frame, String open, String close, String s) {
+        Block b = new Block(frame.file);
+        int startLine = frame.line;
+        int depth = 0;
+        while (frame.text.hasNext()) {
+            String raw = frame.next();
+            int ci = raw.indexOf(';');
+            String t = (ci >= 0) ? raw.substring(0, ci).trim() : raw.trim();
+            int sp = AsmLexer.firstSpace(t);
+            String first = (sp < 0 ? t : t.substring(0, sp)).toLowerCase();
+            if (first.equals(close)) {
+                if (depth == 0) return b;
+                depth--;
+            } else if (first.equals(open)) {
+                depth++;
+            }
+            if (!t.isEmpty()) b.add(t, frame.line);
+        }
+        throw new AssembleException("Missing " + close + " for " + open, frame.file, startLine, -1, s);
+    }
+
+    private void expandMacro(Macro m, String argText, Deque<Frame> frames, String s) {
+        String[] args = argText.isEmpty() ? new String[0] : AsmLexer.splitOperands(argText);
+        if (m.params.length > 0 && args.length != m.params.length) {
+            throw new AssembleException(String.format("Macro %s expects %d arguments, got %d", m.name, m.params.length, args.length), currentSourceFile, currentSourceLine, -1, s);
+        }
+        List<String> text;
+        if (m.unique) {
+            text = substitute(m, args, "_" + (++expansions), s);
+        } else {
+            text = m.cache.get(Arrays.asList(args));
+            if (text == null) {
+                text = substitute(m, args, null, s);
+                m.cache.put(Arrays.asList(args), text);
+            }
+        }
+        push(frames, new Frame(text.iterator(), m.file, pathOf(m.file), m.lines), s);
+    }
+
+    // Body of m with \name or \1..\9 replaced by the arguments and \@ by unique.
+    private List<String> substitute(Macro m, String[] args, String unique, String s) {
+        List<String> out = new ArrayList<>(m.text.size());
+        for (String t : m.text) {
+            if (t.indexOf('\\') < 0) {
+                out.add(t);
+                continue;
+            }
+            StringBuilder sb = new StringBuilder(t.length() + 16);
+            for (int i = 0; i < t.length(); i++) {
+                char c = t.charAt(i);
+                char n = i + 1 < t.length() ? t.charAt(i + 1) : 0;
+                if (c != '\\') {
+                    sb.append(c);
+                } else if (n == '@') {
+                    sb.append(unique);
+                    i++;
+                } else if (n >= '1' && n <= '9') {
+                    if (n - '1' >= args.length) {
+                        throw new AssembleException("Macro " + m.name + " has no argument \\" + n, currentSourceFile, currentSourceLine, -1, s);
+                    }
+                    sb.append(args[n - '1']);
+                    i++;
+                } else if (AsmLexer.isLabelStart(n)) {
+                    int e = i + 1;
+                    while (e < t.length() && (Character.isLetterOrDigit(t.charAt(e)) || t.charAt(e) == '_')) e++;
+                    String name = t.substring(i + 1, e);
+                    int k = 0;
+                    while (k < m.params.length && !m.params[k].equalsIgnoreCase(name)) k++;
+                    if (k == m.params.length) {
+                        throw new AssembleException("Macro " + m.name + " has no parameter \\" + name, currentSourceFile, currentSourceLine, -1, s);
+                    }
+                    sb.append(args[k]);
+                    i = e - 1;
+                } else {
+                    sb.append(c);
+                }
+            }
+            out.add(sb.toString());
+        }
+        return out;
+    }
+
+    private static List<String> readInclude(Path file) throws IOException {
+        BasicFileAttributes attr = Files.readAttributes(file, BasicFileAttributes.class);
+        CachedInclude c = includes.get(file);
+        if (c != null && c.size == attr.size() && c.modified.equals(attr.lastModifiedTime())) return c.lines;
+        List<String> lines = new ArrayList<>();
+        for (String raw : Files.readAllLines(file)) {
+            int ci = raw.indexOf(';');
+            lines.add((ci >= 0) ? raw.substring(0, ci).trim() : raw.trim());
+        }
+        lines = Collections.unmodifiableList(lines);
+        if (includes.size() >= MAX_CACHED_INCLUDES) includes.clear();
+        includes.put(file, new CachedInclude(attr.lastModifiedTime(), attr.size(), lines));
+        return lines;
+    }
+
+    // .equ NAME, value: a constant. A number makes NAME an immediate operand; an address
+    // ($XXXX), a label or an address constant makes it an absolute address, like a label. An
+    // expression is an address when it adds one address more than it subtracts (see evalExpr).
+    private void defineConstant(Line ln, String s) {
+        if (ln.ops.length != 2 || ln.ops[1].isEmpty()) {
+            throw new AssembleException("Directive .equ expects a name and a value", currentSourceFile, currentSourceLine, -1, s);
+        }
+        String name = ln.ops[0];
+        if (!AsmLexer.isLabelName(name)) {
+            throw new AssembleException("Invalid name in .equ: '" + name + "' (allowed: letters, digits, underscore, dash)", currentSourceFile, currentSourceLine, -1, s);
+        }
+        int id = labels.intern(name);
+        if (labels.isDefined(id)) {
+            throw new AssembleException("Symbol already defined: " + name, currentSourceFile, currentSourceLine, -1, s);
+        }
+        String v = ln.ops[1];
+        this.currentSourceSnippet = s;
+        int from = AsmLexer.isLabelStart(v.charAt(0)) ? labels.find(v) : SymbolTable.NOT_FOUND;
+        AsmLexer.Expr e = null;
+        if ((from == SymbolTable.NOT_FOUND || !labels.isDefined(from)) && AsmLexer.literal(v) == AsmLexer.INVALID && AsmLexer.hexAddress(v) == AsmLexer.INVALID) {
+            e = expression(v);
+        }
+        int value;
+        if (e != null) {
+            value = evalExpr(e) & 0xFFFF;
+            if (exprWeight != 1) immediates.set(id);
+            if (exprLabels > 0) labelConstants.set(id);
+        } else {
+            value = parseNumber(v);
+            if (from != SymbolTable.NOT_FOUND ? immediates.get(from) : v.charAt(0) != '$') immediates.set(id);
+            if (from != SymbolTable.NOT_FOUND && (!constants.get(from) || labelConstants.get(from))) labelConstants.set(id);
+        }
+        labels.define(id, value);
+        constants.set(id);
+    }
+
+    // immediate literal, a .equ constant with a numeric value, or an expression that is not an address
+    private boolean isImmediate(AsmLexer.Operand op) {
+        if (op.kind == AsmLexer.IMM || (op.kind == AsmLexer.IDENT && immediates.get(op.symbol))) return true;
+        AsmLexer.Expr e = exprOf(op);
+        if (e == null) return false;
+        evalExpr(e);
+        return exprWeight != 1;
+    }
+
+    // the operand's expression when it is evaluated as one: an EXPR, or a name with a dash that
+    // is not a symbol
+    private AsmLexer.Expr exprOf(AsmLexer.Operand op) {
+        if (op.kind == AsmLexer.EXPR) return op.expr;
+        if (op.kind == AsmLexer.IDENT && op.expr != null && !labels.isDefined(op.symbol) && !externs.get(op.symbol)) return op.expr;
+        return null;
+    }
+
+    // {@code text} as an expression with its names interned, or null if it is not one
+    private AsmLexer.Expr expression(String text) {
+        AsmLexer.Expr e = AsmLexer.expr(text);
+        if (e != null) intern(e);
+        return e;
+    }
+
+    private void intern(AsmLexer.Expr e) {
+        for (int i = 0; i < e.names.length; i++) e.symbols[i] = labels.intern(e.names[i]);
+    }
+
+    /**
+     * Value of a constant expression, in 32-bit arithmetic except for the 16-bit shifts;
+     * callers keep the low 16 bits.
+     * Also sets:
+     *   exprWeight    addresses added minus addresses subtracted ($XXXX, labels and address
+     *                 constants are addresses); 1 makes the expression an address. Any operator
+     *                 other than + and - applied to an address gives a plain number (weight 0)
+     *   exprLabels    label and external symbol terms, exprLabel the last one
+     *   exprRelocatable  the value is exprLabel plus a constant, or involves no label
+     */
+    private int evalExpr(AsmLexer.Expr e) {
+        int[] code = e.code;
+        int depth = code.length / 2;
+        int[] v = new int[depth], w = new int[depth], lw = new int[depth];
+        int sp = 0;
+        exprLabels = 0;
+        exprLabel = SymbolTable.NOT_FOUND;
+        exprRelocatable = true;
+        for (int i = 0; i < code.length; i += 2) {
+            int op = code[i], arg = code[i + 1];
+            switch (op) {
+                case AsmLexer.Expr.NUM:
+                    v[sp] = arg; w[sp] = 0; lw[sp++] = 0;
+                    break;
+                case AsmLexer.Expr.ADDR_TERM:
+                    v[sp] = arg; w[sp] = 1; lw[sp++] = 0;
+                    break;
+                case AsmLexer.Expr.SYM: {
+                    int id = e.symbols[arg];
+                    boolean label = !constants.get(id) || labelConstants.get(id);
+                    if (labels.isDefined(id)) {
+                        v[sp] = labels.value(id);
+                    } else if (externs.get(id) && relocations != null) {
+                        v[sp] = 0;
+                    } else if (externs.get(id)) {
+                        throw new AssembleException("External symbol " + e.names[arg] + " can only be resolved by the Linker (assemble an object file)", currentSourceFile, currentSourceLine, -1, currentSourceSnippet);
+                    } else {
+                        throw new AssembleException("Undefined symbol " + e.names[arg] + " in expression " + e.text, currentSourceFile, currentSourceLine, -1, currentSourceSnippet);
+                    }
+                    w[sp] = immediates.get(id) ? 0 : 1;
+                    lw[sp++] = label ? 1 : 0;
+                    if (label) {
+                        exprLabels++;
+                        exprLabel = id;
+                    }
+                    break;
+                }
+                case 'n':
+                    v[sp - 1] = -v[sp - 1];
+                    w[sp - 1] = -w[sp - 1];
+                    lw[sp - 1] = -lw[sp - 1];
+                    break;
+                case '~':
+                    if (lw[sp - 1] != 0) exprRelocatable = false;
+                    v[sp - 1] = ~v[sp - 1];
+                    w[sp - 1] = 0;
+                    lw[sp - 1] = 0;
+                    break;
+                default: {
+                    sp--;
+                    int a = v[sp - 1], b = v[sp];
+                    if (op == '+' || op == '-') {
+                        int sign = op == '+' ? 1 : -1;
+                        v[sp - 1] = a + sign * b;
+                        w[sp - 1] += sign * w[sp];
+                        lw[sp - 1] += sign * lw[sp];
+                        break;
+                    }
+                    if (lw[sp - 1] != 0 || lw[sp] != 0) exprRelocatable = false; // label times something
+                    w[sp - 1] = 0;
+                    lw[sp - 1] = 0;
+                    switch (op) {
+                        case '*': v[sp - 1] = a * b; break;
+                        case '/':
+                            if (b == 0) {
+                                throw new AssembleException("Division by zero in expression " + e.text, currentSourceFile, currentSourceLine, -1, currentSourceSnippet);
                             }
+                            v[sp - 1] = a / b;
+                            break;
+                        // 16-bit shifts: a count of 16 or more (or a negative one) leaves nothing
+                        case '<': v[sp - 1] = (b & 0xFFFF) >= 16 ? 0 : (a & 0xFFFF) << b; break;
+                        case '>': v[sp - 1] = (b & 0xFFFF) >= 16 ? 0 : (a & 0xFFFF) >>> b; break;
+                        case '&': v[sp - 1] = a & b; break;
+                        case '^': v[sp - 1] = a ^ b; break;
+                        default: v[sp - 1] = a | b; break;
+                    }
                 }
             }
+        }
+        exprWeight = w[0];
+        if (exprLabels > 0 && (exprLabels != 1 || lw[0] != 1)) exprRelocatable = false;
+        return v[0];
+    }
 
+    // An expression's extension word while assembling an object: one label or external symbol
+    // plus a constant gets a relocation, anything else that involves a label is an error.
+    private void relocateExpr(AsmLexer.Expr e, int addr, int value) {
+        if (exprLabels == 0) return;
+        if (!exprRelocatable) {
+            throw new AssembleException("Expression " + e.text + " is not relocatable (use one label plus or minus a constant)", currentSourceFile, currentSourceLine, addr, currentSourceSnippet);
+        }
+        relocations.add(new int[] { addr, exprLabel, value });
+    }
 
-            // instruction size: base word + possibly extensions
-            loc += 2;
-            int opcode = opcodeOf(ln.op.split("\\.")[0], ln);
-            // Special-case JCOND: ops[0] is a condition mnemonic (no extension), ops[1] is the target
-            if (opcode == Cpu.JCOND) {
-                if (ln.ops.length >= 2) loc += 2; // target absolute extension
-            } else {
-                    for (String o : ln.ops) {
-                        String opclean = o.split(";")[0].trim();
-                        // Immediate or absolute literal ($..., 0x..., %..., decimal) require an extension word
-                        if (opclean.startsWith("$") || opclean.startsWith("0x") || opclean.startsWith("0X") || opclean.startsWith("%") || opclean.matches("[0-9]+")) {
-                            loc += 2;
-                            continue;
-                        }
-                        // Bare identifiers (labels) will be treated as absolute addresses and need an extension
-                        if (!opclean.isEmpty() && !opclean.startsWith("R") && !opclean.startsWith("[")) {
-                            loc += 2;
+    // .section name, .global name[, name...], .extern name[, name...]: structure of an object
+    // file (see assembleObject); they emit nothing and an image ignores .section and .global.
+    private void linkDirective(Line ln, String s) {
+        if (ln.ops.length == 0 || (ln.op.equals(".section") && ln.ops.length != 1)) {
+            String what = ln.op.equals(".section") ? "one section name" : "symbol names";
+            throw new AssembleException("Directive " + ln.op + " expects " + what, currentSourceFile, currentSourceLine, -1, s);
+        }
+        for (String name : ln.ops) {
+            if (!AsmLexer.isLabelName(name)) {
+                throw new AssembleException("Invalid name in " + ln.op + ": '" + name + "' (allowed: letters, digits, underscore, dash)", currentSourceFile, currentSourceLine, -1, s);
+            }
+            if (ln.op.equals(".extern")) externs.set(labels.intern(name));
+        }
+    }
+
+    // Peephole pass, see setOptimize. Rules are applied until none matches; removed lines are
+    // emptied in place so indices stay valid, then dropped, and every line gets its new address.
+    private void optimize() {
+        if (!canMoveCode()) return;
+        boolean changed = false;
+        for (boolean again = true; again; ) {
+            again = false;
+            int[] at = instructionAtLabels();
+            for (int i = 0; lines.get(i) != null; i++) {
+                Line ln = lines.get(i);
+                if (ln.op == null || ln.isDirective) continue;
+                int next = nextInstruction(i);
+                Line nl = next < 0 ? null : lines.get(next);
+                if (ln.opcode == Cpu.CALL && ln.ops.length == 1 && nl != null && nl.opcode == Cpu.RET && nl.ops.length == 0 && previousInstruction(next) == i) {
+                    ln.opcode = Cpu.JMP;
+                    ln.op = "JMP" + ln.op.substring(4);
+                    ln.code = null;
+                    remove(next);
+                    again = true;
+                    continue;
+                }
+                int t = ln.opcode == Cpu.JCOND ? 1 : 0;
+                if ((ln.opcode == Cpu.JMP || ln.opcode == Cpu.CALL || ln.opcode == Cpu.JCOND) && ln.ops.length == t + 1) {
+                    int target = labelTarget(ln.operands[t], at);
+                    Line last = null; // last JMP of the chain, whose target is taken
+                    int[] seen = new int[16];
+                    for (int hops = 0; target >= 0; hops++) {
+                        Line j = lines.get(target);
+                        if (j.opcode != Cpu.JMP || j.ops.length != 1) break;
+                        int further = labelTarget(j.operands[0], at);
+                        if (further < 0) break;
+                        seen[hops] = target;
+                        for (int h = 0; h <= hops && further >= 0; h++) if (seen[h] == further) further = -1;
+                        if (further < 0 || j == ln || lines.get(further) == ln || hops + 1 == seen.length) { // a loop of jumps, or too long
+                            last = null;
+                            break;
                         }
+                        last = j;
+                        target = further;
+                    }
+                    if (last != null) {
+                        ln.operands[t] = last.operands[0];
+                        ln.ops[t] = last.ops[0];
+                        ln.code = null;
+                        again = true;
+                    } else {
+                        target = labelTarget(ln.operands[t], at);
                     }
+                    if (ln.opcode != Cpu.CALL && target >= 0 && target == next) {
+                        remove(i);
+                        again = true;
+                        continue;
+                    }
+                }
+                AsmLexer.Operand[] o = ln.operands;
+                if (ln.opcode == Cpu.MOV && !ln.byteSize && o.length == 2 && o[0].kind == AsmLexer.REG && o[1].kind == AsmLexer.REG && o[0].reg == o[1].reg) {
+                    remove(i);
+                    again = true;
+                    continue;
+                }
+                if (ln.opcode == Cpu.CMP && !ln.byteSize && ln.label == null && o.length == 2 && o[0].kind == AsmLexer.IMM && o[0].value == 0
+                        && o[1].kind == AsmLexer.REG && o[1].reg != AsmLexer.INVALID && previousInstruction(i) >= 0) {
+                    int set = flagsFromRegister(lines.get(previousInstruction(i)), o[1].reg);
+                    flagScanBudget = 64;
+                    if (set != 0 && flagsDead(i + 1, set, at)) {
+                        remove(i);
+                        again = true;
+                    }
+                }
             }
-            lines.add(ln);
+            changed |= again;
         }
-        // After processing all lines, require explicit .end directive
-        if (!sawEnd) {
-            throw new AssembleException("Program must end with .end directive", currentSourceFile, currentSourceLine, -1, null);
+        if (!changed) return;
+        lines.removeIf(ln -> ln != null && ln.op == null && ln.label == null);
+        int loc = 0;
+        for (Line ln : lines) {
+            if (ln == null) break;
+            if (ln.label != null) labels.define(ln.labelSymbol, loc);
+            ln.code = null;
+            if (ln.isDirective && ln.op.equals(".org") && ln.ops.length >= 1) {
+                loc = ln.addr;
+            } else {
+                ln.addr = loc;
+                loc += ln.size;
+            }
+        }
+    }
+
+    // Labels only stay where they are if nothing jumps to code by number and no value fixed
+    // while parsing depends on one.
+    private boolean canMoveCode() {
+        if (duplicateLabels || !labelConstants.isEmpty()) return false;
+        for (Line ln : lines) {
+            if (ln == null) break;
+            if (ln.op == null) continue;
+            if (ln.isDirective) {
+                if (ln.op.equals(".org") && ln.ops.length >= 1 && AsmLexer.hexAddress(ln.ops[0].trim()) == AsmLexer.INVALID && AsmLexer.literal(ln.ops[0].trim()) == AsmLexer.INVALID) return false;
+                continue;
+            }
+            if (ln.opcode == Cpu.JMP || ln.opcode == Cpu.CALL || ln.opcode == Cpu.JCOND) {
+                for (AsmLexer.Operand o : ln.operands) {
+                    if (o.kind == AsmLexer.ADDR || o.kind == AsmLexer.EXPR || (o.kind == AsmLexer.IDENT && exprOf(o) != null)) return false;
+                }
+            }
         }
+        return true;
+    }
+
+    // index of the instruction each label stands for by symbol id, -1 for labels on data
+    private int[] instructionAtLabels() {
+        int[] at = new int[labels.size()];
+        Arrays.fill(at, -1);
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; lines.get(i) != null; i++) {
+            Line ln = lines.get(i);
+            if (ln.label != null) pending.add(ln.labelSymbol);
+            if (ln.op == null) continue;
+            if (!ln.isDirective) for (int id : pending) at[id] = i;
+            pending.clear();
+        }
+        return at;
+    }
+
+    // index of the instruction a jump operand names, or -1
+    private int labelTarget(AsmLexer.Operand o, int[] at) {
+        if (o.kind != AsmLexer.IDENT || !labels.isDefined(o.symbol) || constants.get(o.symbol)) return -1;
+        int i = o.symbol < at.length ? at[o.symbol] : -1;
+        return i >= 0 && lines.get(i).op == null ? nextInstruction(i) : i; // removed in this pass
+    }
+
+    // index of the instruction that falls through into line i, or -1 after a label or data
+    private int previousInstruction(int i) {
+        if (lines.get(i).label != null) return -1;
+        for (int k = i - 1; k >= 0; k--) {
+            Line ln = lines.get(k);
+            if (ln.op != null) return ln.isDirective ? -1 : k;
+            if (ln.label != null) return -1;
+        }
+        return -1;
+    }
+
+    // index of the instruction executed after line i falls through, or -1 if data comes first
+    private int nextInstruction(int i) {
+        for (int k = i + 1; lines.get(k) != null; k++) {
+            Line ln = lines.get(k);
+            if (ln.op == null) continue;
+            return ln.isDirective ? -1 : k;
+        }
+        return -1;
+    }
+
+    // Empty an instruction found redundant; its label, if any, stays for the next instruction.
+    private void remove(int i) {
+        Line ln = lines.get(i);
+        optimizedInstructions++;
+        optimizedWords += (ln.size - 2) / 2;
+        ln.op = null;
+        ln.ops = null;
+        ln.operands = null;
+        ln.code = null;
+        ln.size = 0;
+    }
+
+    // Flags among Z and N that word instruction ln sets from the value it leaves in register
+    // reg, exactly as CMP 0, reg would (see Cpu.updateFlags); logic operations clear N instead.
+    private static int flagsFromRegister(Line ln, int reg) {
+        if (ln == null || ln.op == null || ln.isDirective || ln.byteSize) return 0;
+        AsmLexer.Operand[] o = ln.operands;
+        AsmLexer.Operand dst = o.length == 0 ? null : o[o.length - 1];
+        if (dst == null || dst.kind != AsmLexer.REG || dst.reg != reg) return 0;
+        switch (ln.opcode) {
+            case Cpu.ADD: case Cpu.SUB: case Cpu.MUL: case Cpu.MULU:
+                return o.length == 2 ? Cpu.FLAG_Z | Cpu.FLAG_N : 0;
+            case Cpu.INC: case Cpu.DEC: case Cpu.NEG:
+                return o.length == 1 ? Cpu.FLAG_Z | Cpu.FLAG_N : 0;
+            case Cpu.AND: case Cpu.OR: case Cpu.XOR:
+                return o.length == 2 ? Cpu.FLAG_Z : 0;
+            case Cpu.NOT: case Cpu.ROL: case Cpu.ROR: case Cpu.SHL: case Cpu.SHR:
+                return o.length == 1 ? Cpu.FLAG_Z : 0;
+            default:
+                return 0;
+        }
+    }
+
+    // Whether execution from line i reads no flag outside {@code allowed} before all flags are
+    // written again. Conditional branches are followed both ways; any other jump, a call, a
+    // return, DIV (which keeps the flags on a zero divisor) or data counts as a read.
+    private boolean flagsDead(int i, int allowed, int[] at) {
+        for (; ; i++) {
+            Line ln = lines.get(i);
+            if (ln == null || ln.isDirective || --flagScanBudget < 0) return false;
+            if (ln.op == null) continue;
+            switch (ln.opcode) {
+                case Cpu.ADD: case Cpu.SUB: case Cpu.INC: case Cpu.DEC: case Cpu.NEG: case Cpu.CMP: case Cpu.TST:
+                case Cpu.AND: case Cpu.OR: case Cpu.XOR: case Cpu.NOT: case Cpu.MUL: case Cpu.MULU:
+                case Cpu.ROL: case Cpu.ROR: case Cpu.SHL: case Cpu.SHR:
+                    return true;
+                case Cpu.NOP: case Cpu.MOV: case Cpu.PUSH: case Cpu.POP: case Cpu.BTST: case Cpu.BSET: case Cpu.BCLR:
+                    break;
+                case Cpu.JCOND: {
+                    if (ln.ops.length != 2) return false;
+                    int reads = conditionFlags(ln.ops[0].trim().toUpperCase());
+                    if (reads < 0 || (reads & ~allowed) != 0) return false;
+                    int target = labelTarget(ln.operands[1], at);
+                    if (target < 0 || !flagsDead(target, allowed, at)) return false;
+                    if (reads == 0) return true; // AL never falls through
+                    break;
+                }
+                default:
+                    return false;
+            }
+        }
+    }
+
+    // flags a JCOND condition reads, -1 if unknown
+    private static int conditionFlags(String cond) {
+        switch (cond) {
+            case "AL": return 0;
+            case "EQ": case "NE": return Cpu.FLAG_Z;
+            case "MI": case "PL": return Cpu.FLAG_N;
+            case "CS": case "CC": case "HS": return Cpu.FLAG_C;
+            case "VS": case "VC": return Cpu.FLAG_V;
+            case "GE": case "LT": return Cpu.FLAG_N | Cpu.FLAG_V;
+            case "GT": case "LE": return Cpu.FLAG_N | Cpu.FLAG_V | Cpu.FLAG_Z;
+            case "HI": case "LO": return Cpu.FLAG_C | Cpu.FLAG_Z;
+            default: return -1;
+        }
+    }
+
+    /**
+     * Apply an edit to the parsed program without parsing it again: source lines
+     * {@code [from, to)} (0-based) are replaced by {@code text}. Only the new lines are parsed;
+     * lines after them move by the change in size up to the next {@code .org}. Instructions that
+     * name a label whose address moved get that extension word rewritten in their cached
+     * encoding; only those using it inside an expression are encoded again. Call
+     * {@link #assemble()} afterwards for the new image.
+     *
+     * Returns the number of instructions that will be encoded again, or -1 when the edit
+     * cannot be applied incrementally (it touches directives, adds, removes or renames labels,
+     * moves a label while an {@code .org} or an {@code .equ} value depends on one, or the
+     * source uses {@code .include}, macros or {@code .rept}); nothing is changed in that case and the
+     * caller parses the edited source from scratch. Syntax errors in {@code text} are thrown
+     * before anything is changed.
+     */
+    int reparseLines(int from, int to, List<String> text) {
+        if (duplicateLabels || preprocessed || optimize || lines.isEmpty() || lines.get(lines.size() - 1) != null) return -1;
+        int i0 = firstLineAtOrAfter(from), i1 = firstLineAtOrAfter(to);
+        if (lines.get(i0) == null) return -1; // at or after .end
+        List<Integer> oldLabels = new ArrayList<>();
+        int oldSize = 0;
+        for (int i = i0; i < i1; i++) {
+            Line ln = lines.get(i);
+            if (ln.isDirective) return -1;
+            if (ln.label != null) oldLabels.add(ln.labelSymbol);
+            oldSize += ln.size;
+        }
+
+        // parse the replacement at the location where the old lines started
+        Line prev = i0 > 0 ? lines.get(i0 - 1) : null;
+        int start = prev == null ? 0 : prev.addr + prev.size;
+        List<Line> added = new ArrayList<>();
+        List<Integer> newLabels = new ArrayList<>();
+        int loc = start;
+        this.currentSourceFile = sourceName;
+        for (int k = 0; k < text.size(); k++) {
+            this.currentSourceLine = from + k;
+            String raw = text.get(k);
+            int ci = raw.indexOf(';');
+            String s = (ci >= 0) ? raw.substring(0, ci).trim() : raw.trim();
+            if (s.isEmpty()) continue;
+            if (s.startsWith(".")) return -1;
+            Line ln = new Line();
+            ln.sourceFile = sourceName;
+            ln.sourceLine = currentSourceLine;
+            int colon = s.indexOf(':');
+            if (colon >= 0) {
+                ln.label = s.substring(0, colon).trim();
+                if (!AsmLexer.isLabelName(ln.label)) {
+                    throw new AssembleException("Invalid label name: '" + ln.label + "' (allowed: letters, digits, underscore, dash)", currentSourceFile, currentSourceLine, -1, s);
+                }
+                ln.labelSymbol = labels.find(ln.label);
+                if (ln.labelSymbol == SymbolTable.NOT_FOUND) return -1;
+                newLabels.add(ln.labelSymbol);
+                s = s.substring(colon + 1).trim();
+                if (s.startsWith(".")) return -1;
+            }
+            if (s.isEmpty()) ln.addr = loc;
+            else loc += parseInstruction(ln, s, loc);
+            added.add(ln);
+        }
+        if (!oldLabels.equals(newLabels)) return -1;
+        int delta = (loc - start) - oldSize;
+
+        // labels that move: those in the edited lines, then those up to the next .org
+        // new value by symbol id, UNDEFINED where the label stays
+        int[] moved = new int[labels.size()];
+        Arrays.fill(moved, SymbolTable.UNDEFINED);
+        boolean anyMoved = false;
+        for (Line ln : added) {
+            if (ln.label != null && labels.value(ln.labelSymbol) != ln.addr) {
+                moved[ln.labelSymbol] = ln.addr;
+                anyMoved = true;
+            }
+        }
+        int shiftEnd = i1;
+        if (delta != 0) {
+            for (; lines.get(shiftEnd) != null; shiftEnd++) {
+                Line ln = lines.get(shiftEnd);
+                if (ln.label != null) {
+                    moved[ln.labelSymbol] = labels.value(ln.labelSymbol) + delta;
+                    anyMoved = true;
+                }
+                if (ln.isDirective && ln.op.equals(".org")) break;
+            }
+        }
+        // .equ values were fixed while parsing; a constant built on a moving label would go stale
+        if (anyMoved && !labelConstants.isEmpty()) return -1;
+        for (int i = i1; anyMoved && lines.get(i) != null; i++) {
+            Line ln = lines.get(i);
+            if (ln.isDirective && ln.op.equals(".org") && ln.ops.length >= 1 && namesMoved(ln.ops[0].trim(), moved)) return -1;
+        }
+
+        // apply
+        int lineDelta = text.size() - (to - from);
+        for (int i = i1; i < lines.size() && lines.get(i) != null; i++) {
+            Line ln = lines.get(i);
+            ln.sourceLine += lineDelta;
+            if (i < shiftEnd || (i == shiftEnd && !ln.isDirective)) ln.addr += delta;
+        }
+        List<Line> range = lines.subList(i0, i1);
+        range.clear();
+        range.addAll(added);
+        for (int id = 0; id < moved.length; id++) {
+            if (moved[id] != SymbolTable.UNDEFINED) labels.define(id, moved[id]);
+        }
+        int reencode = 0;
+        patchedReferences = 0;
+        for (Line ln : lines) {
+            if (ln == null) break;
+            if (ln.code == null && ln.op != null && !ln.isDirective) {
+                reencode++;
+            } else if (ln.code != null && anyMoved && !patchMoved(ln, moved)) {
+                ln.code = null;
+                reencode++;
+            }
+        }
+        return reencode;
+    }
+
+    // Rewrite in place the extension words of an encoded line that name a moved label. Modes and
+    // sizes do not depend on label addresses, so only those words change. False when a moved
+    // label is used inside an expression: its line is encoded again (and range-checked).
+    private boolean patchMoved(Line ln, int[] moved) {
+        AsmLexer.Operand[] ops = ln.operands;
+        AsmLexer.Operand src = null, dst = null;
+        if (ln.opcode == Cpu.JCOND) {
+            if (ops.length >= 2) dst = ops[1];
+        } else if ((ln.opcode == Cpu.JMP || ln.opcode == Cpu.CALL) && ops.length == 1) {
+            dst = ops[0];
+        } else {
+            if (ops.length >= 1) src = ops[0];
+            if (ops.length >= 2) dst = ops[1];
+        }
+        int n = patchMoved(ln, src, 2, moved);
+        return n >= 0 && patchMoved(ln, dst, n, moved) >= 0;
+    }
+
+    // offset of the next extension word, or -1 when the line must be encoded again
+    private int patchMoved(Line ln, AsmLexer.Operand op, int n, int[] moved) {
+        if (op == null || !operandNeedsExt(op)) return n;
+        if (!usesMoved(op, moved)) return n + 2;
+        if (op.kind != AsmLexer.IDENT || exprOf(op) != null) return -1;
+        putWord(ln.code, n, labels.value(op.symbol));
+        patchedReferences++;
+        return n + 2;
+    }
+
+    /** Label words rewritten in place by the last {@link #reparseLines} (not counted as re-encoded). */
+    int patchedReferences() {
+        return patchedReferences;
+    }
+
+    // whether the operand text of a directive is, or is an expression over, a moved label
+    private boolean namesMoved(String text, int[] moved) {
+        if (isMoved(labels.find(text), moved)) return true; // a name with a dash
+        AsmLexer.Expr e = AsmLexer.expr(text);
+        if (e == null) return false;
+        for (String name : e.names) {
+            if (isMoved(labels.find(name), moved)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isMoved(int id, int[] moved) {
+        return id != SymbolTable.NOT_FOUND && id < moved.length && moved[id] != SymbolTable.UNDEFINED;
+    }
+
+    private static boolean usesMoved(AsmLexer.Operand o, int[] moved) {
+        if (o.kind == AsmLexer.IDENT && o.symbol < moved.length && moved[o.symbol] != SymbolTable.UNDEFINED) return true;
+        if (o.expr == null) return false;
+        for (int id : o.expr.symbols) {
+            if (id < moved.length && moved[id] != SymbolTable.UNDEFINED) return true;
+        }
+        return false;
+    }
+
+    // index of the first parsed line from source line {@code sourceLine} on (the .end sentinel if none)
+    private int firstLineAtOrAfter(int sourceLine) {
+        int lo = 0, hi = lines.size() - 1; // last entry is the null sentinel
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lines.get(mid).sourceLine < sourceLine) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
     }
 
     // encode and write to binary file (big-endian words)
     public void assemble(Path outFile) throws IOException {
+        Files.write(outFile, assemble());
+        if (debugOutput != null) debugInfo().write(debugOutput);
+    }
+
+    /** Write the image of the parsed source to {@code out} (not closed). */
+    public void assemble(OutputStream out) throws IOException {
+        out.write(assemble());
+    }
+
+    /** Parse and assemble {@code source} entirely in memory; returns the image bytes. */
+    public byte[] assemble(CharSequence source) {
+        parse(source, IN_MEMORY_SOURCE);
+        return assemble();
+    }
+
+    /** Parse {@code in} and write the image to {@code out}; neither stream is closed. */
+    public void assemble(Reader in, OutputStream out) throws IOException {
+        parse(in, IN_MEMORY_SOURCE);
+        assemble(out);
+    }
+
+    // Bytes emitted contiguously from start
+    private static final class Chunk { int start; ByteArrayOutputStream baos = new ByteArrayOutputStream(); int len() { return baos.size(); } }
+
+    /** The packed image of the parsed source (see {@link MachineImage}). */
+    public byte[] assemble() {
+        List<Chunk> chunks = emit();
+
+        // Emit the packed image in one write: chunk bytes plus the map (footer or section table)
+        MachineImage.Builder image = new MachineImage.Builder();
+        int nextChunk = 0;
+        for (int i = 0; i < dataRanges.size(); i++) {
+            int[] r = dataRanges.get(i);
+            switch (dataRangeTypes.get(i)) {
+                case ".org": image.addOrg(r[0]); break;
+                case ".chunk": image.addChunk(0, r[0], chunks.get(nextChunk++).baos.toByteArray()); break;
+                case ".byte": image.addData(r[0], r[1], 0); break;
+                case ".word": image.addData(r[0], r[1], 1); break;
+                case ".ascii": image.addData(r[0], r[1], 2); break;
+                default: break;
+            }
+        }
+        image.setSymbols(debugInfo().symbols());
+        image.setCompression(compressImage);
+        return image.build(imageVersion);
+    }
+
+    // Encode every line into chunks, rebuilding the debug line table and the image map in
+    // dataRanges/dataRangeTypes: .org markers, then chunks, then typed data overlays.
+    private List<Chunk> emit() {
         // Emit a packed image: write only actual chunks (no zero padding). Record .org directives as length-0 ranges.
-        class Chunk { int start; ByteArrayOutputStream baos = new ByteArrayOutputStream(); int len() { return baos.size(); } }
         List<Chunk> chunks = new ArrayList<>();
 
         // reset recorded data ranges; we'll rebuild them from chunks and explicit directives
         dataRanges.clear();
         dataRangeTypes.clear();
         inDataSection = false;  // reset data section flag
+        debugLines.clear();
 
         for (Line ln : lines) {
             if (ln == null) break; // sentinel
@@ -331,8 +1367,8 @@ public class Assembler {
                             dataRanges.add(new int[] { ln.addr, ln.ops.length * 2 });
                             dataRangeTypes.add(".word");
                         }
-                        for (String v : ln.ops) {
-                            int val = parseNumber(v);
+                        for (int k = 0; k < ln.ops.length; k++) {
+                            int val = wordValue(ln.ops[k], ln.addr + 2 * k);
                             cur.baos.write((val >> 8) & 0xFF);
                             cur.baos.write(val & 0xFF);
                         }
@@ -367,7 +1403,7 @@ public class Assembler {
                                 dataRanges.add(new int[] { ln.addr, sld.getBytes().length });
                                 dataRangeTypes.add(".ascii");
                             }
-                            cur.baos.write(sld.getBytes());
+                            cur.baos.writeBytes(sld.getBytes());
                         }
                         break;
                     case ".org":
@@ -408,43 +1444,9 @@ public class Assembler {
                 cur = nc;
             }
 
-            int instr = encodeInstr(ln);
-            boolean isByte = ln.op != null && ln.op.toUpperCase().contains(".B");
-            cur.baos.write((instr >> 8) & 0xFF);
-            cur.baos.write(instr & 0xFF);
-
-            String[] ops = ln.ops != null ? ln.ops : new String[0];
-            if (opcodeOf(ln.op.split("\\.")[0], ln) == Cpu.JCOND) {
-                if (ops.length >= 2 && operandNeedsExt(ops[1])) {
-                    int v = operandValue(ops[1], ln);
-                    cur.baos.write((v >> 8) & 0xFF);
-                    cur.baos.write(v & 0xFF);
-                }
-                continue;
-            }
-
-            String srcText = null, dstText = null;
-            if ((opcodeOf(ln.op.split("\\.")[0], ln) == Cpu.JMP || opcodeOf(ln.op.split("\\.")[0], ln) == Cpu.CALL) && ops.length == 1) {
-                dstText = ops[0];
-            } else {
-                if (ops.length >= 1) srcText = ops[0];
-                if (ops.length >= 2) dstText = ops[1];
-            }
-
-            if (srcText != null && operandNeedsExt(srcText)) {
-                int v = operandValue(srcText, ln);
-                Parsed ps = parseOperand(srcText);
-                if (isByte && ps.mode == Cpu.MODE_IMM) validateImmediateSize(srcText, v, 8, ln.addr, ln.sourceSnippet);
-                cur.baos.write((v >> 8) & 0xFF);
-                cur.baos.write(v & 0xFF);
-            }
-            if (dstText != null && operandNeedsExt(dstText)) {
-                int v = operandValue(dstText, ln);
-                Parsed pd = parseOperand(dstText);
-                if (isByte && pd.mode == Cpu.MODE_IMM) validateImmediateSize(dstText, v, 8, ln.addr, ln.sourceSnippet);
-                cur.baos.write((v >> 8) & 0xFF);
-                cur.baos.write(v & 0xFF);
-            }
+            if (ln.code == null) ln.code = encodeLine(ln);
+            cur.baos.writeBytes(ln.code);
+            debugLines.add(new DebugInfo.LineEntry(ln.addr, ln.code.length, ln.sourceFile, ln.sourceLine + 1));
         }
 
         // Before emitting, record the map entries in the correct order for physical reconstruction.
@@ -479,137 +1481,209 @@ public class Assembler {
                 dataRanges.add(tempRanges.get(i));
                 dataRangeTypes.add(tempTypes.get(i));
             }
-        }        // Emit chunks to file in packed form
-        ByteArrayOutputStream finalOut = new ByteArrayOutputStream();
-        for (Chunk c : chunks) {
-            finalOut.write(c.baos.toByteArray());
-        }
-        Files.write(outFile, finalOut.toByteArray());
-        appendMapIfRequested(outFile);
-    }
-
-    // After writing the main image, optionally append a 512-byte map block and overwrite file.
-    // New map format (no count): sequence of entries, each 4 bytes: start(2), lenField(2).
-    // lenField: top 2 bits = type (00=.byte, 01=.word, 10=.ascii, 11=reserved), low 14 bits = length in bytes.
-    // The list is terminated by an entry 0x0000 0x0000. The whole footer is padded with zeros to 512 bytes.
-    private void appendMapIfRequested(Path outFile) throws IOException {
-        // Only append if we have data ranges
-        if (dataRanges.isEmpty()) return;
-        byte[] existing = Files.readAllBytes(outFile);
-        ByteArrayOutputStream map = new ByteArrayOutputStream();
-        final int footerSize = 512;
-        // Emit entries in the same order they were recorded, without merging. This keeps
-        // zero-length .org markers separate and avoids accidental combination of distant
-        // ranges into a single oversized entry. Each recorded range must fit into 14 bits
-        // length unless it's an .org (len==0) which will be encoded with type==3 (0xC000).
-        for (int i = 0; i < dataRanges.size(); i++) {
-            int start = dataRanges.get(i)[0] & 0xFFFF;
-            int len = dataRanges.get(i)[1] & 0xFFFF;
-            String t = (i < dataRangeTypes.size()) ? dataRangeTypes.get(i) : "";
-            int typeCode;
-            if (".byte".equals(t)) typeCode = 0;
-            else if (".word".equals(t)) typeCode = 1;
-            else if (".ascii".equals(t)) typeCode = 2;
-            else if (".org".equals(t)) typeCode = 3; // encode explicit .org markers as reserved/type 3
-            else typeCode = 3; // default reserved
-
-            if (".org".equals(t)) {
-                // explicit .org is encoded as type==3 and length==0 -> lenField == 0xC000
-                int lenField = 0xC000;
-                if (map.size() + 4 + 4 > footerSize) break;
-                map.write((start >> 8) & 0xFF);
-                map.write(start & 0xFF);
-                map.write((lenField >> 8) & 0xFF);
-                map.write(lenField & 0xFF);
-                continue;
+        }
+        return chunks;
+    }
+
+    // .word operand; while assembling an object a label or external symbol also gets a relocation
+    private int wordValue(String v, int addr) {
+        if (relocations != null) {
+            String t = v.trim();
+            int id = AsmLexer.isLabelName(t) ? labels.find(t) : SymbolTable.NOT_FOUND;
+            if (id != SymbolTable.NOT_FOUND && !constants.get(id) && (labels.isDefined(id) || externs.get(id))) {
+                int value = labels.isDefined(id) ? labels.value(id) : 0;
+                relocations.add(new int[] { addr, id, value });
+                return value;
+            }
+            AsmLexer.Expr e = id != SymbolTable.NOT_FOUND && labels.isDefined(id) ? null : expression(t);
+            if (e != null && AsmLexer.literal(t) == AsmLexer.INVALID && AsmLexer.hexAddress(t) == AsmLexer.INVALID) {
+                int value = evalExpr(e) & 0xFFFF;
+                relocateExpr(e, addr, value);
+                return value;
             }
+        }
+        return parseNumber(v);
+    }
 
-            if (len > 0x3FFF) {
-                // If a recorded chunk is larger than the 14-bit limit, split it into
-                // multiple consecutive entries so each fits.
-                int remaining = len;
-                int chunkStart = start;
-                while (remaining > 0) {
-                    int take = Math.min(remaining, 0x3FFF);
-                    int lenField = ((typeCode & 0x3) << 14) | (take & 0x3FFF);
-                    if (map.size() + 4 + 4 > footerSize) break;
-                    map.write((chunkStart >> 8) & 0xFF);
-                    map.write(chunkStart & 0xFF);
-                    map.write((lenField >> 8) & 0xFF);
-                    map.write(lenField & 0xFF);
-                    chunkStart += take;
-                    remaining -= take;
+    /**
+     * The parsed source as a relocatable {@link ObjectFile} for the {@link Linker}. The source is
+     * split into sections by {@code .section name} (code before the first one is section
+     * {@code text}); {@code .global} exports labels and {@code .extern} names symbols defined in
+     * other objects. Every extension word and {@code .word} that holds a label gets a
+     * relocation. {@code .org} is rejected: the linker decides where sections go.
+     */
+    public ObjectFile assembleObject() {
+        for (Line ln : lines) {
+            if (ln == null) break;
+            if (ln.isDirective && ln.op.equals(".org")) {
+                throw new AssembleException(".org is not allowed in an object file; the linker places sections", ln.sourceFile, ln.sourceLine, ln.addr, ln.sourceSnippet);
+            }
+            if (ln.isDirective && ln.op.equals(".equ") && labelConstants.get(labels.find(ln.ops[0]))) {
+                throw new AssembleException(".equ of a label is not allowed in an object file (it would not be relocated)", ln.sourceFile, ln.sourceLine, ln.addr, ln.sourceSnippet);
+            }
+            if (ln.label != null && externs.get(ln.labelSymbol)) {
+                throw new AssembleException("Label " + ln.label + " is also declared .extern", ln.sourceFile, ln.sourceLine, ln.addr, ln.sourceSnippet);
+            }
+        }
+        List<Chunk> chunks;
+        List<int[]> relocs = new ArrayList<>();
+        relocations = relocs;
+        try {
+            for (Line ln : lines) if (ln != null) ln.code = null; // every encoding records its relocations
+            chunks = emit();
+        } finally {
+            relocations = null;
+            for (Line ln : lines) if (ln != null) ln.code = null; // external words are placeholders
+        }
+        // without .org everything is one chunk from address 0
+        byte[] bytes = chunks.isEmpty() ? new byte[0] : chunks.get(0).baos.toByteArray();
+
+        // section boundaries, the section of each label and the exported labels
+        List<String> names = new ArrayList<>(List.of("text"));
+        List<Integer> starts = new ArrayList<>(List.of(0));
+        int[] symbolSection = new int[labels.size()];
+        Set<Integer> globals = new LinkedHashSet<>();
+        boolean labelInText = false;
+        for (Line ln : lines) {
+            if (ln == null) break;
+            if (ln.label != null) {
+                symbolSection[ln.labelSymbol] = names.size() - 1;
+                labelInText |= names.size() == 1;
+            }
+            if (!ln.isDirective) continue;
+            if (ln.op.equals(".section")) {
+                String name = ln.ops[0];
+                if (names.contains(name)) {
+                    throw new AssembleException("Duplicate section: " + name, ln.sourceFile, ln.sourceLine, ln.addr, ln.sourceSnippet);
+                }
+                if (names.size() == 1 && ln.addr == 0 && !labelInText) {
+                    names.set(0, name); // nothing before the first .section
+                } else {
+                    names.add(name);
+                    starts.add(ln.addr);
+                }
+            } else if (ln.op.equals(".global")) {
+                for (String name : ln.ops) {
+                    int id = labels.find(name);
+                    if (id == SymbolTable.NOT_FOUND || !labels.isDefined(id)) {
+                        throw new AssembleException("Global symbol is not defined: " + name, ln.sourceFile, ln.sourceLine, ln.addr, ln.sourceSnippet);
+                    }
+                    globals.add(id);
                 }
-                continue;
             }
+        }
 
-            int lenField = ((typeCode & 0x3) << 14) | (len & 0x3FFF);
-            if (map.size() + 4 + 4 > footerSize) break;
-            map.write((start >> 8) & 0xFF);
-            map.write(start & 0xFF);
-            map.write((lenField >> 8) & 0xFF);
-            map.write(lenField & 0xFF);
+        List<String> dataTypes = List.of(".byte", ".word", ".ascii"); // MachineImage data type order
+        List<ObjectFile.Section> sections = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            int start = starts.get(i), end = i + 1 < starts.size() ? starts.get(i + 1) : bytes.length;
+            List<ObjectFile.DataRange> data = new ArrayList<>();
+            for (int k = 0; k < dataRanges.size(); k++) {
+                int type = dataTypes.indexOf(dataRangeTypes.get(k));
+                int[] r = dataRanges.get(k);
+                if (type >= 0 && r[0] >= start && r[0] < end) data.add(new ObjectFile.DataRange(r[0] - start, r[1], type));
+            }
+            sections.add(new ObjectFile.Section(names.get(i), Arrays.copyOfRange(bytes, start, end), data));
         }
-        // terminator
-        map.write(0);
-        map.write(0);
-        map.write(0);
-        map.write(0);
+        List<ObjectFile.Symbol> symbols = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        for (Line ln : lines) {
+            if (ln == null) break;
+            if (ln.label == null || !seen.add(ln.labelSymbol)) continue;
+            int sec = symbolSection[ln.labelSymbol];
+            symbols.add(new ObjectFile.Symbol(labels.name(ln.labelSymbol), sec, labels.value(ln.labelSymbol) - starts.get(sec), globals.contains(ln.labelSymbol)));
+        }
+        List<ObjectFile.Relocation> relocList = new ArrayList<>();
+        for (int[] r : relocs) {
+            int sec = starts.size() - 1;
+            while (sec > 0 && starts.get(sec) > r[0]) sec--;
+            int id = r[1];
+            if (externs.get(id)) {
+                relocList.add(new ObjectFile.Relocation(sec, r[0] - starts.get(sec), ObjectFile.EXTERNAL, labels.name(id), r[2]));
+            } else {
+                int target = symbolSection[id];
+                relocList.add(new ObjectFile.Relocation(sec, r[0] - starts.get(sec), target, null, (r[2] - starts.get(target)) & 0xFFFF));
+            }
+        }
+        return new ObjectFile(sourceName, sections, symbols, relocList);
+    }
+
+    /**
+     * Image format written by {@link #assemble()}: 1 (default) keeps the 512-byte footer
+     * format whenever the map fits and switches to format 2 when it does not; 2 always writes
+     * the section-table format with a symbol section. See {@link MachineImage}.
+     */
+    public void setImageVersion(int version) {
+        if (version != 1 && version != 2) throw new IllegalArgumentException("Unsupported image version: " + version);
+        this.imageVersion = version;
+    }
+
+    /**
+     * Run a peephole pass after parsing (default off). Jumps and calls to a {@code JMP} go
+     * straight to its target, {@code CALL x} followed by {@code RET} becomes {@code JMP x}, and
+     * {@code MOV Rn, Rn}, jumps to the next instruction and a {@code CMP 0, Rn} right after an
+     * instruction that set Z and N from Rn are removed; the compare only goes when the branches
+     * that follow read nothing else before the flags are set again. Nothing is removed or merged
+     * across a label. Removing instructions moves every later label, so the pass does nothing
+     * when code is addressed by number ({@code JMP $0100}) or a {@code .equ} or {@code .org}
+     * value depends on a label. See {@link #optimizedInstructions()}.
+     */
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    /** Instructions removed by the peephole pass of the last parse (see {@link #setOptimize}). */
+    public int optimizedInstructions() {
+        return optimizedInstructions;
+    }
+
+    /** Extension words of the instructions removed by the last peephole pass. */
+    public int optimizedExtensionWords() {
+        return optimizedWords;
+    }
+
+    /** Store large chunks LZ-compressed (implies image format 2). */
+    public void setCompressImage(boolean compress) {
+        this.compressImage = compress;
+    }
 
-        byte[] mapBytes = map.toByteArray();
-        if (mapBytes.length == 0) return; // shouldn't happen
-        // write existing + mapBytes, pad to footerSize
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        out.write(existing);
-        out.write(mapBytes);
-        while (out.size() < existing.length + footerSize) out.write(0);
-        Files.write(outFile, out.toByteArray());
+    /** Also write a {@link DebugInfo} sidecar file on every {@link #assemble(Path)} (null = off). */
+    public void setDebugOutput(Path debugFile) {
+        this.debugOutput = debugFile;
+    }
+
+    /** Line table of the last {@link #assemble()} plus all labels, spelled as in the source. */
+    public DebugInfo debugInfo() {
+        Map<String,Integer> symbols = new LinkedHashMap<>();
+        for (Line ln : lines) {
+            if (ln == null) break;
+            if (ln.label != null) symbols.put(ln.label, labels.value(ln.labelSymbol));
+        }
+        return new DebugInfo(debugLines, symbols);
     }
 
     private int parseNumber(String s) {
         s = s.trim();
         // Accept only these forms for numeric literals:
-    // - hexadecimal: leading '0x' or leading '$' (caller may strip '$' before calling), e.g. 0x1F or DEAD
+    // - hexadecimal: leading '0x' or leading '$' (optionally '$0x'), e.g. 0x1F or $DEAD
     // - binary: leading '%' (e.g. %1010)
     // - decimal: plain digits
     // Also accept labels (identifiers) resolved from the symbol table.
         if (s.isEmpty()) {
             throw new AssembleException("Empty numeric literal", currentSourceFile, currentSourceLine, -1, currentSourceSnippet);
         }
-    // If it's a label, return its address (labels are stored lower-case)
-    if (labels.containsKey(s.toLowerCase())) return labels.get(s.toLowerCase());
-
-        // Leading '$' is allowed for hexadecimal addresses: $DEAD or $0xDEAD
-        if (s.startsWith("$")) {
-            String ss = s.substring(1);
-            if (ss.startsWith("0x") || ss.startsWith("0X")) return Integer.parseInt(ss.substring(2), 16) & 0xFFFF;
-            return Integer.parseInt(ss, 16) & 0xFFFF;
-        }
-
-        // Hex with 0x prefix
-        if (s.startsWith("0x") || s.startsWith("0X")) {
-            return Integer.parseInt(s.substring(2), 16) & 0xFFFF;
-        }
-        // Binary with '%' prefix (new RULES): %101010
-        if (s.startsWith("%")) {
-            return Integer.parseInt(s.substring(1), 2) & 0xFFFF;
-        }
-        // Hex when caller used $ (we may get a token like 'DEAD') -> but to be strict we only accept $-prefixed addresses
-        // The callers should strip '$' before calling parseNumber; if we get bare hex-like string, attempt decimal only.
-        // Decimal
-        if (s.matches("[0-9]+")) {
-            return Integer.parseInt(s, 10) & 0xFFFF;
-        }
-        // fallback: not recognized
-    throw new AssembleException("Invalid numeric literal: " + s + " (expected decimal digits, 0x..., %..., or a label)", currentSourceFile, currentSourceLine, -1, currentSourceSnippet);
+    // If it's a label, return its address (case-insensitive; a literal never starts like a label)
+    if (AsmLexer.isLabelStart(s.charAt(0))) {
+        int v = labels.get(s);
+        if (v != SymbolTable.UNDEFINED) return v;
     }
-
-    private boolean isValidLabelName(String lab) {
-        if (lab == null || lab.isEmpty()) return false;
-        // Allow letters, digits, underscore and dash. Must start with letter or underscore.
-        char c = lab.charAt(0);
-        if (!String.valueOf(c).matches("[A-Za-z_]")) return false;
-        return lab.matches("[A-Za-z0-9_\\-]+");
+        int v = AsmLexer.literal(s);
+        if (v != AsmLexer.INVALID) return v;
+        // constant expression over numbers, addresses and symbols
+        AsmLexer.Expr e = expression(s);
+        if (e != null) return evalExpr(e) & 0xFFFF;
+        // fallback: not recognized
+    throw new AssembleException("Invalid numeric literal: " + s + " (expected decimal digits, 0x..., %..., a label or an expression)", currentSourceFile, currentSourceLine, -1, currentSourceSnippet);
     }
 
     /**
@@ -619,21 +1693,29 @@ public class Assembler {
     private int parseAddressOrLabelToken(String token, Line ln) {
     if (token == null) throw new AssembleException("Empty address token", ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
         String t = token.trim();
+        if (AsmLexer.hexAddress(t) == AsmLexer.INVALID && (!AsmLexer.isLabelName(t) || (t.indexOf('-') >= 0 && labels.get(t) == SymbolTable.UNDEFINED))) {
+            AsmLexer.Expr e = expression(t);
+            if (e != null) {
+                this.currentSourceSnippet = ln.sourceSnippet;
+                return evalExpr(e) & 0xFFFF;
+            }
+        }
         if (t.startsWith("$")) {
-            String hex = t.substring(1).trim();
-            if (!hex.matches("[0-9A-Fa-f]{1,4}")) {
+            int v = AsmLexer.hexAddress(t);
+            if (v == AsmLexer.INVALID) {
                 throw new AssembleException("Invalid address format '" + t + "' (expected $ followed by 1-4 hex digits)", ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
             }
-            return Integer.parseInt(hex, 16) & 0xFFFF;
+            return v;
         }
         // Not a $-address; must be a label
-        if (!isValidLabelName(t)) {
+        if (!AsmLexer.isLabelName(t)) {
             throw new AssembleException("Invalid address token '" + t + "' (expected $HEX or valid label)", ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
         }
-        if (!labels.containsKey(t.toLowerCase())) {
+        int v = labels.get(t);
+        if (v == SymbolTable.UNDEFINED) {
             throw new AssembleException("Undefined label: " + t, ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
         }
-        return labels.get(t.toLowerCase());
+        return v;
     }
 
     private void validateImmediateSize(String token, int val, int sizeBits, int addr, String snippet) {
@@ -648,52 +1730,101 @@ public class Assembler {
         }
     }
 
-    private boolean operandNeedsExt(String op) {
-        op = op.split(";")[0].trim();
-            if (op.isEmpty()) return false;
-            // immediates (0x, %, or decimal)
-            if (op.startsWith("0x") || op.startsWith("0X") || op.startsWith("%") || op.matches("[0-9]+")) return true;
-        if (op.startsWith("$")) return true;
-        // labels (bare identifiers) are absolute addresses and need an extension (case-insensitive)
-        if (labels.containsKey(op.toLowerCase())) return true;
-        return false;
+    // immediates, $addresses and labels are encoded as an extension word; an undefined
+    // label also counts so that operandValue reports it instead of dropping the word
+    private boolean operandNeedsExt(AsmLexer.Operand op) {
+        return op.hasExtension();
     }
 
-    private int operandValue(String op, Line ln) {
-        op = op.split(";")[0].trim();
-        // immediates must be written using the allowed literal forms; detect and reject legacy/invalid characters
-        if (op.contains("#")) {
-            throw new AssembleException("Invalid immediate syntax in operand '" + op + "' (use 0x..., %..., or decimal for immediates; use $ADDR or label for addresses)", ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
+    private int operandValue(AsmLexer.Operand op, Line ln) {
+        switch (op.kind) {
+            case AsmLexer.IMM:
+                // Immediate forms: 0x..., %binary, or decimal digits
+                if (op.value == AsmLexer.INVALID) {
+                    throw new AssembleException("Invalid numeric literal: " + op.text + " (expected decimal digits, 0x..., %..., or a label)", ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
+                }
+                return op.value;
+            case AsmLexer.ADDR:
+                if (op.value == AsmLexer.INVALID) {
+                    throw new AssembleException("Invalid address format '" + op.text + "' (expected $ followed by 1-4 hex digits)", ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
+                }
+                return op.value;
+            case AsmLexer.EXPR:
+                return evalExpr(op.expr) & 0xFFFF;
+            case AsmLexer.IDENT: {
+                // If the token is a label, return its address
+                if (labels.isDefined(op.symbol)) return labels.value(op.symbol);
+                if (op.expr != null && !externs.get(op.symbol)) return evalExpr(op.expr) & 0xFFFF;
+                if (externs.get(op.symbol)) {
+                    throw new AssembleException("External symbol " + op.text + " can only be resolved by the Linker (assemble an object file)", ln.sourceFile, ln.sourceLine, ln.addr, ln.sourceSnippet);
+                }
+                break;
+            }
+            default:
+                break;
         }
-        // Immediate forms: 0x..., %binary, or decimal digits
-        if (op.startsWith("0x") || op.startsWith("0X") || op.startsWith("%") || op.matches("[0-9]+")) {
-            return parseNumber(op);
+        throw new AssembleException("Unsupported operand value: " + op.text + " (expected immediate like 0x..., %b..., decimal; or $address; or label)", ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
+    }
+
+    private AssembleException invalidRegister(String token) {
+        return new AssembleException("Invalid register: " + token.toUpperCase(), currentSourceFile, currentSourceLine, -1, currentSourceSnippet);
+    }
+
+    // Instruction word plus extension words, big-endian.
+    private byte[] encodeLine(Line ln) {
+        byte[] out = new byte[6];
+        int n = putWord(out, 0, encodeInstr(ln));
+        AsmLexer.Operand[] ops = ln.operands;
+        if (ln.opcode == Cpu.JCOND) {
+            if (ops.length >= 2 && operandNeedsExt(ops[1])) n = putOperand(out, n, ops[1], ln, false);
+            return Arrays.copyOf(out, n);
+        }
+
+        AsmLexer.Operand src = null, dst = null;
+        if ((ln.opcode == Cpu.JMP || ln.opcode == Cpu.CALL) && ops.length == 1) {
+            dst = ops[0];
+        } else {
+            if (ops.length >= 1) src = ops[0];
+            if (ops.length >= 2) dst = ops[1];
+        }
+
+        if (src != null && operandNeedsExt(src)) n = putOperand(out, n, src, ln, ln.byteSize);
+        if (dst != null && operandNeedsExt(dst)) n = putOperand(out, n, dst, ln, ln.byteSize);
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // Extension word of op at out[n]; while assembling an object file, label words are also
+    // recorded as relocations.
+    private int putOperand(byte[] out, int n, AsmLexer.Operand op, Line ln, boolean byteSize) {
+        if (relocations != null && op.kind == AsmLexer.IDENT && !constants.get(op.symbol) && (labels.isDefined(op.symbol) || externs.get(op.symbol))) {
+            int v = labels.isDefined(op.symbol) ? labels.value(op.symbol) : 0;
+            relocations.add(new int[] { ln.addr + n, op.symbol, v });
+            return putWord(out, n, v);
         }
-        // Not an immediate: $address or label
-        if (op.startsWith("$")) {
-            return parseAddressOrLabelToken(op, ln);
+        AsmLexer.Expr e = exprOf(op);
+        if (e != null) {
+            int v = evalExpr(e) & 0xFFFF;
+            if (relocations != null) relocateExpr(e, ln.addr + n, v);
+            if (byteSize && exprWeight != 1) validateImmediateSize(op.text, v, 8, ln.addr, ln.sourceSnippet);
+            return putWord(out, n, v);
         }
-    // If the token is a label, return its address
-    if (labels.containsKey(op.toLowerCase())) return labels.get(op.toLowerCase());
-        throw new AssembleException("Unsupported operand value: " + op + " (expected immediate like 0x..., %b..., decimal; or $address; or label)", ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
+        int v = operandValue(op, ln);
+        if (byteSize && isImmediate(op)) validateImmediateSize(op.text, v, 8, ln.addr, ln.sourceSnippet);
+        return putWord(out, n, v);
     }
 
-    private int regIndex(String token) {
-        token = token.split(";")[0].trim().toUpperCase();
-        if (token.startsWith("R")) return Integer.parseInt(token.substring(1).trim());
-    throw new AssembleException("Invalid register: " + token, currentSourceFile, currentSourceLine, -1, currentSourceSnippet);
+    private static int putWord(byte[] b, int off, int v) {
+        b[off] = (byte) (v >> 8);
+        b[off + 1] = (byte) v;
+        return off + 2;
     }
 
     private int encodeInstr(Line ln) {
-        String opRaw = ln.op;
-        String op = opRaw.split("\\.")[0]; // strip .W/.B suffix if present
-        String[] ops = ln.ops;
-    int opcode = opcodeOf(op, ln);
+        AsmLexer.Operand[] ops = ln.operands;
+    int opcode = ln.opcode;
     // Default size: 1 = word (16-bit). Disassembler emits no ".W" (word is default),
     // so assembler must also treat instructions as word-sized by default.
-    int size = 1;
-    if (opRaw.toUpperCase().contains(".B")) size = 0;
-    else if (opRaw.toUpperCase().contains(".W")) size = 1;
+    int size = ln.byteSize ? 0 : 1;
         int srcMode = 0, srcReg = 0, dstMode = 0, dstReg = 0;
 
         // Validation: enforce operand counts/types per opcode and provide clear errors with address
@@ -719,17 +1850,16 @@ public class Assembler {
                 expectedMin = expectedMax = 2; break;
             default: expectedMin = 0; expectedMax = 2; break;
         }
-        if (ln.ops == null) ln.ops = new String[0];
-    if (ln.ops.length < expectedMin || ln.ops.length > expectedMax) {
+    if (ops.length < expectedMin || ops.length > expectedMax) {
         throw new AssembleException(String.format("%s at $%04X expects %d..%d operands, got %d",
-            ln.op, ln.addr, expectedMin, expectedMax, ln.ops.length), ln.sourceFile, ln.sourceLine, ln.addr);
+            ln.op, ln.addr, expectedMin, expectedMax, ops.length), ln.sourceFile, ln.sourceLine, ln.addr);
     }
 
         // Special handling for JCOND: first operand is a condition mnemonic (e.g. EQ),
         // encoded as cond_code = (cond_msb<<3) | cond_low3; size bit becomes cond_msb,
         // src_mode should be immediate (11) but there is NO extension for the cond.
         if (opcode == Cpu.JCOND) {
-            String cond = ops[0].trim().toUpperCase();
+            String cond = ops[0].text.toUpperCase();
             int condCode = condCodeFromName(cond, ln);
             size = (condCode >> 3) & 1;
             srcReg = condCode & 7;
@@ -738,14 +1868,11 @@ public class Assembler {
             // dst is target address (abs)
             dstMode = Cpu.MODE_ABS; dstReg = 0;
             // If the JCOND target was provided as an immediate and size==.B, validate it fits
-            if (ops != null && ops.length >= 2) {
-                String tgt = ops[1].split(";")[0].trim();
-                if (size == 0) {
-                    Parsed pt = parseOperand(tgt);
-                    if (pt.mode == Cpu.MODE_IMM) {
-                        int vv = operandValue(tgt, ln);
-                        validateImmediateSize(tgt, vv, 8, ln.addr, ln.sourceSnippet);
-                    }
+            if (size == 0) {
+                AsmLexer.Operand tgt = ops[1];
+                if (operandMode(tgt) == Cpu.MODE_IMM) {
+                    int vv = operandValue(tgt, ln);
+                    validateImmediateSize(tgt.text, vv, 8, ln.addr, ln.sourceSnippet);
                 }
             }
             return ((opcode & 0x1F) << 11) | ((size & 1) << 10) | ((srcMode & 3) << 8) | ((srcReg & 7) << 5) | ((dstMode & 3) << 3) | (dstReg & 7);
@@ -753,40 +1880,34 @@ public class Assembler {
 
         // Special-case single-operand JMP/CALL: operand is the destination (target)
         if ((opcode == Cpu.JMP || opcode == Cpu.CALL) && ops.length == 1) {
-            Parsed p = parseOperand(ops[0]);
+            int mode = operandMode(ops[0]);
             // JMP/CALL destination must not be an immediate value; allow ABS, IND, REG
-            if (p.mode == Cpu.MODE_IMM) {
-                throw new AssembleException("JMP/CALL destination must be an address or register/indirect, not an immediate: " + ops[0], ln.sourceFile, ln.sourceLine, ln.addr);
+            if (mode == Cpu.MODE_IMM) {
+                throw new AssembleException("JMP/CALL destination must be an address or register/indirect, not an immediate: " + ops[0].text, ln.sourceFile, ln.sourceLine, ln.addr);
             }
-            dstMode = p.mode; dstReg = p.reg;
+            dstMode = mode; dstReg = ops[0].reg;
         } else if (ops.length == 1) {
             // Default: single-operand instructions are destination-only (INC/DEC/NEG/NOT/ROL/...)
             // Exception: PUSH is source-only
             if (opcode == Cpu.PUSH) {
-                Parsed p = parseOperand(ops[0]);
-                srcMode = p.mode; srcReg = p.reg;
+                srcMode = operandMode(ops[0]); srcReg = ops[0].reg;
             } else {
-                Parsed p = parseOperand(ops[0]);
-                dstMode = p.mode; dstReg = p.reg;
+                dstMode = operandMode(ops[0]); dstReg = ops[0].reg;
             }
         } else {
             if (ops.length >= 1) {
-                Parsed p = parseOperand(ops[0]);
-                srcMode = p.mode; srcReg = p.reg;
+                srcMode = operandMode(ops[0]); srcReg = ops[0].reg;
             }
             if (ops.length >= 2) {
-                Parsed p = parseOperand(ops[1]);
-                dstMode = p.mode; dstReg = p.reg;
+                dstMode = operandMode(ops[1]); dstReg = ops[1].reg;
             }
     // Centralized validation: if instruction size is .B (size==0), any immediate operand
     // must fit in 8 bits. Immediates must be written as 0x..., decimal, or %binary.
-        if (ops != null && size == 0) {
-            for (String tok : ops) {
-                String tclean = tok.split(";")[0].trim();
-                Parsed pt = parseOperand(tclean);
-                if (pt.mode == Cpu.MODE_IMM) {
-                    int vv = operandValue(tclean, ln);
-                    validateImmediateSize(tclean, vv, 8, ln.addr, ln.sourceSnippet);
+        if (size == 0) {
+            for (AsmLexer.Operand tok : ops) {
+                if (isImmediate(tok)) {
+                    int vv = operandValue(tok, ln);
+                    validateImmediateSize(tok.text, vv, 8, ln.addr, ln.sourceSnippet);
                 }
             }
         }
@@ -816,22 +1937,31 @@ public class Assembler {
         throw new AssembleException("Unknown JCOND condition: " + cond, ln.sourceFile, ln.sourceLine, -1, ln.sourceSnippet);
     }
 
-    private static class Parsed { int mode; int reg; }
-
-    private Parsed parseOperand(String token) {
-        token = token.split(";")[0].trim();
-        Parsed p = new Parsed();
-        // immediates may be written as 0x..., decimal, or %binary
-            if (token.startsWith("0x") || token.startsWith("0X") || token.startsWith("%") || token.matches("[0-9]+")) { p.mode = Cpu.MODE_IMM; p.reg = 0; return p; }
-        if (token.startsWith("$")) { p.mode = Cpu.MODE_ABS; p.reg = 0; return p; }
-    // bare label/address (e.g. START) -> absolute (case-insensitive)
-    if (labels.containsKey(token.toLowerCase())) { p.mode = Cpu.MODE_ABS; p.reg = 0; return p; }
-        if (token.startsWith("[") && token.endsWith("]")) {
-            String inner = token.substring(1, token.length()-1);
-            p.mode = Cpu.MODE_IND; p.reg = regIndex(inner); return p;
+    // Addressing mode of a lexed operand; labels must be defined by now. The register
+    // number, where there is one, is operand.reg.
+    private int operandMode(AsmLexer.Operand op) {
+        switch (op.kind) {
+            case AsmLexer.IMM: return Cpu.MODE_IMM;
+            case AsmLexer.ADDR: return Cpu.MODE_ABS;
+            case AsmLexer.REG: return Cpu.MODE_REG;
+            case AsmLexer.IND:
+                if (op.reg == AsmLexer.INVALID) throw invalidRegister(op.innerText());
+                return Cpu.MODE_IND;
+            case AsmLexer.EXPR:
+                evalExpr(op.expr);
+                return exprWeight == 1 ? Cpu.MODE_ABS : Cpu.MODE_IMM;
+            case AsmLexer.IDENT:
+                if (immediates.get(op.symbol)) return Cpu.MODE_IMM;
+                if (op.expr != null && !labels.isDefined(op.symbol) && !externs.get(op.symbol)) {
+                    evalExpr(op.expr);
+                    return exprWeight == 1 ? Cpu.MODE_ABS : Cpu.MODE_IMM;
+                }
+                // bare label/address (e.g. START) -> absolute (case-insensitive)
+                if (labels.isDefined(op.symbol) || externs.get(op.symbol)) return Cpu.MODE_ABS;
+                throw invalidRegister(op.text);
+            default:
+                throw invalidRegister(op.text);
         }
-        // register direct
-        p.mode = Cpu.MODE_REG; p.reg = regIndex(token); return p;
     }
 
     private int opcodeOf(String op, Line ln) {
@@ -872,6 +2002,11 @@ public class Assembler {
     }
 
     // Simple CLI
+    private void printOptimized() {
+        System.err.printf("peephole: removed %d instructions and %d extension words (%d bytes)%n",
+            optimizedInstructions, optimizedWords, 2 * (optimizedInstructions + optimizedWords));
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length == 1 && args[0].equals("--debug-parse")) {
             System.err.println("Usage: Assembler --debug-parse <input.asm>");
@@ -881,8 +2016,8 @@ public class Assembler {
             Assembler a = new Assembler();
             a.parse(Path.of(args[1]));
             System.out.println("Labels:");
-            for (Map.Entry<String,Integer> e : a.labels.entrySet()) {
-                System.out.printf("  %s -> $%04X\n", e.getKey(), e.getValue());
+            for (int id = 0; id < a.labels.size(); id++) {
+                if (a.labels.isDefined(id)) System.out.printf("  %s -> $%04X\n", a.labels.name(id), a.labels.value(id));
             }
             System.out.println("Lines:");
             for (Line ln : a.lines) {
@@ -890,12 +2025,54 @@ public class Assembler {
             }
             return;
         }
-        if (args.length != 2) {
-            System.err.println("Usage: Assembler <input.asm> <output.bin>");
+        boolean debug = false;
+        int version = 1;
+        boolean compress = false;
+        boolean object = false;
+        boolean optimize = false;
+        Path cacheDir = null;
+        int argi = 0;
+        for (; argi < args.length && args[argi].startsWith("-"); argi++) {
+            if (args[argi].equals("-g")) debug = true;
+            else if (args[argi].equals("--image-v2")) version = 2;
+            else if (args[argi].equals("--compress")) compress = true;
+            else if (args[argi].equals("-c")) object = true;
+            else if (args[argi].equals("-O")) optimize = true;
+            else if (args[argi].equals("--cache") && argi + 1 < args.length) cacheDir = Path.of(args[++argi]);
+            else break;
+        }
+        if (args.length - argi != 2) {
+            System.err.println("Usage: Assembler [-g] [-O] [--image-v2] [--compress] [--cache <dir>] <input.asm> <output.bin>");
+            System.err.println("       Assembler -c [-O] <input.asm> <output" + ObjectFile.FILE_SUFFIX + ">   (relocatable object for the Linker)");
+            System.err.println("  -g             also write <output.bin>" + DebugInfo.FILE_SUFFIX + " with line table and symbols");
+            System.err.println("  --image-v2     always write the section-table image format (with symbols)");
+            System.err.println("  --compress     LZ-compress large chunks (implies --image-v2)");
+            System.err.println("  --cache <dir>  reuse results stored in <dir> for identical sources (see AssemblyCache)");
+            System.err.println("  -O             peephole pass: thread jumps, tail calls, drop redundant MOV/CMP");
             System.exit(2);
         }
+        Path in = Path.of(args[argi]), out = Path.of(args[argi + 1]);
+        if (object) {
+            Assembler a = new Assembler();
+            a.setOptimize(optimize);
+            a.parse(in);
+            if (optimize) a.printOptimized();
+            a.assembleObject().write(out);
+            return;
+        }
+        if (cacheDir != null) {
+            AssemblyCache.Result r = new AssemblyCache(1, cacheDir).assemble(Files.readString(in), in.toString(), version, compress, optimize);
+            r.writeImage(out);
+            if (debug) r.debugInfo().write(Path.of(out + DebugInfo.FILE_SUFFIX));
+            return;
+        }
         Assembler a = new Assembler();
-        a.parse(Path.of(args[0]));
-        a.assemble(Path.of(args[1]));
+        a.setImageVersion(version);
+        a.setCompressImage(compress);
+        a.setOptimize(optimize);
+        if (debug) a.setDebugOutput(Path.of(out + DebugInfo.FILE_SUFFIX));
+        a.parse(in);
+        if (optimize) a.printOptimized();
+        a.assemble(out);
     }
 }
@@ -0,0 +1,280 @@
+package com.fantasy.cpu;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe assembly front-end that remembers its results. The key is a SHA-256 over
+ * {@link #FORMAT}, the assembler's build version, the source text, the source name (it appears
+ * in the debug info) and every option that changes the output (image format, compression,
+ * peephole pass), so a hit returns the image and {@link DebugInfo} without parsing anything. Every miss assembles with
+ * its own {@link Assembler}; concurrent requests for the same key wait for one assembly.
+ *
+ * Results are kept in memory with least-recently-used eviction and, when a directory is given,
+ * also stored there as {@code <key>.bin} plus {@code <key>.bin.dbg} so they survive the process
+ * (for example between CI runs). A store that cannot be written only costs the reuse: the
+ * result is still returned and a warning goes to stderr. Sources that fail to assemble are not
+ * cached. Sources that use {@code .include} are always assembled, since the key does not cover
+ * the included files.
+ */
+public class AssemblyCache {
+    /**
+     * Salt of every key. Bump it whenever the assembler's output for a given source and options
+     * changes, or the layout of a stored entry does, so stores written by older builds are
+     * ignored rather than served.
+     */
+    static final int FORMAT = 2;
+    // null when not running from a packaged jar
+    private static final String BUILD = Assembler.class.getPackage().getImplementationVersion();
+
+    private final int maxEntries;
+    private final Path store;
+    private final Map<String, Result> memory;
+    private final ConcurrentHashMap<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** An assembled image with its debug info. */
+    public static final class Result {
+        private final byte[] image;
+        private final DebugInfo debugInfo;
+
+        Result(byte[] image, DebugInfo debugInfo) {
+            this.image = image;
+            this.debugInfo = debugInfo;
+        }
+
+        /** The image bytes (a copy). */
+        public byte[] image() {
+            return image.clone();
+        }
+
+        public int imageLength() {
+            return image.length;
+        }
+
+        public void writeImage(Path file) throws IOException {
+            Files.write(file, image);
+        }
+
+        public DebugInfo debugInfo() {
+            return debugInfo;
+        }
+    }
+
+    /** In-memory cache only. */
+    public AssemblyCache(int maxEntries) {
+        this(maxEntries, null);
+    }
+
+    /** @param store directory for the on-disk store (created if needed), or null */
+    public AssemblyCache(int maxEntries, Path store) {
+        if (maxEntries < 0) throw new IllegalArgumentException("maxEntries < 0: " + maxEntries);
+        this.maxEntries = maxEntries;
+        this.store = store;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                return size() > AssemblyCache.this.maxEntries;
+            }
+        };
+    }
+
+    public Result assemble(Path file) throws IOException {
+        return assemble(Files.readString(file), file.toString());
+    }
+
+    /** Assemble with the default image options (format 1, uncompressed). */
+    public Result assemble(CharSequence source, String sourceName) {
+        return assemble(source, sourceName, 1, false);
+    }
+
+    /** See {@link Assembler#setImageVersion} and {@link Assembler#setCompressImage}. */
+    public Result assemble(CharSequence source, String sourceName, int imageVersion, boolean compress) {
+        return assemble(source, sourceName, imageVersion, compress, false);
+    }
+
+    /** As above, with {@link Assembler#setOptimize}. */
+    public Result assemble(CharSequence source, String sourceName, int imageVersion, boolean compress, boolean optimize) {
+        if (usesInclude(source)) {
+            misses.incrementAndGet();
+            return compile(source, sourceName, imageVersion, compress, optimize);
+        }
+        String key = key(source, sourceName, imageVersion, compress, optimize);
+        Result r = cached(key);
+        if (r != null) {
+            hits.incrementAndGet();
+            return r;
+        }
+        CompletableFuture<Result> mine = new CompletableFuture<>();
+        CompletableFuture<Result> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            hits.incrementAndGet();
+            return await(running);
+        }
+        try {
+            r = cached(key); // finished between the lookup and putIfAbsent
+            if (r != null) {
+                hits.incrementAndGet();
+            } else {
+                r = load(key);
+                if (r != null) {
+                    diskHits.incrementAndGet();
+                } else {
+                    misses.incrementAndGet();
+                    r = compile(source, sourceName, imageVersion, compress, optimize);
+                    save(key, r);
+                }
+                synchronized (memory) {
+                    memory.put(key, r);
+                }
+            }
+            mine.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private Result cached(String key) {
+        synchronized (memory) {
+            return memory.get(key);
+        }
+    }
+
+    private static Result await(CompletableFuture<Result> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private static Result compile(CharSequence source, String sourceName, int imageVersion, boolean compress, boolean optimize) {
+        Assembler a = new Assembler();
+        a.setImageVersion(imageVersion);
+        a.setCompressImage(compress);
+        a.setOptimize(optimize);
+        a.parse(source, sourceName);
+        byte[] image = a.assemble();
+        return new Result(image, a.debugInfo());
+    }
+
+    private static boolean usesInclude(CharSequence source) {
+        String s = source.toString();
+        for (int i = s.indexOf('.'); i >= 0; i = s.indexOf('.', i + 1)) {
+            if (s.regionMatches(true, i, ".include", 0, 8)) return true;
+        }
+        return false;
+    }
+
+    static String key(CharSequence source, String sourceName, int imageVersion, boolean compress, boolean optimize) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        md.update((byte) FORMAT);
+        if (BUILD != null) md.update(BUILD.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update((byte) imageVersion);
+        md.update((byte) (compress ? 1 : 0));
+        md.update((byte) (optimize ? 1 : 0));
+        md.update(sourceName.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(source.toString().getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    // ---- on-disk store ----
+
+    private Result load(String key) {
+        if (store == null) return null;
+        Path bin = store.resolve(key + ".bin");
+        Path dbg = store.resolve(key + ".bin" + DebugInfo.FILE_SUFFIX);
+        if (!Files.exists(bin) || !Files.exists(dbg)) return null;
+        try {
+            return new Result(Files.readAllBytes(bin), DebugInfo.read(dbg));
+        } catch (IOException e) {
+            return null; // unreadable entry: assemble again and overwrite it
+        }
+    }
+
+    // written to temporary files and moved into place, so readers never see half an entry;
+    // a store that cannot be written is skipped with a warning, the assembly itself succeeded
+    private void save(String key, Result r) {
+        if (store == null) return;
+        Path bin = null, dbg = null;
+        try {
+            Files.createDirectories(store);
+            bin = Files.createTempFile(store, key, ".tmp");
+            dbg = Files.createTempFile(store, key, ".tmp");
+            Files.write(bin, r.image);
+            r.debugInfo.write(dbg);
+            Files.move(dbg, store.resolve(key + ".bin" + DebugInfo.FILE_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(bin, store.resolve(key + ".bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("assembly cache: cannot store " + key + " in " + store + ": " + e);
+        } finally {
+            deleteQuietly(bin);
+            deleteQuietly(dbg);
+        }
+    }
+
+    private static void deleteQuietly(Path p) {
+        if (p == null) return;
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException ignored) {
+            // leftover .tmp file; the next save of that key does not depend on it
+        }
+    }
+
+    // ---- statistics ----
+
+    /** Requests answered from memory (including those that waited for a running assembly). */
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Requests answered from the on-disk store. */
+    public long diskHits() {
+        return diskHits.get();
+    }
+
+    /** Requests that had to assemble. */
+    public long misses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    /** Drop the in-memory entries; the on-disk store is kept. */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+    }
+}
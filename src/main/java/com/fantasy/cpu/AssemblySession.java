@@ -0,0 +1,135 @@
+package com.fantasy.cpu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Edit-assemble loop over one source file. The session keeps the parsed program, its label
+ * table and the encoded instructions between edits, so a change re-parses only the edited
+ * lines and re-encodes only those lines; instructions whose label targets moved get just
+ * the affected extension words rewritten.
+ * Edits the incremental path cannot handle (directives, adding or renaming labels) fall back
+ * to a full parse; the result is always the same image a fresh {@link Assembler} produces.
+ *
+ *   AssemblySession s = new AssemblySession("game.asm", text);
+ *   byte[] image = s.setLine(120, "    ADD 2, R3");
+ *
+ * Line numbers are 0-based. If an edit leaves the source with an error, the
+ * {@link AssembleException} is thrown and the edit is kept; the next edit parses again from
+ * scratch.
+ */
+public final class AssemblySession {
+    private final Assembler assembler;
+    private final String sourceName;
+    private final List<String> source;
+    private byte[] image;
+    private boolean parsed;      // assembler holds the parse of the current source
+    private boolean incremental; // how the last edit was applied
+    private int reencoded;
+    private int patched;
+
+    public AssemblySession(String sourceName, CharSequence source) {
+        this(new Assembler(), sourceName, source);
+    }
+
+    /** Use {@code assembler} (image format, compression) for this session. */
+    public AssemblySession(Assembler assembler, String sourceName, CharSequence source) {
+        this.assembler = assembler;
+        this.sourceName = sourceName;
+        this.source = new ArrayList<>(source.toString().lines().toList());
+        fullAssemble();
+    }
+
+    /** The image for the current source. */
+    public byte[] image() {
+        if (image == null) throw new IllegalStateException("Source has errors; last edit did not assemble");
+        return image;
+    }
+
+    public DebugInfo debugInfo() {
+        return assembler.debugInfo();
+    }
+
+    public int lineCount() {
+        return source.size();
+    }
+
+    public String line(int index) {
+        return source.get(index);
+    }
+
+    public String source() {
+        return String.join("\n", source) + "\n";
+    }
+
+    /** Replace line {@code index} and return the new image. */
+    public byte[] setLine(int index, String text) {
+        return replaceLines(index, index + 1, List.of(text));
+    }
+
+    /** Insert {@code text} before line {@code index} and return the new image. */
+    public byte[] insertLines(int index, String... text) {
+        return replaceLines(index, index, Arrays.asList(text));
+    }
+
+    /** Delete lines {@code [from, to)} and return the new image. */
+    public byte[] deleteLines(int from, int to) {
+        return replaceLines(from, to, List.of());
+    }
+
+    /** Replace lines {@code [from, to)} with {@code text} and return the new image. */
+    public byte[] replaceLines(int from, int to, List<String> text) {
+        if (from < 0 || to < from || to > source.size()) {
+            throw new IndexOutOfBoundsException("Lines " + from + ".." + to + " of " + source.size());
+        }
+        List<String> range = source.subList(from, to);
+        range.clear();
+        range.addAll(text);
+        image = null;
+        int n = parsed ? tryReparse(from, to, text) : -1;
+        if (n < 0) {
+            fullAssemble();
+            return image;
+        }
+        incremental = true;
+        reencoded = n;
+        patched = assembler.patchedReferences();
+        image = assembler.assemble();
+        return image;
+    }
+
+    // incremental parse of the edit; -1 when it needs a full parse
+    private int tryReparse(int from, int to, List<String> text) {
+        try {
+            return assembler.reparseLines(from, to, text);
+        } catch (AssembleException e) {
+            return -1; // reported with full context by the full parse
+        }
+    }
+
+    private void fullAssemble() {
+        incremental = false;
+        parsed = false;
+        reencoded = 0;
+        patched = 0;
+        assembler.parse(source(), sourceName);
+        parsed = true;
+        image = assembler.assemble();
+    }
+
+    /** Whether the last edit was applied without parsing the whole source. */
+    public boolean lastEditIncremental() {
+        return incremental;
+    }
+
+    /** Instructions encoded again by the last incremental edit. */
+    public int lastReencoded() {
+        return reencoded;
+    }
+
+    /** Label references rewritten in place by the last incremental edit. */
+    public int lastPatched() {
+        return patched;
+    }
+}
@@ -0,0 +1,233 @@
+package com.fantasy.cpu;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Assembles many source files in parallel on a {@link ForkJoinPool}. Every file gets its own
+ * {@link Assembler}, so nothing is shared between tasks. Reading a source and writing its
+ * outputs each take a permit from a semaphore, which bounds the number of files open at once
+ * independently of the parallelism. Failures do not stop the batch: they are collected per
+ * input and reported together in the {@link Result}.
+ *
+ *   BatchAssembler.Result r = new BatchAssembler().assembleDirectory(Path.of("ASM"), Path.of("out"));
+ *   r.throwIfFailed();
+ */
+public class BatchAssembler {
+    public static final int DEFAULT_MAX_OPEN_FILES = 64;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+    private int imageVersion = 1;
+    private boolean compress;
+    private boolean debugInfo;
+
+    /** Outcome of a batch; outputs and failures are in input order. */
+    public static final class Result {
+        private final Map<Path, Path> outputs;
+        private final Map<Path, Exception> failures;
+
+        Result(Map<Path, Path> outputs, Map<Path, Exception> failures) {
+            this.outputs = Collections.unmodifiableMap(outputs);
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /** Input to written image, for the files that assembled. */
+        public Map<Path, Path> outputs() {
+            return outputs;
+        }
+
+        /** Input to its {@link AssembleException} (or other rejection of the program) or I/O error. */
+        public Map<Path, Exception> failures() {
+            return failures;
+        }
+
+        public boolean succeeded() {
+            return failures.isEmpty();
+        }
+
+        /**
+         * Throw one {@link AssembleException} listing every failed file (each failure is
+         * attached as a suppressed exception); does nothing if all files assembled.
+         */
+        public void throwIfFailed() {
+            if (failures.isEmpty()) return;
+            StringBuilder sb = new StringBuilder();
+            sb.append(failures.size()).append(" of ").append(failures.size() + outputs.size()).append(" files failed to assemble");
+            for (Map.Entry<Path, Exception> f : failures.entrySet()) {
+                sb.append(System.lineSeparator()).append("  ").append(f.getKey()).append(": ").append(f.getValue().getMessage());
+            }
+            AssembleException e = new AssembleException(sb.toString(), null, -1, -1);
+            for (Exception f : failures.values()) e.addSuppressed(f);
+            throw e;
+        }
+    }
+
+    public BatchAssembler setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism < 1: " + parallelism);
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /** Upper bound on source and output files open at the same time. */
+    public BatchAssembler setMaxOpenFiles(int maxOpenFiles) {
+        if (maxOpenFiles < 1) throw new IllegalArgumentException("maxOpenFiles < 1: " + maxOpenFiles);
+        this.maxOpenFiles = maxOpenFiles;
+        return this;
+    }
+
+    /** See {@link Assembler#setImageVersion}. */
+    public BatchAssembler setImageVersion(int version) {
+        if (version != 1 && version != 2) throw new IllegalArgumentException("Unsupported image version: " + version);
+        this.imageVersion = version;
+        return this;
+    }
+
+    /** See {@link Assembler#setCompressImage}. */
+    public BatchAssembler setCompressImage(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /** Also write {@code <output>.dbg} next to every image. */
+    public BatchAssembler setDebugInfo(boolean debugInfo) {
+        this.debugInfo = debugInfo;
+        return this;
+    }
+
+    /** Every {@code .asm} file under {@code dir}, sorted by path. */
+    public static List<Path> findSources(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            return s.filter(p -> p.getFileName().toString().endsWith(".asm") && Files.isRegularFile(p)).sorted().toList();
+        }
+    }
+
+    /** Assemble every {@code .asm} file under {@code srcDir}, mirroring its layout in {@code outDir}. */
+    public Result assembleDirectory(Path srcDir, Path outDir) throws IOException {
+        List<Path> inputs = findSources(srcDir);
+        List<Path> outs = new ArrayList<>(inputs.size());
+        for (Path in : inputs) outs.add(outDir.resolve(binName(srcDir.relativize(in).toString())));
+        return assemble(inputs, outs);
+    }
+
+    /** Assemble {@code inputs} into {@code outDir}, each as {@code <name>.bin}. */
+    public Result assemble(List<Path> inputs, Path outDir) {
+        List<Path> outs = new ArrayList<>(inputs.size());
+        for (Path in : inputs) outs.add(outDir.resolve(binName(in.getFileName().toString())));
+        return assemble(inputs, outs);
+    }
+
+    private static String binName(String asmName) {
+        return (asmName.endsWith(".asm") ? asmName.substring(0, asmName.length() - 4) : asmName) + ".bin";
+    }
+
+    /** Assemble {@code inputs.get(i)} into {@code outputs.get(i)}. */
+    public Result assemble(List<Path> inputs, List<Path> outputs) {
+        if (inputs.size() != outputs.size()) throw new IllegalArgumentException("inputs and outputs differ in size");
+        int n = inputs.size();
+        Exception[] errors = new Exception[n];
+        Semaphore handles = new Semaphore(maxOpenFiles);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> IntStream.range(0, n).parallel().forEach(i -> {
+                try {
+                    assembleOne(inputs.get(i), outputs.get(i), handles);
+                } catch (IllegalArgumentException | IOException | UncheckedIOException e) {
+                    errors[i] = e;
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Batch interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        Map<Path, Path> done = new LinkedHashMap<>();
+        Map<Path, Exception> failed = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (errors[i] == null) done.put(inputs.get(i), outputs.get(i));
+            else failed.put(inputs.get(i), errors[i]);
+        }
+        return new Result(done, failed);
+    }
+
+    private void assembleOne(Path in, Path out, Semaphore handles) throws IOException {
+        String source;
+        handles.acquireUninterruptibly();
+        try {
+            source = Files.readString(in);
+        } finally {
+            handles.release();
+        }
+        Assembler a = new Assembler();
+        a.setImageVersion(imageVersion);
+        a.setCompressImage(compress);
+        a.parse(source, in.toString());
+        byte[] image = a.assemble();
+        Path dir = out.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        handles.acquireUninterruptibly();
+        try {
+            Files.write(out, image);
+            if (debugInfo) a.debugInfo().write(Path.of(out + DebugInfo.FILE_SUFFIX));
+        } finally {
+            handles.release();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        BatchAssembler b = new BatchAssembler();
+        int argi = 0;
+        for (; argi < args.length && args[argi].startsWith("-"); argi++) {
+            if (args[argi].equals("-g")) b.setDebugInfo(true);
+            else if (args[argi].equals("--image-v2")) b.setImageVersion(2);
+            else if (args[argi].equals("--compress")) b.setCompressImage(true);
+            else if (args[argi].equals("-j") && argi + 1 < args.length) b.setParallelism(Integer.parseInt(args[++argi]));
+            else if (args[argi].equals("--max-open") && argi + 1 < args.length) b.setMaxOpenFiles(Integer.parseInt(args[++argi]));
+            else break;
+        }
+        if (args.length - argi < 2) {
+            System.err.println("Usage: BatchAssembler [-g] [--image-v2] [--compress] [-j N] [--max-open N] <out-dir> <file.asm | dir>...");
+            System.err.println("  directories are searched for .asm files and mirrored under <out-dir>");
+            System.exit(2);
+        }
+        Path outDir = Path.of(args[argi++]);
+        List<Path> inputs = new ArrayList<>();
+        List<Path> outputs = new ArrayList<>();
+        for (; argi < args.length; argi++) {
+            Path p = Path.of(args[argi]);
+            if (Files.isDirectory(p)) {
+                for (Path in : findSources(p)) {
+                    inputs.add(in);
+                    outputs.add(outDir.resolve(binName(p.relativize(in).toString())));
+                }
+            } else {
+                inputs.add(p);
+                outputs.add(outDir.resolve(binName(p.getFileName().toString())));
+            }
+        }
+        long t0 = System.nanoTime();
+        Result r = b.assemble(inputs, outputs);
+        long ms = (System.nanoTime() - t0) / 1_000_000;
+        for (Map.Entry<Path, Exception> f : r.failures().entrySet()) {
+            System.err.println(f.getKey() + ": " + f.getValue().getMessage());
+        }
+        System.err.printf("%d assembled, %d failed in %d ms%n", r.outputs().size(), r.failures().size(), ms);
+        if (!r.succeeded()) System.exit(1);
+    }
+}
@@ -0,0 +1,120 @@
+package com.fantasy.cpu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PC breakpoints and read/write watchpoints for {@link Cpu#run(long)}.
+ *
+ * Addresses are logical (0x0000-0xFFFF) and apply to whichever bank is selected. Every
+ * 256-byte page has a flag byte saying whether it holds any breakpoint or watched range;
+ * memory accesses only look further (exact bit / range list) when their page is flagged.
+ * With no {@code Breakpoints} attached the CPU pays one null check per access.
+ *
+ * Watchpoints fire on data accesses only (instruction fetches are ignored) and stop the
+ * run loop after the accessing instruction completes. DMA transfers do not trigger them.
+ */
+public class Breakpoints {
+    static final int PAGE_EXEC = 1;
+    static final int PAGE_READ = 2;
+    static final int PAGE_WRITE = 4;
+
+    private final byte[] pageFlags = new byte[256];
+    private final long[] execBits = new long[0x10000 >>> 6];
+    private final List<int[]> watches = new ArrayList<>(); // {start, end (inclusive), PAGE_READ|PAGE_WRITE}
+
+    // run-loop state, owned by the CPU thread
+    boolean armed;      // PC breakpoints are checked (false while resuming from one)
+    boolean fetching;   // current access is an instruction fetch
+    ExitReason hit;
+    int hitAddress;
+
+    /** Attach a new, empty set to {@code cpu} and return it. */
+    public static Breakpoints attach(Cpu cpu) {
+        Breakpoints b = new Breakpoints();
+        cpu.breakpoints = b;
+        return b;
+    }
+
+    public void addBreakpoint(int addr) {
+        addr &= 0xFFFF;
+        execBits[addr >>> 6] |= 1L << addr;
+        pageFlags[addr >>> 8] |= PAGE_EXEC;
+    }
+
+    public void removeBreakpoint(int addr) {
+        addr &= 0xFFFF;
+        execBits[addr >>> 6] &= ~(1L << addr);
+        rebuildPage(addr >>> 8);
+    }
+
+    public boolean hasBreakpoint(int addr) {
+        addr &= 0xFFFF;
+        return (execBits[addr >>> 6] & (1L << addr)) != 0;
+    }
+
+    /** Watch {@code [start, start + length)} for reads and/or writes. */
+    public void addWatchpoint(int start, int length, boolean read, boolean write) {
+        if (length <= 0 || start < 0 || start + length > 0x10000) {
+            throw new IllegalArgumentException(String.format("Invalid watch range $%04X+%d", start, length));
+        }
+        if (!read && !write) throw new IllegalArgumentException("Watchpoint must watch reads or writes");
+        byte kind = (byte) ((read ? PAGE_READ : 0) | (write ? PAGE_WRITE : 0));
+        int end = start + length - 1;
+        watches.add(new int[]{start, end, kind});
+        for (int p = start >>> 8; p <= end >>> 8; p++) pageFlags[p] |= kind;
+    }
+
+    /** Remove watchpoints that exactly match a previous {@link #addWatchpoint} range. */
+    public void removeWatchpoint(int start, int length) {
+        int end = start + length - 1;
+        watches.removeIf(w -> w[0] == start && w[1] == end);
+        for (int p = start >>> 8; p <= (end >>> 8) && p < 256; p++) rebuildPage(p);
+    }
+
+    public void clear() {
+        Arrays.fill(pageFlags, (byte) 0);
+        Arrays.fill(execBits, 0L);
+        watches.clear();
+    }
+
+    private void rebuildPage(int page) {
+        int flags = 0;
+        for (int i = page << 2; i < (page + 1) << 2; i++) {
+            if (execBits[i] != 0) flags |= PAGE_EXEC;
+        }
+        for (int[] w : watches) {
+            if (w[0] >>> 8 <= page && page <= w[1] >>> 8) flags |= w[2];
+        }
+        pageFlags[page] = (byte) flags;
+    }
+
+    /** What stopped the last {@link Cpu#run(long)} (null if it stopped for another reason). */
+    public ExitReason hit() { return hit; }
+
+    /** Breakpoint PC or watched data address of the last hit. */
+    public int hitAddress() { return hitAddress; }
+
+    // ---- called by Cpu ----
+
+    boolean checkExec(int pc) {
+        if (!armed || (pageFlags[(pc >>> 8) & 0xFF] & PAGE_EXEC) == 0) return false;
+        if (!hasBreakpoint(pc)) return false;
+        hit = ExitReason.BREAKPOINT;
+        hitAddress = pc & 0xFFFF;
+        return true;
+    }
+
+    void checkAccess(int addr, boolean write) {
+        int kind = write ? PAGE_WRITE : PAGE_READ;
+        if ((pageFlags[(addr >>> 8) & 0xFF] & kind) == 0 || fetching || hit != null) return;
+        for (int[] w : watches) {
+            if ((w[2] & kind) != 0 && addr >= w[0] && addr <= w[1]) {
+                hit = write ? ExitReason.WRITE_WATCHPOINT : ExitReason.READ_WATCHPOINT;
+                hitAddress = addr;
+                return;
+            }
+        }
+    }
+}
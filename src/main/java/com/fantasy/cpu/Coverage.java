@@ -0,0 +1,292 @@
+package com.fantasy.cpu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Guest code coverage: one bit per logical address and bank, set when an instruction is
+ * fetched from that address. Recording is a single OR into a {@code long[]} per instruction.
+ *
+ * Reports map the bits back to source through the {@link DebugInfo} line table of an
+ * assembled program: a source line is covered when any instruction emitted for it ran.
+ *
+ * To collect coverage over a whole test run, start the JVM with
+ * {@code -Dfm16.coverage=<file>}: every new {@link Cpu} then gets its own recorder (a
+ * recorder is not thread-safe, machines on different threads must not share one). When a
+ * machine is collected its bits are folded into a process-wide total, and at exit the total
+ * plus the recorders of live machines is OR-ed into {@code <file>} under a file lock, so
+ * several JVMs (forked test runners) can share one file. Print a report with
+ *   java com.fantasy.cpu.Coverage <file> <program.asm | program.bin.dbg>...
+ */
+public class Coverage {
+    public static final String PROPERTY = "fm16.coverage";
+    private static final byte[] MAGIC = {'F', 'M', '1', '6', 'C', 'O', 'V', '1'};
+    private static final int WORDS = 0x10000 >>> 6;
+
+    private static final Collector GLOBAL = createGlobal();
+
+    private final long[][] executed = {new long[WORDS], new long[WORDS]};
+
+    /** Attach a new coverage recorder to {@code cpu} and return it. */
+    public static Coverage attach(Cpu cpu) {
+        Coverage c = new Coverage();
+        cpu.coverage = c;
+        return c;
+    }
+
+    /**
+     * Everything recorded so far by machines created with {@code -Dfm16.coverage} set, as a
+     * new snapshot, or null when the property is not set.
+     */
+    public static Coverage global() {
+        return GLOBAL == null ? null : GLOBAL.total();
+    }
+
+    /** A recorder of its own for a new {@code cpu} when {@code -Dfm16.coverage} is set, else null. */
+    static Coverage forMachine(Cpu cpu) {
+        return GLOBAL == null ? null : GLOBAL.recorderFor(cpu);
+    }
+
+    private static Collector createGlobal() {
+        String file = System.getProperty(PROPERTY);
+        if (file == null || file.isEmpty()) return null;
+        Collector c = new Collector();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                c.total().mergeInto(Path.of(file));
+            } catch (IOException e) {
+                System.err.println("coverage: cannot write " + file + ": " + e.getMessage());
+            }
+        }, "fm16-coverage"));
+        return c;
+    }
+
+    /**
+     * Per-machine recorders and the bits of machines already collected. A recorder is only
+     * written by the thread running its machine; totals read it without a lock, which can at
+     * worst miss an instruction executed concurrently with the read.
+     */
+    static final class Collector {
+        private static final Cleaner CLEANER = Cleaner.create();
+
+        private final Coverage retired = new Coverage();
+        private final Set<Coverage> live = new HashSet<>();
+
+        synchronized Coverage recorderFor(Cpu cpu) {
+            Coverage c = new Coverage();
+            live.add(c);
+            CLEANER.register(cpu, () -> retire(c));
+            return c;
+        }
+
+        private synchronized void retire(Coverage c) {
+            if (live.remove(c)) retired.merge(c);
+        }
+
+        synchronized Coverage total() {
+            Coverage t = new Coverage();
+            t.merge(retired);
+            for (Coverage c : live) t.merge(c);
+            return t;
+        }
+    }
+
+    void record(int pc, int bank) {
+        long[] bits = executed[pc >= Cpu.IO_BASE ? 0 : bank & 1];
+        bits[(pc & 0xFFFF) >>> 6] |= 1L << pc;
+    }
+
+    public boolean executed(int addr, int bank) {
+        addr &= 0xFFFF;
+        return (executed[bank & 1][addr >>> 6] & (1L << addr)) != 0;
+    }
+
+    /** Number of distinct instruction addresses executed in {@code bank}. */
+    public int executedCount(int bank) {
+        int n = 0;
+        for (long w : executed[bank & 1]) n += Long.bitCount(w);
+        return n;
+    }
+
+    public void clear() {
+        Arrays.fill(executed[0], 0L);
+        Arrays.fill(executed[1], 0L);
+    }
+
+    public void merge(Coverage other) {
+        for (int b = 0; b < 2; b++) {
+            for (int i = 0; i < WORDS; i++) executed[b][i] |= other.executed[b][i];
+        }
+    }
+
+    // ---- persistence ----
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream d = new DataOutputStream(out);
+        d.write(MAGIC);
+        for (long[] bank : executed) {
+            for (long w : bank) d.writeLong(w);
+        }
+        d.flush();
+    }
+
+    public static Coverage read(InputStream in) throws IOException {
+        DataInputStream d = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        d.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a coverage file (bad magic)");
+        Coverage c = new Coverage();
+        for (long[] bank : c.executed) {
+            for (int i = 0; i < WORDS; i++) bank[i] = d.readLong();
+        }
+        return c;
+    }
+
+    /**
+     * OR this coverage into {@code file}, creating it if needed. The read-merge-write runs
+     * under an exclusive lock on the file, so concurrent merges from other processes are not
+     * lost; merges from this process are serialized on the class because file locks are held
+     * per JVM.
+     */
+    public void mergeInto(Path file) throws IOException {
+        synchronized (Coverage.class) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ch.lock(); // released when the channel closes
+                Coverage total = new Coverage();
+                if (ch.size() > 0) total = read(new BufferedInputStream(Channels.newInputStream(ch)));
+                total.merge(this);
+                ch.truncate(0);
+                ch.position(0);
+                total.write(new BufferedOutputStream(Channels.newOutputStream(ch)));
+                ch.force(false);
+            }
+        }
+    }
+
+    // ---- reports ----
+
+    /** Per-file line coverage for {@code bank}: file -> (line -> covered), lines in order. */
+    public Map<String, TreeMap<Integer, Boolean>> lineCoverage(DebugInfo debug, int bank) {
+        Map<String, TreeMap<Integer, Boolean>> files = new LinkedHashMap<>();
+        for (DebugInfo.LineEntry e : debug.entries()) {
+            TreeMap<Integer, Boolean> lines = files.computeIfAbsent(e.file, f -> new TreeMap<>());
+            lines.merge(e.line, executed(e.address, bank), Boolean::logicalOr);
+        }
+        return files;
+    }
+
+    /** One line per source file plus a total: covered/instrumented lines and percentage. */
+    public String summary(DebugInfo debug, int bank) {
+        StringBuilder sb = new StringBuilder();
+        int allCovered = 0, allLines = 0;
+        for (Map.Entry<String, TreeMap<Integer, Boolean>> f : lineCoverage(debug, bank).entrySet()) {
+            int covered = 0;
+            for (boolean b : f.getValue().values()) if (b) covered++;
+            int lines = f.getValue().size();
+            sb.append(String.format("%-40s %5d/%-5d %6.1f%%%n", f.getKey(), covered, lines, percent(covered, lines)));
+            allCovered += covered;
+            allLines += lines;
+        }
+        int instrs = 0, ran = 0;
+        for (DebugInfo.LineEntry e : debug.entries()) {
+            instrs++;
+            if (executed(e.address, bank)) ran++;
+        }
+        sb.append(String.format("%-40s %5d/%-5d %6.1f%%%n", "TOTAL lines", allCovered, allLines, percent(allCovered, allLines)));
+        sb.append(String.format("%-40s %5d/%-5d %6.1f%%%n", "TOTAL instructions", ran, instrs, percent(ran, instrs)));
+        return sb.toString();
+    }
+
+    private static double percent(int part, int whole) {
+        return whole == 0 ? 100.0 : 100.0 * part / whole;
+    }
+
+    /**
+     * Annotated listing of every source file in {@code debug}. Each source line is prefixed
+     * with its number and a marker: {@code +} covered, {@code -} never executed, blank for
+     * lines that emitted no instruction.
+     */
+    public void annotate(DebugInfo debug, int bank, Appendable out) {
+        try {
+            for (Map.Entry<String, TreeMap<Integer, Boolean>> f : lineCoverage(debug, bank).entrySet()) {
+                out.append("==== ").append(f.getKey()).append(" ====").append(System.lineSeparator());
+                List<String> src = readSource(f.getKey(), f.getValue().isEmpty() ? 0 : f.getValue().lastKey());
+                for (int i = 0; i < src.size(); i++) {
+                    Boolean covered = f.getValue().get(i + 1);
+                    char mark = covered == null ? ' ' : covered ? '+' : '-';
+                    out.append(String.format("%5d %c | %s", i + 1, mark, src.get(i))).append(System.lineSeparator());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String annotate(DebugInfo debug, int bank) {
+        StringBuilder sb = new StringBuilder();
+        annotate(debug, bank, sb);
+        return sb.toString();
+    }
+
+    // source text, or empty placeholders up to the last instrumented line if it cannot be read
+    private static List<String> readSource(String file, int minLines) {
+        List<String> src;
+        try {
+            src = new ArrayList<>(Files.readAllLines(Path.of(file)));
+        } catch (IOException | RuntimeException e) {
+            src = new ArrayList<>();
+        }
+        while (src.size() < minLines) src.add("");
+        return src;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: Coverage <coverage-file> <program.asm | program.bin.dbg>...");
+            System.exit(2);
+        }
+        Coverage c;
+        try (InputStream in = Files.newInputStream(Path.of(args[0]))) {
+            c = read(in);
+        }
+        for (int i = 1; i < args.length; i++) {
+            DebugInfo debug;
+            if (args[i].endsWith(DebugInfo.FILE_SUFFIX)) {
+                debug = DebugInfo.read(Path.of(args[i]));
+            } else {
+                Assembler a = new Assembler();
+                a.parse(Path.of(args[i]));
+                Path tmp = Files.createTempFile("fm16cov", ".bin");
+                try {
+                    a.assemble(tmp);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+                debug = a.debugInfo();
+            }
+            c.annotate(debug, 0, System.out);
+            System.out.print(c.summary(debug, 0));
+        }
+    }
+}
@@ -23,6 +23,22 @@ public class Cpu {
     public int dmaCtrl = 0;
     public int intCtrl = 0; // Interrupt control
 
+    // Instructions retired since construction (not cleared by reset)
+    public long instructionCount;
+
+    // Optional instrumentation (null = disabled)
+    public MemoryHeatmap heatmap;
+    public MachineMetrics metrics;
+    public TraceSink trace;
+    public Breakpoints breakpoints;
+    public long[] dirtyPages; // bit per 256-byte physical page, set by CPU and DMA writes
+    public Coverage coverage; // set by the constructor when -Dfm16.coverage is set
+
+    // Time each interrupt source was raised, indexed by vector slot (JFR latency only)
+    private final long[] interruptRaisedNanos = new long[6];
+    // in CpuEvents' MIPS registry; machines join it only while a recording runs
+    boolean eventsRegistered;
+
     // NOTE: I/O region (addresses >= IO_BASE) is always mapped to Bank0 physical
     // regardless of the current bank register. This simplifies access to device
     // registers and matches the test-suite assumptions.
@@ -125,6 +141,8 @@ public class Cpu {
 
     public Cpu() {
         reset();
+        coverage = Coverage.forMachine(this);
+        if (CpuEvents.enabled) CpuEvents.register(this);
     }
 
     public void reset() {
@@ -150,6 +168,8 @@ public class Cpu {
 
     public byte readByte(int addr) {
         int phys = logicalToPhysical(addr);
+        if (heatmap != null) heatmap.recordRead(addr, bankReg);
+        if (breakpoints != null) breakpoints.checkAccess(addr, false);
         // Handle I/O reads
         if (addr >= IO_BASE) {
             return (byte) handleIoRead(addr);
@@ -159,6 +179,9 @@ public class Cpu {
 
     public void writeByte(int addr, byte value) {
         int phys = logicalToPhysical(addr);
+        if (heatmap != null) heatmap.recordWrite(addr, bankReg);
+        if (breakpoints != null) breakpoints.checkAccess(addr, true);
+        if (dirtyPages != null) dirtyPages[phys >>> 14] |= 1L << (phys >>> 8);
         memory[phys] = value;
         // Handle I/O writes
         if (addr >= IO_BASE) {
@@ -190,10 +213,10 @@ public class Cpu {
 
     private void handleIoWrite(int addr, int value) {
         switch (addr) {
-            case BANK_REG:   bankReg = value & 1; break;
+            case BANK_REG:   writeBankReg(value); break;
             case VIDEO_CTRL: videoCtrl = value; break;
             case VSYNC_STAT: vsyncStat = value; break;
-            case CPU_CTRL:   cpuCtrl = value; handleCpuCtrl(); break;
+            case CPU_CTRL:   handleCpuCtrl(value); break;
             case DMA_CTRL:   dmaCtrl = value; handleDmaCtrl(); break;
             case INT_CTRL:   handleIntCtrlWrite(value); break;
             // DMA registers (BIG-ENDIAN: high byte at lower address)
@@ -232,31 +255,35 @@ public class Cpu {
     }
 
     private int handleIoReadWord(int addr) {
+        int value;
         switch (addr) {
-            case BANK_REG:   return bankReg;
-            case VIDEO_CTRL: return videoCtrl;
-            case VSYNC_STAT: return vsyncStat;
-            case CPU_CTRL:   return cpuCtrl;
-            case DMA_CTRL:   return dmaCtrl;
-            case INT_CTRL:   return intCtrl;
+            case BANK_REG:   value = bankReg; break;
+            case VIDEO_CTRL: value = videoCtrl; break;
+            case VSYNC_STAT: value = vsyncStat; break;
+            case CPU_CTRL:   value = cpuCtrl; break;
+            case DMA_CTRL:   value = dmaCtrl; break;
+            case INT_CTRL:   value = intCtrl; break;
             // DMA registers (16-bit values)
-            case DMA_SRC:    return dmaSrc;
-            case DMA_DST:    return dmaDst;
-            case DMA_LEN:    return dmaLen;
+            case DMA_SRC:    value = dmaSrc; break;
+            case DMA_DST:    value = dmaDst; break;
+            case DMA_LEN:    value = dmaLen; break;
             default:
                 // Fall back to byte-wise reading for other addresses
                 int high = readByte(addr) & 0xFF;
                 int low = readByte(addr + 1) & 0xFF;
                 return (high << 8) | low;
         }
+        if (heatmap != null) heatmap.recordIoWord(addr, false);
+        if (breakpoints != null) breakpoints.checkAccess(addr, false);
+        return value;
     }
 
     private void handleIoWriteWord(int addr, int value) {
         switch (addr) {
-            case BANK_REG:   bankReg = value & 1; break;
+            case BANK_REG:   writeBankReg(value); break;
             case VIDEO_CTRL: videoCtrl = value; break;
             case VSYNC_STAT: vsyncStat = value; break;
-            case CPU_CTRL:   cpuCtrl = value; handleCpuCtrl(); break;
+            case CPU_CTRL:   handleCpuCtrl(value); break;
             case DMA_CTRL:   dmaCtrl = value; handleDmaCtrl(); break;
             case INT_CTRL:   handleIntCtrlWrite(value); break;
             // DMA registers (16-bit values)
@@ -267,14 +294,26 @@ public class Cpu {
                 // Fall back to byte-wise writing for other addresses
                 writeByte(addr, (byte) ((value >> 8) & 0xFF));
                 writeByte(addr + 1, (byte) (value & 0xFF));
-                break;
+                return;
         }
+        if (heatmap != null) heatmap.recordIoWord(addr, true);
+        if (breakpoints != null) breakpoints.checkAccess(addr, true);
+    }
+
+    private void writeBankReg(int value) {
+        int newBank = value & 1;
+        if (heatmap != null) heatmap.recordBankWrite(bankReg, newBank);
+        bankReg = newBank;
     }
 
-    private void handleCpuCtrl() {
+    private void handleCpuCtrl(int value) {
+        boolean wasHalted = (cpuCtrl & CPU_HLT) != 0;
+        cpuCtrl = value;
         if ((cpuCtrl & CPU_RST) != 0) {
+            int oldPc = pc;
             reset();
             cpuCtrl &= ~CPU_RST; // Clear after reset
+            if (CpuEvents.enabled) CpuEvents.reset(oldPc, pc);
         }
         if ((cpuCtrl & CPU_DBG) != 0) {
             // Trigger debug interrupt
@@ -282,6 +321,8 @@ public class Cpu {
             cpuCtrl &= ~CPU_DBG; // Clear after trigger
         }
         // HLT handled in run loop
+        if (CpuEvents.enabled && !wasHalted && (cpuCtrl & CPU_HLT) != 0) CpuEvents.halt(pc, "HLT");
+        if (metrics != null) metrics.updateHalted((cpuCtrl & CPU_HLT) != 0);
     }
 
     private void handleDmaCtrl() {
@@ -304,13 +345,18 @@ public class Cpu {
     }
 
     private void startDma() {
+        long startNanos = CpuEvents.enabled ? System.nanoTime() : 0L;
         dmaCtrl |= DMA_BUSY;
         // DMA from Bank0 logical to Bank1 logical
         for (int i = 0; i < dmaLen; i++) {
             byte data = readByte(dmaSrc + i); // From Bank0 logical
             int dstPhys = BANK1_BASE + ((dmaDst + i) & 0xFFFF); // Bank1 physical
             memory[dstPhys] = data;
+            if (dirtyPages != null) dirtyPages[dstPhys >>> 14] |= 1L << (dstPhys >>> 8);
         }
+        if (heatmap != null) heatmap.recordDma(dmaDst, dmaLen);
+        if (startNanos != 0L) CpuEvents.dma(dmaSrc, dmaDst, dmaLen, startNanos);
+        if (metrics != null) metrics.recordDma(dmaLen);
         dmaLen = 0;
         dmaCtrl &= ~DMA_BUSY;
         
@@ -321,18 +367,36 @@ public class Cpu {
     // Public methods for peripherals to trigger interrupts
     public void triggerIrqInterrupt() {
         intCtrl |= IS_IRQ;
+        if (CpuEvents.enabled) markInterruptRaised(IRQ_VECTOR);
     }
     
     public void triggerDmaInterrupt() {
         intCtrl |= IS_DMA;
+        if (CpuEvents.enabled) markInterruptRaised(DMA_VECTOR);
     }
     
     public void triggerVsyncInterrupt() {
         intCtrl |= IS_VSYNC;
+        if (CpuEvents.enabled) markInterruptRaised(VSYNC_VECTOR);
     }
     
     public void triggerNmiInterrupt() {
         intCtrl |= IS_NMI;
+        if (CpuEvents.enabled) markInterruptRaised(NMI_VECTOR);
+    }
+
+    private void markInterruptRaised(int vectorAddr) {
+        // keep the earliest pending time if the source is raised again before dispatch
+        int slot = (vectorAddr - RESET_VECTOR) >> 1;
+        if (interruptRaisedNanos[slot] == 0L) interruptRaisedNanos[slot] = System.nanoTime();
+    }
+
+    private long interruptLatency(int vectorAddr) {
+        int slot = (vectorAddr - RESET_VECTOR) >> 1;
+        if (slot < 0 || slot >= interruptRaisedNanos.length) return 0L;
+        long raised = interruptRaisedNanos[slot];
+        interruptRaisedNanos[slot] = 0L;
+        return raised == 0L ? 0L : System.nanoTime() - raised;
     }
 
     private void checkAndHandleInterrupts() {
@@ -368,6 +432,8 @@ public class Cpu {
     }
 
     public void interrupt(int vectorAddr) {
+        if (CpuEvents.enabled) CpuEvents.interrupt(vectorAddr, pc, interruptLatency(vectorAddr));
+        if (metrics != null) metrics.recordInterrupt(vectorAddr);
         // Push PC and FLAGS
         pushWord(pc);
         pushWord(flags);
@@ -380,6 +446,8 @@ public class Cpu {
         // Stack bounds checking with new limits
         if (sp < SP_MIN) {
             cpuCtrl |= CPU_HLT; // CPU PANIC on underflow
+            if (CpuEvents.enabled) CpuEvents.halt(pc, "Stack underflow");
+            if (metrics != null) metrics.updateHalted(true);
             throw new RuntimeException("Stack underflow");
         }
         writeWord(sp, value);
@@ -402,6 +470,8 @@ public class Cpu {
         // Stack bounds checking - ensure SP stays within valid range
         if (sp > SP_MAX + 2) {
             cpuCtrl |= CPU_HLT; // CPU PANIC on overflow  
+            if (CpuEvents.enabled) CpuEvents.halt(pc, "Stack overflow");
+            if (metrics != null) metrics.updateHalted(true);
             throw new RuntimeException("Stack overflow");
         }
         return value;
@@ -451,17 +521,68 @@ public class Cpu {
         }
     }
 
+    /**
+     * Run until the CPU halts, a breakpoint or watchpoint in {@link #breakpoints} is hit, or
+     * {@code maxInstructions} instructions have executed. Calling run() again right after a
+     * breakpoint stop executes that instruction, so the run resumes past the breakpoint.
+     * Traps (stack overflow, ...) still propagate as exceptions.
+     */
+    public ExitReason run(long maxInstructions) {
+        if (CpuEvents.enabled && !eventsRegistered) CpuEvents.register(this);
+        Breakpoints bp = breakpoints;
+        if (bp == null) {
+            for (long n = 0; n < maxInstructions; n++) {
+                if ((cpuCtrl & CPU_HLT) != 0) return ExitReason.HALTED;
+                step();
+            }
+            return (cpuCtrl & CPU_HLT) != 0 ? ExitReason.HALTED : ExitReason.INSTRUCTION_LIMIT;
+        }
+        bp.armed = !(bp.hit == ExitReason.BREAKPOINT && bp.hitAddress == (pc & 0xFFFF));
+        bp.hit = null;
+        try {
+            for (long n = 0; n < maxInstructions; n++) {
+                if ((cpuCtrl & CPU_HLT) != 0) return ExitReason.HALTED;
+                step();
+                if (bp.hit != null) return bp.hit;
+                bp.armed = true;
+            }
+        } finally {
+            bp.armed = false;
+            bp.fetching = false;
+        }
+        return (cpuCtrl & CPU_HLT) != 0 ? ExitReason.HALTED : ExitReason.INSTRUCTION_LIMIT;
+    }
+
     // Execute one instruction
     public void step() {
         if ((cpuCtrl & CPU_HLT) != 0) return; // Halted
+        if (trace == null) {
+            stepInstruction();
+            return;
+        }
+        try {
+            stepInstruction();
+        } catch (RuntimeException trap) {
+            trace.onTrap(this, trap);
+            throw trap;
+        }
+    }
 
+    private void stepInstruction() {
         // Check for pending interrupts (if interrupts are enabled)
         if ((flags & FLAG_I) == 0) {
             checkAndHandleInterrupts();
         }
 
+        Breakpoints bp = breakpoints;
+        if (bp != null) {
+            if (bp.checkExec(pc)) return; // stop before the instruction (run loop only)
+            bp.fetching = true;
+        }
+        int fetchPc = pc;
         int instr = readWord(pc);
         pc += 2;
+        instructionCount++;
 
         int opcode = (instr >> 11) & 0x1F;
         int size = (instr >> 10) & 1; // 0=byte, 1=word
@@ -474,16 +595,27 @@ public class Cpu {
         int srcImm = 0;  // Separate immediate for source  
         int dstImm = 0;  // Separate immediate for destination
         
-        if (srcMode == MODE_IMM || srcMode == MODE_ABS) {
+        if (opcode == JCOND) {
+            // JCOND: src fields carry the condition code; exactly one extension (the target) follows
             srcImm = readWord(pc);
-            imm = srcImm; // Backward compatibility
-            pc += 2;
-        }
-        if (dstMode == MODE_IMM || dstMode == MODE_ABS) {
-            dstImm = readWord(pc); 
-            imm = dstImm; // Backward compatibility (dst never uses IMM anyway)  
+            imm = srcImm;
             pc += 2;
+        } else {
+            if (srcMode == MODE_IMM || srcMode == MODE_ABS) {
+                srcImm = readWord(pc);
+                imm = srcImm; // Backward compatibility
+                pc += 2;
+            }
+            if (dstMode == MODE_IMM || dstMode == MODE_ABS) {
+                dstImm = readWord(pc); 
+                imm = dstImm; // Backward compatibility (dst never uses IMM anyway)  
+                pc += 2;
+            }
         }
+        if (bp != null) bp.fetching = false;
+        if (metrics != null) metrics.recordFetch((pc - fetchPc) >> 1);
+        if (coverage != null) coverage.record(fetchPc, bankReg);
+        if (trace != null) trace.onInstruction(this, fetchPc, instr, srcImm, dstImm);
 
         executeOpcode(opcode, size, srcMode, srcReg, dstMode, dstReg, imm, srcImm, dstImm);
     }
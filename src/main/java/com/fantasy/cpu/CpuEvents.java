@@ -0,0 +1,183 @@
+package com.fantasy.cpu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for the emulator hot paths (DMA, interrupts, halts,
+ * resets) plus a periodic per-machine MIPS summary.
+ *
+ * The CPU only calls into this class behind a check of {@link #enabled}, which is
+ * flipped by a {@link FlightRecorderListener} while at least one recording runs.
+ * Without a running recording every hook costs a single branch.
+ */
+final class CpuEvents {
+    static volatile boolean enabled;
+
+    // live machines and their last MIPS sample {instructionCount, nanoTime}
+    private static final Map<Cpu,long[]> machines = new WeakHashMap<>();
+
+    static {
+        try {
+            FlightRecorder.addListener(new FlightRecorderListener() {
+                @Override
+                public void recorderInitialized(FlightRecorder recorder) { refresh(recorder); }
+
+                @Override
+                public void recordingStateChanged(Recording recording) { refresh(FlightRecorder.getFlightRecorder()); }
+            });
+            FlightRecorder.addPeriodicEvent(MipsEvent.class, CpuEvents::emitMips);
+        } catch (Throwable t) {
+            // JFR unavailable in this VM: keep all hooks disabled
+            enabled = false;
+        }
+    }
+
+    private CpuEvents() {}
+
+    private static void refresh(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording r : recorder.getRecordings()) {
+            if (r.getState() == RecordingState.RUNNING) { running = true; break; }
+        }
+        enabled = running;
+    }
+
+    // Called by a Cpu created or run while a recording is live, so creating machines without
+    // a recording never touches the shared map.
+    static void register(Cpu cpu) {
+        synchronized (machines) {
+            machines.putIfAbsent(cpu, new long[] { cpu.instructionCount, System.nanoTime() });
+            cpu.eventsRegistered = true;
+        }
+    }
+
+    static void dma(int src, int dst, int len, long startNanos) {
+        DmaEvent e = new DmaEvent();
+        if (!e.shouldCommit()) return;
+        e.src = src;
+        e.dst = dst;
+        e.length = len;
+        e.transferNanos = System.nanoTime() - startNanos;
+        e.commit();
+    }
+
+    static void interrupt(int vector, int returnPc, long latencyNanos) {
+        InterruptEvent e = new InterruptEvent();
+        if (!e.shouldCommit()) return;
+        e.vector = vector;
+        e.returnPc = returnPc;
+        e.latency = latencyNanos;
+        e.commit();
+    }
+
+    static void halt(int pc, String reason) {
+        HaltEvent e = new HaltEvent();
+        if (!e.shouldCommit()) return;
+        e.pc = pc;
+        e.reason = reason;
+        e.commit();
+    }
+
+    static void reset(int oldPc, int newPc) {
+        ResetEvent e = new ResetEvent();
+        if (!e.shouldCommit()) return;
+        e.oldPc = oldPc;
+        e.newPc = newPc;
+        e.commit();
+    }
+
+    private static void emitMips() {
+        List<Cpu> cpus;
+        synchronized (machines) {
+            cpus = new ArrayList<>(machines.keySet());
+        }
+        for (Cpu cpu : cpus) {
+            long count = cpu.instructionCount;
+            long now = System.nanoTime();
+            long[] last;
+            synchronized (machines) {
+                last = machines.get(cpu);
+                if (last == null) continue;
+            }
+            long instructions = count - last[0];
+            long elapsed = now - last[1];
+            last[0] = count;
+            last[1] = now;
+            MipsEvent e = new MipsEvent();
+            e.machine = System.identityHashCode(cpu);
+            e.instructions = instructions;
+            e.mips = elapsed <= 0 ? 0 : instructions * 1000.0 / elapsed;
+            e.pc = cpu.pc;
+            e.commit();
+        }
+    }
+
+    @Name("com.fantasy.cpu.DmaTransfer")
+    @Label("DMA Transfer")
+    @Category({ "Fantasy Machine", "Devices" })
+    @Description("Bank0 to Bank1 DMA copy started through DMA_CTRL")
+    @StackTrace(false)
+    static final class DmaEvent extends Event {
+        @Label("Source") int src;
+        @Label("Destination") int dst;
+        @Label("Length") int length;
+        @Label("Transfer Time") @Timespan(Timespan.NANOSECONDS) long transferNanos;
+    }
+
+    @Name("com.fantasy.cpu.Interrupt")
+    @Label("Interrupt Dispatch")
+    @Category({ "Fantasy Machine", "CPU" })
+    @StackTrace(false)
+    static final class InterruptEvent extends Event {
+        @Label("Vector") int vector;
+        @Label("Return PC") int returnPc;
+        @Label("Latency") @Description("Time from the interrupt being raised to its dispatch")
+        @Timespan(Timespan.NANOSECONDS) long latency;
+    }
+
+    @Name("com.fantasy.cpu.Halt")
+    @Label("CPU Halt")
+    @Category({ "Fantasy Machine", "CPU" })
+    @StackTrace(false)
+    static final class HaltEvent extends Event {
+        @Label("PC") int pc;
+        @Label("Reason") String reason;
+    }
+
+    @Name("com.fantasy.cpu.Reset")
+    @Label("CPU Reset")
+    @Category({ "Fantasy Machine", "CPU" })
+    @Description("Reset requested through the CPU_RST bit of CPU_CTRL")
+    @StackTrace(false)
+    static final class ResetEvent extends Event {
+        @Label("PC Before Reset") int oldPc;
+        @Label("Reset Vector Target") int newPc;
+    }
+
+    @Name("com.fantasy.cpu.Mips")
+    @Label("Machine MIPS")
+    @Category({ "Fantasy Machine", "CPU" })
+    @Period("1 s")
+    @StackTrace(false)
+    static final class MipsEvent extends Event {
+        @Label("Machine") int machine;
+        @Label("Instructions") long instructions;
+        @Label("MIPS") double mips;
+        @Label("PC") int pc;
+    }
+}
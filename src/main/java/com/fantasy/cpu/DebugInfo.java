@@ -0,0 +1,205 @@
+package com.fantasy.cpu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Debug information produced by {@link Assembler#assemble(java.nio.file.Path)}: a line table
+ * with one entry per emitted instruction (address, encoded length, source position) and the
+ * label symbol table. Both are sorted by address so a PC can be symbolised with a binary
+ * search. Line numbers are 1-based.
+ *
+ * Sidecar file layout (big-endian), written by {@link #write(Path)}:
+ *   magic "FM16DBG1"
+ *   u16 fileCount,   then per file:   u16 byteLength, UTF-8 path
+ *   u32 lineCount,   then per entry:  u16 address, u8 length, u16 fileIndex, u32 line
+ *   u32 symbolCount, then per label:  u16 address, u16 byteLength, UTF-8 name
+ */
+public class DebugInfo {
+    public static final String FILE_SUFFIX = ".dbg";
+    private static final byte[] MAGIC = {'F', 'M', '1', '6', 'D', 'B', 'G', '1'};
+
+    public static final class LineEntry {
+        public final int address;
+        public final int length;
+        public final String file;
+        public final int line;
+
+        public LineEntry(int address, int length, String file, int line) {
+            this.address = address;
+            this.length = length;
+            this.file = file;
+            this.line = line;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("$%04X+%d %s:%d", address, length, file, line);
+        }
+    }
+
+    private final List<LineEntry> entries;
+    private final int[] lineAddrs;
+    private final String[] symbolNames;
+    private final int[] symbolAddrs;
+
+    public DebugInfo(List<LineEntry> entries) {
+        this(entries, Collections.emptyMap());
+    }
+
+    /** @param symbols label name (as written in the source) to address */
+    public DebugInfo(List<LineEntry> entries, Map<String, Integer> symbols) {
+        List<LineEntry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingInt(e -> e.address));
+        this.entries = Collections.unmodifiableList(sorted);
+        this.lineAddrs = new int[sorted.size()];
+        for (int i = 0; i < lineAddrs.length; i++) lineAddrs[i] = sorted.get(i).address;
+
+        List<Map.Entry<String, Integer>> syms = new ArrayList<>(symbols.entrySet());
+        syms.sort(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        this.symbolNames = new String[syms.size()];
+        this.symbolAddrs = new int[syms.size()];
+        for (int i = 0; i < syms.size(); i++) {
+            symbolNames[i] = syms.get(i).getKey();
+            symbolAddrs[i] = syms.get(i).getValue() & 0xFFFF;
+        }
+    }
+
+    public List<LineEntry> entries() {
+        return entries;
+    }
+
+    /** Source files mentioned in the table, in order of first appearance by address. */
+    public Set<String> files() {
+        Set<String> files = new LinkedHashSet<>();
+        for (LineEntry e : entries) files.add(e.file);
+        return files;
+    }
+
+    /** Labels sorted by address. */
+    public Map<String, Integer> symbols() {
+        Map<String, Integer> m = new LinkedHashMap<>();
+        for (int i = 0; i < symbolNames.length; i++) m.put(symbolNames[i], symbolAddrs[i]);
+        return m;
+    }
+
+    /** The instruction whose bytes cover {@code addr}, or null. */
+    public LineEntry lineAt(int addr) {
+        int i = floor(lineAddrs, addr & 0xFFFF);
+        if (i < 0) return null;
+        LineEntry e = entries.get(i);
+        return (addr & 0xFFFF) < e.address + e.length ? e : null;
+    }
+
+    /** The closest label at or below {@code addr}, or null. */
+    public String symbolAt(int addr) {
+        int i = floor(symbolAddrs, addr & 0xFFFF);
+        return i < 0 ? null : symbolNames[i];
+    }
+
+    /** {@code label}, {@code label+0xN}, or {@code $XXXX} when no label precedes {@code addr}. */
+    public String symbolize(int addr) {
+        addr &= 0xFFFF;
+        int i = floor(symbolAddrs, addr);
+        if (i < 0) return String.format("$%04X", addr);
+        int off = addr - symbolAddrs[i];
+        return off == 0 ? symbolNames[i] : String.format("%s+0x%X", symbolNames[i], off);
+    }
+
+    // index of the last element <= key (last one among equal keys), or -1
+    private static int floor(int[] sorted, int key) {
+        int i = Arrays.binarySearch(sorted, key);
+        if (i < 0) return -i - 2;
+        while (i + 1 < sorted.length && sorted[i + 1] == key) i++;
+        return i;
+    }
+
+    // ---- sidecar file ----
+
+    public void write(Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            write(out);
+        }
+    }
+
+    public void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(MAGIC);
+        Map<String, Integer> fileIndex = new LinkedHashMap<>();
+        for (String f : files()) fileIndex.put(f, fileIndex.size());
+        out.writeShort(fileIndex.size());
+        for (String f : fileIndex.keySet()) writeString(out, f);
+        out.writeInt(entries.size());
+        for (LineEntry e : entries) {
+            out.writeShort(e.address);
+            out.writeByte(e.length);
+            out.writeShort(fileIndex.get(e.file));
+            out.writeInt(e.line);
+        }
+        out.writeInt(symbolNames.length);
+        for (int i = 0; i < symbolNames.length; i++) {
+            out.writeShort(symbolAddrs[i]);
+            writeString(out, symbolNames[i]);
+        }
+        out.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    public static DebugInfo read(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return read(in);
+        }
+    }
+
+    public static DebugInfo read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a debug info file (bad magic)");
+        String[] files = new String[in.readUnsignedShort()];
+        for (int i = 0; i < files.length; i++) files[i] = readString(in);
+        int n = in.readInt();
+        List<LineEntry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int addr = in.readUnsignedShort();
+            int len = in.readUnsignedByte();
+            String file = files[in.readUnsignedShort()];
+            entries.add(new LineEntry(addr, len, file, in.readInt()));
+        }
+        int s = in.readInt();
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        for (int i = 0; i < s; i++) {
+            int addr = in.readUnsignedShort();
+            symbols.put(readString(in), addr);
+        }
+        return new DebugInfo(entries, symbols);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readUnsignedShort()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
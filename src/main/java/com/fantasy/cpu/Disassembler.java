@@ -1,5 +1,7 @@
 package com.fantasy.cpu;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -11,31 +13,36 @@ public class Disassembler {
     public static String disassemble(byte[] data) {
         List<int[]> dataRangesFromMap = new ArrayList<>();
         List<Integer> dataRangeTypes = new ArrayList<>();
-        if (data.length >= 512) {
-            int mapStart = data.length - 512;
-            int off = mapStart;
-            while (off + 3 < data.length) {
-                int start = ((data[off] & 0xFF) << 8) | (data[off+1] & 0xFF);
-                int lenField = ((data[off+2] & 0xFF) << 8) | (data[off+3] & 0xFF);
-                off += 4;
-                if (start == 0 && lenField == 0) break;
-                int type = (lenField >> 14) & 0x3;
-                int size = lenField & 0x3FFF;
-                dataRangesFromMap.add(new int[] { start, size });
-                dataRangeTypes.add(type);
+        if (MachineImage.hasV2Header(ByteBuffer.wrap(data))) {
+            // section-table image: same entries as a footer map; Bank1 sections are not listed
+            MachineImage image;
+            try {
+                image = MachineImage.of(data);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
             }
-            if (!dataRangesFromMap.isEmpty()) {
-                // reconstruct a full 64K image
+            for (MachineImage.Entry e : image.entries()) {
+                if (e.bank != 0) continue;
+                dataRangesFromMap.add(new int[] { e.start, e.length });
+                dataRangeTypes.add(e.type);
+            }
+            byte[] mem = new byte[0x10000];
+            image.loadInto(mem, 0);
+            data = mem;
+        } else if (data.length >= MachineImage.FOOTER_SIZE) {
+            int mapStart = data.length - MachineImage.FOOTER_SIZE;
+            List<MachineImage.Entry> footer = MachineImage.readFooter(ByteBuffer.wrap(data));
+            for (MachineImage.Entry e : footer) {
+                dataRangesFromMap.add(new int[] { e.start, e.length });
+                dataRangeTypes.add(e.type);
+            }
+            if (!footer.isEmpty()) {
+                // reconstruct a full 64K image; only code chunks carry bytes, typed entries overlay them
                 byte[] mem = new byte[0x10000];
-                int srcOff = 0;
-                for (int i = 0; i < dataRangesFromMap.size(); i++) {
-                    int start = dataRangesFromMap.get(i)[0];
-                    int len = dataRangesFromMap.get(i)[1];
-                    if (len > 0) {
-                        if (srcOff + len > mapStart) break; // malformed
-                        System.arraycopy(data, srcOff, mem, start, len);
-                        srcOff += len;
-                    }
+                for (MachineImage.Entry e : footer) {
+                    if (!e.isChunk()) continue;
+                    if (e.fileOffset + e.length > mapStart) break; // malformed
+                    System.arraycopy(data, e.fileOffset, mem, e.start, e.length);
                 }
                 data = mem;
             }
@@ -625,6 +632,53 @@ public class Disassembler {
         return sb.toString();
     }
 
+    /**
+     * Format a single decoded instruction (no labels, no comment column), e.g.
+     * {@code MOV.B 0x12, [R3]}. Extension words are given per operand as decoded by
+     * {@link Cpu#step()}: {@code srcExt} for the source (the target for JCOND) and
+     * {@code dstExt} for the destination; unused values are ignored.
+     */
+    public static String disassembleInstruction(int instr, int srcExt, int dstExt) {
+        int opcode = (instr >> 11) & 0x1F;
+        int size = (instr >> 10) & 1;
+        int srcMode = (instr >> 8) & 3;
+        int srcReg = (instr >> 5) & 7;
+        int dstMode = (instr >> 3) & 3;
+        int dstReg = instr & 7;
+
+        String opname = opcodeName(opcode);
+        boolean sizeful = opcode != Cpu.NOP && opcode != Cpu.JMP && opcode != Cpu.CALL
+            && opcode != Cpu.RET && opcode != Cpu.RETI && opcode != Cpu.JCOND;
+        if (sizeful && size == 0) opname = opname + ".B";
+
+        if (opcode == Cpu.JCOND) {
+            return opname + " " + condName(((size << 3) | srcReg) & 0xF) + ", $" + String.format("%04X", srcExt & 0xFFFF);
+        }
+        String src = operandText(srcMode, srcReg, size, srcExt);
+        String dst = operandText(dstMode, dstReg, size, dstExt);
+        switch (opcode) {
+            case Cpu.NOP: case Cpu.RET: case Cpu.RETI:
+                return opname;
+            case Cpu.PUSH:
+                return opname + " " + src;
+            case Cpu.JMP: case Cpu.CALL: case Cpu.POP:
+            case Cpu.INC: case Cpu.DEC: case Cpu.NEG: case Cpu.NOT:
+            case Cpu.ROL: case Cpu.ROR: case Cpu.SHL: case Cpu.SHR:
+                return opname + " " + dst;
+            default:
+                return opname + " " + src + ", " + dst;
+        }
+    }
+
+    private static String operandText(int mode, int reg, int size, int ext) {
+        switch (mode) {
+            case Cpu.MODE_IMM: return size == 0 ? String.format("0x%02X", ext & 0xFF) : String.format("0x%04X", ext & 0xFFFF);
+            case Cpu.MODE_ABS: return String.format("$%04X", ext & 0xFFFF);
+            case Cpu.MODE_IND: return "[R" + reg + "]";
+            default: return "R" + reg;
+        }
+    }
+
     private static String opcodeName(int op) {
         switch (op) {
             case Cpu.NOP: return "NOP";
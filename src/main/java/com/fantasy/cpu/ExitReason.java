@@ -0,0 +1,17 @@
+package com.fantasy.cpu;
+
+/** Why {@link Cpu#run(long)} or a {@link ReverseDebugger} stopped. */
+public enum ExitReason {
+    /** PC reached an address with a breakpoint; that instruction has not executed. */
+    BREAKPOINT,
+    /** The last instruction read a watched address. */
+    READ_WATCHPOINT,
+    /** The last instruction wrote a watched address. */
+    WRITE_WATCHPOINT,
+    /** The CPU is halted (CPU_CTRL.HLT). */
+    HALTED,
+    /** The instruction budget passed to run() was used up. */
+    INSTRUCTION_LIMIT,
+    /** Reverse execution reached the oldest snapshot still held. */
+    HISTORY_START
+}
@@ -0,0 +1,422 @@
+package com.fantasy.cpu;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * GDB remote serial protocol server for one {@link Cpu}, listening on the loopback interface.
+ *
+ * Registers (16-bit, big-endian, in {@code g}/{@code G} order): r0-r7, sp, pc, flags, bank.
+ * Address space seen by the debugger:
+ *   0x00000-0x0FFFF  logical memory as the CPU sees it (current bank, IO always Bank0)
+ *   0x10000-0x1FFFF  Bank0 physical
+ *   0x20000-0x2FFFF  Bank1 physical
+ * Both are described to the client through {@code qXfer:features:read} (target.xml) and
+ * {@code qXfer:memory-map:read}.
+ *
+ * Supported: ? g G p P m M c s Z0-Z4 z0-z4 qSupported qXfer QStartNoAckMode D k, and
+ * Ctrl-C while running. Breakpoints and watchpoints use the CPU's {@link Breakpoints}
+ * (attached on first use) and take logical addresses.
+ *
+ * The CPU runs on its own thread between debugger commands, in slices of {@link #RUN_SLICE}
+ * instructions so an interrupt request is noticed promptly. Each time it stops, that thread
+ * copies {@code cpu.memory} into a private snapshot; {@code m} packets are served from the
+ * snapshot, so they never touch the live array and never need a lock shared with other
+ * machines in the JVM. {@code M} writes go to both.
+ */
+public class GdbStub implements Closeable {
+    public static final int RUN_SLICE = 100_000;
+
+    private static final String TARGET_XML =
+        "<?xml version=\"1.0\"?>\n"
+        + "<!DOCTYPE target SYSTEM \"gdb-target.dtd\">\n"
+        + "<target version=\"1.0\">\n"
+        + "  <feature name=\"com.fantasy.fm16.core\">\n"
+        + "    <reg name=\"r0\" bitsize=\"16\" regnum=\"0\"/>\n"
+        + "    <reg name=\"r1\" bitsize=\"16\"/>\n"
+        + "    <reg name=\"r2\" bitsize=\"16\"/>\n"
+        + "    <reg name=\"r3\" bitsize=\"16\"/>\n"
+        + "    <reg name=\"r4\" bitsize=\"16\"/>\n"
+        + "    <reg name=\"r5\" bitsize=\"16\"/>\n"
+        + "    <reg name=\"r6\" bitsize=\"16\"/>\n"
+        + "    <reg name=\"r7\" bitsize=\"16\"/>\n"
+        + "    <reg name=\"sp\" bitsize=\"16\" type=\"data_ptr\"/>\n"
+        + "    <reg name=\"pc\" bitsize=\"16\" type=\"code_ptr\"/>\n"
+        + "    <reg name=\"flags\" bitsize=\"16\"/>\n"
+        + "    <reg name=\"bank\" bitsize=\"16\"/>\n"
+        + "  </feature>\n"
+        + "</target>\n";
+
+    private static final String MEMORY_MAP =
+        "<?xml version=\"1.0\"?>\n"
+        + "<!DOCTYPE memory-map PUBLIC \"+//IDN gnu.org//DTD GDB Memory Map V1.0//EN\" \"http://sourceware.org/gdb/gdb-memory-map.dtd\">\n"
+        + "<memory-map>\n"
+        + "  <memory type=\"ram\" start=\"0x0\" length=\"0x10000\"/>\n"
+        + "  <memory type=\"ram\" start=\"0x10000\" length=\"0x10000\"/>\n"
+        + "  <memory type=\"ram\" start=\"0x20000\" length=\"0x10000\"/>\n"
+        + "</memory-map>\n";
+
+    private static final int NUM_REGS = 12;
+
+    private final Cpu cpu;
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final ExecutorService cpuThread;
+    private final byte[] snapshot = new byte[Cpu.MEMORY_SIZE];
+
+    private volatile boolean stopRequested;
+    private volatile boolean running;
+    private volatile boolean closed;
+    private boolean noAck;
+    private OutputStream out;        // guarded by this
+    private String lastPacket = "";  // guarded by this
+
+    private GdbStub(Cpu cpu, int port) throws IOException {
+        this.cpu = cpu;
+        this.server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+        this.cpuThread = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "fm16-gdb-cpu-" + server.getLocalPort());
+            t.setDaemon(true);
+            return t;
+        });
+        this.acceptor = new Thread(this::acceptLoop, "fm16-gdb-" + server.getLocalPort());
+        this.acceptor.setDaemon(true);
+    }
+
+    /** Listen on {@code 127.0.0.1:port} (0 picks a free port, see {@link #port()}). */
+    public static GdbStub start(Cpu cpu, int port) throws IOException {
+        GdbStub stub = new GdbStub(cpu, port);
+        stub.takeSnapshot();
+        stub.acceptor.start();
+        return stub;
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        stopRequested = true;
+        server.close();
+        cpuThread.shutdown();
+    }
+
+    private void takeSnapshot() {
+        System.arraycopy(cpu.memory, 0, snapshot, 0, snapshot.length);
+    }
+
+    // ---- connection handling ----
+
+    private void acceptLoop() {
+        while (!closed) {
+            try (Socket s = server.accept()) {
+                s.setTcpNoDelay(true);
+                noAck = false;
+                synchronized (this) {
+                    out = s.getOutputStream();
+                }
+                serve(new BufferedInputStream(s.getInputStream()));
+            } catch (SocketException | EOFException e) {
+                // client went away or server closed
+            } catch (IOException e) {
+                if (!closed) System.err.println("gdb stub: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // a bug handling one client must not stop the stub from accepting the next
+                System.err.println("gdb stub: " + e);
+            } finally {
+                stopRequested = true;
+            }
+        }
+    }
+
+    private void serve(InputStream in) throws IOException {
+        StringBuilder pkt = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c < 0) return;
+            if (c == 0x03) { // Ctrl-C
+                stopRequested = true;
+                continue;
+            }
+            if (c == '-') {
+                resend();
+                continue;
+            }
+            if (c != '$') continue; // '+' acks and noise
+            pkt.setLength(0);
+            int sum = 0;
+            while ((c = in.read()) != '#') {
+                if (c < 0) return;
+                pkt.append((char) c);
+                sum += c;
+            }
+            int hi = in.read(), lo = in.read();
+            if (hi < 0 || lo < 0) return;
+            hi = Character.digit(hi, 16);
+            lo = Character.digit(lo, 16);
+            boolean valid = hi >= 0 && lo >= 0;
+            if (!noAck) {
+                if (!valid || (sum & 0xFF) != (hi << 4 | lo)) {
+                    writeRaw("-");
+                    continue;
+                }
+                writeRaw("+");
+            } else if (!valid) {
+                continue; // no acks to send: drop it
+            }
+            String reply = handle(pkt.toString());
+            if (reply != null) send(reply);
+            if (pkt.toString().equals("QStartNoAckMode")) noAck = true;
+            if (pkt.length() > 0 && (pkt.charAt(0) == 'k' || pkt.charAt(0) == 'D')) return;
+        }
+    }
+
+    /** Returns the reply, or null when the reply is sent later (continue/step). */
+    String handle(String p) {
+        if (p.isEmpty()) return "";
+        if (running) return "E10";
+        try {
+            switch (p.charAt(0)) {
+                case '?': return "S05";
+                case 'g': return readRegisters();
+                case 'G': writeRegisters(p.substring(1)); return "OK";
+                case 'p': return hex16(register(Integer.parseInt(p.substring(1), 16)));
+                case 'P': {
+                    int eq = p.indexOf('=');
+                    setRegister(Integer.parseInt(p.substring(1, eq), 16), parseWord(p, eq + 1));
+                    return "OK";
+                }
+                case 'm': return readMemory(p.substring(1));
+                case 'M': return writeMemory(p.substring(1));
+                case 'c': resume(p.substring(1), false); return null;
+                case 's': resume(p.substring(1), true); return null;
+                case 'Z': return breakpoint(p.substring(1), true);
+                case 'z': return breakpoint(p.substring(1), false);
+                case 'H': return "OK";
+                case 'D': return "OK";
+                case 'k': return null;
+                case 'q': return query(p);
+                case 'Q': return p.equals("QStartNoAckMode") ? "OK" : "";
+                default: return "";
+            }
+        } catch (RuntimeException e) {
+            return "E01";
+        }
+    }
+
+    private String query(String p) {
+        if (p.startsWith("qSupported")) {
+            return "PacketSize=4000;qXfer:features:read+;qXfer:memory-map:read+;QStartNoAckMode+;swbreak+;hwbreak+";
+        }
+        if (p.startsWith("qXfer:features:read:target.xml:")) return xfer(TARGET_XML, p.substring(31));
+        if (p.startsWith("qXfer:memory-map:read::")) return xfer(MEMORY_MAP, p.substring(23));
+        if (p.equals("qAttached")) return "1";
+        if (p.equals("qC")) return "QC1";
+        if (p.equals("qfThreadInfo")) return "m1";
+        if (p.equals("qsThreadInfo")) return "l";
+        return "";
+    }
+
+    private static String xfer(String doc, String range) {
+        int comma = range.indexOf(',');
+        int off = Integer.parseInt(range.substring(0, comma), 16);
+        int len = Integer.parseInt(range.substring(comma + 1), 16);
+        if (off >= doc.length()) return "l";
+        int end = Math.min(doc.length(), off + len);
+        return (end == doc.length() ? "l" : "m") + doc.substring(off, end);
+    }
+
+    // ---- registers ----
+
+    private int register(int n) {
+        if (n < 8) return cpu.regs[n] & 0xFFFF;
+        switch (n) {
+            case 8: return cpu.sp & 0xFFFF;
+            case 9: return cpu.pc & 0xFFFF;
+            case 10: return cpu.flags & 0xFFFF;
+            case 11: return cpu.bankReg;
+            default: throw new IllegalArgumentException("No register " + n);
+        }
+    }
+
+    private void setRegister(int n, int v) {
+        if (n < 8) { cpu.regs[n] = v; return; }
+        switch (n) {
+            case 8: cpu.sp = v; break;
+            case 9: cpu.pc = v; break;
+            case 10: cpu.flags = v; break;
+            case 11: cpu.bankReg = v & 1; break;
+            default: throw new IllegalArgumentException("No register " + n);
+        }
+    }
+
+    private String readRegisters() {
+        StringBuilder sb = new StringBuilder(NUM_REGS * 4);
+        for (int i = 0; i < NUM_REGS; i++) sb.append(hex16(register(i)));
+        return sb.toString();
+    }
+
+    private void writeRegisters(String hex) {
+        for (int i = 0; i < NUM_REGS && (i + 1) * 4 <= hex.length(); i++) {
+            setRegister(i, parseWord(hex, i * 4));
+        }
+    }
+
+    private static int parseWord(String s, int at) {
+        return Integer.parseInt(s.substring(at, at + 4), 16);
+    }
+
+    private static String hex16(int v) {
+        return String.format("%04x", v & 0xFFFF);
+    }
+
+    // ---- memory ----
+
+    private int physical(int addr) {
+        if (addr < 0 || addr >= 0x30000) throw new IllegalArgumentException("Address out of range");
+        return addr < 0x10000 ? cpu.logicalToPhysical(addr) : addr - 0x10000;
+    }
+
+    private String readMemory(String args) {
+        int comma = args.indexOf(',');
+        int addr = Integer.parseInt(args.substring(0, comma), 16);
+        int len = Integer.parseInt(args.substring(comma + 1), 16);
+        StringBuilder sb = new StringBuilder(len * 2);
+        for (int i = 0; i < len; i++) {
+            sb.append(String.format("%02x", snapshot[physical(addr + i)] & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private String writeMemory(String args) {
+        int comma = args.indexOf(',');
+        int colon = args.indexOf(':');
+        int addr = Integer.parseInt(args.substring(0, comma), 16);
+        int len = Integer.parseInt(args.substring(comma + 1, colon), 16);
+        for (int i = 0; i < len; i++) {
+            byte b = (byte) Integer.parseInt(args.substring(colon + 1 + i * 2, colon + 3 + i * 2), 16);
+            int phys = physical(addr + i);
+            cpu.memory[phys] = b;
+            snapshot[phys] = b;
+        }
+        return "OK";
+    }
+
+    // ---- breakpoints / watchpoints ----
+
+    private String breakpoint(String args, boolean insert) {
+        String[] f = args.split(",");
+        int type = Integer.parseInt(f[0]);
+        int addr = Integer.parseInt(f[1], 16);
+        int len = f.length > 2 ? Math.max(1, Integer.parseInt(f[2].split(";")[0], 16)) : 1;
+        if (addr >= 0x10000) return "E02"; // only logical addresses can be watched
+        Breakpoints bp = cpu.breakpoints != null ? cpu.breakpoints : Breakpoints.attach(cpu);
+        switch (type) {
+            case 0:
+            case 1:
+                if (insert) bp.addBreakpoint(addr); else bp.removeBreakpoint(addr);
+                return "OK";
+            case 2:
+            case 3:
+            case 4:
+                if (!insert) {
+                    bp.removeWatchpoint(addr, len);
+                } else {
+                    bp.addWatchpoint(addr, len, type != 2, type != 3);
+                }
+                return "OK";
+            default:
+                return "";
+        }
+    }
+
+    // ---- execution ----
+
+    private void resume(String addr, boolean step) {
+        if (!addr.isEmpty()) cpu.pc = Integer.parseInt(addr, 16);
+        stopRequested = false;
+        running = true;
+        cpuThread.execute(() -> {
+            String reply;
+            try {
+                reply = step ? stepOnce() : runUntilStop();
+            } catch (RuntimeException trap) {
+                reply = "S0b"; // SIGSEGV: stack overflow/underflow and friends
+            }
+            takeSnapshot();
+            running = false;
+            send(reply);
+        });
+    }
+
+    private String stepOnce() {
+        if ((cpu.cpuCtrl & Cpu.CPU_HLT) != 0) return "S05";
+        cpu.step();
+        return "S05";
+    }
+
+    private String runUntilStop() {
+        while (true) {
+            ExitReason r = cpu.run(RUN_SLICE);
+            switch (r) {
+                case BREAKPOINT: return "T05swbreak:;";
+                case WRITE_WATCHPOINT: return "T05watch:" + Integer.toHexString(cpu.breakpoints.hitAddress()) + ";";
+                case READ_WATCHPOINT: return "T05rwatch:" + Integer.toHexString(cpu.breakpoints.hitAddress()) + ";";
+                case HALTED: return "S05";
+                default:
+                    if (stopRequested) return "S02";
+            }
+        }
+    }
+
+    // ---- packet output ----
+
+    private void send(String data) {
+        int sum = 0;
+        StringBuilder sb = new StringBuilder(data.length() + 4).append('$');
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == '$' || c == '#' || c == '}' || c == '*') {
+                sb.append('}');
+                sum += '}';
+                c ^= 0x20;
+            }
+            sb.append(c);
+            sum += c;
+        }
+        sb.append('#').append(String.format("%02x", sum & 0xFF));
+        sendRaw(sb.toString());
+    }
+
+    private synchronized void sendRaw(String packet) {
+        lastPacket = packet;
+        writeRaw(packet);
+    }
+
+    private synchronized void resend() {
+        writeRaw(lastPacket);
+    }
+
+    private synchronized void writeRaw(String s) {
+        if (out == null) return;
+        try {
+            out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        } catch (IOException e) {
+            // connection closed; acceptor notices on next read
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.fantasy.cpu;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Always-on instruction history kept in a fixed-size ring buffer.
+ *
+ * Each executed instruction is stored as two longs (16 bytes) in a long[] allocated once:
+ *   word 0: pc(16) | instr(16) | srcExt(16) | dstExt(16)
+ *   word 1: flags(16) | sp(16) | bank(16) | reserved(16)
+ * Recording allocates nothing. The CPU thread is the only writer and publishes its
+ * position with a release store; readers on other threads copy entries and then
+ * discard any slot the writer may have lapped meanwhile, so no lock is needed.
+ *
+ * On a trap (e.g. "Stack underflow" from pushWord) the last {@link #trapDumpEntries}
+ * entries are written to the configured stream, disassembled through
+ * {@link Disassembler#disassembleInstruction}.
+ */
+public class InstructionTrace implements TraceSink {
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private static final VarHandle HEAD;
+    static {
+        try {
+            HEAD = MethodHandles.lookup().findVarHandle(InstructionTrace.class, "head", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final long[] buf;
+    private final int mask;
+    @SuppressWarnings("unused") // accessed through HEAD
+    private long head; // number of entries ever recorded
+
+    private PrintStream trapOutput = System.err;
+    private int trapDumpEntries = 64;
+
+    /** One decoded trace entry. */
+    public static final class Entry {
+        public final long seq;
+        public final int pc, instr, srcExt, dstExt, flags, sp, bank;
+
+        Entry(long seq, long w0, long w1) {
+            this.seq = seq;
+            this.pc = (int) (w0 >>> 48);
+            this.instr = (int) (w0 >>> 32) & 0xFFFF;
+            this.srcExt = (int) (w0 >>> 16) & 0xFFFF;
+            this.dstExt = (int) w0 & 0xFFFF;
+            this.flags = (int) (w1 >>> 48);
+            this.sp = (int) (w1 >>> 32) & 0xFFFF;
+            this.bank = (int) (w1 >>> 16) & 0xFFFF;
+        }
+
+        public String disassembly() {
+            return Disassembler.disassembleInstruction(instr, srcExt, dstExt);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%-10d $%04X  %04X  FLAGS=%02X SP=%04X BANK=%d  %s",
+                seq, pc, instr, flags, sp, bank, disassembly());
+        }
+    }
+
+    public InstructionTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** @param capacity number of entries kept; rounded up to a power of two */
+    public InstructionTrace(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 26)) throw new IllegalArgumentException("Invalid trace capacity: " + capacity);
+        int cap = Integer.highestOneBit(capacity);
+        if (cap < capacity) cap <<= 1;
+        this.mask = cap - 1;
+        this.buf = new long[cap * 2];
+    }
+
+    /** Attach a new trace to {@code cpu}, next to any sink already there, and return it. */
+    public static InstructionTrace attach(Cpu cpu, int capacity) {
+        InstructionTrace t = new InstructionTrace(capacity);
+        cpu.trace = TraceSink.tee(cpu.trace, t);
+        return t;
+    }
+
+    public int capacity() { return mask + 1; }
+
+    /** Total number of instructions recorded since creation (may exceed capacity). */
+    public long recorded() { return (long) HEAD.getAcquire(this); }
+
+    /** Where traps are dumped ({@code null} disables the automatic dump) and how many entries. */
+    public void dumpOnTrap(PrintStream out, int entries) {
+        this.trapOutput = out;
+        this.trapDumpEntries = entries;
+    }
+
+    @Override
+    public void onInstruction(Cpu cpu, int pc, int instr, int srcExt, int dstExt) {
+        long h = (long) HEAD.getOpaque(this);
+        int off = (int) (h & mask) << 1;
+        buf[off] = ((long) (pc & 0xFFFF) << 48) | ((long) (instr & 0xFFFF) << 32)
+            | ((long) (srcExt & 0xFFFF) << 16) | (dstExt & 0xFFFF);
+        buf[off + 1] = ((long) (cpu.flags & 0xFFFF) << 48) | ((long) (cpu.sp & 0xFFFF) << 32)
+            | ((long) (cpu.bankReg & 0xFFFF) << 16);
+        HEAD.setRelease(this, h + 1);
+    }
+
+    @Override
+    public void onTrap(Cpu cpu, RuntimeException trap) {
+        PrintStream out = trapOutput;
+        if (out == null) return;
+        out.printf("TRAP: %s at PC=$%04X SP=$%04X%n", trap.getMessage(), cpu.pc & 0xFFFF, cpu.sp & 0xFFFF);
+        dump(out, trapDumpEntries);
+        out.flush();
+    }
+
+    /**
+     * Copy the most recent {@code maxEntries} entries, oldest first. Safe to call from any
+     * thread while the CPU keeps running; entries overwritten during the copy are dropped.
+     * At most {@code capacity() - 1} entries are returned: the oldest slot is the one the
+     * next write reuses, so it is never trusted.
+     */
+    public List<Entry> snapshot(int maxEntries) {
+        long end = (long) HEAD.getAcquire(this);
+        long start = Math.max(0, end - Math.min(capacity(), Math.max(0, maxEntries)));
+        int n = (int) (end - start);
+        long[] w0 = new long[n];
+        long[] w1 = new long[n];
+        for (int i = 0; i < n; i++) {
+            int off = (int) ((start + i) & mask) << 1;
+            w0[i] = buf[off];
+            w1[i] = buf[off + 1];
+        }
+        VarHandle.acquireFence();
+        long now = (long) HEAD.getAcquire(this);
+        // slot of entry s is reused by entry s + capacity; anything at or below this was (being) overwritten
+        long firstIntact = now - capacity() + 1;
+        List<Entry> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            long seq = start + i;
+            if (seq >= firstIntact) out.add(new Entry(seq, w0[i], w1[i]));
+        }
+        return out;
+    }
+
+    /** Write the most recent {@code maxEntries} entries, one per line, oldest first. */
+    public void dump(Appendable out, int maxEntries) {
+        try {
+            for (Entry e : snapshot(maxEntries)) {
+                out.append(e.toString()).append(System.lineSeparator());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public String dump(int maxEntries) {
+        StringBuilder sb = new StringBuilder();
+        dump(sb, maxEntries);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,266 @@
+package com.fantasy.cpu;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Combines {@link ObjectFile}s into one image. The entry section (the one defining the entry
+ * symbol, or the first section of the first object) is placed at the origin, where execution
+ * starts; the other sections follow in input order. Sections that nothing reachable from the
+ * entry refers to are dropped unless stripping is turned off. Global symbols are matched
+ * case-insensitively, like labels.
+ *
+ *   Linker l = new Linker();
+ *   l.add(ObjectFile.read(Path.of("main.o"))).add(ObjectFile.read(Path.of("lib.o")));
+ *   byte[] image = l.link();
+ */
+public class Linker {
+    private final List<ObjectFile> objects = new ArrayList<>();
+    private int origin;
+    private String entry;
+    private boolean stripUnused = true;
+    private int imageVersion = 1;
+    private boolean compress;
+    private List<String> stripped = Collections.emptyList();
+    private Map<String, Integer> symbols = Collections.emptyMap();
+
+    public Linker add(ObjectFile object) {
+        objects.add(object);
+        return this;
+    }
+
+    public Linker add(Path objectFile) throws IOException {
+        return add(ObjectFile.read(objectFile));
+    }
+
+    /** Address of the entry section (default 0). */
+    public Linker setOrigin(int origin) {
+        if (origin < 0 || origin > 0xFFFF) throw new IllegalArgumentException(String.format("Origin out of range: $%X", origin));
+        this.origin = origin;
+        return this;
+    }
+
+    /** Global symbol whose section starts the program; null (default) for the first section linked. */
+    public Linker setEntry(String symbol) {
+        this.entry = symbol;
+        return this;
+    }
+
+    /** Drop sections unreachable from the entry section (default on). */
+    public Linker setStripUnused(boolean strip) {
+        this.stripUnused = strip;
+        return this;
+    }
+
+    /** See {@link Assembler#setImageVersion}. */
+    public Linker setImageVersion(int version) {
+        if (version != 1 && version != 2) throw new IllegalArgumentException("Unsupported image version: " + version);
+        this.imageVersion = version;
+        return this;
+    }
+
+    /** See {@link Assembler#setCompressImage}. */
+    public Linker setCompressImage(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    /** Sections dropped by the last {@link #link()}, as {@code object:section}. */
+    public List<String> strippedSections() {
+        return stripped;
+    }
+
+    /** Final address of every label kept by the last {@link #link()}; globals win over locals of the same name. */
+    public Map<String, Integer> symbols() {
+        return symbols;
+    }
+
+    /** Resolve, lay out and relocate the objects added so far into a {@link MachineImage}. */
+    public byte[] link() {
+        // sections are numbered across objects: first[o] + index in object o
+        int[] first = new int[objects.size() + 1];
+        for (int o = 0; o < objects.size(); o++) first[o + 1] = first[o] + objects.get(o).sections().size();
+        int sectionCount = first[objects.size()];
+
+        Map<String, ObjectFile.Symbol> globals = new LinkedHashMap<>();
+        Map<String, Integer> globalObject = new LinkedHashMap<>();
+        for (int o = 0; o < objects.size(); o++) {
+            for (ObjectFile.Symbol s : objects.get(o).symbols()) {
+                if (!s.global) continue;
+                String key = s.name.toLowerCase(Locale.ROOT);
+                Integer other = globalObject.putIfAbsent(key, o);
+                if (other != null) {
+                    throw new AssembleException("Duplicate global symbol " + s.name + " in " + objects.get(other).name() + " and " + objects.get(o).name(), objects.get(o).name(), -1, -1);
+                }
+                globals.put(key, s);
+            }
+        }
+
+        // section each relocation points at, across objects
+        int[][] targets = new int[objects.size()][];
+        for (int o = 0; o < objects.size(); o++) {
+            List<ObjectFile.Relocation> relocs = objects.get(o).relocations();
+            targets[o] = new int[relocs.size()];
+            for (int i = 0; i < relocs.size(); i++) {
+                ObjectFile.Relocation r = relocs.get(i);
+                if (r.targetSection != ObjectFile.EXTERNAL) {
+                    targets[o][i] = first[o] + r.targetSection;
+                } else {
+                    String key = r.symbol.toLowerCase(Locale.ROOT);
+                    ObjectFile.Symbol s = globals.get(key);
+                    targets[o][i] = s == null ? -1 : first[globalObject.get(key)] + s.section;
+                }
+            }
+        }
+
+        int root = -1;
+        if (entry != null) {
+            ObjectFile.Symbol s = globals.get(entry.toLowerCase(Locale.ROOT));
+            if (s == null) throw new AssembleException("Entry symbol is not a global symbol: " + entry, null, -1, -1);
+            root = first[globalObject.get(entry.toLowerCase(Locale.ROOT))] + s.section;
+        } else if (sectionCount > 0) {
+            root = 0;
+        }
+
+        // mark sections reachable from the entry through relocations
+        boolean[] keep = new boolean[sectionCount];
+        if (!stripUnused) {
+            Arrays.fill(keep, true);
+        } else if (root >= 0) {
+            Deque<Integer> work = new ArrayDeque<>();
+            keep[root] = true;
+            work.add(root);
+            while (!work.isEmpty()) {
+                int sec = work.poll();
+                int o = objectOf(first, sec);
+                List<ObjectFile.Relocation> relocs = objects.get(o).relocations();
+                for (int i = 0; i < relocs.size(); i++) {
+                    int t = targets[o][i];
+                    if (relocs.get(i).section == sec - first[o] && t >= 0 && !keep[t]) {
+                        keep[t] = true;
+                        work.add(t);
+                    }
+                }
+            }
+        }
+
+        // lay out: entry section first, the rest in input order
+        int[] base = new int[sectionCount];
+        Arrays.fill(base, -1);
+        List<Integer> order = new ArrayList<>();
+        if (root >= 0) order.add(root);
+        for (int sec = 0; sec < sectionCount; sec++) if (keep[sec] && sec != root) order.add(sec);
+        int addr = origin;
+        List<String> dropped = new ArrayList<>();
+        for (int sec : order) {
+            base[sec] = addr;
+            addr += section(first, sec).length();
+        }
+        if (addr > 0x10000) {
+            throw new AssembleException(String.format("Linked program needs %d bytes from $%04X and runs past $FFFF", addr - origin, origin), null, -1, -1);
+        }
+        for (int sec = 0; sec < sectionCount; sec++) {
+            if (!keep[sec]) dropped.add(objects.get(objectOf(first, sec)).name() + ":" + section(first, sec).name);
+        }
+
+        // copy and relocate
+        byte[] out = new byte[addr - origin];
+        for (int sec : order) {
+            byte[] b = section(first, sec).bytes();
+            System.arraycopy(b, 0, out, base[sec] - origin, b.length);
+        }
+        for (int o = 0; o < objects.size(); o++) {
+            ObjectFile obj = objects.get(o);
+            List<ObjectFile.Relocation> relocs = obj.relocations();
+            for (int i = 0; i < relocs.size(); i++) {
+                ObjectFile.Relocation r = relocs.get(i);
+                int sec = first[o] + r.section;
+                if (base[sec] < 0) continue;
+                int t = targets[o][i];
+                if (t < 0) {
+                    throw new AssembleException("Undefined symbol " + r.symbol + " referenced from section " + obj.sections().get(r.section).name, obj.name(), -1, base[sec] + r.offset);
+                }
+                int value = base[t] + r.addend;
+                if (r.targetSection == ObjectFile.EXTERNAL) value += globals.get(r.symbol.toLowerCase(Locale.ROOT)).offset;
+                int at = base[sec] - origin + r.offset;
+                out[at] = (byte) (value >> 8);
+                out[at + 1] = (byte) value;
+            }
+        }
+
+        Map<String, Integer> syms = new LinkedHashMap<>();
+        for (Map.Entry<String, ObjectFile.Symbol> g : globals.entrySet()) {
+            ObjectFile.Symbol s = g.getValue();
+            int sec = first[globalObject.get(g.getKey())] + s.section;
+            if (base[sec] >= 0) syms.put(s.name, base[sec] + s.offset);
+        }
+        for (int o = 0; o < objects.size(); o++) {
+            for (ObjectFile.Symbol s : objects.get(o).symbols()) {
+                int sec = first[o] + s.section;
+                if (!s.global && base[sec] >= 0) syms.putIfAbsent(s.name, base[sec] + s.offset);
+            }
+        }
+
+        MachineImage.Builder image = new MachineImage.Builder();
+        if (out.length > 0) {
+            if (origin != 0) image.addOrg(origin);
+            image.addChunk(0, origin, out);
+            for (int sec : order) {
+                for (ObjectFile.DataRange d : section(first, sec).data) image.addData(base[sec] + d.offset, d.length, d.type);
+            }
+        }
+        image.setSymbols(syms);
+        image.setCompression(compress);
+        this.stripped = Collections.unmodifiableList(dropped);
+        this.symbols = Collections.unmodifiableMap(syms);
+        return image.build(imageVersion);
+    }
+
+    private ObjectFile.Section section(int[] first, int sec) {
+        int o = objectOf(first, sec);
+        return objects.get(o).sections().get(sec - first[o]);
+    }
+
+    private static int objectOf(int[] first, int sec) {
+        int o = 0;
+        while (first[o + 1] <= sec) o++;
+        return o;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Linker l = new Linker();
+        int argi = 0;
+        for (; argi < args.length && args[argi].startsWith("-"); argi++) {
+            if (args[argi].equals("--entry") && argi + 1 < args.length) l.setEntry(args[++argi]);
+            else if (args[argi].equals("--origin") && argi + 1 < args.length) {
+                int v = AsmLexer.literal(args[++argi]);
+                if (v == AsmLexer.INVALID) v = AsmLexer.hexAddress(args[argi]);
+                if (v == AsmLexer.INVALID) throw new IllegalArgumentException("Invalid origin: " + args[argi]);
+                l.setOrigin(v);
+            }
+            else if (args[argi].equals("--no-strip")) l.setStripUnused(false);
+            else if (args[argi].equals("--image-v2")) l.setImageVersion(2);
+            else if (args[argi].equals("--compress")) l.setCompressImage(true);
+            else break;
+        }
+        if (args.length - argi < 2) {
+            System.err.println("Usage: Linker [--entry <symbol>] [--origin $XXXX] [--no-strip] [--image-v2] [--compress] <output.bin> <input" + ObjectFile.FILE_SUFFIX + ">...");
+            System.err.println("  objects are written by: Assembler -c <input.asm> <output" + ObjectFile.FILE_SUFFIX + ">");
+            System.exit(2);
+        }
+        Path out = Path.of(args[argi++]);
+        for (; argi < args.length; argi++) l.add(Path.of(args[argi]));
+        Files.write(out, l.link());
+        for (String s : l.strippedSections()) System.err.println("stripped " + s);
+    }
+}
@@ -0,0 +1,176 @@
+package com.fantasy.cpu;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Byte-oriented LZ77 codec for compressed image sections (see {@link MachineImage}).
+ *
+ * A stream is a series of sequences. Each starts with a token byte: the high nibble is the
+ * literal count, the low nibble the match length minus {@link #MIN_MATCH}; a nibble of 15 is
+ * continued by bytes that are added on until one is below 255. The literals follow, then a
+ * big-endian u16 match offset (1 = the previous byte) and the match is copied from the output
+ * already written, overlapping allowed. The final sequence has literals only and ends the
+ * stream.
+ *
+ * Decoding writes straight into the destination array. A source outside the heap (a file
+ * mapping) is first copied into an array in one bulk read. Literal runs and non-overlapping
+ * matches are {@code System.arraycopy} calls; short copies always move 16 bytes when that
+ * stays inside the destination range, which lets the JIT emit a fixed-size copy, and the
+ * surplus bytes are overwritten by the following sequences. Overlapping matches are fills
+ * (offset 1) or copies of the repeating pattern, doubled each step.
+ */
+final class LzCodec {
+    static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 14;
+    private static final int WILD = 16; // short copies move this many bytes; the excess is overwritten later
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private LzCodec() {
+    }
+
+    /** Greedy compression with a single-entry hash table of 4-byte prefixes. */
+    static byte[] compress(byte[] src) {
+        int n = src.length;
+        byte[] out = new byte[n + n / 255 + 16];
+        int op = 0;
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int ip = 0;
+        int limit = n - MIN_MATCH;
+        while (ip <= limit) {
+            int h = hash(src, ip);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || !equal4(src, ref, ip)) {
+                ip++;
+                continue;
+            }
+            int len = MIN_MATCH;
+            while (ip + len < n && src[ref + len] == src[ip + len]) len++;
+            op = writeSequence(out, op, src, anchor, ip - anchor, ip - ref, len);
+            ip += len;
+            anchor = ip;
+        }
+        op = writeSequence(out, op, src, anchor, n - anchor, 0, 0);
+        return Arrays.copyOf(out, op);
+    }
+
+    private static int writeSequence(byte[] out, int op, byte[] src, int litStart, int litLen, int offset, int matchLen) {
+        int m = matchLen == 0 ? 0 : matchLen - MIN_MATCH;
+        out[op++] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(m, 15));
+        if (litLen >= 15) op = writeLength(out, op, litLen - 15);
+        System.arraycopy(src, litStart, out, op, litLen);
+        op += litLen;
+        if (matchLen == 0) return op;
+        out[op++] = (byte) (offset >> 8);
+        out[op++] = (byte) offset;
+        if (m >= 15) op = writeLength(out, op, m - 15);
+        return op;
+    }
+
+    private static int writeLength(byte[] out, int op, int rest) {
+        while (rest >= 255) {
+            out[op++] = (byte) 255;
+            rest -= 255;
+        }
+        out[op++] = (byte) rest;
+        return op;
+    }
+
+    private static int hash(byte[] b, int i) {
+        int v = ((b[i] & 0xFF) << 24) | ((b[i + 1] & 0xFF) << 16) | ((b[i + 2] & 0xFF) << 8) | (b[i + 3] & 0xFF);
+        return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static boolean equal4(byte[] b, int i, int j) {
+        return b[i] == b[j] && b[i + 1] == b[j + 1] && b[i + 2] == b[j + 2] && b[i + 3] == b[j + 3];
+    }
+
+    /**
+     * Decode {@code srcLen} bytes at {@code src[srcOff]} into exactly {@code dstLen} bytes at
+     * {@code dst[dstOff]}. A stream that does not decode to exactly that range is rejected
+     * before anything outside it is written.
+     */
+    static void decompress(ByteBuffer src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        if (src.hasArray()) {
+            decompress(src.array(), src.arrayOffset() + srcOff, srcLen, dst, dstOff, dstLen);
+            return;
+        }
+        // one bulk copy out of the mapping costs less than a bounds-checked get() per token
+        byte[] in = new byte[srcLen];
+        src.get(srcOff, in, 0, srcLen);
+        decompress(in, 0, srcLen, dst, dstOff, dstLen);
+    }
+
+    private static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        int ip = srcOff, ipEnd = srcOff + srcLen;
+        int op = dstOff, opEnd = dstOff + dstLen;
+        while (ip < ipEnd) {
+            int token = src[ip++] & 0xFF;
+            int lit = token >>> 4;
+            if (lit == 15) {
+                int b;
+                do {
+                    if (ip >= ipEnd) throw corrupt("truncated literal length");
+                    b = src[ip++] & 0xFF;
+                    lit += b;
+                } while (b == 255);
+            }
+            if (lit > ipEnd - ip || lit > opEnd - op) throw corrupt("literal run out of bounds");
+            if (lit <= WILD && ipEnd - ip >= WILD && opEnd - op >= WILD) copy16(src, ip, dst, op);
+            else System.arraycopy(src, ip, dst, op, lit);
+            ip += lit;
+            op += lit;
+            if (ip == ipEnd) break; // last sequence
+            if (ipEnd - ip < 2) throw corrupt("truncated match offset");
+            int offset = ((src[ip] & 0xFF) << 8) | (src[ip + 1] & 0xFF);
+            ip += 2;
+            int len = (token & 0x0F) + MIN_MATCH;
+            if ((token & 0x0F) == 15) {
+                int b;
+                do {
+                    if (ip >= ipEnd) throw corrupt("truncated match length");
+                    b = src[ip++] & 0xFF;
+                    len += b;
+                } while (b == 255);
+            }
+            if (offset == 0 || offset > op - dstOff || len > opEnd - op) throw corrupt("match out of bounds");
+            int from = op - offset;
+            if (offset >= len) {
+                if (len <= WILD && opEnd - op >= WILD) copy16(dst, from, dst, op);
+                else System.arraycopy(dst, from, dst, op, len);
+                op += len;
+            } else if (offset == 1) {
+                Arrays.fill(dst, op, op + len, dst[from]);
+                op += len;
+            } else {
+                // the copied pattern repeats every offset bytes: double it until len is covered
+                int end = op + len;
+                while (op < end) {
+                    int n = Math.min(op - from, end - op);
+                    System.arraycopy(dst, from, dst, op, n);
+                    op += n;
+                }
+            }
+        }
+        if (op != opEnd) throw corrupt("decoded " + (op - dstOff) + " of " + dstLen + " bytes");
+    }
+
+    // two 8-byte moves; when the ranges overlap, the first offset bytes are still right
+    private static void copy16(byte[] src, int from, byte[] dst, int to) {
+        LONGS.set(dst, to, (long) LONGS.get(src, from));
+        LONGS.set(dst, to + 8, (long) LONGS.get(src, from + 8));
+    }
+
+    private static UncheckedIOException corrupt(String why) {
+        return new UncheckedIOException(new IOException("Corrupt compressed section: " + why));
+    }
+}
@@ -0,0 +1,512 @@
+package com.fantasy.cpu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A program image produced by {@link Assembler#assemble(Path)}, ready to be copied into a
+ * {@link Cpu}. Two packed formats exist; both are read here and written by {@link Builder}.
+ *
+ * Version 1 is the emitted chunks back to back, followed by a 512-byte footer map of
+ * 4-byte entries {@code start(2) lenField(2)} terminated by {@code 0000 0000}. The top two bits
+ * of lenField are the type (0=.byte, 1=.word, 2=.ascii, 3=code), the low 14 bits the length.
+ * Only type-3 entries with a non-zero length describe bytes in the file, in file order;
+ * type-3 entries of length 0 are {@code .org} markers and typed entries overlay ranges that are
+ * already inside a chunk (they only matter to the {@link Disassembler}). The footer holds at
+ * most 127 entries and chunks longer than $3FFF bytes take several.
+ *
+ * Version 2 starts with a header and a section table of any size (big-endian):
+ *   magic "FM16IMG2", u32 sectionCount, u32 reserved (0)
+ *   per section: u8 kind, u8 type, u16 start, u32 length, u32 fileOffset, u32 crc32
+ * followed by the section data. Kinds are {@link #SECTION_BANK0} and {@link #SECTION_BANK1}
+ * (bytes loaded at {@code start} in that bank), {@link #SECTION_ORG}, {@link #SECTION_DATA}
+ * (a typed overlay as in version 1, no file bytes) and {@link #SECTION_SYMBOLS}
+ * (u32 count, then per label u16 address, u16 byteLength, UTF-8 name).
+ * {@link #SECTION_BANK0_LZ} and {@link #SECTION_BANK1_LZ} hold a u32 decoded length followed
+ * by an {@link LzCodec} stream, decoded straight into memory at load time. The CRC-32 covers
+ * the section's file bytes; unknown kinds are checked and skipped.
+ *
+ * The map is parsed and validated once, when the image is opened; loading is then one bulk
+ * copy per chunk. A file with neither header nor footer is a flat image loaded at $0000.
+ */
+public final class MachineImage {
+    public static final int FOOTER_SIZE = 512;
+    public static final int TYPE_CODE = 3;
+
+    public static final int SECTION_BANK0 = 0;
+    public static final int SECTION_BANK1 = 1;
+    public static final int SECTION_ORG = 2;
+    public static final int SECTION_DATA = 3;
+    public static final int SECTION_SYMBOLS = 4;
+    public static final int SECTION_BANK0_LZ = 5;
+    public static final int SECTION_BANK1_LZ = 6;
+
+    private static final byte[] MAGIC_V2 = {'F', 'M', '1', '6', 'I', 'M', 'G', '2'};
+    private static final int HEADER_SIZE = 16;
+    private static final int SECTION_ENTRY_SIZE = 16;
+    private static final int V1_MAX_ENTRIES = FOOTER_SIZE / 4 - 1;
+    private static final int MIN_COMPRESS = 64; // smaller chunks are stored as they are
+
+    /** One map entry: {@code start}, {@code length} in bytes, 2-bit {@code type} and {@code bank}. */
+    public static final class Entry {
+        public final int start;
+        public final int length;
+        public final int type;
+        public final int bank;
+        public final boolean compressed;
+        final int fileOffset; // chunks only
+        final int fileLength;
+
+        Entry(int start, int length, int type, int bank, int fileOffset) {
+            this(start, length, type, bank, fileOffset, length, false);
+        }
+
+        Entry(int start, int length, int type, int bank, int fileOffset, int fileLength, boolean compressed) {
+            this.start = start;
+            this.length = length;
+            this.type = type;
+            this.bank = bank;
+            this.fileOffset = fileOffset;
+            this.fileLength = fileLength;
+            this.compressed = compressed;
+        }
+
+        public boolean isChunk() {
+            return type == TYPE_CODE && length > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("$%04X+%d type %d bank %d%s", start, length, type, bank, compressed ? " lz" : "");
+        }
+    }
+
+    private final ByteBuffer data;
+    private final List<Entry> entries;
+    private final List<Entry> chunks;
+    private final int version;
+    private final Map<String, Integer> symbols;
+
+    private MachineImage(ByteBuffer data, List<Entry> entries, int version, Map<String, Integer> symbols) {
+        this.data = data;
+        this.entries = Collections.unmodifiableList(entries);
+        List<Entry> c = new ArrayList<>();
+        for (Entry e : entries) if (e.isChunk()) c.add(e);
+        this.chunks = Collections.unmodifiableList(c);
+        this.version = version;
+        this.symbols = Collections.unmodifiableMap(symbols);
+    }
+
+    /** Open {@code file} memory-mapped; chunks are copied straight from the mapping. */
+    public static MachineImage read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Image too large: " + file);
+            return of(ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    public static MachineImage of(byte[] image) throws IOException {
+        return of(ByteBuffer.wrap(image));
+    }
+
+    public static MachineImage of(ByteBuffer image) throws IOException {
+        if (hasV2Header(image)) return readV2(image);
+        List<Entry> entries = readFooter(image);
+        int payload = image.limit() - FOOTER_SIZE;
+        if (entries.isEmpty()) {
+            if (image.limit() > 0x10000) {
+                throw new IOException("Not a program image: " + image.limit() + " bytes and no footer map");
+            }
+            List<Entry> flat = new ArrayList<>();
+            if (image.limit() > 0) flat.add(new Entry(0, image.limit(), TYPE_CODE, 0, 0));
+            return new MachineImage(image, flat, 0, Collections.emptyMap());
+        }
+        int off = 0;
+        for (Entry e : entries) {
+            if (!e.isChunk()) continue;
+            if (off + e.length > payload) {
+                throw new IOException(String.format("Image footer chunk %s runs past the %d data bytes", e, payload));
+            }
+            off += e.length;
+        }
+        if (off != payload) {
+            throw new IOException(String.format("Image footer describes %d of %d data bytes (truncated map?)", off, payload));
+        }
+        return new MachineImage(image, entries, 1, Collections.emptyMap());
+    }
+
+    static boolean hasV2Header(ByteBuffer image) {
+        if (image.limit() < HEADER_SIZE) return false;
+        for (int i = 0; i < MAGIC_V2.length; i++) {
+            if (image.get(i) != MAGIC_V2[i]) return false;
+        }
+        return true;
+    }
+
+    private static MachineImage readV2(ByteBuffer image) throws IOException {
+        long count = image.getInt(8) & 0xFFFFFFFFL;
+        long tableEnd = HEADER_SIZE + count * SECTION_ENTRY_SIZE;
+        if (tableEnd > image.limit()) {
+            throw new IOException("Image section table (" + count + " sections) runs past end of file");
+        }
+        List<Entry> entries = new ArrayList<>();
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < count; i++) {
+            int at = HEADER_SIZE + i * SECTION_ENTRY_SIZE;
+            int kind = image.get(at) & 0xFF;
+            int type = image.get(at + 1) & 0xFF;
+            int start = image.getShort(at + 2) & 0xFFFF;
+            long length = image.getInt(at + 4) & 0xFFFFFFFFL;
+            long offset = image.getInt(at + 8) & 0xFFFFFFFFL;
+            int expectedCrc = image.getInt(at + 12);
+            boolean hasBytes = kind != SECTION_ORG && kind != SECTION_DATA;
+            if (hasBytes) {
+                if (offset < tableEnd || offset + length > image.limit()) {
+                    throw new IOException(String.format("Image section %d (kind %d) lies outside the file", i, kind));
+                }
+                crc.reset();
+                crc.update(image.slice((int) offset, (int) length));
+                if ((int) crc.getValue() != expectedCrc) {
+                    throw new IOException(String.format("Image section %d (kind %d at $%04X) fails its CRC check", i, kind, start));
+                }
+            }
+            switch (kind) {
+                case SECTION_BANK0:
+                case SECTION_BANK1:
+                case SECTION_DATA:
+                    if (start + length > 0x10000) {
+                        throw new IOException(String.format("Image section %d ($%04X+%d) runs past $FFFF", i, start, length));
+                    }
+                    int bank = kind == SECTION_BANK1 ? 1 : 0;
+                    entries.add(new Entry(start, (int) length, kind == SECTION_DATA ? type & 0x3 : TYPE_CODE, bank, (int) offset));
+                    break;
+                case SECTION_ORG:
+                    entries.add(new Entry(start, 0, TYPE_CODE, 0, 0));
+                    break;
+                case SECTION_BANK0_LZ:
+                case SECTION_BANK1_LZ:
+                    if (length < 4) throw new IOException(String.format("Image section %d (kind %d) is truncated", i, kind));
+                    long decoded = image.getInt((int) offset) & 0xFFFFFFFFL;
+                    if (start + decoded > 0x10000) {
+                        throw new IOException(String.format("Image section %d ($%04X+%d) runs past $FFFF", i, start, decoded));
+                    }
+                    entries.add(new Entry(start, (int) decoded, TYPE_CODE, kind == SECTION_BANK1_LZ ? 1 : 0,
+                        (int) offset + 4, (int) length - 4, true));
+                    break;
+                case SECTION_SYMBOLS:
+                    readSymbols(image, (int) offset, (int) (offset + length), symbols);
+                    break;
+                default:
+                    break; // newer section kind: ignored
+            }
+        }
+        return new MachineImage(image, entries, 2, symbols);
+    }
+
+    private static void readSymbols(ByteBuffer image, int off, int end, Map<String, Integer> out) throws IOException {
+        try {
+            int n = image.getInt(off);
+            off += 4;
+            for (int i = 0; i < n; i++) {
+                int addr = image.getShort(off) & 0xFFFF;
+                int len = image.getShort(off + 2) & 0xFFFF;
+                off += 4;
+                if (off + len > end) throw new IOException("Image symbol section is truncated");
+                byte[] name = new byte[len];
+                image.get(off, name);
+                off += len;
+                out.put(new String(name, StandardCharsets.UTF_8), addr);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Image symbol section is truncated", e);
+        }
+    }
+
+    /**
+     * Footer entries of a packed image, or an empty list if the last {@link #FOOTER_SIZE} bytes
+     * are not a terminated map of in-range entries. Chunk file offsets are assigned in order.
+     */
+    static List<Entry> readFooter(ByteBuffer image) {
+        List<Entry> entries = new ArrayList<>();
+        int limit = image.limit();
+        if (limit < FOOTER_SIZE) return entries;
+        int off = limit - FOOTER_SIZE;
+        int fileOffset = 0;
+        boolean terminated = false;
+        while (off + 3 < limit) {
+            int start = image.getShort(off) & 0xFFFF;
+            int lenField = image.getShort(off + 2) & 0xFFFF;
+            off += 4;
+            if (start == 0 && lenField == 0) {
+                terminated = true;
+                break;
+            }
+            int type = (lenField >> 14) & 0x3;
+            int len = lenField & 0x3FFF;
+            if (start + len > 0x10000) return new ArrayList<>();
+            entries.add(new Entry(start, len, type, 0, fileOffset));
+            if (type == TYPE_CODE) fileOffset += len;
+        }
+        if (!terminated) return new ArrayList<>();
+        for (; off < limit; off++) {
+            if (image.get(off) != 0) return new ArrayList<>();
+        }
+        return entries;
+    }
+
+    /** True if the image had a footer map or section table, false for a flat image. */
+    public boolean isPacked() {
+        return version != 0;
+    }
+
+    /** 1 or 2 for packed images, 0 for a flat image. */
+    public int version() {
+        return version;
+    }
+
+    /** Labels from a version 2 symbol section (empty otherwise), in file order. */
+    public Map<String, Integer> symbols() {
+        return symbols;
+    }
+
+    /** All footer entries in file order, including .org markers and typed data ranges. */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /** The entries that carry bytes, in file order. */
+    public List<Entry> chunks() {
+        return chunks;
+    }
+
+    /** Lowest Bank0 chunk address, or 0 for an empty image. */
+    public int lowestAddress() {
+        int lo = 0xFFFF;
+        for (Entry c : chunks) if (c.bank == 0) lo = Math.min(lo, c.start);
+        return lo == 0xFFFF ? 0 : lo;
+    }
+
+    /**
+     * Copy every chunk into physical memory of {@code cpu}: Bank0 chunks at their address
+     * (IO region included), Bank1 chunks at {@link Cpu#BANK1_BASE} plus their address. Pages
+     * written are marked in {@link Cpu#dirtyPages} when tracked. Returns the bytes copied.
+     */
+    public int loadInto(Cpu cpu) {
+        int n = 0;
+        long[] dirty = cpu.dirtyPages;
+        for (Entry c : chunks) {
+            int phys = (c.bank == 0 ? Cpu.BANK0_BASE : Cpu.BANK1_BASE) + c.start;
+            copy(c, cpu.memory, phys);
+            n += c.length;
+            if (dirty != null) {
+                for (int p = phys >>> 8; p <= (phys + c.length - 1) >>> 8; p++) dirty[p >>> 6] |= 1L << p;
+            }
+        }
+        return n;
+    }
+
+    /** Copy every Bank0 chunk to {@code memory[base + start]}. Returns the number of bytes copied. */
+    public int loadInto(byte[] memory, int base) {
+        int n = 0;
+        for (Entry c : chunks) {
+            if (c.bank != 0) continue;
+            copy(c, memory, base + c.start);
+            n += c.length;
+        }
+        return n;
+    }
+
+    private void copy(Entry c, byte[] memory, int at) {
+        if (c.compressed) LzCodec.decompress(data, c.fileOffset, c.fileLength, memory, at, c.length);
+        else data.get(c.fileOffset, memory, at, c.length);
+    }
+
+    /** Shorthand for {@code read(file).loadInto(cpu)}. */
+    public static MachineImage load(Path file, Cpu cpu) throws IOException {
+        MachineImage image = read(file);
+        image.loadInto(cpu);
+        return image;
+    }
+
+    /**
+     * Collects the contents of an image and serialises it. {@link #build(int)} with version 1
+     * produces the footer format when the map fits (no Bank1 section, no compression);
+     * otherwise, and for version 2, it produces the section-table format.
+     */
+    public static final class Builder {
+        private final List<int[]> sections = new ArrayList<>(); // kind, type, start, length, payload index
+        private final List<byte[]> payloads = new ArrayList<>();
+        private Map<String, Integer> symbols = Collections.emptyMap();
+        private boolean compress;
+
+        /** Code or data bytes to load at {@code start} in {@code bank}; empty arrays become .org markers. */
+        public Builder addChunk(int bank, int start, byte[] bytes) {
+            if (bytes.length == 0) return addOrg(start);
+            if ((start & 0xFFFF) + bytes.length > 0x10000) {
+                throw new IllegalArgumentException(String.format("Chunk $%04X+%d runs past $FFFF", start, bytes.length));
+            }
+            payloads.add(bytes);
+            sections.add(new int[] { bank == 0 ? SECTION_BANK0 : SECTION_BANK1, TYPE_CODE, start & 0xFFFF, bytes.length, payloads.size() - 1 });
+            return this;
+        }
+
+        public Builder addOrg(int start) {
+            sections.add(new int[] { SECTION_ORG, TYPE_CODE, start & 0xFFFF, 0, -1 });
+            return this;
+        }
+
+        /** Typed overlay (0=.byte, 1=.word, 2=.ascii) over bytes already in a chunk. */
+        public Builder addData(int start, int length, int type) {
+            sections.add(new int[] { SECTION_DATA, type & 0x3, start & 0xFFFF, length, -1 });
+            return this;
+        }
+
+        /** Labels for the version 2 symbol section; ignored by version 1. */
+        public Builder setSymbols(Map<String, Integer> symbols) {
+            this.symbols = symbols;
+            return this;
+        }
+
+        /**
+         * Store chunks of at least 64 bytes as LZ sections when that makes them smaller.
+         * Compressed images are always version 2.
+         */
+        public Builder setCompression(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
+        /** True if {@link #build(int)} with version 1 yields the footer format. */
+        public boolean fitsVersion1() {
+            if (compress) return false;
+            int n = 0;
+            for (int[] s : sections) {
+                if (s[0] == SECTION_BANK1) return false;
+                n += s[3] == 0 ? 1 : (s[3] + 0x3FFE) / 0x3FFF;
+            }
+            return n <= V1_MAX_ENTRIES;
+        }
+
+        public byte[] build(int version) {
+            try {
+                return version <= 1 && fitsVersion1() ? buildV1() : buildV2();
+            } catch (IOException e) {
+                throw new AssertionError(e); // in-memory streams
+            }
+        }
+
+        public void write(Path file, int version) throws IOException {
+            Files.write(file, build(version));
+        }
+
+        private byte[] buildV1() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (byte[] p : payloads) out.write(p);
+            if (sections.isEmpty()) return out.toByteArray();
+            int footerStart = out.size();
+            DataOutputStream d = new DataOutputStream(out);
+            for (int[] s : sections) {
+                int start = s[2], remaining = s[3];
+                if (remaining == 0) {
+                    d.writeShort(start);
+                    d.writeShort(s[1] << 14);
+                    continue;
+                }
+                // the 14-bit length field forces long ranges into consecutive entries
+                while (remaining > 0) {
+                    int take = Math.min(remaining, 0x3FFF);
+                    d.writeShort(start);
+                    d.writeShort((s[1] << 14) | take);
+                    start += take;
+                    remaining -= take;
+                }
+            }
+            d.writeInt(0); // terminator
+            d.flush();
+            out.write(new byte[footerStart + FOOTER_SIZE - out.size()]);
+            return out.toByteArray();
+        }
+
+        private byte[] buildV2() throws IOException {
+            byte[] symbolBytes = null;
+            if (!symbols.isEmpty()) {
+                ByteArrayOutputStream sb = new ByteArrayOutputStream();
+                DataOutputStream sd = new DataOutputStream(sb);
+                sd.writeInt(symbols.size());
+                for (Map.Entry<String, Integer> e : symbols.entrySet()) {
+                    byte[] name = e.getKey().getBytes(StandardCharsets.UTF_8);
+                    sd.writeShort(e.getValue());
+                    sd.writeShort(name.length);
+                    sd.write(name);
+                }
+                sd.flush();
+                symbolBytes = sb.toByteArray();
+            }
+            int count = sections.size() + (symbolBytes != null ? 1 : 0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(out);
+            d.write(MAGIC_V2);
+            d.writeInt(count);
+            d.writeInt(0);
+            long offset = HEADER_SIZE + (long) count * SECTION_ENTRY_SIZE;
+            CRC32 crc = new CRC32();
+            byte[][] stored = new byte[sections.size()][];
+            for (int i = 0; i < sections.size(); i++) {
+                int[] s = sections.get(i);
+                int kind = s[0];
+                byte[] p = s[4] >= 0 ? payloads.get(s[4]) : null;
+                if (p != null && compress && p.length >= MIN_COMPRESS) {
+                    byte[] lz = compressed(p);
+                    if (lz.length < p.length) {
+                        p = lz;
+                        kind = kind == SECTION_BANK0 ? SECTION_BANK0_LZ : SECTION_BANK1_LZ;
+                    }
+                }
+                stored[i] = p;
+                writeSection(d, kind, s[1], s[2], p != null ? p.length : s[3], p != null ? offset : 0, p, crc);
+                if (p != null) offset += p.length;
+            }
+            if (symbolBytes != null) writeSection(d, SECTION_SYMBOLS, 0, 0, symbolBytes.length, offset, symbolBytes, crc);
+            for (byte[] p : stored) if (p != null) d.write(p);
+            if (symbolBytes != null) d.write(symbolBytes);
+            d.flush();
+            return out.toByteArray();
+        }
+
+        // u32 decoded length + LZ stream
+        private static byte[] compressed(byte[] p) {
+            byte[] lz = LzCodec.compress(p);
+            byte[] out = new byte[4 + lz.length];
+            ByteBuffer.wrap(out).putInt(p.length);
+            System.arraycopy(lz, 0, out, 4, lz.length);
+            return out;
+        }
+
+        private static void writeSection(DataOutputStream d, int kind, int type, int start, int length,
+                                         long offset, byte[] payload, CRC32 crc) throws IOException {
+            d.writeByte(kind);
+            d.writeByte(type);
+            d.writeShort(start);
+            d.writeInt(length);
+            d.writeInt((int) offset);
+            crc.reset();
+            if (payload != null) crc.update(payload);
+            d.writeInt(payload != null ? (int) crc.getValue() : 0);
+        }
+    }
+}
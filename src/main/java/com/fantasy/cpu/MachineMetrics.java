@@ -0,0 +1,129 @@
+package com.fantasy.cpu;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Live counters for one {@link Cpu}.
+ *
+ * Each machine owns its own instance and only the thread running that machine
+ * writes to it, so recording needs no atomics: the owner reads its fields plainly and
+ * publishes new values with opaque stores, which compile to ordinary moves but cannot
+ * be torn or kept in a register. Readers (JMX, the text exporter) use opaque loads and
+ * see eventually-consistent values.
+ *
+ * The instruction count, PC and CPU_CTRL are the machine's own registers: the run loop
+ * writes them with plain stores so the interpreter stays free of barriers, and the getters
+ * here read them with opaque loads. A poller therefore never reuses a stale cached value,
+ * but the Java memory model does not forbid a torn {@code instructionCount} on a 32-bit JVM.
+ *
+ * Cycles are approximated as one per 16-bit word fetched (instruction word plus
+ * extension words) and one per byte moved by DMA.
+ */
+public class MachineMetrics implements MachineMetricsMBean {
+    // Interrupt vector slots, in vector table order (0xFFE0, 0xFFE2, ...)
+    static final String[] VECTOR_NAMES = { "reset", "nmi", "irq", "dma", "vsync", "debug" };
+
+    private static final VarHandle CYCLES = field("cycles");
+    private static final VarHandle OTHER_INTERRUPTS = field("otherInterrupts");
+    private static final VarHandle DMA_BYTES = field("dmaBytes");
+    private static final VarHandle DMA_TRANSFERS = field("dmaTransfers");
+    private static final VarHandle HALTED_SINCE = field("haltedSince");
+    private static final VarHandle HALT_NANOS = field("haltNanos");
+    private static final VarHandle INTERRUPTS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle CPU_INSTRUCTIONS = field(Cpu.class, "instructionCount", long.class);
+    private static final VarHandle CPU_PC = field(Cpu.class, "pc", int.class);
+    private static final VarHandle CPU_CTRL = field(Cpu.class, "cpuCtrl", int.class);
+
+    private static VarHandle field(String name) {
+        return field(MachineMetrics.class, name, long.class);
+    }
+
+    private static VarHandle field(Class<?> owner, String name, Class<?> type) {
+        try {
+            return MethodHandles.lookup().findVarHandle(owner, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Cpu cpu;
+    private long cycles;
+    private final long[] interrupts = new long[VECTOR_NAMES.length];
+    private long otherInterrupts;
+    private long dmaBytes;
+    private long dmaTransfers;
+    private long haltedSince; // nanoTime when HLT was set, 0 while running
+    private long haltNanos;
+
+    public MachineMetrics(Cpu cpu) {
+        this.cpu = cpu;
+        if ((cpu.cpuCtrl & Cpu.CPU_HLT) != 0) haltedSince = System.nanoTime();
+    }
+
+    /** Attach a fresh metrics instance to {@code cpu} (or return the one already attached). */
+    public static MachineMetrics attach(Cpu cpu) {
+        if (cpu.metrics == null) cpu.metrics = new MachineMetrics(cpu);
+        return cpu.metrics;
+    }
+
+    void recordFetch(int words) {
+        CYCLES.setOpaque(this, cycles + words);
+    }
+
+    void recordInterrupt(int vectorAddr) {
+        int slot = (vectorAddr - Cpu.RESET_VECTOR) >> 1;
+        if (slot >= 0 && slot < interrupts.length && (vectorAddr & 1) == 0) {
+            INTERRUPTS.setOpaque(interrupts, slot, interrupts[slot] + 1);
+        } else {
+            OTHER_INTERRUPTS.setOpaque(this, otherInterrupts + 1);
+        }
+    }
+
+    void recordDma(int len) {
+        DMA_TRANSFERS.setOpaque(this, dmaTransfers + 1);
+        DMA_BYTES.setOpaque(this, dmaBytes + len);
+        CYCLES.setOpaque(this, cycles + len);
+    }
+
+    void updateHalted(boolean halted) {
+        if (halted) {
+            if (haltedSince == 0L) HALTED_SINCE.setOpaque(this, System.nanoTime());
+        } else if (haltedSince != 0L) {
+            HALT_NANOS.setOpaque(this, haltNanos + System.nanoTime() - haltedSince);
+            HALTED_SINCE.setOpaque(this, 0L);
+        }
+    }
+
+    @Override public long getInstructionsRetired() { return (long) CPU_INSTRUCTIONS.getOpaque(cpu); }
+    @Override public long getCycles() { return (long) CYCLES.getOpaque(this); }
+    @Override public long getDmaBytes() { return (long) DMA_BYTES.getOpaque(this); }
+    @Override public long getDmaTransfers() { return (long) DMA_TRANSFERS.getOpaque(this); }
+    @Override public int getPc() { return (int) CPU_PC.getOpaque(cpu) & 0xFFFF; }
+    @Override public boolean isHalted() { return ((int) CPU_CTRL.getOpaque(cpu) & Cpu.CPU_HLT) != 0; }
+
+    @Override
+    public long getHaltNanos() {
+        long since = (long) HALTED_SINCE.getOpaque(this);
+        return (long) HALT_NANOS.getOpaque(this) + (since == 0L ? 0L : System.nanoTime() - since);
+    }
+
+    @Override
+    public long[] getInterruptsByVector() {
+        long[] out = new long[interrupts.length];
+        for (int i = 0; i < out.length; i++) out[i] = (long) INTERRUPTS.getOpaque(interrupts, i);
+        return out;
+    }
+
+    @Override
+    public long getInterruptsTotal() {
+        long total = (long) OTHER_INTERRUPTS.getOpaque(this);
+        for (long n : getInterruptsByVector()) total += n;
+        return total;
+    }
+
+    public long interrupts(int vectorAddr) {
+        int slot = (vectorAddr - Cpu.RESET_VECTOR) >> 1;
+        return (slot >= 0 && slot < interrupts.length) ? (long) INTERRUPTS.getOpaque(interrupts, slot) : 0L;
+    }
+}
@@ -0,0 +1,18 @@
+package com.fantasy.cpu;
+
+/**
+ * JMX view of a machine's {@link MachineMetrics}. Registered by {@link MetricsRegistry}
+ * as {@code com.fantasy.cpu:type=Machine,name=<machine>}.
+ */
+public interface MachineMetricsMBean {
+    long getInstructionsRetired();
+    long getCycles();
+    long getDmaBytes();
+    long getDmaTransfers();
+    long getHaltNanos();
+    int getPc();
+    boolean isHalted();
+    /** Interrupts taken per vector slot: RESET, NMI, IRQ, DMA, VSYNC, DEBUG. */
+    long[] getInterruptsByVector();
+    long getInterruptsTotal();
+}
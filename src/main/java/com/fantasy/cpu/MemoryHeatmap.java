@@ -0,0 +1,190 @@
+package com.fantasy.cpu;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Memory access heatmap for a {@link Cpu}.
+ *
+ * Counts byte reads and writes per 256-byte page for Bank0, Bank1 and the fixed
+ * I/O region, plus BANK_REG writes and actual bank transitions. Attach an instance
+ * with {@code cpu.heatmap = new MemoryHeatmap()}; when the field is null the CPU
+ * pays a single null check per access.
+ *
+ * Page indices:
+ * - 0..255   : Bank0 pages (logical 0x0000-0xFDFF, physical 0x00000-0x0FDFF)
+ * - 256..511 : Bank1 pages (physical 0x10000-0x1FFFF)
+ * - 512..513 : I/O pages (0xFE00-0xFEFF, 0xFF00-0xFFFF), always Bank0
+ */
+public class MemoryHeatmap {
+    public static final int PAGE_SIZE = 256;
+    public static final int BANK_PAGES = 0x10000 / PAGE_SIZE;
+    public static final int IO_PAGES = (0x10000 - Cpu.IO_BASE) / PAGE_SIZE;
+    public static final int PAGE_COUNT = 2 * BANK_PAGES + IO_PAGES;
+
+    public static final int REGION_BANK0 = 0;
+    public static final int REGION_BANK1 = 1;
+    public static final int REGION_IO = 2;
+
+    private static final String[] REGION_NAMES = { "bank0", "bank1", "io" };
+
+    // PNG layout: each page is a CELL x CELL square, 16 pages per row
+    private static final int CELL = 16;
+    private static final int GRID = 16;
+    private static final int GAP = 8;
+
+    private final long[] reads = new long[PAGE_COUNT];
+    private final long[] writes = new long[PAGE_COUNT];
+    private long bankRegWrites;
+    private long bankSwitches;
+    private long dmaTransfers;
+    private long dmaBytes;
+
+    // Map a logical address + current bank to a page index (I/O is always Bank0)
+    private static int pageIndex(int addr, int bank) {
+        addr &= 0xFFFF;
+        if (addr >= Cpu.IO_BASE) return 2 * BANK_PAGES + ((addr - Cpu.IO_BASE) >> 8);
+        return (bank << 8) | (addr >> 8);
+    }
+
+    public void recordRead(int addr, int bank) {
+        reads[pageIndex(addr, bank)]++;
+    }
+
+    public void recordWrite(int addr, int bank) {
+        writes[pageIndex(addr, bank)]++;
+    }
+
+    // 16-bit I/O register accesses that bypass the byte path count as two bytes
+    public void recordIoWord(int addr, boolean write) {
+        long[] counters = write ? writes : reads;
+        counters[pageIndex(addr, 0)] += 2;
+    }
+
+    public void recordBankWrite(int oldBank, int newBank) {
+        bankRegWrites++;
+        if (oldBank != newBank) bankSwitches++;
+    }
+
+    // DMA writes go straight to Bank1 physical memory (no I/O window there)
+    public void recordDma(int dstAddr, int len) {
+        dmaTransfers++;
+        dmaBytes += len;
+        for (int i = 0; i < len; i++) {
+            writes[BANK_PAGES + (((dstAddr + i) & 0xFFFF) >> 8)]++;
+        }
+    }
+
+    public long reads(int page) { return reads[page]; }
+    public long writes(int page) { return writes[page]; }
+
+    /** Reads of the page containing {@code addr} in the given region. */
+    public long reads(int region, int addr) { return reads[regionPage(region, addr)]; }
+    public long writes(int region, int addr) { return writes[regionPage(region, addr)]; }
+
+    public long bankRegWrites() { return bankRegWrites; }
+    public long bankSwitches() { return bankSwitches; }
+    public long dmaTransfers() { return dmaTransfers; }
+    public long dmaBytes() { return dmaBytes; }
+
+    public void clear() {
+        Arrays.fill(reads, 0);
+        Arrays.fill(writes, 0);
+        bankRegWrites = 0;
+        bankSwitches = 0;
+        dmaTransfers = 0;
+        dmaBytes = 0;
+    }
+
+    private static int regionPage(int region, int addr) {
+        switch (region) {
+            case REGION_BANK0: return pageIndex(addr, 0);
+            case REGION_BANK1: return pageIndex(addr, 1);
+            case REGION_IO:    return 2 * BANK_PAGES + (((addr & 0xFFFF) - Cpu.IO_BASE) >> 8 & 1);
+            default: throw new IllegalArgumentException("Invalid region: " + region);
+        }
+    }
+
+    private static int regionOf(int page) {
+        if (page < BANK_PAGES) return REGION_BANK0;
+        if (page < 2 * BANK_PAGES) return REGION_BANK1;
+        return REGION_IO;
+    }
+
+    private static int pageAddress(int page) {
+        if (page < 2 * BANK_PAGES) return (page & 0xFF) << 8;
+        return Cpu.IO_BASE + ((page - 2 * BANK_PAGES) << 8);
+    }
+
+    /**
+     * CSV with one row per page: region,page,address,reads,writes.
+     * Bank0 pages 0xFE/0xFF are reported under the io region.
+     */
+    public void writeCsv(Writer out) throws IOException {
+        out.write("region,page,address,reads,writes\n");
+        for (int p = 0; p < PAGE_COUNT; p++) {
+            int region = regionOf(p);
+            int addr = pageAddress(p);
+            if (region == REGION_BANK0 && addr >= Cpu.IO_BASE) continue; // counted as io
+            out.write(String.format("%s,%d,$%04X,%d,%d\n", REGION_NAMES[region], p, addr, reads[p], writes[p]));
+        }
+    }
+
+    public void writeCsv(Path file) throws IOException {
+        try (Writer w = Files.newBufferedWriter(file)) {
+            writeCsv(w);
+        }
+    }
+
+    /**
+     * Render the heatmap as an image: Bank0 and Bank1 as 16x16 page grids followed by
+     * the I/O pages. Green encodes reads, red encodes writes, both on a log scale.
+     */
+    public BufferedImage toImage() {
+        int bankWidth = GRID * CELL;
+        int width = 2 * bankWidth + CELL + 2 * GAP;
+        int height = GRID * CELL;
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        double maxRead = 0, maxWrite = 0;
+        for (int p = 0; p < PAGE_COUNT; p++) {
+            maxRead = Math.max(maxRead, Math.log1p(reads[p]));
+            maxWrite = Math.max(maxWrite, Math.log1p(writes[p]));
+        }
+        for (int p = 0; p < PAGE_COUNT; p++) {
+            int x0, y0;
+            if (p < 2 * BANK_PAGES) {
+                int local = p & 0xFF;
+                x0 = (p >> 8) * (bankWidth + GAP) + (local % GRID) * CELL;
+                y0 = (local / GRID) * CELL;
+            } else {
+                x0 = 2 * (bankWidth + GAP);
+                y0 = (GRID - IO_PAGES + (p - 2 * BANK_PAGES)) * CELL;
+            }
+            int r = maxWrite == 0 ? 0 : (int) Math.round(255 * Math.log1p(writes[p]) / maxWrite);
+            int g = maxRead == 0 ? 0 : (int) Math.round(255 * Math.log1p(reads[p]) / maxRead);
+            int rgb = (r << 16) | (g << 8) | 0x20;
+            for (int y = 0; y < CELL - 1; y++) {
+                for (int x = 0; x < CELL - 1; x++) img.setRGB(x0 + x, y0 + y, rgb);
+            }
+        }
+        return img;
+    }
+
+    public void writePng(Path file) throws IOException {
+        if (!ImageIO.write(toImage(), "png", file.toFile())) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+
+    public String summary() {
+        long totalReads = 0, totalWrites = 0;
+        for (int p = 0; p < PAGE_COUNT; p++) { totalReads += reads[p]; totalWrites += writes[p]; }
+        return String.format("reads=%d writes=%d bankRegWrites=%d bankSwitches=%d dmaTransfers=%d dmaBytes=%d",
+            totalReads, totalWrites, bankRegWrites, bankSwitches, dmaTransfers, dmaBytes);
+    }
+}
@@ -0,0 +1,142 @@
+package com.fantasy.cpu;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of named machines whose {@link MachineMetrics} are published through JMX
+ * and as a Prometheus-style text exposition.
+ *
+ * Usage:
+ *   MetricsRegistry reg = new MetricsRegistry();
+ *   reg.register("m0", cpu);
+ *   HttpServer http = reg.startHttpServer(9416);   // GET http://127.0.0.1:9416/metrics
+ */
+public class MetricsRegistry {
+    public static final String JMX_DOMAIN = "com.fantasy.cpu";
+
+    private final Map<String,MachineMetrics> machines = new ConcurrentSkipListMap<>();
+    private final boolean publishJmx;
+
+    public MetricsRegistry() {
+        this(true);
+    }
+
+    public MetricsRegistry(boolean publishJmx) {
+        this.publishJmx = publishJmx;
+    }
+
+    /** Attach metrics to {@code cpu} and publish them under {@code name}. */
+    public MachineMetrics register(String name, Cpu cpu) {
+        MachineMetrics m = MachineMetrics.attach(cpu);
+        if (machines.putIfAbsent(name, m) != null) {
+            throw new IllegalArgumentException("Machine already registered: " + name);
+        }
+        if (publishJmx) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(m, objectName(name));
+            } catch (JMException e) {
+                machines.remove(name);
+                throw new IllegalStateException("Cannot register MBean for machine " + name, e);
+            }
+        }
+        return m;
+    }
+
+    public void unregister(String name) {
+        if (machines.remove(name) == null) return;
+        if (publishJmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+            } catch (JMException e) {
+                // already gone
+            }
+        }
+    }
+
+    public MachineMetrics get(String name) {
+        return machines.get(name);
+    }
+
+    public static ObjectName objectName(String machine) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=Machine,name=" + ObjectName.quote(machine));
+    }
+
+    /** Text exposition format (version 0.0.4) for all registered machines. */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+        family(sb, "fm16_instructions_retired_total", "counter", "Instructions retired");
+        for (Map.Entry<String,MachineMetrics> e : machines.entrySet()) {
+            sample(sb, "fm16_instructions_retired_total", e.getKey(), null, e.getValue().getInstructionsRetired());
+        }
+        family(sb, "fm16_cycles_total", "counter", "Approximate bus cycles (fetched words plus DMA bytes)");
+        for (Map.Entry<String,MachineMetrics> e : machines.entrySet()) {
+            sample(sb, "fm16_cycles_total", e.getKey(), null, e.getValue().getCycles());
+        }
+        family(sb, "fm16_interrupts_total", "counter", "Interrupts taken per vector");
+        for (Map.Entry<String,MachineMetrics> e : machines.entrySet()) {
+            long[] perVector = e.getValue().getInterruptsByVector();
+            for (int i = 0; i < perVector.length; i++) {
+                sample(sb, "fm16_interrupts_total", e.getKey(), MachineMetrics.VECTOR_NAMES[i], perVector[i]);
+            }
+        }
+        family(sb, "fm16_dma_bytes_total", "counter", "Bytes moved by DMA");
+        for (Map.Entry<String,MachineMetrics> e : machines.entrySet()) {
+            sample(sb, "fm16_dma_bytes_total", e.getKey(), null, e.getValue().getDmaBytes());
+        }
+        family(sb, "fm16_halt_seconds_total", "counter", "Time spent halted");
+        for (Map.Entry<String,MachineMetrics> e : machines.entrySet()) {
+            sb.append("fm16_halt_seconds_total{machine=\"").append(escape(e.getKey())).append("\"} ")
+              .append(e.getValue().getHaltNanos() / 1e9).append('\n');
+        }
+        family(sb, "fm16_pc", "gauge", "Current program counter");
+        for (Map.Entry<String,MachineMetrics> e : machines.entrySet()) {
+            sample(sb, "fm16_pc", e.getKey(), null, e.getValue().getPc());
+        }
+        return sb.toString();
+    }
+
+    private static void family(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String machine, String vector, long value) {
+        sb.append(name).append("{machine=\"").append(escape(machine)).append('"');
+        if (vector != null) sb.append(",vector=\"").append(vector).append('"');
+        sb.append("} ").append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Serve {@link #scrape()} on {@code http://127.0.0.1:<port>/metrics}. Port 0 picks a
+     * free port (see {@code server.getAddress().getPort()}). Stop with {@code server.stop(0)}.
+     */
+    public HttpServer startHttpServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
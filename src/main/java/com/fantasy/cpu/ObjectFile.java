@@ -0,0 +1,247 @@
+package com.fantasy.cpu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Relocatable module produced by {@link Assembler#assembleObject()} and combined into an
+ * image by the {@link Linker}. Sections hold code and data assembled as if they started at
+ * address 0; symbols are labels as offsets into a section, exported when declared
+ * {@code .global}; relocations name the words that must receive a final address, either of a
+ * section of this object plus an addend or of an external symbol.
+ *
+ * File layout (big-endian), written by {@link #write(Path)}:
+ *   magic "FM16OBJ1", u16 byteLength + UTF-8 source name
+ *   u16 sectionCount,  then per section:    name, u16 length, bytes,
+ *                                           u16 dataCount, then per range: u16 offset, u16 length, u8 type
+ *   u16 symbolCount,   then per symbol:     name, u16 section, u16 offset, u8 global
+ *   u32 relocCount,    then per relocation: u16 section, u16 offset, u16 target (0xFFFF = external),
+ *                                           u16 addend, external symbol name if external
+ * Names are u16 byteLength + UTF-8.
+ */
+public final class ObjectFile {
+    public static final String FILE_SUFFIX = ".o";
+    /** {@link Relocation#targetSection} of a reference to another object's symbol. */
+    public static final int EXTERNAL = -1;
+    private static final byte[] MAGIC = {'F', 'M', '1', '6', 'O', 'B', 'J', '1'};
+
+    /** Typed data overlay (0=.byte, 1=.word, 2=.ascii, as in {@link MachineImage}) in a section. */
+    public static final class DataRange {
+        public final int offset;
+        public final int length;
+        public final int type;
+
+        public DataRange(int offset, int length, int type) {
+            this.offset = offset;
+            this.length = length;
+            this.type = type;
+        }
+    }
+
+    public static final class Section {
+        public final String name;
+        private final byte[] bytes;
+        public final List<DataRange> data;
+
+        public Section(String name, byte[] bytes, List<DataRange> data) {
+            this.name = name;
+            this.bytes = bytes.clone();
+            this.data = Collections.unmodifiableList(new ArrayList<>(data));
+        }
+
+        public int length() {
+            return bytes.length;
+        }
+
+        /** A copy of the section contents, with zero words where relocations go. */
+        public byte[] bytes() {
+            return bytes.clone();
+        }
+    }
+
+    public static final class Symbol {
+        public final String name;
+        public final int section;
+        public final int offset;
+        public final boolean global;
+
+        public Symbol(String name, int section, int offset, boolean global) {
+            this.name = name;
+            this.section = section;
+            this.offset = offset;
+            this.global = global;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s=%d+$%04X%s", name, section, offset, global ? " global" : "");
+        }
+    }
+
+    /** Word at {@code offset} in {@code section} that receives an address. */
+    public static final class Relocation {
+        public final int section;
+        public final int offset;
+        /** Section of this object whose final address plus {@link #addend} is stored, or {@link #EXTERNAL}. */
+        public final int targetSection;
+        /** Global symbol of another object when external, else null. */
+        public final String symbol;
+        public final int addend;
+
+        public Relocation(int section, int offset, int targetSection, String symbol, int addend) {
+            this.section = section;
+            this.offset = offset;
+            this.targetSection = targetSection;
+            this.symbol = symbol;
+            this.addend = addend;
+        }
+
+        @Override
+        public String toString() {
+            String target = targetSection == EXTERNAL ? symbol : "section " + targetSection;
+            return String.format("%d+$%04X -> %s+$%04X", section, offset, target, addend);
+        }
+    }
+
+    private final String name;
+    private final List<Section> sections;
+    private final List<Symbol> symbols;
+    private final List<Relocation> relocations;
+
+    public ObjectFile(String name, List<Section> sections, List<Symbol> symbols, List<Relocation> relocations) {
+        this.name = name;
+        this.sections = Collections.unmodifiableList(new ArrayList<>(sections));
+        this.symbols = Collections.unmodifiableList(new ArrayList<>(symbols));
+        this.relocations = Collections.unmodifiableList(new ArrayList<>(relocations));
+    }
+
+    /** Source the object was assembled from, used in link errors. */
+    public String name() {
+        return name;
+    }
+
+    public List<Section> sections() {
+        return sections;
+    }
+
+    public List<Symbol> symbols() {
+        return symbols;
+    }
+
+    public List<Relocation> relocations() {
+        return relocations;
+    }
+
+    // ---- file ----
+
+    public void write(Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            write(out);
+        }
+    }
+
+    public void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(MAGIC);
+        writeString(out, name);
+        out.writeShort(sections.size());
+        for (Section s : sections) {
+            writeString(out, s.name);
+            out.writeShort(s.bytes.length);
+            out.write(s.bytes);
+            out.writeShort(s.data.size());
+            for (DataRange d : s.data) {
+                out.writeShort(d.offset);
+                out.writeShort(d.length);
+                out.writeByte(d.type);
+            }
+        }
+        out.writeShort(symbols.size());
+        for (Symbol s : symbols) {
+            writeString(out, s.name);
+            out.writeShort(s.section);
+            out.writeShort(s.offset);
+            out.writeByte(s.global ? 1 : 0);
+        }
+        out.writeInt(relocations.size());
+        for (Relocation r : relocations) {
+            out.writeShort(r.section);
+            out.writeShort(r.offset);
+            out.writeShort(r.targetSection);
+            out.writeShort(r.addend);
+            if (r.targetSection == EXTERNAL) writeString(out, r.symbol);
+        }
+        out.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    public static ObjectFile read(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return read(in);
+        }
+    }
+
+    public static ObjectFile read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not an object file (bad magic)");
+        String name = readString(in);
+        int n = in.readUnsignedShort();
+        List<Section> sections = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String sectionName = readString(in);
+            byte[] bytes = new byte[in.readUnsignedShort()];
+            in.readFully(bytes);
+            int d = in.readUnsignedShort();
+            List<DataRange> data = new ArrayList<>(d);
+            for (int k = 0; k < d; k++) data.add(new DataRange(in.readUnsignedShort(), in.readUnsignedShort(), in.readUnsignedByte()));
+            sections.add(new Section(sectionName, bytes, data));
+        }
+        n = in.readUnsignedShort();
+        List<Symbol> symbols = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String symbolName = readString(in);
+            int section = in.readUnsignedShort();
+            if (section >= sections.size()) throw new IOException("Symbol " + symbolName + " in missing section " + section);
+            symbols.add(new Symbol(symbolName, section, in.readUnsignedShort(), in.readUnsignedByte() != 0));
+        }
+        n = in.readInt();
+        List<Relocation> relocations = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int section = in.readUnsignedShort();
+            int offset = in.readUnsignedShort();
+            int target = in.readShort(); // 0xFFFF reads as EXTERNAL
+            int addend = in.readUnsignedShort();
+            if (section >= sections.size() || offset + 2 > sections.get(section).length() || target < EXTERNAL || target >= sections.size()) {
+                throw new IOException("Relocation outside the object: " + section + "+" + offset);
+            }
+            String symbol = target == EXTERNAL ? readString(in) : null;
+            relocations.add(new Relocation(section, offset, target, symbol, addend));
+        }
+        return new ObjectFile(name, sections, symbols, relocations);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readUnsignedShort()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,273 @@
+package com.fantasy.cpu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time-travel debugging for a {@link Cpu}: run forward through this class, then step or
+ * continue backwards.
+ *
+ * Every {@code interval} instructions the CPU registers are snapshotted together with the
+ * 256-byte pages of {@code memory} written since the previous snapshot (tracked through
+ * {@link Cpu#dirtyPages}). The oldest snapshot holds a full copy of memory; each later one
+ * holds only its dirty pages. Going back restores the nearest earlier snapshot and re-executes
+ * up to the target instruction, which is exact as long as the guest only gets input from
+ * its own memory and registers (interrupts raised from outside between steps are not
+ * recorded). Time is measured in {@link Cpu#instructionCount}.
+ *
+ * Snapshot memory is kept under {@code memoryBudget} bytes by folding the oldest snapshot
+ * into the full copy, which moves the start of reachable history forward.
+ *
+ * While re-executing, the trace, metrics, heatmap and coverage hooks are detached so replayed
+ * instructions are not reported twice. Restoring a snapshot discards the snapshots after it;
+ * they are recreated as execution moves forward again.
+ */
+public class ReverseDebugger {
+    private static final int PAGE_SIZE = 256;
+    private static final int PAGES = Cpu.MEMORY_SIZE / PAGE_SIZE;
+    private static final int SNAPSHOT_OVERHEAD = 128;
+
+    private static final class Snapshot {
+        final long count;
+        final int[] regs;
+        final int sp, pc, flags, bankReg;
+        final int videoCtrl, vsyncStat, dmaSrc, dmaDst, dmaLen, cpuCtrl, dmaCtrl, intCtrl;
+        int[] pageIndex;  // dirty pages since the previous snapshot (empty for the oldest)
+        byte[] pageData;  // their contents, PAGE_SIZE bytes each
+
+        Snapshot(Cpu cpu, int[] pageIndex, byte[] pageData) {
+            count = cpu.instructionCount;
+            regs = cpu.regs.clone();
+            sp = cpu.sp; pc = cpu.pc; flags = cpu.flags; bankReg = cpu.bankReg;
+            videoCtrl = cpu.videoCtrl; vsyncStat = cpu.vsyncStat;
+            dmaSrc = cpu.dmaSrc; dmaDst = cpu.dmaDst; dmaLen = cpu.dmaLen;
+            cpuCtrl = cpu.cpuCtrl; dmaCtrl = cpu.dmaCtrl; intCtrl = cpu.intCtrl;
+            this.pageIndex = pageIndex;
+            this.pageData = pageData;
+        }
+    }
+
+    private final Cpu cpu;
+    private final int interval;
+    private final long memoryBudget;
+    private final byte[] base = new byte[Cpu.MEMORY_SIZE]; // memory at snapshots.get(0)
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    private final long[] dirty = new long[PAGES / 64];
+    private long deltaBytes;
+
+    // instrumentation detached while re-executing
+    private TraceSink savedTrace;
+    private MachineMetrics savedMetrics;
+    private MemoryHeatmap savedHeatmap;
+    private Coverage savedCoverage;
+
+    /**
+     * @param interval     instructions between snapshots
+     * @param memoryBudget upper bound for snapshot storage, including the full memory copy
+     */
+    public ReverseDebugger(Cpu cpu, int interval, long memoryBudget) {
+        if (interval <= 0) throw new IllegalArgumentException("Invalid snapshot interval: " + interval);
+        if (memoryBudget < Cpu.MEMORY_SIZE + SNAPSHOT_OVERHEAD) {
+            throw new IllegalArgumentException("Memory budget too small: " + memoryBudget);
+        }
+        this.cpu = cpu;
+        this.interval = interval;
+        this.memoryBudget = memoryBudget;
+        cpu.dirtyPages = dirty;
+        System.arraycopy(cpu.memory, 0, base, 0, base.length);
+        snapshots.add(new Snapshot(cpu, new int[0], new byte[0]));
+    }
+
+    public int snapshotCount() { return snapshots.size(); }
+
+    /** Bytes held by snapshots, including the full memory copy. */
+    public long memoryUsed() { return base.length + SNAPSHOT_OVERHEAD * (long) snapshots.size() + deltaBytes; }
+
+    /** The earliest instruction count that can still be reached backwards. */
+    public long historyStart() { return snapshots.get(0).count; }
+
+    // ---- forward ----
+
+    /** Execute one instruction, recording history. */
+    public void step() {
+        cpu.step();
+        maybeSnapshot();
+    }
+
+    /** Like {@link Cpu#run(long)}, recording history. */
+    public ExitReason run(long maxInstructions) {
+        long end = cpu.instructionCount + maxInstructions;
+        while (true) {
+            long next = last().count + interval;
+            long slice = Math.min(end, next) - cpu.instructionCount;
+            if (slice <= 0) return ExitReason.INSTRUCTION_LIMIT;
+            ExitReason r = cpu.run(slice);
+            maybeSnapshot();
+            if (r != ExitReason.INSTRUCTION_LIMIT) return r;
+        }
+    }
+
+    private Snapshot last() {
+        return snapshots.get(snapshots.size() - 1);
+    }
+
+    private void maybeSnapshot() {
+        if (cpu.instructionCount - last().count < interval) return;
+        int n = 0;
+        for (long w : dirty) n += Long.bitCount(w);
+        int[] index = new int[n];
+        byte[] data = new byte[n * PAGE_SIZE];
+        int k = 0;
+        for (int i = 0; i < dirty.length; i++) {
+            long w = dirty[i];
+            while (w != 0) {
+                int page = (i << 6) + Long.numberOfTrailingZeros(w);
+                w &= w - 1;
+                index[k] = page;
+                System.arraycopy(cpu.memory, page * PAGE_SIZE, data, k * PAGE_SIZE, PAGE_SIZE);
+                k++;
+            }
+        }
+        Arrays.fill(dirty, 0L);
+        Snapshot s = new Snapshot(cpu, index, data);
+        snapshots.add(s);
+        deltaBytes += s.pageData.length + 4L * index.length;
+        while (memoryUsed() > memoryBudget && snapshots.size() > 1) evictOldest();
+    }
+
+    // fold the second-oldest snapshot into the full copy; it becomes the oldest
+    private void evictOldest() {
+        Snapshot next = snapshots.get(1);
+        for (int k = 0; k < next.pageIndex.length; k++) {
+            System.arraycopy(next.pageData, k * PAGE_SIZE, base, next.pageIndex[k] * PAGE_SIZE, PAGE_SIZE);
+        }
+        deltaBytes -= next.pageData.length + 4L * next.pageIndex.length;
+        next.pageIndex = new int[0];
+        next.pageData = new byte[0];
+        snapshots.remove(0);
+    }
+
+    // ---- backward ----
+
+    /** Go back one instruction. Returns false at the start of history. */
+    public boolean reverseStep() {
+        if (cpu.instructionCount <= historyStart()) return false;
+        seek(cpu.instructionCount - 1);
+        return true;
+    }
+
+    /**
+     * Go back to the most recent earlier point where {@link Cpu#run(long)} would have stopped
+     * for a breakpoint or watchpoint in {@code cpu.breakpoints}: before the instruction at a
+     * breakpoint, or after an instruction that touched a watched address. Returns
+     * {@link ExitReason#HISTORY_START} (positioned at the oldest snapshot) if there is none.
+     */
+    public ExitReason reverseContinue() {
+        Breakpoints bp = cpu.breakpoints;
+        long now = cpu.instructionCount;
+        long limit = now;
+        for (int i = indexAtOrBefore(now - 1); bp != null && i >= 0; i--) {
+            restore(i);
+            long segmentStart = cpu.instructionCount;
+            long found = -1;
+            ExitReason why = null;
+            int addr = 0;
+            muteHooks();
+            try {
+                while (cpu.instructionCount < limit && (cpu.cpuCtrl & Cpu.CPU_HLT) == 0) {
+                    if (bp.hasBreakpoint(cpu.pc)) {
+                        found = cpu.instructionCount;
+                        why = ExitReason.BREAKPOINT;
+                        addr = cpu.pc & 0xFFFF;
+                    }
+                    bp.hit = null;
+                    cpu.step();
+                    if (bp.hit != null && cpu.instructionCount < now) {
+                        found = cpu.instructionCount;
+                        why = bp.hit;
+                        addr = bp.hitAddress;
+                    }
+                }
+            } finally {
+                unmuteHooks();
+            }
+            if (found >= 0) {
+                seek(found);
+                bp.hit = why;
+                bp.hitAddress = addr;
+                return why;
+            }
+            limit = segmentStart;
+        }
+        restore(0);
+        if (bp != null) bp.hit = null;
+        return ExitReason.HISTORY_START;
+    }
+
+    /**
+     * Move to the state just before instruction number {@code target} (in
+     * {@link Cpu#instructionCount} terms) executes. Targets before {@link #historyStart()}
+     * are clamped to it; going forward simply re-executes and records.
+     */
+    public void seek(long target) {
+        restore(indexAtOrBefore(Math.max(target, historyStart())));
+        muteHooks();
+        try {
+            while (cpu.instructionCount < target && (cpu.cpuCtrl & Cpu.CPU_HLT) == 0) {
+                cpu.step();
+                maybeSnapshot();
+            }
+        } finally {
+            unmuteHooks();
+        }
+        if (cpu.breakpoints != null) cpu.breakpoints.hit = null;
+    }
+
+    private void muteHooks() {
+        savedTrace = cpu.trace;
+        savedMetrics = cpu.metrics;
+        savedHeatmap = cpu.heatmap;
+        savedCoverage = cpu.coverage;
+        cpu.trace = null;
+        cpu.metrics = null;
+        cpu.heatmap = null;
+        cpu.coverage = null;
+    }
+
+    private void unmuteHooks() {
+        cpu.trace = savedTrace;
+        cpu.metrics = savedMetrics;
+        cpu.heatmap = savedHeatmap;
+        cpu.coverage = savedCoverage;
+    }
+
+    private int indexAtOrBefore(long count) {
+        int i = snapshots.size() - 1;
+        while (i > 0 && snapshots.get(i).count > count) i--;
+        return i;
+    }
+
+    private void restore(int index) {
+        byte[] mem = cpu.memory;
+        System.arraycopy(base, 0, mem, 0, base.length);
+        for (int i = 1; i <= index; i++) {
+            Snapshot s = snapshots.get(i);
+            for (int k = 0; k < s.pageIndex.length; k++) {
+                System.arraycopy(s.pageData, k * PAGE_SIZE, mem, s.pageIndex[k] * PAGE_SIZE, PAGE_SIZE);
+            }
+        }
+        Snapshot s = snapshots.get(index);
+        System.arraycopy(s.regs, 0, cpu.regs, 0, s.regs.length);
+        cpu.sp = s.sp; cpu.pc = s.pc; cpu.flags = s.flags; cpu.bankReg = s.bankReg;
+        cpu.videoCtrl = s.videoCtrl; cpu.vsyncStat = s.vsyncStat;
+        cpu.dmaSrc = s.dmaSrc; cpu.dmaDst = s.dmaDst; cpu.dmaLen = s.dmaLen;
+        cpu.cpuCtrl = s.cpuCtrl; cpu.dmaCtrl = s.dmaCtrl; cpu.intCtrl = s.intCtrl;
+        cpu.instructionCount = s.count;
+        Arrays.fill(dirty, 0L);
+        while (snapshots.size() > index + 1) {
+            Snapshot dropped = snapshots.remove(snapshots.size() - 1);
+            deltaBytes -= dropped.pageData.length + 4L * dropped.pageIndex.length;
+        }
+    }
+}
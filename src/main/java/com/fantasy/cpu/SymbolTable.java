@@ -0,0 +1,124 @@
+package com.fantasy.cpu;
+
+import java.util.Arrays;
+
+/**
+ * Label table of the {@link Assembler}. Names are interned to dense ids with an open-addressing
+ * hash that folds ASCII case while hashing and comparing, so looking up a token never
+ * allocates a lower-cased copy. Values live in an {@code int[]} indexed by id; an id can exist
+ * before its label is defined (a forward reference seen at parse time), in which case its value
+ * is {@link #UNDEFINED}.
+ */
+final class SymbolTable {
+    static final int UNDEFINED = Integer.MIN_VALUE;
+    static final int NOT_FOUND = -1;
+
+    private String[] names = new String[64];  // by id, spelled as first interned
+    private int[] hashes = new int[64];       // by id
+    private int[] values = new int[64];       // by id
+    private int[] slots = new int[128];       // id + 1, 0 = empty; length is a power of two
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    /** Id of {@code name}, adding it (undefined) if it is new. */
+    int intern(CharSequence name) {
+        int h = hash(name);
+        int mask = slots.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if (id < 0) {
+                id = add(name.toString(), h);
+                slots[i] = id + 1;
+                if (size * 2 > slots.length) rehash();
+                return id;
+            }
+            if (hashes[id] == h && equalsIgnoreCase(names[id], name)) return id;
+        }
+    }
+
+    /** Id of {@code name}, or {@link #NOT_FOUND}. */
+    int find(CharSequence name) {
+        int h = hash(name);
+        int mask = slots.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if (id < 0) return NOT_FOUND;
+            if (hashes[id] == h && equalsIgnoreCase(names[id], name)) return id;
+        }
+    }
+
+    /** Value of the label {@code name}, or {@link #UNDEFINED}. */
+    int get(CharSequence name) {
+        int id = find(name);
+        return id < 0 ? UNDEFINED : values[id];
+    }
+
+    /** Set the value of {@code id}; returns whether it was already defined. */
+    boolean define(int id, int value) {
+        boolean was = values[id] != UNDEFINED;
+        values[id] = value;
+        return was;
+    }
+
+    int value(int id) {
+        return values[id];
+    }
+
+    boolean isDefined(int id) {
+        return values[id] != UNDEFINED;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    private int add(String name, int h) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = h;
+        values[size] = UNDEFINED;
+        return size++;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = hashes[id] & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+    }
+
+    private static int hash(CharSequence s) {
+        int h = 0;
+        for (int i = 0, n = s.length(); i < n; i++) h = 31 * h + fold(s.charAt(i));
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equalsIgnoreCase(String a, CharSequence b) {
+        int n = a.length();
+        if (n != b.length()) return false;
+        for (int i = 0; i < n; i++) {
+            if (fold(a.charAt(i)) != fold(b.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+}
@@ -0,0 +1,157 @@
+package com.fantasy.cpu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Streaming reader for traces written by {@link TraceFileWriter}. Records are decoded one at
+ * a time into the reader's own fields, so arbitrarily long traces can be scanned without
+ * allocating per instruction:
+ *
+ *   try (TraceFileReader r = new TraceFileReader(path)) {
+ *       while (r.next()) { ... r.pc() ... r.reg(0) ... }
+ *   }
+ *
+ * Register state is as it was before the current instruction executed.
+ */
+public class TraceFileReader implements Closeable {
+    private final InputStream in;
+
+    private final int[] regs = new int[8];
+    private int pc, len, instr, srcExt, dstExt, flags, sp, bank;
+    private long seq = -1;
+
+    public TraceFileReader(Path file) throws IOException {
+        this(Files.newInputStream(file));
+    }
+
+    public TraceFileReader(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in, 1 << 20);
+        byte[] magic = this.in.readNBytes(TraceFileWriter.MAGIC.length);
+        if (!Arrays.equals(magic, TraceFileWriter.MAGIC)) {
+            throw new IOException("Not a trace file (bad magic)");
+        }
+    }
+
+    /** Decode the next record; returns false at the end of the trace. */
+    public boolean next() throws IOException {
+        int tag = in.read();
+        if (tag <= 0) return false; // EOF, or zero fill after an unclosed writer
+        if ((tag & TraceFileWriter.TAG_RECORD) == 0) throw new IOException("Corrupt trace record at #" + (seq + 1));
+
+        if ((tag & TraceFileWriter.TAG_PC) != 0) {
+            pc = (pc + readZigzag()) & 0xFFFF;
+        } else {
+            pc = (pc + len) & 0xFFFF;
+        }
+        if ((tag & TraceFileWriter.TAG_FLAGS) != 0) flags = readByte();
+        if ((tag & TraceFileWriter.TAG_SP) != 0) sp = (sp + readZigzag()) & 0xFFFF;
+        if ((tag & TraceFileWriter.TAG_BANK) != 0) bank = readByte();
+        if ((tag & TraceFileWriter.TAG_REGS) != 0) {
+            int mask = readByte();
+            for (int i = 0; i < 8; i++) {
+                if ((mask & (1 << i)) != 0) regs[i] = readWord();
+            }
+        }
+
+        instr = readWord();
+        srcExt = 0;
+        dstExt = 0;
+        int exts = TraceFileWriter.extensionCount(instr);
+        if (exts == 1) {
+            if (TraceFileWriter.srcHasExtension(instr)) srcExt = readWord(); else dstExt = readWord();
+        } else if (exts == 2) {
+            srcExt = readWord();
+            dstExt = readWord();
+        }
+        len = 2 + 2 * exts;
+        seq++;
+        return true;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException("Truncated trace record at #" + (seq + 1));
+        return b;
+    }
+
+    private int readWord() throws IOException {
+        return (readByte() << 8) | readByte();
+    }
+
+    private int readZigzag() throws IOException {
+        int z = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = readByte();
+            z |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    /** Zero-based index of the current record. */
+    public long seq() { return seq; }
+    public int pc() { return pc; }
+    public int instr() { return instr; }
+    public int srcExt() { return srcExt; }
+    public int dstExt() { return dstExt; }
+    public int flags() { return flags; }
+    public int sp() { return sp; }
+    public int bank() { return bank; }
+    public int reg(int i) { return regs[i]; }
+
+    public String disassembly() {
+        return Disassembler.disassembleInstruction(instr, srcExt, dstExt);
+    }
+
+    /** One text line for the current record: the {@link InstructionTrace.Entry} layout plus registers. */
+    public String format() {
+        return String.format("#%-10d $%04X  %04X  FLAGS=%02X SP=%04X BANK=%d  R0=%04X R1=%04X R2=%04X R3=%04X R4=%04X R5=%04X R6=%04X R7=%04X  %s",
+            seq, pc, instr, flags, sp, bank,
+            regs[0], regs[1], regs[2], regs[3], regs[4], regs[5], regs[6], regs[7], disassembly());
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        DebugInfo debug = null;
+        int argi = 0;
+        if (args.length >= 2 && args[0].equals("--debug")) {
+            debug = DebugInfo.read(Path.of(args[1]));
+            argi = 2;
+        }
+        if (args.length - argi < 1 || args.length - argi > 2) {
+            System.err.println("Usage: TraceFileReader [--debug <program.bin.dbg>] <trace.fmt> [max-records]");
+            System.exit(2);
+        }
+        long max = args.length - argi == 2 ? Long.parseLong(args[argi + 1]) : Long.MAX_VALUE;
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        try (TraceFileReader r = new TraceFileReader(Path.of(args[argi]))) {
+            while (r.seq() + 1 < max && r.next()) {
+                out.write(r.format());
+                if (debug != null) {
+                    out.write("  ; " + debug.symbolize(r.pc()));
+                    DebugInfo.LineEntry line = debug.lineAt(r.pc());
+                    if (line != null) out.write(" " + line.file + ":" + line.line);
+                }
+                out.write('\n');
+            }
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,236 @@
+package com.fantasy.cpu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams every executed instruction to a compact binary trace file.
+ *
+ * File layout: an 8-byte magic {@code "FM16TRC1"} followed by one record per instruction.
+ * Each record starts with a tag byte (bit 7 always set, so a zero byte marks the end of
+ * data) and carries only what changed since the previous record:
+ *
+ *   tag bit 0  PC is not the fall-through of the previous instruction; a zigzag varint
+ *              PC delta follows (otherwise PC = previous PC + previous length)
+ *   tag bit 1  FLAGS changed: 1 byte
+ *   tag bit 2  SP changed: zigzag varint SP delta
+ *   tag bit 3  BANK changed: 1 byte
+ *   tag bit 4  registers changed: 1 byte mask, then 2 bytes per changed register
+ *   always     instruction word (2 bytes), then its extension words (2 bytes each)
+ *
+ * Register state is sampled before the instruction executes, like {@link InstructionTrace}.
+ * All multi-byte values are big-endian. A straight-line instruction with no extensions
+ * whose predecessor changed one register costs 6 bytes.
+ *
+ * Records are encoded into a small heap buffer and copied in bulk into a memory-mapped
+ * {@link FileChannel} window of {@link #DEFAULT_BLOCK_SIZE} bytes; the channel is only touched
+ * when a window fills up. {@link #flush()} makes everything recorded so far visible in the file. {@link #close()} truncates
+ * the file to the bytes actually written and detaches the writer from the CPU it was
+ * attached to; records arriving after close are dropped.
+ */
+public class TraceFileWriter implements TraceSink, Closeable {
+    public static final byte[] MAGIC = {'F', 'M', '1', '6', 'T', 'R', 'C', '1'};
+    public static final int DEFAULT_BLOCK_SIZE = 64 << 20;
+
+    static final int TAG_RECORD = 0x80;
+    static final int TAG_PC = 0x01;
+    static final int TAG_FLAGS = 0x02;
+    static final int TAG_SP = 0x04;
+    static final int TAG_BANK = 0x08;
+    static final int TAG_REGS = 0x10;
+
+    private static final int MAX_RECORD_BYTES = 1 + 3 + 1 + 3 + 1 + 1 + 16 + 6;
+    private static final int STAGE_SIZE = 64 << 10;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private MappedByteBuffer block;
+    private long blockStart; // file offset of block position 0
+    private final byte[] stage = new byte[STAGE_SIZE]; // records not yet copied into block
+    private int staged;
+
+    private final int[] lastRegs = new int[8];
+    private int lastPc, lastLen, lastFlags, lastSp, lastBank;
+    private long records;
+    private long closedSize = -1;
+    private Cpu attachedTo;
+
+    public TraceFileWriter(Path file) throws IOException {
+        this(file, DEFAULT_BLOCK_SIZE);
+    }
+
+    public TraceFileWriter(Path file, int blockSize) throws IOException {
+        if (blockSize < 4096) throw new IllegalArgumentException("Block size too small: " + blockSize);
+        this.blockSize = blockSize;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(0);
+        block.put(MAGIC);
+    }
+
+    /**
+     * Attach a writer for {@code file} to {@code cpu} and return it. Sinks already attached
+     * (e.g. an {@link InstructionTrace}) keep receiving instructions.
+     */
+    public static TraceFileWriter attach(Cpu cpu, Path file) throws IOException {
+        TraceFileWriter w = new TraceFileWriter(file);
+        cpu.trace = TraceSink.tee(cpu.trace, w);
+        w.attachedTo = cpu;
+        return w;
+    }
+
+    private void map(long offset) throws IOException {
+        blockStart = offset;
+        block = channel.map(FileChannel.MapMode.READ_WRITE, offset, blockSize);
+    }
+
+    public long records() { return records; }
+
+    /** Bytes written so far, including the header. */
+    public long size() { return block == null ? closedSize : blockStart + block.position() + staged; }
+
+    @Override
+    public void onInstruction(Cpu cpu, int pc, int instr, int srcExt, int dstExt) {
+        if (block == null) return; // closed
+        byte[] b = stage;
+        int p = staged;
+        if (p > b.length - MAX_RECORD_BYTES) {
+            drain();
+            p = 0;
+        }
+
+        int tagPos = p++;
+        int tag = TAG_RECORD;
+
+        pc &= 0xFFFF;
+        if (pc != ((lastPc + lastLen) & 0xFFFF)) {
+            tag |= TAG_PC;
+            p = putZigzag(b, p, (short) (pc - lastPc));
+        }
+        int flags = cpu.flags & 0xFF;
+        if (flags != lastFlags) {
+            tag |= TAG_FLAGS;
+            b[p++] = (byte) flags;
+            lastFlags = flags;
+        }
+        int sp = cpu.sp & 0xFFFF;
+        if (sp != lastSp) {
+            tag |= TAG_SP;
+            p = putZigzag(b, p, (short) (sp - lastSp));
+            lastSp = sp;
+        }
+        int bank = cpu.bankReg & 0xFF;
+        if (bank != lastBank) {
+            tag |= TAG_BANK;
+            b[p++] = (byte) bank;
+            lastBank = bank;
+        }
+        int[] regs = cpu.regs;
+        int mask = 0;
+        for (int i = 0; i < 8; i++) {
+            if ((regs[i] & 0xFFFF) != lastRegs[i]) mask |= 1 << i;
+        }
+        if (mask != 0) {
+            tag |= TAG_REGS;
+            b[p++] = (byte) mask;
+            for (int i = 0; i < 8; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    int v = regs[i] & 0xFFFF;
+                    b[p++] = (byte) (v >> 8);
+                    b[p++] = (byte) v;
+                    lastRegs[i] = v;
+                }
+            }
+        }
+
+        b[p++] = (byte) (instr >> 8);
+        b[p++] = (byte) instr;
+        int exts = extensionCount(instr);
+        if (exts > 0) {
+            int first = exts == 2 || srcHasExtension(instr) ? srcExt : dstExt;
+            b[p++] = (byte) (first >> 8);
+            b[p++] = (byte) first;
+        }
+        if (exts > 1) {
+            b[p++] = (byte) (dstExt >> 8);
+            b[p++] = (byte) dstExt;
+        }
+        b[tagPos] = (byte) tag;
+        staged = p;
+
+        lastPc = pc;
+        lastLen = 2 + 2 * exts;
+        records++;
+    }
+
+    /** Copy the staged records into the mapped window, mapping the next one as windows fill. */
+    private void drain() {
+        try {
+            int off = 0;
+            while (off < staged) {
+                if (!block.hasRemaining()) map(blockStart + block.position());
+                int n = Math.min(staged - off, block.remaining());
+                block.put(stage, off, n);
+                off += n;
+            }
+            staged = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int putZigzag(byte[] b, int p, int v) {
+        int z = (v << 1) ^ (v >> 31);
+        while ((z & ~0x7F) != 0) {
+            b[p++] = (byte) ((z & 0x7F) | 0x80);
+            z >>>= 7;
+        }
+        b[p++] = (byte) z;
+        return p;
+    }
+
+    /** Number of extension words that follow {@code instr}, as fetched by {@link Cpu#step()}. */
+    static int extensionCount(int instr) {
+        if (((instr >> 11) & 0x1F) == Cpu.JCOND) return 1;
+        int srcMode = (instr >> 8) & 3;
+        int dstMode = (instr >> 3) & 3;
+        int n = 0;
+        if (srcMode == Cpu.MODE_IMM || srcMode == Cpu.MODE_ABS) n++;
+        if (dstMode == Cpu.MODE_IMM || dstMode == Cpu.MODE_ABS) n++;
+        return n;
+    }
+
+    /** Whether the first extension word belongs to the source operand (JCOND's target does). */
+    static boolean srcHasExtension(int instr) {
+        if (((instr >> 11) & 0x1F) == Cpu.JCOND) return true;
+        int srcMode = (instr >> 8) & 3;
+        return srcMode == Cpu.MODE_IMM || srcMode == Cpu.MODE_ABS;
+    }
+
+    public void flush() {
+        if (block == null) return;
+        drain();
+        block.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (attachedTo != null) {
+            attachedTo.trace = TraceSink.remove(attachedTo.trace, this);
+            attachedTo = null;
+        }
+        if (block == null) return;
+        drain();
+        long end = size();
+        block.force();
+        block = null;
+        closedSize = end;
+        channel.truncate(end);
+        channel.close();
+    }
+}
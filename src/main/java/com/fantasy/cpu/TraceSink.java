@@ -0,0 +1,51 @@
+package com.fantasy.cpu;
+
+/**
+ * Receives every instruction executed by a {@link Cpu} once it has been fetched and
+ * decoded, before it executes. Attach with {@code cpu.trace = sink}; a null field
+ * costs one branch per instruction. Several sinks share the field through {@link #tee}.
+ *
+ * Extension words are passed per operand as decoded by {@link Cpu#step()}: for JCOND
+ * the branch target is {@code srcExt}. Values of operands without an extension are 0.
+ */
+public interface TraceSink {
+    void onInstruction(Cpu cpu, int pc, int instr, int srcExt, int dstExt);
+
+    /** Called when an instruction (or interrupt dispatch) traps, before the exception propagates. */
+    default void onTrap(Cpu cpu, RuntimeException trap) {}
+
+    /** A sink feeding {@code first} then {@code second}; either may be null. */
+    static TraceSink tee(TraceSink first, TraceSink second) {
+        if (first == null) return second;
+        if (second == null) return first;
+        return new Tee(first, second);
+    }
+
+    /** {@code chain} with {@code sink} taken out of it; null when nothing is left. */
+    static TraceSink remove(TraceSink chain, TraceSink sink) {
+        if (chain == sink) return null;
+        if (chain instanceof Tee t) return tee(remove(t.first, sink), remove(t.second, sink));
+        return chain;
+    }
+
+    final class Tee implements TraceSink {
+        final TraceSink first, second;
+
+        Tee(TraceSink first, TraceSink second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void onInstruction(Cpu cpu, int pc, int instr, int srcExt, int dstExt) {
+            first.onInstruction(cpu, pc, instr, srcExt, dstExt);
+            second.onInstruction(cpu, pc, instr, srcExt, dstExt);
+        }
+
+        @Override
+        public void onTrap(Cpu cpu, RuntimeException trap) {
+            first.onTrap(cpu, trap);
+            second.onTrap(cpu, trap);
+        }
+    }
+}
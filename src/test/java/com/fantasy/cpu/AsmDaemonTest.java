@@ -0,0 +1,109 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class AsmDaemonTest {
+
+    private static final String PROGRAM = String.join("\n",
+        "start:",
+        "    MOV 3, R0",
+        "    MOV 0x1234, R5",
+        "    MOV 1, $FE0A",
+        ".end");
+
+    @Test
+    public void assemblesDisassemblesAndRunsOverOneConnection() throws Exception {
+        try (AsmDaemon d = AsmDaemon.start(0); AsmClient c = new AsmClient(d.port())) {
+            AsmClient.Reply r = c.assemble(PROGRAM, "p.asm", AsmDaemon.DEBUG_INFO);
+            assertNull(r.error);
+            assertArrayEquals(new Assembler().assemble(PROGRAM), r.body);
+            DebugInfo dbg = DebugInfo.read(new ByteArrayInputStream(r.extra));
+            assertEquals(0, dbg.symbols().get("start"));
+            assertEquals("p.asm", dbg.entries().get(0).file);
+
+            AsmClient.Reply listing = c.disassemble(r.body);
+            assertNull(listing.error);
+            assertTrue(listing.text().contains("MOV"), listing.text());
+
+            AsmClient.Reply run = c.run(r.body, 0);
+            assertNull(run.error);
+            assertTrue(run.text().startsWith("exit=HALTED instructions=3"), run.text());
+            assertTrue(run.text().contains("R0=0003"), run.text());
+            assertTrue(run.text().contains("R5=1234"), run.text());
+        }
+    }
+
+    @Test
+    public void errorsAreReportedAndTheConnectionStaysUsable() throws Exception {
+        try (AsmDaemon d = AsmDaemon.start(0); AsmClient c = new AsmClient(d.port())) {
+            AsmClient.Reply r = c.assemble("    FROB R0\n.end\n", "bad.asm", 0);
+            assertNotNull(r.error);
+            assertTrue(r.error.contains("FROB"), r.error);
+            assertEquals("Unknown command: 88", c.request((byte) 'X', 0, "", 0, new byte[0]).error);
+            assertNull(c.assemble(PROGRAM, "p.asm", AsmDaemon.IMAGE_V2).error);
+        }
+    }
+
+    @Test
+    public void oversizedPayloadIsRejectedWithoutAllocating() throws Exception {
+        try (AsmDaemon d = AsmDaemon.start(0)) {
+            try (Socket s = new Socket(InetAddress.getLoopbackAddress(), d.port())) {
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                out.writeByte(AsmDaemon.ASSEMBLE);
+                out.writeByte(0);
+                out.writeUTF("huge.asm");
+                out.writeLong(0);
+                out.writeInt(Integer.MAX_VALUE);
+                out.flush();
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                assertEquals(AsmDaemon.ERROR, in.readUnsignedByte());
+                byte[] msg = new byte[in.readInt()];
+                in.readFully(msg);
+                assertTrue(new String(msg, StandardCharsets.UTF_8).startsWith("Payload length 2147483647 exceeds"));
+                assertEquals(0, in.readInt());
+                assertEquals(-1, in.read()); // connection closed
+            }
+            try (AsmClient c = new AsmClient(d.port())) {
+                assertNull(c.assemble(PROGRAM, "p.asm", 0).error);
+            }
+        }
+    }
+
+    @Test
+    public void servesClientsConcurrently() throws Exception {
+        try (AsmDaemon d = AsmDaemon.start(0)) {
+            ExecutorService pool = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<byte[]>> results = new ArrayList<>();
+                for (int i = 0; i < 16; i++) {
+                    String src = PROGRAM.replace("MOV 3, R0", "MOV " + i + ", R0");
+                    results.add(pool.submit(() -> {
+                        try (AsmClient c = new AsmClient(d.port())) {
+                            return c.assemble(src, "p.asm", 0).body;
+                        }
+                    }));
+                }
+                for (int i = 0; i < 16; i++) {
+                    String src = PROGRAM.replace("MOV 3, R0", "MOV " + i + ", R0");
+                    assertArrayEquals(new Assembler().assemble(src), results.get(i).get());
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+}
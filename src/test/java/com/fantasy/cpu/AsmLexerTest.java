@@ -0,0 +1,89 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class AsmLexerTest {
+
+    @Test
+    public void splitsOperandsLikeTheOldRegexSplit() {
+        assertArrayEquals(new String[] {"R0", "[R1]"}, AsmLexer.splitOperands("R0 ,  [R1]"));
+        assertArrayEquals(new String[] {"", "R1"}, AsmLexer.splitOperands(",R1"));
+        assertArrayEquals(new String[] {"R0"}, AsmLexer.splitOperands("R0,"));
+        assertEquals(0, AsmLexer.splitOperands(",").length);
+        assertEquals(3, AsmLexer.firstSpace("MOV\tR0"));
+        assertEquals(-1, AsmLexer.firstSpace("NOP"));
+    }
+
+    @Test
+    public void classifiesOperandsWithPrecomputedValues() {
+        AsmLexer.Operand o = AsmLexer.operand("0x1F");
+        assertEquals(AsmLexer.IMM, o.kind);
+        assertEquals(0x1F, o.value);
+        assertEquals(0b1010, AsmLexer.operand("%1010").value);
+        assertEquals(1234, AsmLexer.operand("1234").value);
+        assertEquals(0x2345, AsmLexer.operand("0x12345").value); // masked to 16 bits
+        assertEquals(AsmLexer.INVALID, AsmLexer.operand("0xZZ").value);
+        assertEquals(AsmLexer.INVALID, AsmLexer.operand("0xFFFFFFFF").value);
+
+        o = AsmLexer.operand("$BEEF");
+        assertEquals(AsmLexer.ADDR, o.kind);
+        assertEquals(0xBEEF, o.value);
+        assertEquals(AsmLexer.INVALID, AsmLexer.operand("$12345").value);
+
+        o = AsmLexer.operand("r7");
+        assertEquals(AsmLexer.REG, o.kind);
+        assertEquals(7, o.reg);
+        o = AsmLexer.operand("[ R3 ]");
+        assertEquals(AsmLexer.IND, o.kind);
+        assertEquals(3, o.reg);
+        assertEquals(AsmLexer.INVALID, AsmLexer.operand("[X]").reg);
+
+        o = AsmLexer.operand("Result_1");
+        assertEquals(AsmLexer.IDENT, o.kind);
+        assertEquals("Result_1", o.text);
+        assertEquals(AsmLexer.EXPR, AsmLexer.operand("-5").kind); // unary minus
+        assertEquals(AsmLexer.OTHER, AsmLexer.operand("5-").kind);
+    }
+
+    @Test
+    public void literalAndLabelHelpers() {
+        assertEquals(0xDEAD, AsmLexer.literal("$DEAD"));
+        assertEquals(0xDEAD, AsmLexer.literal("$0xdead"));
+        assertEquals(AsmLexer.INVALID, AsmLexer.literal("DEAD"));
+        assertEquals(AsmLexer.INVALID, AsmLexer.literal("%102"));
+        assertTrue(AsmLexer.isLabelName("_loop-2"));
+        assertFalse(AsmLexer.isLabelName("2loop"));
+        assertFalse(AsmLexer.isLabelName("a.b"));
+    }
+
+    @Test
+    public void lowerCaseRegistersAndRLabelsAreSizedCorrectly() throws Exception {
+        // 'r1' used to be sized as a label and 'Result' as a register, shifting later labels
+        String src = String.join("\n",
+            "start:",
+            "    mov r1, r2",
+            "    MOV Result, R0",
+            "    JMP start",
+            "Result:",
+            "    .word 0x1234",
+            ".end");
+        byte[] img = new Assembler().assemble(src);
+        MachineImage m = MachineImage.of(img);
+        byte[] mem = new byte[0x10000];
+        m.loadInto(mem, 0);
+        // MOV r1,r2 (2) + MOV Result,R0 (4) + JMP start (4) -> Result at $000A
+        assertEquals(0x00, mem[4] & 0xFF);
+        assertEquals(0x0A, mem[5] & 0xFF);
+        assertEquals(0x12, mem[10] & 0xFF);
+        assertEquals(0x34, mem[11] & 0xFF);
+    }
+
+    @Test
+    public void undefinedJcondTargetIsReported() {
+        String src = String.join("\n", "    JCOND EQ, nowhere", ".end");
+        AssembleException e = assertThrows(AssembleException.class, () -> new Assembler().assemble(src));
+        assertTrue(e.getMessage().contains("nowhere"), e.getMessage());
+    }
+}
@@ -0,0 +1,73 @@
+package com.fantasy.cpu;
+
+import java.util.Random;
+
+/**
+ * Parse-and-assemble throughput of {@link Assembler} on a generated source. Not a unit test;
+ * run with
+ *   mvn -q test-compile
+ *   java -cp target/classes:target/test-classes com.fantasy.cpu.AssemblerBenchmark [lines] [iterations]
+ *
+ * The source mixes register, indirect, immediate, address and label operands, comments and
+ * labels, roughly like hand-written code. It must fit in 64 KiB, so the default is 10000
+ * lines; larger sources are measured by repeating the assembly.
+ *
+ * Also reported: a one-line edit near the top of the file through {@link AssemblySession},
+ * alternating between an instruction of the same size and a longer one (which moves every
+ * label after it).
+ */
+public class AssemblerBenchmark {
+
+    public static void main(String[] args) {
+        int lineCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        String source = source(lineCount);
+        Assembler a = new Assembler();
+        for (int round = 0; round < 2; round++) { // first round is warm-up
+            long t0 = System.nanoTime();
+            int bytes = 0;
+            for (int i = 0; i < iterations; i++) bytes += a.assemble(source).length;
+            long t1 = System.nanoTime();
+            if (round == 1) {
+                double ms = (t1 - t0) / 1e6 / iterations;
+                System.out.printf("%d lines: %.2f ms/assembly, %.0f klines/s (%d bytes out)%n",
+                    lineCount, ms, lineCount / ms, bytes / iterations);
+            }
+        }
+
+        AssemblySession session = new AssemblySession("bench.asm", source);
+        String[] edits = {"    ADD R1, [R2]", "    ADD R1, [R3]", "    ADD 0x55, [R2]"};
+        for (int round = 0; round < 2; round++) {
+            long t0 = System.nanoTime();
+            int reencoded = 0, patched = 0;
+            for (int i = 0; i < iterations; i++) {
+                session.setLine(3, edits[i % edits.length]);
+                reencoded += session.lastReencoded();
+                patched += session.lastPatched();
+            }
+            long t1 = System.nanoTime();
+            if (round == 1) {
+                System.out.printf("one-line edit: %.2f ms/reassembly, %.1f instructions re-encoded, %.1f label words patched on average%n",
+                    (t1 - t0) / 1e6 / iterations, (double) reencoded / iterations, (double) patched / iterations);
+            }
+        }
+    }
+
+    static String source(int lineCount) {
+        Random r = new Random(1);
+        StringBuilder sb = new StringBuilder(".org $0100\n");
+        for (int i = 0; i < lineCount; i++) {
+            int target = i / 50 * 50;
+            if (i % 50 == 0) sb.append("loop").append(i).append(":\n");
+            switch (i % 6) {
+                case 0: sb.append(String.format("    MOV 0x%04X, R%d   ; load%n", r.nextInt(0x10000), i % 8)); break;
+                case 1: sb.append(String.format("    ADD R%d, [R%d]%n", i % 8, (i + 1) % 8)); break;
+                case 2: sb.append(String.format("    MOV.B %%1010, $8%03d%n", i % 1000)); break;
+                case 3: sb.append(String.format("    CMP %d, R1%n", i % 1000)); break;
+                case 4: sb.append("    JCOND NE, loop").append(target).append('\n'); break;
+                default: sb.append("    CALL Loop").append(target).append('\n'); break;
+            }
+        }
+        return sb.append(".end\n").toString();
+    }
+}
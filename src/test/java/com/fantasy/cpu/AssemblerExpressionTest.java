@@ -0,0 +1,114 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class AssemblerExpressionTest {
+
+    private static byte[] asm(String source) {
+        return new Assembler().assemble(source);
+    }
+
+    private static void assertSame(String expected, String source) {
+        assertArrayEquals(asm(expected), asm(source), source);
+    }
+
+    @Test
+    void operatorsFollowCPrecedence() {
+        assertSame(
+            "    MOV 81, R0\n    MOV 9, R1\n    MOV 19, R2\n    MOV 0x0F, R3\n    MOV 5, R4\n    MOV 14, R5\n    MOV 5, R6\n    MOV.B 0xF0, R7\n.end\n",
+            ".equ W, 40\n    MOV W*2+1, R0\n    MOV (1 + 2) * 3, R1\n    MOV 1<<4|3, R2\n    MOV 0xFF00>>8&0x0F, R3\n"
+            + "    MOV 10-3-2, R4\n    MOV 100/7, R5\n    MOV 6^3, R6\n    MOV.B W*6, R7\n.end\n");
+    }
+
+    @Test
+    void shiftsAreSixteenBitsWide() {
+        assertSame(
+            "    MOV 0, R0\n    MOV 0, R1\n    MOV 0x8000, R2\n    MOV 0, R3\n    MOV 0x3FFC, R4\n.end\n",
+            "    MOV 1<<40, R0\n    MOV 1<<16, R1\n    MOV 1<<15, R2\n    MOV $FFFF>>32, R3\n    MOV -16>>2, R4\n.end\n");
+    }
+
+    @Test
+    void unaryMinusAndComplement() {
+        assertSame(
+            "    MOV 0xFFFA, R0\n    MOV 0xFFF0, R1\n    MOV 2, R2\n.word 0xFFFF\n.end\n",
+            "    MOV 2*-3, R0\n    MOV ~0x0F, R1\n    MOV -(1-3), R2\n.word -1\n.end\n");
+        assertSame("    NOP\n    NOP\n.end\n", ".rept -(-2)\n    NOP\n.endr\n.end\n");
+        AssembleException e = assertThrows(AssembleException.class, () -> asm(".rept -1\n    NOP\n.endr\n.end\n"));
+        assertTrue(e.getMessage().startsWith("Negative .rept count: -1"), e.getMessage());
+    }
+
+    @Test
+    void labelArithmeticKeepsAddressesAbsolute() {
+        // buf is at $000C: three 4-byte instructions before it
+        assertSame(
+            "    MOV R0, $000E\n    MOV 4, R1\n    JMP $0010\nbuf: .word 0, 0, 0\n.word $000E, $8010\n.end\n",
+            "    MOV R0, buf+2\n    MOV buf+4-buf, R1\n    JMP end-2\nbuf: .word 0, 0, 0\nend:\n.word buf + 2, $8000+0x10\n.end\n");
+        assertSame("    MOV 0x12, R0\n.end\n", "    MOV $1234>>8, R0\n.end\n");
+        assertSame(".org $0110\n    NOP\n.end\n", ".equ BASE, $100\n.org BASE+0x10\n    NOP\n.end\n");
+    }
+
+    @Test
+    void equExpressionsAreAddressesOnlyWhenOneAddressIsLeft() {
+        assertSame(
+            "    MOV R0, $8050\n    MOV 80, R1\n    MOV 4, R2\n.end\n",
+            ".equ SCREEN, $8000\n.equ ROW, 640/8\n.equ CELL, SCREEN+ROW\n.equ WIDTH, CELL-SCREEN\n.equ SHIFT, 1<<2\n"
+            + "    MOV R0, CELL\n    MOV WIDTH, R1\n    MOV SHIFT, R2\n.end\n");
+    }
+
+    @Test
+    void labelsWithDashesWinOverSubtraction() {
+        assertSame("    JMP $0004\n    NOP\n.end\n", "    JMP my-label\nmy-label:\n    NOP\n.end\n");
+        assertSame("    MOV 3, R0\n.end\n", ".equ A, 5\n.equ B, 2\n    MOV A-B, R0\n.end\n");
+    }
+
+    @Test
+    void errorsNameTheExpression() {
+        AssembleException e = assertThrows(AssembleException.class, () -> asm("    MOV 4/(2-2), R0\n.end\n"));
+        assertTrue(e.getMessage().startsWith("Division by zero in expression 4/(2-2)"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm("    MOV nowhere+1, R0\n.end\n"));
+        assertTrue(e.getMessage().startsWith("Undefined symbol nowhere in expression nowhere+1"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm("    MOV.B 0x80<<1, R0\n.end\n"));
+        assertTrue(e.getMessage().contains("too large for .B"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm("    MOV (1+2, R0\n.end\n"));
+        assertTrue(e.getMessage().contains("(1+2"), e.getMessage());
+    }
+
+    @Test
+    void forwardLabelsInExpressions() {
+        assertSame("    MOV R0, $0010\n    MOV 2, R1\n    JMP $000A\n    NOP\n    NOP\n.end\n",
+            "    MOV R0, tail+2\n    MOV tail-head, R1\n    JMP tail - 4\nhead:\n    NOP\ntail:\n    NOP\n.end\n");
+    }
+
+    @Test
+    void objectFilesRelocateLabelPlusConstant() throws Exception {
+        Assembler lib = new Assembler();
+        lib.parse(".global table\n    NOP\ntable: .word 10, 20, 30\n.end\n", "lib.asm");
+        Assembler main = new Assembler();
+        main.parse(".extern table\n    MOV table+4, R0\n    MOV R0, local-2\n    MOV 0xFE0A>>8, R1\nlocal: .word table+2\n.end\n", "main.asm");
+        ObjectFile obj = main.assembleObject();
+        assertEquals(3, obj.relocations().size());
+        assertEquals(4, obj.relocations().get(0).addend);
+        assertEquals(0x000A, obj.relocations().get(1).addend);
+
+        Linker l = new Linker().setOrigin(0x100);
+        l.add(obj).add(lib.assembleObject());
+        Cpu cpu = new Cpu();
+        MachineImage.of(l.link()).loadInto(cpu);
+        int table = l.symbols().get("table");
+        assertEquals(0x100 + 0x0E + 2, table);
+        assertEquals(table + 4, word(cpu, 0x102));
+        assertEquals(0x100 + 0x0A, word(cpu, 0x106));
+        assertEquals(table + 2, word(cpu, 0x10C));
+
+        Assembler bad = new Assembler();
+        bad.parse("    MOV here*2, R0\nhere: NOP\n.end\n", "bad.asm");
+        AssembleException e = assertThrows(AssembleException.class, bad::assembleObject);
+        assertTrue(e.getMessage().contains("not relocatable"), e.getMessage());
+    }
+
+    private static int word(Cpu cpu, int addr) {
+        return (cpu.memory[addr] & 0xFF) << 8 | (cpu.memory[addr + 1] & 0xFF);
+    }
+}
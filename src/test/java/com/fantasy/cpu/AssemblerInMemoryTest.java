@@ -0,0 +1,58 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AssemblerInMemoryTest {
+
+    @Test
+    void inMemoryImageMatchesFileOutput() throws Exception {
+        Path src = Path.of("ASM/FullParserTest.asm");
+        Path bin = Files.createTempFile("mem", ".bin");
+        Assembler a = new Assembler();
+        a.parse(src);
+        a.assemble(bin);
+        byte[] expected = Files.readAllBytes(bin);
+        Files.delete(bin);
+
+        String text = Files.readString(src);
+        assertArrayEquals(expected, new Assembler().assemble(text));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Assembler().assemble(new StringReader(text), out);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    void assemblerCanBeReusedForManySnippets() {
+        Assembler a = new Assembler();
+        for (int i = 0; i < 50; i++) {
+            byte[] image = a.assemble(".start\nTop:\n    MOV 0x" + Integer.toHexString(i) + ", R0\n    JMP Top\n.end\n");
+            Cpu cpu = new Cpu();
+            try {
+                MachineImage.of(image).loadInto(cpu);
+            } catch (java.io.IOException e) {
+                throw new AssertionError(e);
+            }
+            cpu.step();
+            assertEquals(i, cpu.regs[0]);
+            assertEquals(1, a.debugInfo().symbols().size());
+        }
+    }
+
+    @Test
+    void errorsNameTheInMemorySourceAndLine() {
+        Assembler a = new Assembler();
+        a.assemble(".start\n    NOP\n.end\n");
+        AssembleException e = assertThrows(AssembleException.class,
+            () -> a.assemble(".start\n    NOP\n    BOGUS R1\n.end\n"));
+        assertEquals(Assembler.IN_MEMORY_SOURCE, e.getSourceFile());
+        assertEquals(2, e.getLineNumber()); // 0-based, as for files
+    }
+}
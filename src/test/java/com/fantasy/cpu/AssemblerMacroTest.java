@@ -0,0 +1,154 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AssemblerMacroTest {
+
+    private static byte[] asm(String source) {
+        return new Assembler().assemble(source);
+    }
+
+    private static void assertSame(String expected, String source) {
+        assertArrayEquals(asm(expected), asm(source), source);
+    }
+
+    @Test
+    void equDefinesImmediatesAndAddresses() {
+        assertSame(
+            "loop:\n    MOV 10, R0\n    MOV R0, $8000\n    MOV 10, R1\n    JMP loop\n    MOV.B 200, R2\n.word 10, $8000\n.end\n",
+            ".equ COUNT, 10\n.equ SCREEN, $8000\n.equ ALIAS, count\nloop:\n.equ AGAIN, loop\n"
+            + "    MOV COUNT, R0\n    MOV R0, screen\n    MOV ALIAS, R1\n    JMP AGAIN\n    MOV.B 200, R2\n.word COUNT, SCREEN\n.end\n");
+        AssembleException e = assertThrows(AssembleException.class, () -> asm(".equ BIG, 300\n    MOV.B BIG, R0\n.end\n"));
+        assertTrue(e.getMessage().contains("too large for .B"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm(".equ X, 1\n.equ X, 2\n.end\n"));
+        assertTrue(e.getMessage().startsWith("Symbol already defined: X"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm(".equ X, 1\nX:\n    NOP\n.end\n"));
+        assertTrue(e.getMessage().contains("already defined by .equ"), e.getMessage());
+    }
+
+    @Test
+    void forwardEquIsResolved() {
+        assertSame("    MOV 5, R0\n    MOV R1, $FE00\n.end\n",
+            "    MOV LATER, R0\n    MOV R1, PORT\n.equ LATER, 5\n.equ PORT, $FE00\n.end\n");
+    }
+
+    @Test
+    void reptUnrollsNestedBlocks() {
+        assertSame(
+            "    ADD R1, R0\n    INC R2\n    INC R2\n    ADD R1, R0\n    INC R2\n    INC R2\n    ADD R1, R0\n    INC R2\n    INC R2\n.end\n",
+            ".equ N, 3\n.rept N\n    ADD R1, R0\n    .rept 2 ; inner\n    INC R2\n    .endr\n.endr\n.end\n");
+        assertSame("    NOP\n.end\n", ".rept 0\n    INC R0\n.endr\n    NOP\n.end\n");
+    }
+
+    @Test
+    void macrosSubstituteArgumentsAndUniqueLabels() {
+        String src = String.join("\n",
+            ".macro COPY src, dst, n",
+            "    MOV \\n, R2",
+            "copy\\@:",
+            "    MOV [\\src], [\\dst]",
+            "    DEC R2",
+            "    JCOND NE, copy\\@",
+            ".endm",
+            ".macro TWICE",
+            "    \\1 \\2",
+            "    \\1 \\2",
+            ".endm",
+            "start:  copy R0, R1, 8",
+            "    COPY R3, R4, 0x10",
+            "    TWICE INC, R5",
+            "    TWICE INC, R5",
+            "    JMP start",
+            ".end");
+        String expected = String.join("\n",
+            "start:",
+            "    MOV 8, R2",
+            "copy_1:",
+            "    MOV [R0], [R1]",
+            "    DEC R2",
+            "    JCOND NE, copy_1",
+            "    MOV 0x10, R2",
+            "copy_2:",
+            "    MOV [R3], [R4]",
+            "    DEC R2",
+            "    JCOND NE, copy_2",
+            "    INC R5", "    INC R5", "    INC R5", "    INC R5",
+            "    JMP start",
+            ".end");
+        assertSame(expected, src);
+        Assembler a = new Assembler();
+        a.parse(src, "m.asm");
+        a.assemble();
+        assertEquals(0, a.debugInfo().symbols().get("start"));
+    }
+
+    @Test
+    void macroErrors() {
+        AssembleException e = assertThrows(AssembleException.class, () -> asm(".macro M a\n    INC \\a\n.endm\n    M R0, R1\n.end\n"));
+        assertTrue(e.getMessage().startsWith("Macro M expects 1 arguments, got 2"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm(".macro M a\n    INC \\b\n.endm\n    M R0\n.end\n"));
+        assertTrue(e.getMessage().startsWith("Macro M has no parameter \\b"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm(".macro M\n    NOP\n.end\n"));
+        assertTrue(e.getMessage().startsWith("Missing .endm for .macro"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm(".macro LOOP\n    LOOP\n.endm\n    LOOP\n.end\n"));
+        assertTrue(e.getMessage().contains("nested more than"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm("    NOP\n.endr\n.end\n"));
+        assertTrue(e.getMessage().startsWith(".endr without .rept"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> asm(".macro BAD\n    FROB R0\n.endm\n    NOP\n    BAD\n.end\n"));
+        assertEquals(1, e.getLineNumber(), "errors point at the line in the macro body");
+    }
+
+    @Test
+    void includeIsResolvedNextToTheSourceAndCached(@TempDir Path tmp) throws Exception {
+        Path inc = tmp.resolve("lib/defs.inc");
+        Files.createDirectories(inc.getParent());
+        Files.writeString(inc, ".equ SPEED, 3 ; constants\n.macro HALT\n    MOV 1, $FE0A\n.endm\n");
+        Path main = tmp.resolve("main.asm");
+        Files.writeString(main, ".include \"lib/defs.inc\"\n    MOV SPEED, R0\n    HALT\n.end\n");
+        Assembler a = new Assembler();
+        a.parse(main);
+        assertArrayEquals(asm("    MOV 3, R0\n    MOV 1, $FE0A\n.end\n"), a.assemble());
+
+        Files.writeString(inc, ".equ SPEED, 40\n.macro HALT\n    MOV 1, $FE0A\n.endm\n");
+        a.parse(main);
+        assertArrayEquals(asm("    MOV 40, R0\n    MOV 1, $FE0A\n.end\n"), a.assemble(), "changed file is read again");
+
+        AssemblyCache cache = new AssemblyCache(8);
+        cache.assemble(Files.readString(main), main.toString());
+        Files.writeString(inc, ".equ SPEED, 7\n.macro HALT\n    MOV 1, $FE0A\n.endm\n");
+        assertArrayEquals(asm("    MOV 7, R0\n    MOV 1, $FE0A\n.end\n"), cache.assemble(Files.readString(main), main.toString()).image());
+    }
+
+    @Test
+    void includeErrors(@TempDir Path tmp) throws Exception {
+        Path self = tmp.resolve("self.inc");
+        Files.writeString(self, ".include \"self.inc\"\n");
+        Path main = tmp.resolve("main.asm");
+        Files.writeString(main, ".include \"self.inc\"\n.end\n");
+        AssembleException e = assertThrows(AssembleException.class, () -> new Assembler().parse(main));
+        assertTrue(e.getMessage().startsWith("Recursive .include"), e.getMessage());
+
+        Files.writeString(self, "    NOP\n    FROB R1\n");
+        e = assertThrows(AssembleException.class, () -> new Assembler().parse(main));
+        assertEquals(self.toString(), e.getSourceFile());
+        assertEquals(1, e.getLineNumber());
+
+        Files.writeString(main, ".include \"missing.inc\"\n.end\n");
+        e = assertThrows(AssembleException.class, () -> new Assembler().parse(main));
+        assertTrue(e.getMessage().startsWith("Cannot read include file"), e.getMessage());
+    }
+
+    @Test
+    void sessionsFallBackToFullParseWithMacros() {
+        AssemblySession s = new AssemblySession("m.asm", ".macro TWO\n    INC R0\n    INC R0\n.endm\n    TWO\n    NOP\n.end\n");
+        s.setLine(5, "    TWO");
+        assertFalse(s.lastEditIncremental());
+        assertArrayEquals(asm("    INC R0\n    INC R0\n    INC R0\n    INC R0\n.end\n"), s.image());
+    }
+}
@@ -0,0 +1,89 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class AssemblerPeepholeTest {
+
+    private static Assembler optimized(String source) {
+        Assembler a = new Assembler();
+        a.setOptimize(true);
+        a.parse(source, "test.asm");
+        return a;
+    }
+
+    private static void assertUnchanged(String source) {
+        Assembler a = optimized(source);
+        assertEquals(0, a.optimizedInstructions(), source);
+        assertArrayEquals(new Assembler().assemble(source), a.assemble(), source);
+    }
+
+    private static Cpu run(byte[] image) throws Exception {
+        Cpu cpu = new Cpu();
+        MachineImage img = MachineImage.of(image);
+        img.loadInto(cpu);
+        cpu.pc = img.lowestAddress();
+        assertEquals(ExitReason.HALTED, cpu.run(1000));
+        return cpu;
+    }
+
+    @Test
+    void collapsesTemplateCode() throws Exception {
+        String src = String.join("\n",
+            "start:",
+            "    CALL sub",
+            "    RET",
+            "sub:",
+            "    MOV R1, R1",
+            "    JMP hop",
+            "hop:",
+            "    JMP done",
+            "done:",
+            "    INC R0",
+            "    CMP 0, R0",
+            "    JCOND EQ, zero",
+            "    DEC R0",
+            "zero:",
+            "    ADD R0, R2",
+            "    MOV.B 1, $FE0A",
+            ".end");
+        Assembler a = optimized(src);
+        assertEquals(6, a.optimizedInstructions());
+        assertEquals(4, a.optimizedExtensionWords());
+        byte[] image = a.assemble();
+        assertArrayEquals(new Assembler().assemble(
+            "start:\n    INC R0\n    JCOND EQ, zero\n    DEC R0\nzero:\n    ADD R0, R2\n    MOV.B 1, $FE0A\n.end\n"), image);
+        assertEquals(0x0008, a.debugInfo().symbols().get("zero"));
+        assertEquals(0, run(image).regs[2]);
+    }
+
+    @Test
+    void threadsJumpsWithoutRemovingThem() {
+        String src = "    JCOND NE, a\n    CALL b\n    NOP\na:  JMP b\n    NOP\nb:  JMP $FE00\n.end\n";
+        assertUnchanged(src); // numeric jump target: nothing may move
+        Assembler a = optimized("    JCOND NE, a\n    CALL a\n    NOP\na:  JMP b\n    NOP\nb:  NOP\n.end\n");
+        assertEquals(0, a.optimizedInstructions());
+        assertArrayEquals(new Assembler().assemble("    JCOND NE, b\n    CALL b\n    NOP\na:  JMP b\n    NOP\nb:  NOP\n.end\n"), a.assemble());
+    }
+
+    @Test
+    void keepsCompareWhenOtherFlagsAreRead() {
+        assertUnchanged("    ADD R1, R0\n    CMP 0, R0\n    JCOND CS, x\n    INC R1\nx:  INC R2\n.end\n");
+        assertUnchanged("    AND 0xFF, R0\n    CMP 0, R0\n    JCOND MI, x\n    INC R1\nx:  INC R2\n.end\n");
+        assertUnchanged("    SUB R1, R0\n    CMP 0, R1\n    JCOND EQ, x\n    INC R1\nx:  INC R2\n.end\n");
+        assertUnchanged("    SUB R1, R0\n    CMP 0, R0\n    JCOND EQ, x\n    RET\nx:  INC R2\n.end\n");
+        assertUnchanged("    SUB R1, R0\nagain:\n    CMP 0, R0\n    JCOND EQ, x\n    INC R1\nx:  INC R2\n.end\n");
+        assertUnchanged("    SUB.B R1, R0\n    CMP 0, R0\n    JCOND EQ, x\n    INC R1\nx:  INC R2\n.end\n");
+    }
+
+    @Test
+    void respectsLabelsAndJumpLoops() {
+        assertUnchanged("    CALL f\nback:\n    RET\nf:  NOP\n    RET\n.end\n");
+        assertUnchanged("a:  JMP b\n    NOP\nb:  JMP a\n.end\n");
+        assertUnchanged("    MOV.B R0, R0\n.end\n");
+        Assembler off = new Assembler();
+        off.parse("    MOV R0, R0\n.end\n", "test.asm");
+        assertEquals(0, off.optimizedInstructions());
+    }
+}
@@ -0,0 +1,109 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class AssemblyCacheTest {
+
+    private static String program(int value) {
+        return String.join("\n",
+            "start:",
+            "    MOV " + value + ", R0",
+            "    JMP start",
+            ".end");
+    }
+
+    @Test
+    public void hitReturnsTheSameImageWithoutAssembling() {
+        AssemblyCache cache = new AssemblyCache(8);
+        AssemblyCache.Result first = cache.assemble(program(1), "a.asm");
+        AssemblyCache.Result second = cache.assemble(program(1), "a.asm");
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+        assertArrayEquals(new Assembler().assemble(program(1)), second.image());
+        assertSame(first.debugInfo(), second.debugInfo());
+
+        // source name and image options are part of the key
+        cache.assemble(program(1), "b.asm");
+        cache.assemble(program(1), "a.asm", 2, false);
+        assertEquals(3, cache.misses());
+        String redundant = "    MOV R1, R1\n    INC R0\n.end\n";
+        Assembler optimizing = new Assembler();
+        optimizing.setOptimize(true);
+        optimizing.parse(redundant, "a.asm");
+        assertArrayEquals(new Assembler().assemble(redundant), cache.assemble(redundant, "a.asm", 1, false, false).image());
+        assertArrayEquals(optimizing.assemble(), cache.assemble(redundant, "a.asm", 1, false, true).image());
+        assertEquals(5, cache.misses());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        AssemblyCache cache = new AssemblyCache(2);
+        cache.assemble(program(1), "p.asm");
+        cache.assemble(program(2), "p.asm");
+        cache.assemble(program(1), "p.asm"); // 1 is now the most recent
+        cache.assemble(program(3), "p.asm"); // evicts 2
+        assertEquals(2, cache.size());
+        cache.assemble(program(1), "p.asm");
+        assertEquals(3, cache.misses());
+        cache.assemble(program(2), "p.asm");
+        assertEquals(4, cache.misses());
+    }
+
+    @Test
+    public void diskStoreSurvivesANewCache(@TempDir Path dir) {
+        AssemblyCache.Result r = new AssemblyCache(4, dir).assemble(program(7), "p.asm");
+        AssemblyCache fresh = new AssemblyCache(4, dir);
+        AssemblyCache.Result again = fresh.assemble(program(7), "p.asm");
+        assertEquals(1, fresh.diskHits());
+        assertEquals(0, fresh.misses());
+        assertArrayEquals(r.image(), again.image());
+        assertEquals(r.debugInfo().entries().toString(), again.debugInfo().entries().toString());
+        assertEquals(r.debugInfo().symbols(), again.debugInfo().symbols());
+    }
+
+    @Test
+    public void unwritableStoreStillAssembles(@TempDir Path dir) throws Exception {
+        Path notADirectory = Files.createFile(dir.resolve("store"));
+        AssemblyCache cache = new AssemblyCache(4, notADirectory);
+        assertArrayEquals(new Assembler().assemble(program(5)), cache.assemble(program(5), "p.asm").image());
+        cache.assemble(program(5), "p.asm");
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void concurrentRequestsAssembleOnce() throws Exception {
+        AssemblyCache cache = new AssemblyCache(8);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) results.add(pool.submit(() -> cache.assemble(program(9), "p.asm").image()));
+            byte[] expected = new Assembler().assemble(program(9));
+            for (Future<byte[]> f : results) assertArrayEquals(expected, f.get());
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, cache.misses());
+        assertEquals(31, cache.hits());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        AssemblyCache cache = new AssemblyCache(8);
+        String bad = "    MOV nowhere, R0\n.end\n";
+        assertThrows(AssembleException.class, () -> cache.assemble(bad, "bad.asm"));
+        assertThrows(AssembleException.class, () -> cache.assemble(bad, "bad.asm"));
+        assertEquals(0, cache.size());
+    }
+}
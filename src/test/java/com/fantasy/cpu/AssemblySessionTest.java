@@ -0,0 +1,144 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class AssemblySessionTest {
+
+    private static final String PROGRAM = String.join("\n",
+        "start:",
+        "    MOV 0x10, R0",
+        "loop:",
+        "    DEC R0",
+        "    CMP 0, R0",
+        "    JCOND NE, loop",
+        "    CALL sub",
+        "    JMP done",
+        "sub:",
+        "    MOV table, R1",
+        "    RET",
+        ".org $0200",
+        "done:",
+        "    MOV 1, $FE0A",
+        ".data",
+        "table:",
+        "    .word sub, done",
+        ".end");
+
+    private static void assertMatchesFreshAssembly(AssemblySession s) {
+        Assembler fresh = new Assembler();
+        fresh.parse(s.source(), "p.asm");
+        assertArrayEquals(fresh.assemble(), s.image(), s.source());
+        assertEquals(fresh.debugInfo().entries().toString(), s.debugInfo().entries().toString());
+        assertEquals(fresh.debugInfo().symbols(), s.debugInfo().symbols());
+    }
+
+    @Test
+    public void sameSizeEditReencodesOneLine() {
+        AssemblySession s = new AssemblySession("p.asm", PROGRAM);
+        s.setLine(1, "    MOV 0x20, R0");
+        assertTrue(s.lastEditIncremental());
+        assertEquals(1, s.lastReencoded());
+        assertMatchesFreshAssembly(s);
+    }
+
+    @Test
+    public void growingEditMovesLabelsAndReencodesTheirUsers() {
+        AssemblySession s = new AssemblySession("p.asm", PROGRAM);
+        s.setLine(3, "    SUB 1, R0"); // DEC R0 (2 bytes) -> SUB 1, R0 (4 bytes)
+        assertTrue(s.lastEditIncremental());
+        // the edited line is encoded again; CALL sub only gets its target word rewritten.
+        // 'loop' and 'done' did not move
+        assertEquals(1, s.lastReencoded());
+        assertEquals(1, s.lastPatched());
+        assertMatchesFreshAssembly(s);
+
+        s.insertLines(9, "    NOP", "    NOP");
+        assertTrue(s.lastEditIncremental());
+        assertMatchesFreshAssembly(s);
+        s.deleteLines(1, 2);
+        assertTrue(s.lastEditIncremental());
+        assertMatchesFreshAssembly(s);
+    }
+
+    @Test
+    public void movedLabelInsideAnExpressionReencodesItsLine() {
+        AssemblySession s = new AssemblySession("p.asm", "    NOP\n    MOV tail-2, R0\n    JMP tail\ntail:\n    NOP\n.end\n");
+        s.setLine(0, "    MOV 5, R1");
+        assertTrue(s.lastEditIncremental());
+        assertEquals(2, s.lastReencoded());
+        assertEquals(1, s.lastPatched());
+        assertMatchesFreshAssembly(s);
+    }
+
+    @Test
+    public void movingALabelThatAValueDependsOnFallsBackToFullParse() {
+        // .equ value fixed from a label while parsing
+        AssemblySession s = new AssemblySession("p.asm", "start: NOP\nBUF: .word 0\n.equ PTR, BUF\n    MOV PTR, R0\n.end\n");
+        s.setLine(0, "start: MOV 1, R0");
+        assertFalse(s.lastEditIncremental());
+        assertMatchesFreshAssembly(s);
+        s.setLine(3, "    MOV PTR, R1"); // nothing moves: still incremental
+        assertTrue(s.lastEditIncremental());
+        assertMatchesFreshAssembly(s);
+
+        // .org placed by an expression over a label
+        s = new AssemblySession("p.asm", "    NOP\nmid:\n    NOP\n.org mid+0x10\nfar:\n    JMP far\n.end\n");
+        s.setLine(0, "    MOV 1, R0");
+        assertFalse(s.lastEditIncremental());
+        assertMatchesFreshAssembly(s);
+    }
+
+    @Test
+    public void labelAndDirectiveEditsFallBackToFullParse() {
+        AssemblySession s = new AssemblySession("p.asm", PROGRAM);
+        s.setLine(11, ".org $0300");
+        assertFalse(s.lastEditIncremental());
+        assertMatchesFreshAssembly(s);
+
+        // renaming a label leaves 'JCOND NE, loop' undefined until the user is edited too
+        assertThrows(AssembleException.class, () -> s.setLine(2, "again:"));
+        assertFalse(s.lastEditIncremental());
+        assertThrows(IllegalStateException.class, s::image);
+        s.setLine(5, "    JCOND NE, again");
+        assertTrue(s.lastEditIncremental());
+        assertMatchesFreshAssembly(s);
+    }
+
+    @Test
+    public void errorsAreReportedAndTheNextEditRecovers() {
+        AssemblySession s = new AssemblySession("p.asm", PROGRAM);
+        AssembleException e = assertThrows(AssembleException.class, () -> s.setLine(4, "    FROB R0"));
+        assertTrue(e.getMessage().contains("FROB"), e.getMessage());
+        s.setLine(4, "    CMP 1, R0");
+        assertMatchesFreshAssembly(s);
+        assertThrows(AssembleException.class, () -> s.setLine(4, "    CMP nowhere, R0"));
+        s.setLine(4, "    CMP loop, R0");
+        assertTrue(s.lastEditIncremental());
+        assertMatchesFreshAssembly(s);
+    }
+
+    @Test
+    public void randomEditsMatchFreshAssembly() {
+        Random r = new Random(42);
+        String[] snippets = {
+            "    NOP", "    MOV 0x1234, R2", "    ADD R1, [R2]", "    CMP loop, R3", "    JMP sub",
+            "    JCOND EQ, done", "", "; comment", "    MOV.B 5, $0300", "    PUSH R4",
+        };
+        AssemblySession s = new AssemblySession("p.asm", PROGRAM);
+        for (int i = 0; i < 300; i++) {
+            int end = s.lineCount() - 6; // stay above .org $0200 .. .end
+            int from = r.nextInt(end);
+            int to = Math.min(end, from + r.nextInt(2));
+            String text = snippets[r.nextInt(snippets.length)];
+            // keep the labels where they are
+            if (s.line(from).endsWith(":") || (to > from && s.line(to - 1).endsWith(":"))) continue;
+            s.replaceLines(from, to, r.nextBoolean() ? List.of(text) : List.of(text, snippets[r.nextInt(snippets.length)]));
+            assertMatchesFreshAssembly(s);
+        }
+    }
+}
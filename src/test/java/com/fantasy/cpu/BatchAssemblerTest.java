@@ -0,0 +1,60 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BatchAssemblerTest {
+
+    private static String program(int i) {
+        return "start:\n    MOV " + i + ", R0\n    ADD R0, R1\n    JMP start\n.end\n";
+    }
+
+    @Test
+    public void assemblesADirectoryTreeAndCollectsFailures(@TempDir Path tmp) throws Exception {
+        Path src = tmp.resolve("src");
+        Files.createDirectories(src.resolve("sub"));
+        for (int i = 0; i < 40; i++) {
+            Path dir = i % 2 == 0 ? src : src.resolve("sub");
+            Files.writeString(dir.resolve("p" + i + ".asm"), program(i));
+        }
+        Files.writeString(src.resolve("bad1.asm"), "    FROB R0\n.end\n");
+        Files.writeString(src.resolve("sub/bad2.asm"), "    MOV nowhere, R0\n.end\n");
+        Files.writeString(src.resolve("notes.txt"), "not a source");
+
+        Path out = tmp.resolve("out");
+        BatchAssembler.Result r = new BatchAssembler().setParallelism(4).setMaxOpenFiles(1).setDebugInfo(true)
+            .assembleDirectory(src, out);
+
+        assertEquals(40, r.outputs().size());
+        assertEquals(2, r.failures().size());
+        assertFalse(r.succeeded());
+        for (int i = 0; i < 40; i++) {
+            Path bin = out.resolve((i % 2 == 0 ? "" : "sub/") + "p" + i + ".bin");
+            assertArrayEquals(new Assembler().assemble(program(i)), Files.readAllBytes(bin), bin.toString());
+            assertTrue(Files.exists(Path.of(bin + DebugInfo.FILE_SUFFIX)));
+        }
+        assertFalse(Files.exists(out.resolve("bad1.bin")));
+
+        AssembleException e = assertThrows(AssembleException.class, r::throwIfFailed);
+        assertTrue(e.getMessage().startsWith("2 of 42 files failed"), e.getMessage());
+        assertTrue(e.getMessage().contains("FROB"), e.getMessage());
+        assertTrue(e.getMessage().contains("nowhere"), e.getMessage());
+        assertEquals(2, e.getSuppressed().length);
+    }
+
+    @Test
+    public void explicitFileListUsesFileNames(@TempDir Path tmp) throws Exception {
+        Path a = tmp.resolve("a.asm");
+        Files.writeString(a, program(1));
+        BatchAssembler.Result r = new BatchAssembler().assemble(List.of(a, tmp.resolve("missing.asm")), tmp.resolve("out"));
+        assertEquals(tmp.resolve("out/a.bin"), r.outputs().get(a));
+        assertEquals(1, r.failures().size());
+        assertTrue(r.failures().values().iterator().next() instanceof java.io.IOException);
+    }
+}
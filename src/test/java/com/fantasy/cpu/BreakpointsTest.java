@@ -0,0 +1,99 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BreakpointsTest {
+    private Cpu cpu;
+
+    private int makeInstr(int opcode, int size, int srcMode, int srcReg, int dstMode, int dstReg) {
+        return (opcode << 11) | (size << 10) | (srcMode << 8) | (srcReg << 5) | (dstMode << 3) | dstReg;
+    }
+
+    // $0000 INC R0; $0002 MOV R0, $2000; $0006 MOV $2100, R1; $000A JMP $0000
+    @BeforeEach
+    void setUp() {
+        cpu = new Cpu();
+        int[] words = {
+            makeInstr(Cpu.INC, 1, 0, 0, Cpu.MODE_REG, 0),
+            makeInstr(Cpu.MOV, 1, Cpu.MODE_REG, 0, Cpu.MODE_ABS, 0), 0x2000,
+            makeInstr(Cpu.MOV, 1, Cpu.MODE_ABS, 0, Cpu.MODE_REG, 1), 0x2100,
+            makeInstr(Cpu.JMP, 1, 0, 0, Cpu.MODE_ABS, 0), 0x0000,
+        };
+        for (int i = 0; i < words.length; i++) cpu.writeWord(i * 2, words[i]);
+        cpu.pc = 0;
+    }
+
+    @Test
+    void runsToLimitOrHaltWithoutBreakpoints() {
+        assertEquals(ExitReason.INSTRUCTION_LIMIT, cpu.run(8));
+        assertEquals(8, cpu.instructionCount);
+        assertEquals(2, cpu.regs[0]);
+        cpu.cpuCtrl = Cpu.CPU_HLT;
+        assertEquals(ExitReason.HALTED, cpu.run(8));
+        assertEquals(8, cpu.instructionCount);
+    }
+
+    @Test
+    void stopsBeforeBreakpointAndResumesPastIt() {
+        Breakpoints bp = Breakpoints.attach(cpu);
+        bp.addBreakpoint(0x0006);
+        assertEquals(ExitReason.BREAKPOINT, cpu.run(100));
+        assertEquals(0x0006, cpu.pc);
+        assertEquals(0x0006, bp.hitAddress());
+        assertEquals(2, cpu.instructionCount);
+
+        assertEquals(ExitReason.BREAKPOINT, cpu.run(100));
+        assertEquals(0x0006, cpu.pc);
+        assertEquals(6, cpu.instructionCount);
+        assertEquals(2, cpu.regs[0]);
+
+        bp.removeBreakpoint(0x0006);
+        assertFalse(bp.hasBreakpoint(0x0006));
+        assertEquals(ExitReason.INSTRUCTION_LIMIT, cpu.run(10));
+    }
+
+    @Test
+    void stepIgnoresBreakpoints() {
+        Breakpoints.attach(cpu).addBreakpoint(0x0000);
+        cpu.step();
+        assertEquals(0x0002, cpu.pc);
+        assertEquals(1, cpu.regs[0]);
+    }
+
+    @Test
+    void writeWatchpointStopsAfterTheWritingInstruction() {
+        Breakpoints bp = Breakpoints.attach(cpu);
+        bp.addWatchpoint(0x2001, 1, false, true);
+        assertEquals(ExitReason.WRITE_WATCHPOINT, cpu.run(100));
+        assertEquals(0x2001, bp.hitAddress());
+        assertEquals(0x0006, cpu.pc);
+        assertEquals(1, cpu.readWord(0x2000));
+    }
+
+    @Test
+    void readWatchpointIgnoresWritesAndInstructionFetches() {
+        Breakpoints bp = Breakpoints.attach(cpu);
+        bp.addWatchpoint(0x0000, 0x10, true, false); // the code itself
+        bp.addWatchpoint(0x2000, 2, true, false);    // only ever written
+        assertEquals(ExitReason.INSTRUCTION_LIMIT, cpu.run(50));
+
+        bp.addWatchpoint(0x2100, 2, true, false);
+        assertEquals(ExitReason.READ_WATCHPOINT, cpu.run(50));
+        assertEquals(0x2100, bp.hitAddress());
+        assertEquals(0x000A, cpu.pc);
+
+        bp.removeWatchpoint(0x2100, 2);
+        assertEquals(ExitReason.INSTRUCTION_LIMIT, cpu.run(50));
+    }
+
+    @Test
+    void rejectsInvalidWatchRanges() {
+        Breakpoints bp = new Breakpoints();
+        assertThrows(IllegalArgumentException.class, () -> bp.addWatchpoint(0xFFFF, 2, true, true));
+        assertThrows(IllegalArgumentException.class, () -> bp.addWatchpoint(0x1000, 0, true, true));
+        assertThrows(IllegalArgumentException.class, () -> bp.addWatchpoint(0x1000, 1, false, false));
+    }
+}
@@ -190,6 +190,22 @@ public class CPUJcondTest {
         }
     }
     
+    @Test
+    void testJcondAssemblerEncodingUsesSingleExtension() {
+        // Spec encoding (as emitted by the Assembler): src_mode=IMM (no extension), dst_mode=ABS
+        int instr = makeInstr(Cpu.JCOND, 0, Cpu.MODE_IMM, 2, Cpu.MODE_ABS, 0); // JCOND NE, $1000
+        loadProgram(new int[]{instr, 0x1000, 0x0000});
+
+        cpu.flags = Cpu.FLAG_Z; // not taken: falls through right after the single extension
+        cpu.step();
+        assertEquals(0x0004, cpu.pc);
+
+        cpu.flags = 0; // taken
+        cpu.pc = 0;
+        cpu.step();
+        assertEquals(0x1000, cpu.pc);
+    }
+
     private boolean shouldJump(int condCode, int flags) {
         boolean n = (flags & Cpu.FLAG_N) != 0;
         boolean z = (flags & Cpu.FLAG_Z) != 0;
@@ -0,0 +1,154 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CoverageTest {
+
+    private static final String PROGRAM =
+        ".start\n" +                         // line 1
+        "    MOV 0x0001, R0\n" +             // line 2
+        "    CMP 0x0001, R0\n" +             // line 3
+        "    JCOND EQ, skip\n" +             // line 4
+        "    MOV 0x0099, R1   ; not run\n" + // line 5
+        "skip:\n" +                          // line 6
+        "    INC R0\n" +                     // line 7
+        "    MOV 0x0001, $FE0A ; halt\n" +   // line 8
+        ".end\n";
+
+    private DebugInfo assembleInto(Cpu cpu, Path asm) throws Exception {
+        Path bin = Files.createTempFile("cov", ".bin");
+        Assembler a = new Assembler();
+        a.parse(asm);
+        a.assemble(bin);
+        byte[] image = Files.readAllBytes(bin);
+        System.arraycopy(image, 0, cpu.memory, 0, Math.min(image.length, 0x20)); // single chunk at $0000
+        Files.delete(bin);
+        return a.debugInfo();
+    }
+
+    @Test
+    void assemblerEmitsLineTableForInstructions() throws Exception {
+        Path asm = Files.createTempFile("cov", ".asm");
+        Files.writeString(asm, PROGRAM);
+        DebugInfo debug = assembleInto(new Cpu(), asm);
+        List<DebugInfo.LineEntry> e = debug.entries();
+        assertEquals(6, e.size());
+        assertEquals(0x0000, e.get(0).address);
+        assertEquals(4, e.get(0).length);
+        assertEquals(2, e.get(0).line);
+        assertEquals(asm.toString(), e.get(0).file);
+        assertEquals(0x0008, e.get(2).address); // JCOND
+        assertEquals(4, e.get(2).length);
+        assertEquals(7, e.get(4).line);         // INC after label line
+        assertEquals(6, e.get(5).length);       // MOV imm, abs
+        Files.delete(asm);
+    }
+
+    @Test
+    void reportsCoveredAndMissedLines() throws Exception {
+        Path asm = Files.createTempFile("cov", ".asm");
+        Files.writeString(asm, PROGRAM);
+        Cpu cpu = new Cpu();
+        DebugInfo debug = assembleInto(cpu, asm);
+        cpu.pc = 0;
+        Coverage cov = Coverage.attach(cpu);
+        assertEquals(ExitReason.HALTED, cpu.run(100));
+
+        assertTrue(cov.executed(0x0000, 0));
+        assertFalse(cov.executed(0x0000, 1));
+        assertEquals(5, cov.executedCount(0));
+
+        String listing = cov.annotate(debug, 0);
+        assertTrue(listing.contains("    2 + |     MOV 0x0001, R0"), listing);
+        assertTrue(listing.contains("    5 - |     MOV 0x0099, R1"), listing);
+        assertTrue(listing.contains("    6   | skip:"), listing);
+
+        String summary = cov.summary(debug, 0);
+        assertTrue(summary.contains("5/6") && summary.contains("83.3%"), summary);
+        Files.delete(asm);
+    }
+
+    @Test
+    void persistsAndMergesBitsets() throws Exception {
+        Coverage a = new Coverage();
+        a.record(0x1234, 0);
+        a.record(0xFE10, 1); // IO is always Bank0
+        Coverage b = new Coverage();
+        b.record(0x0100, 1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        a.write(out);
+        Coverage copy = Coverage.read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(copy.executed(0x1234, 0));
+        assertTrue(copy.executed(0xFE10, 0));
+        assertFalse(copy.executed(0xFE10, 1));
+
+        Path file = Files.createTempFile("fm16", ".cov");
+        Files.delete(file);
+        a.mergeInto(file);
+        b.mergeInto(file);
+        Coverage total;
+        try (var in = Files.newInputStream(file)) {
+            total = Coverage.read(in);
+        }
+        assertTrue(total.executed(0x1234, 0));
+        assertTrue(total.executed(0x0100, 1));
+        assertEquals(3, total.executedCount(0) + total.executedCount(1));
+        Files.delete(file);
+    }
+
+    @Test
+    void machinesOnSeparateThreadsKeepSeparateRecorders() throws Exception {
+        Coverage.Collector collector = new Coverage.Collector();
+        Cpu[] cpus = {new Cpu(), new Cpu()};
+        Coverage[] recorders = {collector.recorderFor(cpus[0]), collector.recorderFor(cpus[1])};
+        assertNotSame(recorders[0], recorders[1]);
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < 2; t++) {
+            Coverage c = recorders[t];
+            int base = t * 0x100; // both threads write the same words of the bitset
+            threads[t] = new Thread(() -> {
+                for (int round = 0; round < 1000; round++) {
+                    for (int pc = base; pc < base + 0x100; pc += 2) c.record(pc, 0);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        Coverage total = collector.total();
+        assertEquals(0x100, total.executedCount(0));
+        assertEquals(0, total.executedCount(1));
+    }
+
+    @Test
+    void concurrentMergesIntoOneFileKeepEveryBit() throws Exception {
+        Path file = Files.createTempFile("fm16", ".cov");
+        Files.delete(file);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            Coverage c = new Coverage();
+            c.record(0x1000 + 2 * t, 0);
+            threads[t] = new Thread(() -> {
+                try {
+                    c.mergeInto(file);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        try (var in = Files.newInputStream(file)) {
+            assertEquals(threads.length, Coverage.read(in).executedCount(0));
+        }
+        Files.delete(file);
+    }
+}
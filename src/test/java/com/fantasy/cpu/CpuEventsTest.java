@@ -0,0 +1,102 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CpuEventsTest {
+
+    private int makeInstr(int opcode, int size, int srcMode, int srcReg, int dstMode, int dstReg) {
+        return (opcode << 11) | (size << 10) | (srcMode << 8) | (srcReg << 5) | (dstMode << 3) | dstReg;
+    }
+
+    private List<RecordedEvent> record(Runnable body) throws Exception {
+        Path file = Files.createTempFile("fm16", ".jfr");
+        try (Recording r = new Recording()) {
+            r.enable("com.fantasy.cpu.DmaTransfer");
+            r.enable("com.fantasy.cpu.Interrupt");
+            r.enable("com.fantasy.cpu.Halt");
+            r.enable("com.fantasy.cpu.Reset");
+            r.start();
+            assertTrue(CpuEvents.enabled, "hooks should be live while a recording runs");
+            body.run();
+            r.stop();
+            r.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.deleteIfExists(file);
+        return events;
+    }
+
+    private long count(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).count();
+    }
+
+    @Test
+    void recordsDmaInterruptHaltAndResetEvents() throws Exception {
+        Cpu cpu = new Cpu();
+        List<RecordedEvent> events = record(() -> {
+            cpu.writeWord(Cpu.DMA_SRC, 0x1000);
+            cpu.writeWord(Cpu.DMA_DST, 0x2000);
+            cpu.writeWord(Cpu.DMA_LEN, 0x40);
+            cpu.writeByte(Cpu.DMA_CTRL, (byte) Cpu.DMA_STRT);
+
+            cpu.writeWord(Cpu.NMI_VECTOR, 0x0100);
+            cpu.triggerNmiInterrupt();
+            cpu.writeWord(0x0000, makeInstr(Cpu.NOP, 1, 0, 0, 0, 0));
+            cpu.pc = 0;
+            cpu.step();
+            assertEquals(0x0102, cpu.pc);
+
+            cpu.writeByte(Cpu.CPU_CTRL, (byte) Cpu.CPU_RST);
+            cpu.writeByte(Cpu.CPU_CTRL, (byte) Cpu.CPU_HLT);
+            cpu.writeByte(Cpu.CPU_CTRL, (byte) Cpu.CPU_HLT); // already halted: no second event
+        });
+
+        assertEquals(1, count(events, "com.fantasy.cpu.DmaTransfer"));
+        assertEquals(1, count(events, "com.fantasy.cpu.Interrupt"));
+        assertEquals(1, count(events, "com.fantasy.cpu.Reset"));
+        assertEquals(1, count(events, "com.fantasy.cpu.Halt"));
+
+        RecordedEvent dma = events.stream()
+            .filter(e -> e.getEventType().getName().equals("com.fantasy.cpu.DmaTransfer")).findFirst().get();
+        assertEquals(0x40, dma.getInt("length"));
+        assertEquals(0x2000, dma.getInt("dst"));
+
+        RecordedEvent irq = events.stream()
+            .filter(e -> e.getEventType().getName().equals("com.fantasy.cpu.Interrupt")).findFirst().get();
+        assertEquals(Cpu.NMI_VECTOR, irq.getInt("vector"));
+        assertEquals(0x0000, irq.getInt("returnPc"));
+    }
+
+    @Test
+    void machinesJoinTheMipsRegistryOnlyWhileRecording() throws Exception {
+        record(() -> {});
+        Cpu before = new Cpu();
+        assertFalse(before.eventsRegistered);
+        record(() -> {
+            assertTrue(new Cpu().eventsRegistered);
+            before.cpuCtrl = Cpu.CPU_HLT;
+            before.run(1);
+            assertTrue(before.eventsRegistered);
+        });
+    }
+
+    @Test
+    void hooksAreDisabledWithoutRecording() throws Exception {
+        // after a recording closes the flag falls back to false
+        record(() -> {});
+        assertFalse(CpuEvents.enabled);
+        Cpu cpu = new Cpu();
+        cpu.writeWord(Cpu.DMA_LEN, 2);
+        cpu.writeByte(Cpu.DMA_CTRL, (byte) Cpu.DMA_STRT);
+        assertEquals(0, cpu.dmaLen);
+    }
+}
@@ -0,0 +1,110 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DebugInfoTest {
+
+    private static final String PROGRAM =
+        ".start\n" +                    // line 1
+        "Main:\n" +                     // line 2
+        "    MOV 0x0001, R0\n" +        // line 3  $0000
+        "    JMP Done\n" +              // line 4  $0004 (forward reference)
+        "Loop:\n" +                     // line 5
+        "    INC R0\n" +                // line 6  $0008
+        "Done:\n" +                     // line 7
+        "    MOV 0x0001, $FE0A\n" +     // line 8  $000A
+        ".end\n";
+
+    private Assembler assemble(Path asm, Path bin) throws Exception {
+        Files.writeString(asm, PROGRAM);
+        Assembler a = new Assembler();
+        a.parse(asm);
+        a.assemble(bin);
+        return a;
+    }
+
+    @Test
+    void assemblerRecordsSymbolsWithSourceSpelling() throws Exception {
+        Path asm = Files.createTempFile("dbg", ".asm");
+        Path bin = Files.createTempFile("dbg", ".bin");
+        DebugInfo debug = assemble(asm, bin).debugInfo();
+
+        Map<String, Integer> symbols = debug.symbols();
+        assertEquals(List.of("Main", "Loop", "Done"), List.copyOf(symbols.keySet()));
+        assertEquals(0x0000, symbols.get("Main"));
+        assertEquals(0x0008, symbols.get("Loop"));
+        assertEquals(0x000A, symbols.get("Done"));
+
+        assertEquals("Main", debug.symbolize(0x0000));
+        assertEquals("Main+0x4", debug.symbolize(0x0004));
+        assertEquals("Done+0x2", debug.symbolize(0x000C));
+        assertEquals("Done", debug.symbolAt(0x0100));
+        Files.delete(asm);
+        Files.delete(bin);
+    }
+
+    @Test
+    void lineAtCoversEveryByteOfAnInstruction() throws Exception {
+        Path asm = Files.createTempFile("dbg", ".asm");
+        Path bin = Files.createTempFile("dbg", ".bin");
+        DebugInfo debug = assemble(asm, bin).debugInfo();
+
+        assertEquals(3, debug.lineAt(0x0000).line);
+        assertEquals(3, debug.lineAt(0x0003).line);
+        assertEquals(4, debug.lineAt(0x0004).line);
+        assertEquals(8, debug.lineAt(0x000F).line);
+        assertNull(debug.lineAt(0x0010));
+        assertEquals(asm.toString(), debug.lineAt(0x0008).file);
+        Files.delete(asm);
+        Files.delete(bin);
+    }
+
+    @Test
+    void sidecarFileRoundTrips() throws Exception {
+        Path asm = Files.createTempFile("dbg", ".asm");
+        Path bin = Files.createTempFile("dbg", ".bin");
+        Path dbg = Path.of(bin + DebugInfo.FILE_SUFFIX);
+        Files.writeString(asm, PROGRAM);
+        Assembler a = new Assembler();
+        a.setDebugOutput(dbg);
+        a.parse(asm);
+        a.assemble(bin);
+
+        DebugInfo copy = DebugInfo.read(dbg);
+        DebugInfo orig = a.debugInfo();
+        assertEquals(orig.symbols(), copy.symbols());
+        assertEquals(orig.entries().size(), copy.entries().size());
+        for (int i = 0; i < orig.entries().size(); i++) {
+            assertEquals(orig.entries().get(i).toString(), copy.entries().get(i).toString());
+        }
+        Files.delete(asm);
+        Files.delete(bin);
+        Files.delete(dbg);
+    }
+
+    @Test
+    void emptyTablesAndBadMagic() throws Exception {
+        DebugInfo empty = new DebugInfo(List.of());
+        assertNull(empty.lineAt(0x1234));
+        assertNull(empty.symbolAt(0x1234));
+        assertEquals("$1234", empty.symbolize(0x1234));
+
+        DebugInfo one = new DebugInfo(List.of(new DebugInfo.LineEntry(0x0100, 2, "a.asm", 5)), Map.of("start", 0x0100));
+        assertEquals("$00FF", one.symbolize(0x00FF));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        one.write(out);
+        DebugInfo copy = DebugInfo.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("a.asm:5", copy.lineAt(0x0101).file + ":" + copy.lineAt(0x0101).line);
+
+        assertThrows(java.io.IOException.class, () -> DebugInfo.read(new ByteArrayInputStream(new byte[16])));
+    }
+}
@@ -0,0 +1,162 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GdbStubTest {
+    private Cpu cpu;
+    private GdbStub stub;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    private int makeInstr(int opcode, int size, int srcMode, int srcReg, int dstMode, int dstReg) {
+        return (opcode << 11) | (size << 10) | (srcMode << 8) | (srcReg << 5) | (dstMode << 3) | dstReg;
+    }
+
+    // $0000 INC R0; $0002 MOV R0, $2000; $0006 JMP $0000
+    @BeforeEach
+    void setUp() throws IOException {
+        cpu = new Cpu();
+        int[] words = {
+            makeInstr(Cpu.INC, 1, 0, 0, Cpu.MODE_REG, 0),
+            makeInstr(Cpu.MOV, 1, Cpu.MODE_REG, 0, Cpu.MODE_ABS, 0), 0x2000,
+            makeInstr(Cpu.JMP, 1, 0, 0, Cpu.MODE_ABS, 0), 0x0000,
+        };
+        for (int i = 0; i < words.length; i++) cpu.writeWord(i * 2, words[i]);
+        cpu.pc = 0;
+        cpu.memory[Cpu.BANK1_BASE + 0x3000] = 0x5A;
+        stub = GdbStub.start(cpu, 0);
+        socket = new Socket(InetAddress.getLoopbackAddress(), stub.port());
+        socket.setSoTimeout(10_000);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        socket.close();
+        stub.close();
+    }
+
+    private void sendPacket(String data) throws IOException {
+        int sum = 0;
+        for (char c : data.toCharArray()) sum += c;
+        out.write(String.format("$%s#%02x", data, sum & 0xFF).getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private String readPacket() throws IOException {
+        int c;
+        while ((c = in.read()) != '$') {
+            if (c < 0) throw new IOException("closed");
+        }
+        StringBuilder sb = new StringBuilder();
+        int sum = 0;
+        while ((c = in.read()) != '#') {
+            sb.append((char) c);
+            sum += c;
+        }
+        int check = Integer.parseInt("" + (char) in.read() + (char) in.read(), 16);
+        assertEquals(sum & 0xFF, check, "checksum of " + sb);
+        out.write('+');
+        return sb.toString();
+    }
+
+    private String command(String data) throws IOException {
+        sendPacket(data);
+        assertEquals('+', in.read());
+        return readPacket();
+    }
+
+    @Test
+    void badChecksumIsNackedAndTheStubKeepsAccepting() throws IOException {
+        out.write("$?#zz".getBytes(StandardCharsets.ISO_8859_1)); // not hex
+        out.flush();
+        assertEquals('-', in.read());
+        out.write("$?#00".getBytes(StandardCharsets.ISO_8859_1)); // wrong sum
+        out.flush();
+        assertEquals('-', in.read());
+        assertEquals("S05", command("?"));
+
+        out.write("$?#".getBytes(StandardCharsets.ISO_8859_1)); // connection ends inside the checksum
+        out.flush();
+        socket.close();
+        socket = new Socket(InetAddress.getLoopbackAddress(), stub.port());
+        socket.setSoTimeout(10_000);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+        assertEquals("S05", command("?"));
+    }
+
+    @Test
+    void describesTargetAndReadsRegisters() throws IOException {
+        assertTrue(command("qSupported:swbreak+").contains("qXfer:features:read+"));
+        String xml = command("qXfer:features:read:target.xml:0,fff");
+        assertTrue(xml.startsWith("l<?xml"));
+        assertTrue(xml.contains("name=\"pc\""));
+        assertEquals("S05", command("?"));
+
+        cpu.regs[3] = 0xBEEF;
+        String regs = command("g");
+        assertEquals(12 * 4, regs.length());
+        assertEquals("beef", regs.substring(12, 16));
+        assertEquals(String.format("%04x", Cpu.SP_MAX), regs.substring(32, 36));
+        assertEquals("OK", command("P9=0006"));
+        assertEquals(0x0006, cpu.pc);
+        assertEquals("0006", command("p9"));
+    }
+
+    @Test
+    void readsLogicalAndPhysicalMemoryFromSnapshot() throws IOException {
+        assertEquals(String.format("%04x", makeInstr(Cpu.INC, 1, 0, 0, Cpu.MODE_REG, 0)), command("m0,2"));
+        assertEquals("5a", command("m23000,1"));         // Bank1 physical
+        assertEquals("00", command("m3000,1"));          // logical, Bank0 selected
+        assertEquals("OK", command("M4000,2:abcd"));
+        assertEquals(0xABCD, cpu.readWord(0x4000));
+        assertEquals("abcd", command("m4000,2"));
+        assertEquals("E01", command("m30000,1"));
+    }
+
+    @Test
+    void continuesToBreakpointAndSteps() throws IOException {
+        assertEquals("OK", command("Z0,6,2"));
+        assertEquals("T05swbreak:;", command("c"));
+        assertEquals(0x0006, cpu.pc);
+        assertEquals(1, cpu.regs[0]);
+        // memory written while running is visible in the refreshed snapshot
+        assertEquals("0001", command("m2000,2"));
+
+        assertEquals("S05", command("s"));
+        assertEquals(0x0000, cpu.pc);
+        assertEquals("OK", command("z0,6,2"));
+    }
+
+    @Test
+    void reportsWriteWatchpoint() throws IOException {
+        assertEquals("OK", command("Z2,2001,1"));
+        assertEquals("T05watch:2001;", command("c"));
+        assertEquals(0x0006, cpu.pc);
+    }
+
+    @Test
+    void interruptsRunningCpu() throws Exception {
+        sendPacket("c");
+        assertEquals('+', in.read());
+        Thread.sleep(50);
+        out.write(0x03);
+        out.flush();
+        assertEquals("S02", readPacket());
+        assertTrue(cpu.instructionCount > 0);
+    }
+}
@@ -0,0 +1,129 @@
+package com.fantasy.cpu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Compares loading raw and LZ-compressed images into a {@link Cpu}. Not a unit test; run with
+ *   mvn -q test-compile
+ *   java -cp target/classes:target/test-classes com.fantasy.cpu.ImageLoadBenchmark [iterations]
+ *
+ * The image holds a small code chunk plus 48 KiB of framebuffer-like assets (runs of palette
+ * indices with some noise) and a lookup table. Reported per load: reading the raw file from
+ * disk without decoding, {@link MachineImage#load} of the raw image, {@link MachineImage#load}
+ * of the compressed image, and decompression alone from memory.
+ *
+ * Those loops run from the page cache. When the JVM may write {@code /proc/sys/vm/drop_caches}
+ * (Linux, as root), the raw and compressed loads are also timed cold: the page cache is dropped
+ * before each load, so the file comes from the disk.
+ */
+public class ImageLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        byte[] assets = assets();
+        byte[] code = new byte[2048];
+        new Random(1).nextBytes(code);
+
+        Path raw = Files.createTempFile("bench-raw", ".bin");
+        Path lz = Files.createTempFile("bench-lz", ".bin");
+        try {
+            MachineImage.Builder b = new MachineImage.Builder()
+                .addChunk(0, 0x0000, code)
+                .addChunk(0, 0x2000, assets);
+            Files.write(raw, b.build(2));
+            Files.write(lz, b.setCompression(true).build(2));
+            sync(raw);
+            sync(lz);
+            System.out.printf("raw image %d bytes, compressed %d bytes (%.1f%%)%n",
+                Files.size(raw), Files.size(lz), 100.0 * Files.size(lz) / Files.size(raw));
+
+            byte[] lzBytes = Files.readAllBytes(lz);
+            MachineImage inMemory = MachineImage.of(ByteBuffer.wrap(lzBytes));
+            Cpu cpu = new Cpu();
+            for (int round = 0; round < 2; round++) { // first round is warm-up
+                boolean report = round == 1;
+                long t0 = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    byte[] file = Files.readAllBytes(raw);
+                    cpu.memory[i & 0xFFFF] = file[i % file.length];
+                }
+                long t1 = System.nanoTime();
+                for (int i = 0; i < iterations; i++) MachineImage.load(raw, cpu);
+                long t2 = System.nanoTime();
+                for (int i = 0; i < iterations; i++) MachineImage.load(lz, cpu);
+                long t3 = System.nanoTime();
+                for (int i = 0; i < iterations; i++) inMemory.loadInto(cpu);
+                long t4 = System.nanoTime();
+                if (report) {
+                    int bytes = code.length + assets.length;
+                    print("read raw file", t1 - t0, iterations, bytes);
+                    print("load raw image", t2 - t1, iterations, bytes);
+                    print("load compressed image", t3 - t2, iterations, bytes);
+                    print("decompress only", t4 - t3, iterations, bytes);
+                }
+            }
+            Path dropCaches = Path.of("/proc/sys/vm/drop_caches");
+            if (Files.isWritable(dropCaches)) {
+                int bytes = code.length + assets.length;
+                int cold = Math.max(1, Math.min(iterations, 50));
+                long rawNanos = 0, lzNanos = 0;
+                for (int i = 0; i < cold; i++) {
+                    Files.writeString(dropCaches, "1");
+                    long t0 = System.nanoTime();
+                    MachineImage.load(raw, cpu);
+                    long t1 = System.nanoTime();
+                    Files.writeString(dropCaches, "1");
+                    long t2 = System.nanoTime();
+                    MachineImage.load(lz, cpu);
+                    long t3 = System.nanoTime();
+                    rawNanos += t1 - t0;
+                    lzNanos += t3 - t2;
+                }
+                print("load raw image, cold", rawNanos, cold, bytes);
+                print("load compressed, cold", lzNanos, cold, bytes);
+            } else {
+                System.out.println("cold loads skipped: cannot write " + dropCaches);
+            }
+        } finally {
+            Files.deleteIfExists(raw);
+            Files.deleteIfExists(lz);
+        }
+    }
+
+    // drop_caches only evicts clean pages
+    private static void sync(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+    }
+
+    private static void print(String what, long nanos, int iterations, int bytes) {
+        double us = nanos / 1000.0 / iterations;
+        double mbs = (double) bytes * iterations / (nanos / 1e9) / (1 << 20);
+        System.out.printf("%-24s %9.2f us/load %9.1f MiB/s%n", what, us, mbs);
+    }
+
+    // 160x100 4-bit-per-pixel style frames: horizontal runs with occasional noise, plus a sine table
+    private static byte[] assets() {
+        Random r = new Random(7);
+        byte[] a = new byte[48 * 1024];
+        int i = 0;
+        while (i < 40 * 1024) {
+            int run = 4 + r.nextInt(40);
+            byte colour = (byte) r.nextInt(16);
+            for (int k = 0; k < run && i < 40 * 1024; k++) a[i++] = r.nextInt(20) == 0 ? (byte) r.nextInt(16) : colour;
+        }
+        for (int k = 0; i < a.length; k++, i += 2) {
+            int v = (int) Math.round(Math.sin(k * Math.PI / 256) * 32767);
+            a[i] = (byte) (v >> 8);
+            a[i + 1] = (byte) v;
+        }
+        return a;
+    }
+}
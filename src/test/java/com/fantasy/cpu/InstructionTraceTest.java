@@ -0,0 +1,98 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InstructionTraceTest {
+    private Cpu cpu;
+
+    @BeforeEach
+    void setUp() {
+        cpu = new Cpu();
+    }
+
+    private void loadProgram(int[] words) {
+        for (int i = 0; i < words.length; i++) cpu.writeWord(i * 2, words[i]);
+        cpu.pc = 0;
+    }
+
+    private int makeInstr(int opcode, int size, int srcMode, int srcReg, int dstMode, int dstReg) {
+        return (opcode << 11) | (size << 10) | (srcMode << 8) | (srcReg << 5) | (dstMode << 3) | dstReg;
+    }
+
+    @Test
+    void recordsPcInstructionExtensionsAndFlags() {
+        InstructionTrace trace = InstructionTrace.attach(cpu, 16);
+        loadProgram(new int[]{
+            makeInstr(Cpu.MOV, 1, Cpu.MODE_IMM, 0, Cpu.MODE_ABS, 0), 0x1234, 0x2000, // MOV 0x1234, $2000
+            makeInstr(Cpu.CMP, 1, Cpu.MODE_IMM, 0, Cpu.MODE_REG, 1), 0x0000,         // CMP 0x0000, R1
+            makeInstr(Cpu.JCOND, 0, Cpu.MODE_IMM, 1, Cpu.MODE_ABS, 0), 0x0000,       // JCOND EQ, $0000
+        });
+        cpu.step();
+        cpu.step();
+        cpu.step();
+
+        List<InstructionTrace.Entry> entries = trace.snapshot(10);
+        assertEquals(3, entries.size());
+        InstructionTrace.Entry mov = entries.get(0);
+        assertEquals(0, mov.seq);
+        assertEquals(0x0000, mov.pc);
+        assertEquals(0x1234, mov.srcExt);
+        assertEquals(0x2000, mov.dstExt);
+        assertEquals("MOV 0x1234, $2000", mov.disassembly());
+        assertEquals("CMP 0x0000, R1", entries.get(1).disassembly());
+        // flags are captured before the instruction executes; Z was set by the CMP
+        assertEquals(Cpu.FLAG_Z, entries.get(2).flags & Cpu.FLAG_Z);
+        assertEquals("JCOND EQ, $0000", entries.get(2).disassembly());
+        assertEquals(0x0000, cpu.pc);
+    }
+
+    @Test
+    void keepsOnlyTheMostRecentEntries() {
+        InstructionTrace trace = InstructionTrace.attach(cpu, 8);
+        loadProgram(new int[]{ makeInstr(Cpu.JMP, 1, 0, 0, Cpu.MODE_ABS, 0), 0x0000 }); // JMP $0000
+        for (int i = 0; i < 20; i++) cpu.step();
+        assertEquals(20, trace.recorded());
+        List<InstructionTrace.Entry> entries = trace.snapshot(100);
+        // the slot the next write reuses is never returned
+        assertEquals(7, entries.size());
+        assertEquals(13, entries.get(0).seq);
+        assertEquals(19, entries.get(6).seq);
+        assertEquals(0x0000, entries.get(6).pc);
+        assertEquals("JMP $0000", entries.get(6).disassembly());
+    }
+
+    @Test
+    void dumpsHistoryOnStackUnderflowTrap() {
+        InstructionTrace trace = InstructionTrace.attach(cpu, 64);
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        trace.dumpOnTrap(new PrintStream(captured, true), 4);
+
+        cpu.sp = Cpu.SP_MIN + 2;
+        loadProgram(new int[]{
+            makeInstr(Cpu.PUSH, 1, Cpu.MODE_REG, 0, 0, 0), // PUSH R0 (fits)
+            makeInstr(Cpu.PUSH, 1, Cpu.MODE_REG, 1, 0, 0), // PUSH R1 (underflow)
+        });
+        cpu.step();
+        RuntimeException ex = assertThrows(RuntimeException.class, () -> cpu.step());
+        assertEquals("Stack underflow", ex.getMessage());
+
+        String dump = captured.toString();
+        assertTrue(dump.startsWith("TRAP: Stack underflow"), dump);
+        assertTrue(dump.contains("$0000") && dump.contains("PUSH R0"), dump);
+        assertTrue(dump.contains("$0002") && dump.contains("PUSH R1"), dump);
+    }
+
+    @Test
+    void roundsCapacityToPowerOfTwo() {
+        assertEquals(1 << 20, new InstructionTrace().capacity());
+        assertEquals(1024, new InstructionTrace(1000).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new InstructionTrace(0));
+    }
+}
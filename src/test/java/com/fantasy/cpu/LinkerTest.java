@@ -0,0 +1,147 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LinkerTest {
+
+    private static final String MAIN = String.join("\n",
+        ".global start",
+        ".extern double, result",
+        "start:",
+        "    MOV 21, R0",
+        "    CALL double",
+        "    MOV R0, result",
+        "    JCOND AL, done",
+        "done:",
+        "    MOV 1, $FE0A",
+        ".end");
+
+    private static final String LIB = String.join("\n",
+        ".section code",
+        ".global double",
+        "double:",
+        "    ADD R0, R0",
+        "    RET",
+        ".section unused",
+        ".global triple",
+        "triple:",
+        "    MOV R0, R1",
+        "    ADD R1, R0",
+        "    ADD R1, R0",
+        "    RET",
+        ".section vars",
+        ".global result",
+        ".data",
+        "result: .word 0",
+        "self: .word self",
+        ".end");
+
+    private static ObjectFile object(String source, String name) {
+        Assembler a = new Assembler();
+        a.parse(source, name);
+        return a.assembleObject();
+    }
+
+    private static Cpu run(byte[] image) throws Exception {
+        MachineImage img = MachineImage.of(image);
+        Cpu cpu = new Cpu();
+        img.loadInto(cpu);
+        cpu.pc = img.lowestAddress();
+        assertEquals(ExitReason.HALTED, cpu.run(1000));
+        return cpu;
+    }
+
+    @Test
+    void objectRecordsSectionsSymbolsAndRelocations() {
+        ObjectFile lib = object(LIB, "lib.asm");
+        assertEquals("lib.asm", lib.name());
+        assertEquals(3, lib.sections().size());
+        assertEquals("code", lib.sections().get(0).name);
+        assertEquals("vars", lib.sections().get(2).name);
+        assertEquals(4, lib.sections().get(2).length());
+        assertEquals(2, lib.sections().get(2).data.size());
+        assertEquals("[double=0+$0000 global, triple=1+$0000 global, result=2+$0000 global, self=2+$0002]", lib.symbols().toString());
+        assertEquals("[2+$0002 -> section 2+$0002]", lib.relocations().toString());
+
+        ObjectFile main = object(MAIN, "main.asm");
+        assertEquals("text", main.sections().get(0).name);
+        assertEquals("[0+$0006 -> double+$0000, 0+$000A -> result+$0000, 0+$000E -> section 0+$0010]", main.relocations().toString());
+    }
+
+    @Test
+    void linksRelocatesAndStripsUnreferencedSections() throws Exception {
+        Linker l = new Linker().setOrigin(0x0200);
+        l.add(object(MAIN, "main.asm")).add(object(LIB, "lib.asm"));
+        byte[] image = l.link();
+        assertEquals(java.util.List.of("lib.asm:unused"), l.strippedSections());
+        Cpu cpu = run(image);
+        assertEquals(42, cpu.regs[0]);
+        int result = l.symbols().get("result");
+        assertEquals(0x0200 + 0x16 + 4, result); // main (22 bytes), code (4 bytes), vars
+        assertEquals(42, ((cpu.memory[result] & 0xFF) << 8) | (cpu.memory[result + 1] & 0xFF));
+        assertEquals(result + 2, ((cpu.memory[result + 2] & 0xFF) << 8) | (cpu.memory[result + 3] & 0xFF), "self-relative .word relocated");
+        assertEquals(0x0200, MachineImage.of(image).lowestAddress());
+
+        Linker all = new Linker().setStripUnused(false);
+        all.add(object(MAIN, "main.asm")).add(object(LIB, "lib.asm"));
+        all.link();
+        assertTrue(all.strippedSections().isEmpty());
+        assertTrue(all.symbols().containsKey("triple"));
+    }
+
+    @Test
+    void entrySectionIsPlacedFirst() throws Exception {
+        Linker l = new Linker().setEntry("START");
+        l.add(object(LIB, "lib.asm")).add(object(MAIN, "main.asm"));
+        Cpu cpu = run(l.link());
+        assertEquals(42, cpu.regs[0]);
+        assertEquals(0, l.symbols().get("start"));
+    }
+
+    @Test
+    void objectFileRoundTripsAndRebuildsOneModule(@TempDir Path tmp) throws Exception {
+        ObjectFile lib = object(LIB, "lib.asm");
+        Path libFile = tmp.resolve("lib" + ObjectFile.FILE_SUFFIX);
+        lib.write(libFile);
+        ObjectFile back = ObjectFile.read(libFile);
+        assertEquals(lib.symbols().toString(), back.symbols().toString());
+        assertEquals(lib.relocations().toString(), back.relocations().toString());
+        assertArrayEquals(lib.sections().get(1).bytes(), back.sections().get(1).bytes());
+
+        // only main changes; the stored library object is linked as it is
+        Linker l = new Linker();
+        l.add(object(MAIN.replace("MOV 21, R0", "MOV 50, R0"), "main.asm")).add(libFile);
+        assertEquals(100, run(l.link()).regs[0]);
+    }
+
+    @Test
+    void linkAndObjectErrors() {
+        AssembleException e = assertThrows(AssembleException.class, () -> new Linker().add(object(MAIN, "main.asm")).link());
+        assertTrue(e.getMessage().contains("Undefined symbol double"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> new Linker().add(object(LIB, "a.asm")).add(object(LIB, "b.asm")).link());
+        assertTrue(e.getMessage().startsWith("Duplicate global symbol double"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> object(".org $0100\n    NOP\n.end\n", "o.asm"));
+        assertTrue(e.getMessage().contains(".org is not allowed"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> object(".global nothere\n    NOP\n.end\n", "g.asm"));
+        assertTrue(e.getMessage().contains("Global symbol is not defined: nothere"), e.getMessage());
+        e = assertThrows(AssembleException.class, () -> new Assembler().assemble(MAIN));
+        assertTrue(e.getMessage().contains("External symbol double"), e.getMessage());
+        assertThrows(java.io.IOException.class, () -> ObjectFile.read(new ByteArrayInputStream(new byte[16])));
+    }
+
+    @Test
+    void directivesDoNotChangePlainImages() throws Exception {
+        String src = ".global start\n.section main\nstart:\n    JMP start\n.end\n";
+        assertArrayEquals(new Assembler().assemble("start:\n    JMP start\n.end\n"), new Assembler().assemble(src));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        object(src, "s.asm").write(out);
+        assertEquals("main", ObjectFile.read(new ByteArrayInputStream(out.toByteArray())).sections().get(0).name);
+    }
+}
@@ -0,0 +1,87 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LzCodecTest {
+
+    private static byte[] roundTrip(byte[] src) {
+        byte[] lz = LzCodec.compress(src);
+        byte[] dst = new byte[src.length + 8];
+        LzCodec.decompress(ByteBuffer.wrap(lz), 0, lz.length, dst, 4, src.length);
+        assertArrayEquals(src, Arrays.copyOfRange(dst, 4, 4 + src.length));
+        // direct buffers (file mappings) take the ByteBuffer path
+        ByteBuffer direct = ByteBuffer.allocateDirect(lz.length + 3);
+        direct.position(3);
+        direct.put(lz);
+        byte[] dst2 = new byte[src.length];
+        LzCodec.decompress(direct, 3, lz.length, dst2, 0, src.length);
+        assertArrayEquals(src, dst2);
+        return lz;
+    }
+
+    @Test
+    void roundTripsEdgeCases() {
+        roundTrip(new byte[0]);
+        roundTrip(new byte[] {7});
+        roundTrip(new byte[] {1, 2, 3, 4, 5});
+        byte[] zeros = new byte[40000];           // one long overlapping match
+        assertTrue(roundTrip(zeros).length < 200);
+        byte[] pattern = new byte[5000];          // offset 3 run, shorter than the match
+        for (int i = 0; i < pattern.length; i++) pattern[i] = (byte) (i % 3);
+        assertTrue(roundTrip(pattern).length < 100);
+    }
+
+    @Test
+    void roundTripsEveryShortRepeatPeriod() {
+        Random r = new Random(3);
+        for (int period = 1; period <= 20; period++) {
+            for (int len : new int[] {period + 1, 17, 40, 300}) {
+                byte[] src = new byte[8 + period + len + 5];
+                r.nextBytes(src);
+                for (int i = 8 + period; i < 8 + period + len; i++) src[i] = src[i - period];
+                roundTrip(src);
+            }
+        }
+    }
+
+    @Test
+    void roundTripsMixedAndIncompressibleData() {
+        Random r = new Random(42);
+        byte[] noise = new byte[70000];
+        r.nextBytes(noise);
+        byte[] lz = roundTrip(noise);            // literal runs longer than 15 + 255
+        assertTrue(lz.length <= noise.length + noise.length / 255 + 16);
+
+        byte[] mixed = new byte[0x8000];
+        for (int i = 0; i < mixed.length; i += 64) {
+            if ((i / 64) % 3 == 0) r.nextBytes(Arrays.copyOfRange(mixed, i, i + 64));
+            for (int k = 0; k < 64; k++) mixed[i + k] = (byte) (r.nextInt(4) == 0 ? r.nextInt() : k);
+        }
+        assertTrue(roundTrip(mixed).length < mixed.length);
+    }
+
+    @Test
+    void rejectsCorruptStreams() {
+        byte[] src = new byte[1000];
+        for (int i = 0; i < src.length; i++) src[i] = (byte) (i / 10);
+        byte[] lz = LzCodec.compress(src);
+        byte[] dst = new byte[src.length];
+        // wrong expected size
+        assertThrows(UncheckedIOException.class,
+            () -> LzCodec.decompress(ByteBuffer.wrap(lz), 0, lz.length, new byte[src.length + 1], 0, src.length + 1));
+        // truncated stream
+        assertThrows(UncheckedIOException.class,
+            () -> LzCodec.decompress(ByteBuffer.wrap(lz), 0, lz.length / 2, dst, 0, src.length));
+        // a match reaching before the start of the output
+        byte[] bad = {0x10, 0x41, (byte) 0xFF, (byte) 0xFF, 0x00};
+        assertThrows(UncheckedIOException.class,
+            () -> LzCodec.decompress(ByteBuffer.wrap(bad), 0, bad.length, new byte[64], 0, 5));
+    }
+}
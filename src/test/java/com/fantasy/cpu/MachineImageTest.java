@@ -0,0 +1,212 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MachineImageTest {
+
+    private static final String PROGRAM =
+        ".start\n" +
+        "    MOV 0x0007, R0\n" +
+        "    CALL Sub\n" +
+        "    MOV R0, $2000\n" +
+        "    MOV 0x0001, $FE0A\n" +
+        ".org $0400\n" +
+        "Sub:\n" +
+        "    INC R0\n" +
+        "    RET\n" +
+        ".org $1000\n" +
+        ".data\n" +
+        "Msg: .ascii \"HELLO\"\n" +
+        "Tbl: .word 0x1234, 0xBEEF\n" +
+        ".end\n";
+
+    private Path assemble(String source) throws Exception {
+        return assemble(source, 1);
+    }
+
+    private Path assemble(String source, int version) throws Exception {
+        Path asm = Files.createTempFile("img", ".asm");
+        Path bin = Files.createTempFile("img", ".bin");
+        Files.writeString(asm, source);
+        Assembler a = new Assembler();
+        a.setImageVersion(version);
+        a.parse(asm);
+        a.assemble(bin);
+        Files.delete(asm);
+        return bin;
+    }
+
+    @Test
+    void loadsEveryChunkAtItsAddressAndRuns() throws Exception {
+        Path bin = assemble(PROGRAM);
+        Cpu cpu = new Cpu();
+        MachineImage image = MachineImage.load(bin, cpu);
+        assertTrue(image.isPacked());
+        assertEquals(3, image.chunks().size());
+        assertEquals(0x0400, image.chunks().get(1).start);
+        assertEquals("HELLO", new String(cpu.memory, 0x1000, 5));
+        assertEquals(0xBEEF, cpu.readWord(0x1007));
+
+        cpu.pc = image.lowestAddress();
+        assertEquals(ExitReason.HALTED, cpu.run(100));
+        assertEquals(8, cpu.readWord(0x2000));
+        Files.delete(bin);
+    }
+
+    @Test
+    void matchesDisassemblerReconstruction() throws Exception {
+        Path bin = assemble(PROGRAM);
+        byte[] bytes = Files.readAllBytes(bin);
+        byte[] mem = new byte[0x10000];
+        int copied = MachineImage.of(bytes).loadInto(mem, 0);
+        assertEquals(bytes.length - MachineImage.FOOTER_SIZE, copied);
+
+        Cpu cpu = new Cpu();
+        MachineImage.read(bin).loadInto(cpu);
+        assertArrayEquals(mem, Arrays.copyOf(cpu.memory, 0x10000));
+
+        // typed .data entries are overlays in the footer, not extra bytes
+        long typed = MachineImage.of(bytes).entries().stream().filter(e -> e.type != MachineImage.TYPE_CODE).count();
+        assertEquals(2, typed);
+        assertTrue(Disassembler.disassemble(bytes).contains("HELLO"));
+        Files.delete(bin);
+    }
+
+    @Test
+    void flatImagesLoadAtZeroAndMarkDirtyPages() throws Exception {
+        byte[] flat = new byte[600];
+        flat[0] = 0x12;
+        flat[599] = 0x34;
+        MachineImage image = MachineImage.of(flat);
+        assertFalse(image.isPacked());
+        Cpu cpu = new Cpu();
+        cpu.dirtyPages = new long[Cpu.MEMORY_SIZE / 256 / 64];
+        assertEquals(600, image.loadInto(cpu));
+        assertEquals(0x12, cpu.memory[0]);
+        assertEquals(0x34, cpu.memory[599]);
+        assertEquals(0b111L, cpu.dirtyPages[0]);
+    }
+
+    @Test
+    void rejectsInconsistentFooters() throws Exception {
+        byte[] bytes = Files.readAllBytes(assemble(PROGRAM));
+        // drop one payload byte: the footer now describes more data than the file holds
+        byte[] shortImage = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 1, shortImage, 0, shortImage.length);
+        assertThrows(IOException.class, () -> MachineImage.of(shortImage));
+        assertThrows(IOException.class, () -> MachineImage.of(new byte[0x10001]));
+    }
+
+    @Test
+    void manyOrgBlocksUpgradeToVersion2InsteadOfTruncating() throws Exception {
+        StringBuilder src = new StringBuilder(".start\n    MOV 0x0001, $FE0A\n");
+        for (int i = 1; i <= 200; i++) {
+            src.append(String.format(".org $%04X\nBlk%d:\n    MOV 0x%04X, R0\n", i * 0x40, i, i));
+        }
+        src.append(".end\n");
+        Path bin = assemble(src.toString());
+        MachineImage image = MachineImage.read(bin);
+        assertEquals(2, image.version());
+        assertEquals(201, image.chunks().size());
+        assertEquals(200 * 0x40, image.symbols().get("Blk200"));
+
+        Cpu cpu = new Cpu();
+        image.loadInto(cpu);
+        assertEquals(0x00C8, cpu.readWord(200 * 0x40 + 2));
+        Files.delete(bin);
+    }
+
+    @Test
+    void version2DisassemblesLikeVersion1() throws Exception {
+        Path v1 = assemble(PROGRAM, 1);
+        Path v2 = assemble(PROGRAM, 2);
+        MachineImage image = MachineImage.read(v2);
+        assertEquals(2, image.version());
+        assertEquals(0x0400, image.symbols().get("Sub"));
+        assertEquals(Disassembler.disassemble(Files.readAllBytes(v1)), Disassembler.disassemble(Files.readAllBytes(v2)));
+
+        Cpu a = new Cpu(), b = new Cpu();
+        MachineImage.load(v1, a);
+        image.loadInto(b);
+        assertArrayEquals(a.memory, b.memory);
+        Files.delete(v1);
+        Files.delete(v2);
+    }
+
+    @Test
+    void longChunksAndBank1Sections() throws Exception {
+        byte[] big = new byte[0x5000];
+        for (int i = 0; i < big.length; i++) big[i] = (byte) i;
+        MachineImage.Builder b = new MachineImage.Builder().addChunk(0, 0x1000, big);
+        assertTrue(b.fitsVersion1());
+        MachineImage v1 = MachineImage.of(b.build(1));
+        assertEquals(1, v1.version());
+        assertEquals(2, v1.entries().size()); // split at $3FFF
+        MachineImage v2 = MachineImage.of(b.build(2));
+        assertEquals(1, v2.entries().size());
+
+        b.addChunk(1, 0x0100, new byte[] {0x55, 0x66});
+        assertFalse(b.fitsVersion1());
+        MachineImage banked = MachineImage.of(b.build(1));
+        assertEquals(2, banked.version());
+        Cpu cpu = new Cpu();
+        banked.loadInto(cpu);
+        assertEquals(0x55, cpu.memory[Cpu.BANK1_BASE + 0x0100]);
+        assertEquals(0, cpu.memory[0x0100]);
+        assertEquals((byte) 0x4FFF, cpu.memory[0x1000 + 0x4FFF]);
+    }
+
+    @Test
+    void version2DetectsCorruptSections() throws Exception {
+        byte[] bytes = new MachineImage.Builder()
+            .addChunk(0, 0x0200, new byte[] {1, 2, 3, 4})
+            .setSymbols(java.util.Map.of("start", 0x0200))
+            .build(2);
+        MachineImage.of(bytes);
+        byte[] flipped = bytes.clone();
+        flipped[flipped.length - 1] ^= 1; // last byte of the symbol section
+        IOException e = assertThrows(IOException.class, () -> MachineImage.of(flipped));
+        assertTrue(e.getMessage().contains("CRC"), e.getMessage());
+        byte[] cut = Arrays.copyOf(bytes, bytes.length - 3);
+        assertThrows(IOException.class, () -> MachineImage.of(cut));
+    }
+
+    @Test
+    void compressedImagesLoadLikeRawOnes() throws Exception {
+        StringBuilder src = new StringBuilder(PROGRAM.replace(".end\n", ""));
+        src.append("Pal:\n");
+        for (int row = 0; row < 64; row++) src.append("    .word 0x0000, 0x1111, 0x2222, 0x3333, 0x4444, 0x5555, 0x6666, 0x7777\n");
+        src.append(".end\n");
+        Path raw = assemble(src.toString(), 2);
+        Path asm = Files.createTempFile("img", ".asm");
+        Path lz = Files.createTempFile("img", ".bin");
+        Files.writeString(asm, src.toString());
+        Assembler a = new Assembler();
+        a.setCompressImage(true);
+        a.parse(asm);
+        a.assemble(lz);
+
+        MachineImage image = MachineImage.read(lz);
+        assertEquals(2, image.version());
+        MachineImage.Entry data = image.chunks().get(2);
+        assertTrue(data.compressed);
+        assertTrue(data.fileLength < data.length / 4, data.fileLength + " of " + data.length);
+        assertTrue(Files.size(lz) < Files.size(raw));
+
+        Cpu x = new Cpu(), y = new Cpu();
+        MachineImage.load(raw, x);
+        image.loadInto(y);
+        assertArrayEquals(x.memory, y.memory);
+        assertEquals(Disassembler.disassemble(Files.readAllBytes(raw)), Disassembler.disassemble(Files.readAllBytes(lz)));
+        Files.delete(asm);
+        Files.delete(raw);
+        Files.delete(lz);
+    }
+}
@@ -0,0 +1,96 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.imageio.ImageIO;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemoryHeatmapTest {
+    private Cpu cpu;
+    private MemoryHeatmap heatmap;
+
+    @BeforeEach
+    void setUp() {
+        cpu = new Cpu();
+        heatmap = new MemoryHeatmap();
+        cpu.heatmap = heatmap;
+    }
+
+    @Test
+    void countsReadsAndWritesPerBankPage() {
+        cpu.writeWord(0x1234, 0xBEEF);       // Bank0 page 0x12: 2 byte writes
+        cpu.readByte(0x1234);                // Bank0 page 0x12: 1 byte read
+        cpu.writeByte(Cpu.BANK_REG, (byte) 1);
+        cpu.writeByte(0x1200, (byte) 0x55);  // Bank1 page 0x12: 1 byte write
+
+        assertEquals(2, heatmap.writes(MemoryHeatmap.REGION_BANK0, 0x1200));
+        assertEquals(1, heatmap.reads(MemoryHeatmap.REGION_BANK0, 0x12FF));
+        assertEquals(1, heatmap.writes(MemoryHeatmap.REGION_BANK1, 0x1200));
+        assertEquals(0, heatmap.reads(MemoryHeatmap.REGION_BANK1, 0x1200));
+        // BANK_REG write is an I/O access
+        assertEquals(1, heatmap.writes(MemoryHeatmap.REGION_IO, Cpu.BANK_REG));
+    }
+
+    @Test
+    void countsBankTransitionsSeparatelyFromWrites() {
+        cpu.writeByte(Cpu.BANK_REG, (byte) 1);
+        cpu.writeByte(Cpu.BANK_REG, (byte) 1); // no transition
+        cpu.writeWord(Cpu.BANK_REG, 0);
+        assertEquals(3, heatmap.bankRegWrites());
+        assertEquals(2, heatmap.bankSwitches());
+    }
+
+    @Test
+    void dmaWritesAreAttributedToBank1() {
+        cpu.writeWord(Cpu.DMA_SRC, 0x1000);
+        cpu.writeWord(Cpu.DMA_DST, 0x20F0);
+        cpu.writeWord(Cpu.DMA_LEN, 0x20);
+        cpu.writeByte(Cpu.DMA_CTRL, (byte) Cpu.DMA_STRT);
+
+        assertEquals(1, heatmap.dmaTransfers());
+        assertEquals(0x20, heatmap.dmaBytes());
+        assertEquals(0x10, heatmap.writes(MemoryHeatmap.REGION_BANK1, 0x20F0));
+        assertEquals(0x10, heatmap.writes(MemoryHeatmap.REGION_BANK1, 0x2100));
+        assertEquals(0x20, heatmap.reads(MemoryHeatmap.REGION_BANK0, 0x1000));
+    }
+
+    @Test
+    void csvHasOneRowPerPage() throws Exception {
+        cpu.writeByte(0x0010, (byte) 1);
+        StringWriter sw = new StringWriter();
+        heatmap.writeCsv(sw);
+        String[] rows = sw.toString().split("\n");
+        assertEquals("region,page,address,reads,writes", rows[0]);
+        // Bank0 minus its two I/O pages, full Bank1, and the two I/O pages
+        assertEquals(1 + 254 + 256 + 2, rows.length);
+        assertEquals("bank0,0,$0000,0,1", rows[1]);
+        assertTrue(sw.toString().contains("io,513,$FF00,"));
+    }
+
+    @Test
+    void writesPngHeatmap() throws Exception {
+        cpu.writeByte(0x0010, (byte) 1);
+        Path png = Files.createTempFile("heatmap", ".png");
+        heatmap.writePng(png);
+        BufferedImage img = ImageIO.read(png.toFile());
+        assertNotNull(img);
+        assertEquals(256, img.getHeight());
+        // Bank0 page 0 was written: red channel saturated
+        assertEquals(0xFF, (img.getRGB(0, 0) >> 16) & 0xFF);
+        Files.deleteIfExists(png);
+    }
+
+    @Test
+    void disabledByDefault() {
+        Cpu plain = new Cpu();
+        assertNull(plain.heatmap);
+        plain.writeWord(0x0000, 0x1234);
+        assertEquals(0x1234, plain.readWord(0x0000));
+    }
+}
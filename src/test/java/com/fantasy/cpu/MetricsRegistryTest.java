@@ -0,0 +1,103 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import javax.management.MBeanServer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsRegistryTest {
+
+    private int makeInstr(int opcode, int size, int srcMode, int srcReg, int dstMode, int dstReg) {
+        return (opcode << 11) | (size << 10) | (srcMode << 8) | (srcReg << 5) | (dstMode << 3) | dstReg;
+    }
+
+    @Test
+    void countsInstructionsCyclesInterruptsAndDma() {
+        Cpu cpu = new Cpu();
+        MachineMetrics m = MachineMetrics.attach(cpu);
+        cpu.writeWord(0, makeInstr(Cpu.MOV, 1, Cpu.MODE_IMM, 0, Cpu.MODE_REG, 0)); // MOV 0x1234, R0
+        cpu.writeWord(2, 0x1234);
+        cpu.writeWord(4, makeInstr(Cpu.NOP, 1, 0, 0, 0, 0));
+        cpu.pc = 0;
+        cpu.step();
+        cpu.step();
+        assertEquals(2, m.getInstructionsRetired());
+        assertEquals(3, m.getCycles()); // 2 words + 1 word
+
+        cpu.interrupt(Cpu.IRQ_VECTOR);
+        assertEquals(1, m.interrupts(Cpu.IRQ_VECTOR));
+        assertEquals(1, m.getInterruptsTotal());
+
+        cpu.writeWord(Cpu.DMA_LEN, 16);
+        cpu.writeByte(Cpu.DMA_CTRL, (byte) Cpu.DMA_STRT);
+        assertEquals(16, m.getDmaBytes());
+        assertEquals(1, m.getDmaTransfers());
+    }
+
+    @Test
+    void accumulatesHaltTimeUntilReset() throws Exception {
+        Cpu cpu = new Cpu();
+        MachineMetrics m = MachineMetrics.attach(cpu);
+        cpu.writeByte(Cpu.CPU_CTRL, (byte) Cpu.CPU_HLT);
+        assertTrue(m.isHalted());
+        Thread.sleep(5);
+        cpu.writeByte(Cpu.CPU_CTRL, (byte) Cpu.CPU_RST);
+        assertFalse(m.isHalted());
+        long halted = m.getHaltNanos();
+        assertTrue(halted >= 5_000_000L, "halt time " + halted);
+        Thread.sleep(2);
+        assertEquals(halted, m.getHaltNanos(), "halt time must stop accumulating after reset");
+    }
+
+    @Test
+    void publishesMBeanPerMachine() throws Exception {
+        MetricsRegistry reg = new MetricsRegistry();
+        Cpu cpu = new Cpu();
+        reg.register("jmx-test", cpu);
+        try {
+            cpu.pc = 0x0040;
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(0x0040, server.getAttribute(MetricsRegistry.objectName("jmx-test"), "Pc"));
+            assertEquals(0L, server.getAttribute(MetricsRegistry.objectName("jmx-test"), "InstructionsRetired"));
+            assertThrows(IllegalArgumentException.class, () -> reg.register("jmx-test", new Cpu()));
+        } finally {
+            reg.unregister("jmx-test");
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(MetricsRegistry.objectName("jmx-test")));
+    }
+
+    @Test
+    void servesTextExpositionOnLocalhost() throws Exception {
+        MetricsRegistry reg = new MetricsRegistry(false);
+        Cpu a = new Cpu();
+        Cpu b = new Cpu();
+        reg.register("a", a);
+        reg.register("b", b);
+        a.writeWord(0, makeInstr(Cpu.NOP, 1, 0, 0, 0, 0));
+        a.pc = 0;
+        a.step();
+        b.interrupt(Cpu.VSYNC_VECTOR);
+
+        HttpServer http = reg.startHttpServer(0);
+        try {
+            URL url = URI.create("http://127.0.0.1:" + http.getAddress().getPort() + "/metrics").toURL();
+            String body;
+            try (InputStream in = url.openStream()) {
+                body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            assertTrue(body.contains("# TYPE fm16_instructions_retired_total counter"));
+            assertTrue(body.contains("fm16_instructions_retired_total{machine=\"a\"} 1"));
+            assertTrue(body.contains("fm16_interrupts_total{machine=\"b\",vector=\"vsync\"} 1"));
+            assertTrue(body.contains("fm16_pc{machine=\"a\"} 2"));
+        } finally {
+            http.stop(0);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReverseDebuggerTest {
+    private Cpu cpu;
+
+    private int makeInstr(int opcode, int size, int srcMode, int srcReg, int dstMode, int dstReg) {
+        return (opcode << 11) | (size << 10) | (srcMode << 8) | (srcReg << 5) | (dstMode << 3) | dstReg;
+    }
+
+    // $0000 INC R0; $0002 MOV R0, $2000; $0006 MOV R0, (R1); $0008 ADD 0x0002, R1; $000C JMP $0000
+    @BeforeEach
+    void setUp() {
+        cpu = new Cpu();
+        int[] words = {
+            makeInstr(Cpu.INC, 1, 0, 0, Cpu.MODE_REG, 0),
+            makeInstr(Cpu.MOV, 1, Cpu.MODE_REG, 0, Cpu.MODE_ABS, 0), 0x2000,
+            makeInstr(Cpu.MOV, 1, Cpu.MODE_REG, 0, Cpu.MODE_IND, 1),
+            makeInstr(Cpu.ADD, 1, Cpu.MODE_IMM, 0, Cpu.MODE_REG, 1), 0x0002,
+            makeInstr(Cpu.JMP, 1, 0, 0, Cpu.MODE_ABS, 0), 0x0000,
+        };
+        for (int i = 0; i < words.length; i++) cpu.writeWord(i * 2, words[i]);
+        cpu.pc = 0;
+        cpu.regs[1] = 0x3000; // R1 walks through memory, dirtying a new page every 128 iterations
+    }
+
+    private String state() {
+        return String.format("#%d pc=%04X r0=%04X r1=%04X flags=%02X [2000]=%04X [%04X]=%04X",
+            cpu.instructionCount, cpu.pc, cpu.regs[0], cpu.regs[1], cpu.flags,
+            cpu.readWord(0x2000), (cpu.regs[1] - 2) & 0xFFFF, cpu.readWord((cpu.regs[1] - 2) & 0xFFFF));
+    }
+
+    @Test
+    void reverseStepRestoresEveryEarlierState() {
+        ReverseDebugger rd = new ReverseDebugger(cpu, 64, 1 << 20);
+        List<String> history = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            history.add(state());
+            rd.step();
+        }
+        assertTrue(rd.snapshotCount() > 10);
+        for (int i = 999; i >= 900; i--) {
+            assertTrue(rd.reverseStep());
+            assertEquals(history.get(i), state());
+        }
+        rd.seek(17);
+        assertEquals(history.get(17), state());
+
+        // forward again re-records and reproduces the same execution
+        assertEquals(ExitReason.INSTRUCTION_LIMIT, rd.run(500));
+        assertEquals(517, cpu.instructionCount);
+        rd.seek(400);
+        assertEquals(history.get(400), state());
+    }
+
+    @Test
+    void replayDoesNotRecordCoverage() {
+        ReverseDebugger rd = new ReverseDebugger(cpu, 64, 1 << 20);
+        rd.run(300);
+        Coverage cov = Coverage.attach(cpu);
+        rd.seek(100); // restores a snapshot, then replays up to instruction 100
+        assertEquals(0, cov.executedCount(0));
+        assertSame(cov, cpu.coverage);
+        rd.step();
+        assertEquals(1, cov.executedCount(0));
+    }
+
+    @Test
+    void reverseContinueFindsEarlierWatchpointWrites() {
+        ReverseDebugger rd = new ReverseDebugger(cpu, 100, 1 << 20);
+        assertEquals(ExitReason.INSTRUCTION_LIMIT, rd.run(1001)); // ends right after an INC
+        int r0 = cpu.regs[0];
+
+        Breakpoints bp = Breakpoints.attach(cpu);
+        bp.addWatchpoint(0x2000, 2, false, true);
+        assertEquals(ExitReason.WRITE_WATCHPOINT, rd.reverseContinue());
+        assertEquals(0x2000, bp.hitAddress());
+        assertEquals(0x0006, cpu.pc); // just after the MOV that wrote it
+        assertEquals(r0 - 1, cpu.regs[0]);
+        assertEquals(r0 - 1, cpu.readWord(0x2000));
+
+        assertEquals(ExitReason.WRITE_WATCHPOINT, rd.reverseContinue());
+        assertEquals(r0 - 2, cpu.readWord(0x2000));
+
+        // continuing forward stops at the next write again
+        assertEquals(ExitReason.WRITE_WATCHPOINT, rd.run(1000));
+        assertEquals(r0 - 1, cpu.readWord(0x2000));
+    }
+
+    @Test
+    void reverseContinueStopsAtBreakpointsAndHistoryStart() {
+        ReverseDebugger rd = new ReverseDebugger(cpu, 50, 1 << 20);
+        rd.run(400);
+        Breakpoints bp = Breakpoints.attach(cpu);
+        bp.addBreakpoint(0x0008);
+        assertEquals(ExitReason.BREAKPOINT, rd.reverseContinue());
+        assertEquals(0x0008, cpu.pc);
+        long at = cpu.instructionCount;
+        assertTrue(at < 400 && at >= 395, "stopped at #" + at);
+
+        bp.removeBreakpoint(0x0008);
+        assertEquals(ExitReason.HISTORY_START, rd.reverseContinue());
+        assertEquals(0, cpu.instructionCount);
+        assertEquals(0x0000, cpu.pc);
+        assertFalse(rd.reverseStep());
+    }
+
+    @Test
+    void evictsOldSnapshotsToStayWithinBudget() {
+        long budget = Cpu.MEMORY_SIZE + 16 * 1024;
+        ReverseDebugger rd = new ReverseDebugger(cpu, 10, budget);
+        List<String> history = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            history.add(state());
+            rd.step();
+        }
+        assertTrue(rd.memoryUsed() <= budget, "used " + rd.memoryUsed());
+        long start = rd.historyStart();
+        assertTrue(start > 0);
+        rd.seek(start + 5);
+        assertEquals(history.get((int) start + 5), state());
+        rd.seek(0); // clamped
+        assertEquals(start, cpu.instructionCount);
+        assertEquals(history.get((int) start), state());
+    }
+
+    @Test
+    void rejectsTinyBudget() {
+        assertThrows(IllegalArgumentException.class, () -> new ReverseDebugger(cpu, 10, 1024));
+        assertThrows(IllegalArgumentException.class, () -> new ReverseDebugger(cpu, 0, 1 << 20));
+    }
+}
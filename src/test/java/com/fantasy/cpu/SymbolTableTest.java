@@ -0,0 +1,45 @@
+package com.fantasy.cpu;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class SymbolTableTest {
+
+    @Test
+    public void internIsCaseInsensitiveAndKeepsFirstSpelling() {
+        SymbolTable t = new SymbolTable();
+        int id = t.intern("Loop");
+        assertEquals(id, t.intern("LOOP"));
+        assertEquals(id, t.find(new StringBuilder("loop")));
+        assertEquals("Loop", t.name(id));
+        assertEquals(SymbolTable.NOT_FOUND, t.find("loop2"));
+        assertEquals(1, t.size());
+    }
+
+    @Test
+    public void forwardReferencesStayUndefinedUntilDefined() {
+        SymbolTable t = new SymbolTable();
+        int id = t.intern("later");
+        assertFalse(t.isDefined(id));
+        assertEquals(SymbolTable.UNDEFINED, t.get("LATER"));
+        assertEquals(SymbolTable.UNDEFINED, t.get("never"));
+        assertFalse(t.define(id, 0x1234));
+        assertEquals(0x1234, t.get("later"));
+        assertTrue(t.define(id, 0x10), "redefinition is reported");
+        assertEquals(0x10, t.value(id));
+    }
+
+    @Test
+    public void growsAndClears() {
+        SymbolTable t = new SymbolTable();
+        for (int i = 0; i < 1000; i++) t.define(t.intern("sym" + i), i);
+        assertEquals(1000, t.size());
+        for (int i = 0; i < 1000; i++) assertEquals(i, t.get("SYM" + i));
+        t.clear();
+        assertEquals(0, t.size());
+        assertEquals(SymbolTable.NOT_FOUND, t.find("sym1"));
+        assertEquals(0, t.intern("sym1"));
+        assertFalse(t.isDefined(0));
+    }
+}
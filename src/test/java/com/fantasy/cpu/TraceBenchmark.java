@@ -0,0 +1,74 @@
+package com.fantasy.cpu;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Interpreter speed with and without instruction tracing: no sink, the ring buffer, a
+ * trace file, and both together. Not a unit test; run with
+ *   mvn -q test-compile
+ *   java -cp target/classes:target/test-classes com.fantasy.cpu.TraceBenchmark [instructions]
+ *
+ * The program is an endless loop of register, immediate and memory instructions with a call
+ * and a conditional branch, run for the given number of instructions (default 50 million)
+ * per configuration. Reported per configuration: million instructions per second and the
+ * slowdown against the untraced run, best of five rounds after a warm-up round. Closing
+ * the trace file (force and truncate) is part of the timed run.
+ */
+public class TraceBenchmark {
+    private static final String PROGRAM = String.join("\n",
+        "loop:",
+        "    INC R0",
+        "    ADD 0x0101, R1",
+        "    MOV R1, $4000",
+        "    XOR R0, R2",
+        "    CALL sub",
+        "    CMP 0x8000, R0",
+        "    JCOND NE, loop",
+        "    MOV 0, R0",
+        "    JMP loop",
+        "sub:",
+        "    PUSH R3",
+        "    MOV [R4], R3",
+        "    POP R3",
+        "    RET",
+        ".end");
+
+    private static final String[] CONFIGS = {
+        "no trace", "ring buffer (1M entries)", "trace file", "ring buffer + trace file"};
+
+    public static void main(String[] args) throws Exception {
+        long instructions = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+        byte[] image = new Assembler().assemble(PROGRAM);
+        Path file = Files.createTempFile("fm16bench", ".trace");
+        double[] best = new double[CONFIGS.length];
+        long traceBytes = 0;
+        try {
+            for (int round = 0; round < 6; round++) { // first round is warm-up, then best of five
+                for (int c = 0; c < CONFIGS.length; c++) {
+                    Cpu cpu = new Cpu();
+                    MachineImage.of(image).loadInto(cpu);
+                    cpu.pc = 0;
+                    if ((c & 1) != 0) InstructionTrace.attach(cpu, InstructionTrace.DEFAULT_CAPACITY);
+                    TraceFileWriter w = (c & 2) != 0 ? TraceFileWriter.attach(cpu, file) : null;
+                    long t0 = System.nanoTime();
+                    for (long done = 0; done < instructions; done += 1_000_000) cpu.run(1_000_000);
+                    if (w != null) w.close();
+                    long t1 = System.nanoTime();
+                    if (w != null) traceBytes = w.size();
+                    double mips = instructions / ((t1 - t0) / 1e9) / 1e6;
+                    if (round > 0) best[c] = Math.max(best[c], mips);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        for (int c = 0; c < CONFIGS.length; c++) print(CONFIGS[c], best[c], best[0]);
+        System.out.printf("trace file: %.2f bytes/instruction, %.0f MiB/s at the traced speed%n",
+            (double) traceBytes / instructions, best[2] * 1e6 * traceBytes / instructions / (1 << 20));
+    }
+
+    private static void print(String what, double mips, double base) {
+        System.out.printf("%-34s %8.1f MIPS %+7.1f%%%n", what, mips, 100.0 * (base / mips - 1));
+    }
+}
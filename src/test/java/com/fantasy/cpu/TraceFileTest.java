@@ -0,0 +1,139 @@
+package com.fantasy.cpu;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TraceFileTest {
+
+    private int makeInstr(int opcode, int size, int srcMode, int srcReg, int dstMode, int dstReg) {
+        return (opcode << 11) | (size << 10) | (srcMode << 8) | (srcReg << 5) | (dstMode << 3) | dstReg;
+    }
+
+    // loop: INC R0; ADD 0x0100, R1; MOV R0, $2000; CMP 0x0000, R2; JCOND EQ, $0000
+    private Cpu loopProgram() {
+        Cpu cpu = new Cpu();
+        int[] words = {
+            makeInstr(Cpu.INC, 1, 0, 0, Cpu.MODE_REG, 0),
+            makeInstr(Cpu.ADD, 1, Cpu.MODE_IMM, 0, Cpu.MODE_REG, 1), 0x0100,
+            makeInstr(Cpu.MOV, 1, Cpu.MODE_REG, 0, Cpu.MODE_ABS, 0), 0x2000,
+            makeInstr(Cpu.CMP, 1, Cpu.MODE_IMM, 0, Cpu.MODE_REG, 2), 0x0000,
+            makeInstr(Cpu.JCOND, 0, Cpu.MODE_IMM, 1, Cpu.MODE_ABS, 0), 0x0000,
+        };
+        for (int i = 0; i < words.length; i++) cpu.writeWord(i * 2, words[i]);
+        cpu.pc = 0;
+        return cpu;
+    }
+
+    @Test
+    void roundTripsAcrossMappedBlocks() throws IOException {
+        Path file = Files.createTempFile("fm16", ".trace");
+        Cpu cpu = loopProgram();
+        InstructionTrace reference = new InstructionTrace(4096);
+        TraceFileWriter writer = new TraceFileWriter(file, 4096); // forces many remaps
+        cpu.trace = (c, pc, instr, srcExt, dstExt) -> {
+            reference.onInstruction(c, pc, instr, srcExt, dstExt);
+            writer.onInstruction(c, pc, instr, srcExt, dstExt);
+        };
+        for (int i = 0; i < 3000; i++) cpu.step();
+        writer.close();
+        assertEquals(3000, writer.records());
+        assertEquals(Files.size(file), writer.size());
+        assertTrue(writer.size() < 3000 * 8, "trace too large: " + writer.size());
+
+        List<InstructionTrace.Entry> expected = reference.snapshot(4096);
+        int regsChecked = 0;
+        try (TraceFileReader r = new TraceFileReader(file)) {
+            int n = 0;
+            while (r.next()) {
+                InstructionTrace.Entry e = expected.get(n);
+                assertEquals(n, r.seq());
+                assertEquals(e.pc, r.pc(), "pc at #" + n);
+                assertEquals(e.instr, r.instr());
+                assertEquals(e.srcExt, r.srcExt());
+                assertEquals(e.dstExt, r.dstExt());
+                assertEquals(e.flags, r.flags());
+                assertEquals(e.sp, r.sp());
+                assertEquals(e.disassembly(), r.disassembly());
+                if (r.pc() == 0) {
+                    // start of iteration k: R0 = k, R1 = k * 0x100
+                    assertEquals(regsChecked, r.reg(0));
+                    assertEquals((regsChecked * 0x100) & 0xFFFF, r.reg(1));
+                    regsChecked++;
+                }
+                n++;
+            }
+            assertEquals(3000, n);
+        }
+        assertEquals(600, regsChecked);
+        Files.delete(file);
+    }
+
+    @Test
+    void formatsRecordsWithOpcodeNames() throws IOException {
+        Path file = Files.createTempFile("fm16", ".trace");
+        Cpu cpu = loopProgram();
+        try (TraceFileWriter w = TraceFileWriter.attach(cpu, file)) {
+            for (int i = 0; i < 5; i++) cpu.step();
+            assertEquals(5, w.records());
+        }
+        try (TraceFileReader r = new TraceFileReader(file)) {
+            assertTrue(r.next());
+            assertTrue(r.format().endsWith("INC R0"), r.format());
+            assertTrue(r.next());
+            assertTrue(r.format().contains("R0=0001"), r.format());
+            assertTrue(r.format().endsWith("ADD 0x0100, R1"), r.format());
+            r.next();
+            r.next();
+            assertTrue(r.next());
+            assertEquals("JCOND EQ, $0000", r.disassembly());
+            assertFalse(r.next());
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    void sharesTheCpuWithTheRingBufferAndDetachesOnClose() throws IOException {
+        Path file = Files.createTempFile("fm16", ".trace");
+        Cpu cpu = loopProgram();
+        InstructionTrace ring = InstructionTrace.attach(cpu, 64);
+        TraceFileWriter w = TraceFileWriter.attach(cpu, file);
+        for (int i = 0; i < 5; i++) cpu.step();
+        w.close();
+        assertSame(ring, cpu.trace);
+        cpu.step(); // must not reach the closed writer
+        w.onInstruction(cpu, 0, 0, 0, 0);
+        assertEquals(5, w.records());
+        assertEquals(6, ring.recorded());
+        Files.delete(file);
+    }
+
+    @Test
+    void stopsAtZeroFillOfUnclosedWriter() throws IOException {
+        Path file = Files.createTempFile("fm16", ".trace");
+        Cpu cpu = loopProgram();
+        TraceFileWriter w = TraceFileWriter.attach(cpu, file);
+        for (int i = 0; i < 10; i++) cpu.step();
+        w.flush();
+        // not closed: the file still has the full mapped block, zero-filled after the data
+        assertTrue(Files.size(file) > w.size());
+        try (TraceFileReader r = new TraceFileReader(file)) {
+            int n = 0;
+            while (r.next()) n++;
+            assertEquals(10, n);
+        }
+        w.close();
+        Files.delete(file);
+    }
+
+    @Test
+    void rejectsForeignFiles() {
+        assertThrows(IOException.class, () -> new TraceFileReader(new ByteArrayInputStream("not a trace".getBytes())));
+    }
+}